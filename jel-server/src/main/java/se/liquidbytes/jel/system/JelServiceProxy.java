@@ -102,6 +102,8 @@ public interface JelServiceProxy {
 
   void removeAdapter(String id, Handler<AsyncResult<Void>> resultHandler);
 
+  void retrieveAdapterTelemetry(String id, Handler<AsyncResult<JsonObject>> resultHandler);
+
   // Sites
   void createSite(JsonObject site, Handler<AsyncResult<JsonObject>> resultHandler);
 
@@ -16,19 +16,70 @@
 package se.liquidbytes.jel.system.adapter;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import se.liquidbytes.jel.system.plugin.Plugin;
 
 /**
  * Base class extended by all adapters
  *
+ * Adapters are deployed as standard verticles and should never block their eventloop, blocking I/O against the hardware is done on the adapters own worker
+ * pool (see getWorkerExecutor() and executeBlocking()). This way a slow or hanging adapter only starves itself, and never the shared Vert.x worker pool that
+ * the rest of JEL depends on.
+ *
+ * With "virtualThreads": true in adapters.json, and on a JDK that has virtual threads (21 or later), the worker pool starts a virtual thread for every task
+ * instead of reusing a fixed number of platform threads. The adapter is still compiled for Java 8, virtual threads are looked up by reflection.
+ *
  * @author Henrik Östman
  */
 public abstract class AbstractAdapter extends AbstractVerticle implements Plugin {
 
+  /**
+   * Logghandler instance
+   */
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /**
+   * Number of threads in the worker pool, if not set in adapters.json.
+   */
+  private final static int DEFAULT_WORKER_POOL_SIZE = 2;
+  /**
+   * First Java version with virtual threads.
+   */
+  private final static int VIRTUAL_THREADS_JAVA_VERSION = 21;
+  /**
+   * Maximum time to wait for interrupted tasks to end when the worker pool is shut down (milliseconds).
+   */
+  private final static long INTERRUPTED_TASKS_TIMEOUT = 1000;
   /**
    * Id for adapter.
    */
   private String id;
+  /**
+   * Worker pool used by this adapter instance only, created on first use.
+   */
+  private ScheduledExecutorService workerExecutor;
+  /**
+   * Whether the worker pool runs on virtual threads.
+   */
+  private boolean virtualThreads;
 
   public AbstractAdapter() {
 
@@ -52,6 +103,303 @@ public abstract class AbstractAdapter extends AbstractVerticle implements Plugin
     this.id = id;
   }
 
+  /**
+   * Stop method for verticle, calls stop() and then shuts down the worker pool if the adapter has not already done so. This is done on a thread of its own,
+   * see stopInBackground().
+   *
+   * @param stopFuture future to complete when adapter has been stopped.
+   */
+  @Override
+  public void stop(Future<Void> stopFuture) {
+    stopInBackground(res -> {
+      if (res.succeeded()) {
+        stopFuture.complete();
+      } else {
+        stopFuture.fail(res.cause());
+      }
+    });
+  }
+
+  /**
+   * Call stop() and shut down the worker pool on a thread of its own named "adapter-{type}-{id}-worker-stop". Stopping waits for running tasks to end and
+   * closes resources, which may block for seconds and must never be done on the eventloop. The worker pool can't be used for this since it is the one being
+   * shut down.
+   *
+   * @param resultHandler handler called on the adapters context when adapter has been stopped.
+   */
+  protected void stopInBackground(Handler<AsyncResult<Void>> resultHandler) {
+    Thread thread = new Thread(() -> {
+      Future<Void> future = Future.future();
+
+      try {
+        stop();
+        shutdownWorkerExecutor(0, TimeUnit.MILLISECONDS);
+        future.complete();
+      } catch (Throwable ex) {
+        logger.error("Failed to stop adapter with id \"{}\".", getId(), ex);
+        future.fail(ex);
+      }
+
+      context.runOnContext(v -> resultHandler.handle(future));
+    }, getWorkerPoolName() + "-stop");
+
+    thread.start();
+  }
+
+  /**
+   * Get the worker pool of this adapter instance, all blocking work should be done here. Threads are named "adapter-{type}-{id}-worker-{n}" so they are
+   * easy to recognize in a thread dump. Size of pool is taken from the setting "workerPoolSize" in adapters.json.
+   *
+   * On virtual threads every task gets a new thread of its own, there is no limit on the number of threads and the setting "workerPoolSize" is ignored.
+   * Delayed and periodic tasks wait on a platform thread named "adapter-{type}-{id}-worker-timer" until it's time for them to run.
+   *
+   * @return worker pool.
+   */
+  protected synchronized ScheduledExecutorService getWorkerExecutor() {
+    if (workerExecutor == null) {
+      String poolName = getWorkerPoolName();
+      ExecutorService virtualThreadExecutor = config().getBoolean("virtualThreads", false) ? createVirtualThreadPerTaskExecutor(poolName) : null;
+
+      if (virtualThreadExecutor != null) {
+        workerExecutor = new PerTaskScheduledExecutor(virtualThreadExecutor, (Runnable r) -> {
+          Thread thread = Executors.defaultThreadFactory().newThread(r);
+          thread.setName(poolName + "-timer");
+          thread.setDaemon(true);
+          return thread;
+        });
+        virtualThreads = true;
+
+        logger.debug("Created worker pool \"{}\" with a virtual thread for every task.", poolName);
+      } else {
+        AtomicInteger threadCounter = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(getConfiguredWorkerPoolSize() > 0 ? getConfiguredWorkerPoolSize() : DEFAULT_WORKER_POOL_SIZE);
+
+        executor.setThreadFactory((Runnable r) -> {
+          Thread thread = Executors.defaultThreadFactory().newThread(r);
+          thread.setName(poolName + "-" + threadCounter.incrementAndGet());
+          return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        workerExecutor = executor;
+        virtualThreads = false;
+
+        logger.debug("Created worker pool \"{}\" with {} threads.", poolName, executor.getCorePoolSize());
+      }
+    }
+
+    return workerExecutor;
+  }
+
+  /**
+   * Make sure that the worker pool has at least a number of threads. Adapters that keep threads busy with long running loops use this to get enough threads
+   * left for other work, even if a smaller pool has been configured. Does nothing on virtual threads, where every task gets a thread of its own.
+   *
+   * @param minimumSize smallest number of threads.
+   */
+  protected synchronized void ensureWorkerPoolSize(int minimumSize) {
+    getWorkerExecutor();
+
+    if (virtualThreads) {
+      return;
+    }
+
+    ScheduledThreadPoolExecutor executor = (ScheduledThreadPoolExecutor) workerExecutor;
+
+    if (executor.getCorePoolSize() < minimumSize) {
+      if (getConfiguredWorkerPoolSize() > 0) {
+        logger.warn("Worker pool \"{}\" is configured with {} threads but adapter needs at least {} threads, growing pool.",
+            getWorkerPoolName(), getConfiguredWorkerPoolSize(), minimumSize);
+      }
+
+      executor.setCorePoolSize(minimumSize);
+    }
+  }
+
+  /**
+   * Run blocking code on the adapters worker pool, same as Vertx.executeBlocking() but without touching the shared Vert.x worker pool. The result handler is
+   * called on the adapters context.
+   *
+   * @param <T> type of result.
+   * @param blockingCodeHandler blocking code to run, should complete the future it gets.
+   * @param resultHandler handler called with the result, may be null.
+   */
+  protected <T> void executeBlocking(Handler<Future<T>> blockingCodeHandler, Handler<AsyncResult<T>> resultHandler) {
+    Future<T> future = Future.future();
+
+    if (resultHandler != null) {
+      future.setHandler(res -> context.runOnContext(v -> resultHandler.handle(res)));
+    }
+
+    try {
+      getWorkerExecutor().execute(() -> {
+        try {
+          blockingCodeHandler.handle(future);
+        } catch (Throwable ex) {
+          if (!future.isComplete()) {
+            future.fail(ex);
+          } else {
+            logger.error("Unhandled exception in worker pool \"{}\".", getWorkerPoolName(), ex);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      future.fail(ex);
+    }
+  }
+
+  /**
+   * Get metrics for the worker pool of this adapter instance.
+   *
+   * On virtual threads there are only threads for running tasks, poolSize is then the same as activeThreads and queuedTasks counts the delayed and periodic
+   * tasks that are waiting for their time to run.
+   *
+   * @return {"name", "virtualThreads", "poolSize", "activeThreads", "largestPoolSize", "queuedTasks", "completedTasks"}, or only name if pool has not been
+   * created.
+   */
+  public synchronized JsonObject getWorkerPoolMetrics() {
+    JsonObject metrics = new JsonObject().put("name", getWorkerPoolName());
+
+    if (workerExecutor instanceof PerTaskScheduledExecutor) {
+      PerTaskScheduledExecutor executor = (PerTaskScheduledExecutor) workerExecutor;
+      metrics.put("virtualThreads", true)
+          .put("poolSize", executor.getActiveCount())
+          .put("activeThreads", executor.getActiveCount())
+          .put("largestPoolSize", executor.getLargestActiveCount())
+          .put("queuedTasks", executor.getScheduledTaskCount())
+          .put("completedTasks", executor.getCompletedTaskCount());
+    } else if (workerExecutor != null) {
+      ScheduledThreadPoolExecutor executor = (ScheduledThreadPoolExecutor) workerExecutor;
+      metrics.put("virtualThreads", false)
+          .put("poolSize", executor.getCorePoolSize())
+          .put("activeThreads", executor.getActiveCount())
+          .put("largestPoolSize", executor.getLargestPoolSize())
+          .put("queuedTasks", executor.getQueue().size())
+          .put("completedTasks", executor.getCompletedTaskCount());
+    }
+
+    return metrics;
+  }
+
+  /**
+   * Shut down the worker pool, waiting a while for running tasks to finish before interrupting them. Interrupted tasks get a short while to end, so that no
+   * task is left running against resources that the adapter closes after this. Safe to call more than once.
+   *
+   * @param timeout maximum time to wait.
+   * @param unit unit of timeout.
+   */
+  protected void shutdownWorkerExecutor(long timeout, TimeUnit unit) {
+    ScheduledExecutorService executor;
+
+    synchronized (this) {
+      executor = workerExecutor;
+      workerExecutor = null;
+    }
+
+    if (executor == null) {
+      return;
+    }
+
+    executor.shutdown();
+
+    try {
+      executor.awaitTermination(timeout, unit);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    try {
+      if (!executor.awaitTermination(INTERRUPTED_TASKS_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        logger.warn("Worker pool \"{}\" still has running tasks that did not end when interrupted.", getWorkerPoolName());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    logger.debug("Worker pool \"{}\" is now shutdown.", getWorkerPoolName());
+  }
+
+  /**
+   * Get a directory where this adapter instance may keep files of its own, like state that should survive a restart. The directory is created if it doesn't
+   * exist.
+   *
+   * @return path to directory, or null if no storage has been assigned to the adapter or the directory could not be created.
+   */
+  protected Path getStoragePath() {
+    String storagePath = config().getString("storagePath");
+
+    if (storagePath == null) {
+      return null;
+    }
+
+    try {
+      return Files.createDirectories(Paths.get(storagePath));
+    } catch (IOException | InvalidPathException ex) {
+      logger.warn("Failed to create storage directory '{}' for adapter with id \"{}\".", storagePath, getId(), ex);
+      return null;
+    }
+  }
+
+  /**
+   * Create an executor that starts a new virtual thread for every task, threads are named "{poolName}-{n}". Looked up by reflection since JEL is built for
+   * Java 8.
+   *
+   * @param poolName name of worker pool.
+   * @return executor, or null if the JDK has no virtual threads.
+   */
+  private static ExecutorService createVirtualThreadPerTaskExecutor(String poolName) {
+    if (getJavaVersion() < VIRTUAL_THREADS_JAVA_VERSION) {
+      logger.warn("Virtual threads need Java {} or later but JEL runs on Java {}, worker pool \"{}\" uses platform threads instead.",
+          VIRTUAL_THREADS_JAVA_VERSION, System.getProperty("java.version"), poolName);
+      return null;
+    }
+
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, poolName + "-", 1L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+    } catch (ReflectiveOperationException | ClassCastException ex) {
+      logger.warn("Failed to create virtual threads on Java {}, worker pool \"{}\" uses platform threads instead.", System.getProperty("java.version"), poolName, ex);
+      return null;
+    }
+  }
+
+  /**
+   * Get the major version of the Java runtime, like 8 or 21.
+   *
+   * @return version, 8 if it could not be parsed.
+   */
+  private static int getJavaVersion() {
+    String version = System.getProperty("java.specification.version", "1.8");
+
+    try {
+      return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    } catch (NumberFormatException ex) {
+      return 8;
+    }
+  }
+
+  /**
+   * Get the name of the worker pool, based upon adapter type and id.
+   *
+   * @return name.
+   */
+  private String getWorkerPoolName() {
+    return String.format("adapter-%s-%s-worker", config().getString("type", "unknown"), config().getString("adapterId", getId()));
+  }
+
+  /**
+   * Get the size of the worker pool from adapters.json.
+   *
+   * @return number of threads, 0 if not set.
+   */
+  private int getConfiguredWorkerPoolSize() {
+    return config().getInteger("workerPoolSize", 0);
+  }
+
   /**
    * Get a more informative description of the adapter, Optional.
    *
@@ -16,6 +16,8 @@
 package se.liquidbytes.jel.system.adapter;
 
 import io.vertx.core.json.JsonObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Class holds the configuration for a physical adapter (these are stored in adapters.json).
@@ -27,6 +29,9 @@ public final class AdapterConfiguration {
   private String type;
   private String address;
   private int port;
+  private int workerPoolSize;
+  private boolean virtualThreads;
+  private Map<String, Object> settings;
 
   /**
    * Default constructor
@@ -55,6 +60,18 @@ public final class AdapterConfiguration {
    */
   public AdapterConfiguration(JsonObject config) {
     this(config.getString("type"), config.getString("address"), config.getInteger("port"));
+
+    if (config.containsKey("workerPoolSize")) {
+      this.setWorkerPoolSize(config.getInteger("workerPoolSize"));
+    }
+
+    if (config.containsKey("virtualThreads")) {
+      this.setVirtualThreads(config.getBoolean("virtualThreads"));
+    }
+
+    if (config.containsKey("settings")) {
+      this.setSettings(config.getJsonObject("settings").getMap());
+    }
   }
 
   /**
@@ -119,6 +136,70 @@ public final class AdapterConfiguration {
     this.port = port;
   }
 
+  /**
+   * Number of threads in the adapters own worker pool, where the adapter does its blocking I/O.
+   *
+   * @return the size, 0 if the adapter should decide.
+   */
+  public int getWorkerPoolSize() {
+    return workerPoolSize;
+  }
+
+  /**
+   * Number of threads in the adapters own worker pool, where the adapter does its blocking I/O. This is optional, adapters may grow the pool if they need
+   * more threads than this.
+   *
+   * @param workerPoolSize the size to set, 0 to let the adapter decide.
+   */
+  public void setWorkerPoolSize(int workerPoolSize) {
+    if (workerPoolSize < 0) {
+      throw new IllegalArgumentException("Not a valid worker pool size.");
+    }
+
+    this.workerPoolSize = workerPoolSize;
+  }
+
+  /**
+   * If the adapters own worker pool should run its tasks on virtual threads.
+   *
+   * @return true if virtual threads should be used.
+   */
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * If the adapters own worker pool should run its tasks on virtual threads instead of a fixed number of platform threads. This is optional, and only takes
+   * effect on a JDK with virtual threads (21 or later), on older JDKs the adapter falls back to platform threads.
+   *
+   * @param virtualThreads true to use virtual threads.
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Adapter specific settings, these are passed as-is to the adapter and their meaning is up to each adapter.
+   *
+   * @return the settings, never null.
+   */
+  public Map<String, Object> getSettings() {
+    if (settings == null) {
+      settings = new LinkedHashMap<>();
+    }
+
+    return settings;
+  }
+
+  /**
+   * Adapter specific settings, these are passed as-is to the adapter and their meaning is up to each adapter.
+   *
+   * @param settings the settings to set
+   */
+  public void setSettings(Map<String, Object> settings) {
+    this.settings = settings;
+  }
+
   /**
    * Information about this object in a public API-friendly way.
    *
@@ -128,7 +209,10 @@ public final class AdapterConfiguration {
     JsonObject obj = new JsonObject()
         .put("type", type)
         .put("address", address)
-        .put("port", port);
+        .put("port", port)
+        .put("workerPoolSize", workerPoolSize)
+        .put("virtualThreads", virtualThreads)
+        .put("settings", new JsonObject(getSettings()));
 
     return obj;
   }
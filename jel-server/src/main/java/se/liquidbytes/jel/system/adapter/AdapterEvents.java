@@ -41,7 +41,30 @@ public final class AdapterEvents {
   public static final String EVENT_DEVICES_REMOVED = "DEVICE_REMOVED";
   /**
    * New readings for a device has been collected. The event has a JSON-object payload containing: {"adapterId" - Id of adapter, "port" - port of adapter,
-   * "host" - DNS-name/IP of adapter, "reading" - JSON-object containing the readings }.
+   * "host" - DNS-name/IP of adapter, "reading" - JSON-object containing the readings }. Devices that aggregate their readings send one event per
+   * aggregation window, with an extra "aggregate" in the reading containing: {"start", "end", "count", "min", "max", "mean", "last"}.
    */
   public static final String EVENT_DEVICE_NEWREADING = "DEVICE_NEWREADING";
+  /**
+   * A device is still connected to adapter but has stopped answering, it will not be read for a while. The event has a JSON-object payload containing:
+   * {"adapterId" - Id of adapter, "port" - port of adapter, "host" - DNS-name/IP of adapter, "hwId" - hardware id of device, "failures" - number of failed
+   * reads in a row, "retryIn" - milliseconds until the device is read again }. When the device answers again an EVENT_DEVICE_PRESENT is sent.
+   */
+  public static final String EVENT_DEVICE_NOTPRESENT = "DEVICE_NOTPRESENT";
+  /**
+   * A device that had stopped answering answers again. The event has a JSON-object payload containing: {"adapterId" - Id of adapter, "port" - port of
+   * adapter, "host" - DNS-name/IP of adapter, "hwId" - hardware id of device }.
+   */
+  public static final String EVENT_DEVICE_PRESENT = "DEVICE_PRESENT";
+  /**
+   * Periodic summary of how the adapter spends its time. The event has a JSON-object payload containing: {"adapterId" - Id of adapter, "port" - port of
+   * adapter, "host" - DNS-name/IP of adapter, "telemetry" - JSON-object with adapter specific durations and counters }.
+   */
+  public static final String EVENT_ADAPTER_TELEMETRY = "ADAPTER_TELEMETRY";
+  /**
+   * The connection between adapter and the system it controls has been lost or restored. The event has a JSON-object payload containing: {"adapterId" - Id of
+   * adapter, "port" - port of adapter, "host" - DNS-name/IP of adapter, "state" - adapter specific name of state, "available" - whether requests to the
+   * adapter could succeed }.
+   */
+  public static final String EVENT_ADAPTER_CONNECTIONSTATE = "ADAPTER_CONNECTIONSTATE";
 }
@@ -18,8 +18,10 @@ package se.liquidbytes.jel.system.adapter;
 import com.cyngn.vertx.async.Latch;
 import com.cyngn.vertx.async.promise.Promise;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.json.JsonObject;
 import java.io.File;
@@ -55,6 +57,10 @@ public final class AdapterManager {
    * File of all adapterDescriptions. Loaded at applicationstart, and updated every time we add a new AdapterConfiguration.
    */
   private final static String ADAPTERS_FILE = "adapters.json";
+  /**
+   * Name of directory under the storage path where each adapter instance gets a directory of its own.
+   */
+  private final static String ADAPTERS_DIRECTORY = "adapters";
 
   /**
    * Logghandler instance
@@ -262,6 +268,36 @@ public final class AdapterManager {
     return foundAdapter;
   }
 
+  /**
+   * Returns telemetry for a specific adapter, like time spent in different phases of its work and counters for reads and writes. The content is adapter
+   * specific.
+   *
+   * @param id id for adapter to query.
+   * @param resultHandler Promise will give the telemetry of adapter.
+   */
+  public void retrieveAdapterTelemetry(String id, Handler<AsyncResult<JsonObject>> resultHandler) {
+    DeliveryOptions options = new DeliveryOptions();
+    options.addHeader("action", "retrieveTelemetry");
+    DeployedAdapter adapter = this.getAdapter(id);
+
+    if (adapter == null) {
+      resultHandler.handle(Future.failedFuture(
+          String.format("Adapter with id %s does not exist.", id))
+      );
+    } else {
+      JelService.vertx().eventBus().send(
+          String.format("%s.%s@%s:%d", AdapterEvents.EVENTBUS_ADAPTERS, adapter.config().getType(), adapter.config().getAddress(), adapter.config().getPort()),
+          null, options, res -> {
+            if (res.succeeded()) {
+              JsonObject result = (JsonObject) res.result().body();
+              resultHandler.handle(Future.succeededFuture(result.getJsonObject("result")));
+            } else {
+              resultHandler.handle(Future.failedFuture(res.cause()));
+            }
+          });
+    }
+  }
+
   /**
    * Add config for and start a new adapter
    *
@@ -420,6 +456,9 @@ public final class AdapterManager {
                 config.put("type", adapterToStart.getType());          // Name of adaptertype.
                 config.put("address", adapterToStart.getAddress());    // Address of adapter, could be a network TCP/IP address, but also the type of a physical port e.g. "/dev/ttyS0".
                 config.put("port", adapterToStart.getPort());          // Optional port of adapter, most commonly used by networked based adapter.
+                config.put("workerPoolSize", adapterToStart.getWorkerPoolSize()); // Optional size of adapters own worker pool, 0 lets the adapter decide.
+                config.put("virtualThreads", adapterToStart.isVirtualThreads()); // Optional, run adapters own worker pool on virtual threads if the JDK has them.
+                config.put("settings", new JsonObject(adapterToStart.getSettings())); // Optional adapter specific settings.
                 AdapterConfiguration deployedConfig = new AdapterConfiguration(config);
 
                 DeployedAdapter adapter = new DeployedAdapter();
@@ -428,11 +467,12 @@ public final class AdapterManager {
 
                 // Stupid circular dependencies, but now we finally has the adapter id.
                 config.put("adapterId", adapter.Id());
+                config.put("storagePath", Paths.get(Settings.getStoragePath().toString(), ADAPTERS_DIRECTORY, adapter.Id()).toString()); // Where adapter may keep files of its own.
 
                 DeploymentOptions deployOptions = new DeploymentOptions();
                 deployOptions.setConfig(config);
                 deployOptions.setInstances(1);
-                deployOptions.setWorker(true);
+                // Not a worker verticle, adapters do their blocking I/O on a worker pool of their own (see AbstractAdapter).
 
                 JelService.vertx().deployVerticle(adapterInstance, deployOptions, res -> {
                   if (res.succeeded()) {
@@ -489,6 +529,9 @@ public final class AdapterManager {
           config.put("type", adapterConfig.getType());          // Name of adaptertype.
           config.put("address", adapterConfig.getAddress());    // Address of adapter, could be a network TCP/IP address, but also the type of a physical port e.g. "/dev/ttyS0".
           config.put("port", adapterConfig.getPort());          // Optional port of adapter, most commonly used by networked based adapter.
+          config.put("workerPoolSize", adapterConfig.getWorkerPoolSize()); // Optional size of adapters own worker pool, 0 lets the adapter decide.
+          config.put("virtualThreads", adapterConfig.isVirtualThreads()); // Optional, run adapters own worker pool on virtual threads if the JDK has them.
+          config.put("settings", new JsonObject(adapterConfig.getSettings())); // Optional adapter specific settings.
           AdapterConfiguration deployedConfig = new AdapterConfiguration(config);
 
           DeployedAdapter adapter = new DeployedAdapter();
@@ -497,11 +540,12 @@ public final class AdapterManager {
 
           // Stupid circular dependencies, but now we finally has the adapter id.
           config.put("adapterId", adapter.Id());
+          config.put("storagePath", Paths.get(Settings.getStoragePath().toString(), ADAPTERS_DIRECTORY, adapter.Id()).toString()); // Where adapter may keep files of its own.
 
           DeploymentOptions deployOptions = new DeploymentOptions();
           deployOptions.setConfig(config);
           deployOptions.setInstances(1);
-          deployOptions.setWorker(true);
+          // Not a worker verticle, adapters do their blocking I/O on a worker pool of their own (see AbstractAdapter).
 
           JelService.vertx().deployVerticle(adapterInstance, deployOptions, res -> {
             if (res.succeeded()) {
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.system.adapter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduled executor that runs every task on a thread of its own, taken from a thread-per-task executor. Used for worker pools on virtual threads, where a
+ * thread is cheap and a pool of reused threads only gets in the way.
+ *
+ * Delayed and periodic tasks wait on a single timer thread that does nothing but hand them over to the task executor when they are due, so a task never runs
+ * on the timer thread. A periodic task is scheduled again first when its run has ended, a run never overlaps the one before it.
+ *
+ * @author Henrik Östman
+ */
+final class PerTaskScheduledExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+  /**
+   * Executor that starts a new thread for every task.
+   */
+  private final ExecutorService taskExecutor;
+  /**
+   * Timer that hands delayed and periodic tasks over to the task executor.
+   */
+  private final ScheduledThreadPoolExecutor timer;
+  /**
+   * Delayed and periodic tasks that have not completed or been cancelled.
+   */
+  private final Set<ScheduledTask<?>> scheduledTasks;
+  /**
+   * Number of tasks running right now.
+   */
+  private final AtomicInteger activeCount;
+  /**
+   * Largest number of tasks that have been running at the same time.
+   */
+  private final AtomicInteger largestActiveCount;
+  /**
+   * Number of task runs that have ended.
+   */
+  private final AtomicLong completedTaskCount;
+
+  /**
+   * Default constructor
+   *
+   * @param taskExecutor executor that starts a new thread for every task, shut down together with this executor.
+   * @param timerThreadFactory factory for the timer thread.
+   */
+  PerTaskScheduledExecutor(ExecutorService taskExecutor, ThreadFactory timerThreadFactory) {
+    this.taskExecutor = taskExecutor;
+    this.timer = new ScheduledThreadPoolExecutor(1, timerThreadFactory);
+    this.timer.setRemoveOnCancelPolicy(true);
+    this.timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    this.timer.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+    this.scheduledTasks = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    this.activeCount = new AtomicInteger();
+    this.largestActiveCount = new AtomicInteger();
+    this.completedTaskCount = new AtomicLong();
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    taskExecutor.execute(() -> {
+      largestActiveCount.accumulateAndGet(activeCount.incrementAndGet(), Math::max);
+
+      try {
+        command.run();
+      } finally {
+        activeCount.decrementAndGet();
+        completedTaskCount.incrementAndGet();
+      }
+    });
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    return schedule(new ScheduledTask<>(Executors.callable(command, null), unit.toNanos(delay), 0));
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    return schedule(new ScheduledTask<>(callable, unit.toNanos(delay), 0));
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+    if (period <= 0) {
+      throw new IllegalArgumentException("Period must be positive.");
+    }
+
+    return schedule(new ScheduledTask<>(Executors.callable(command, null), unit.toNanos(initialDelay), unit.toNanos(period)));
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    if (delay <= 0) {
+      throw new IllegalArgumentException("Delay must be positive.");
+    }
+
+    return schedule(new ScheduledTask<>(Executors.callable(command, null), unit.toNanos(initialDelay), -unit.toNanos(delay)));
+  }
+
+  /**
+   * Stop accepting new tasks. Delayed and periodic tasks that are waiting to run are cancelled, tasks already running are left to finish.
+   */
+  @Override
+  public void shutdown() {
+    timer.shutdown();
+    taskExecutor.shutdown();
+    cancelScheduledTasks();
+  }
+
+  /**
+   * Stop accepting new tasks, cancel delayed and periodic tasks and interrupt all running tasks.
+   *
+   * @return tasks that never started, always empty since every task is started at once.
+   */
+  @Override
+  public List<Runnable> shutdownNow() {
+    timer.shutdownNow();
+    List<Runnable> neverStarted = taskExecutor.shutdownNow();
+    cancelScheduledTasks();
+    return neverStarted;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return taskExecutor.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return timer.isTerminated() && taskExecutor.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    return timer.awaitTermination(timeout, unit) && taskExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Get number of tasks running right now, which is also the number of threads in use.
+   *
+   * @return number of running tasks.
+   */
+  int getActiveCount() {
+    return activeCount.get();
+  }
+
+  /**
+   * Get largest number of tasks that have been running at the same time.
+   *
+   * @return largest number of running tasks.
+   */
+  int getLargestActiveCount() {
+    return largestActiveCount.get();
+  }
+
+  /**
+   * Get number of delayed and periodic tasks waiting for their time to run.
+   *
+   * @return number of scheduled tasks.
+   */
+  int getScheduledTaskCount() {
+    return scheduledTasks.size();
+  }
+
+  /**
+   * Get number of task runs that have ended, every run of a periodic task is counted.
+   *
+   * @return number of completed task runs.
+   */
+  long getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  /**
+   * Schedule a new delayed or periodic task.
+   *
+   * @param <V> type of result.
+   * @param task task to schedule.
+   * @return the task.
+   * @throws RejectedExecutionException if executor has been shut down.
+   */
+  private <V> ScheduledTask<V> schedule(ScheduledTask<V> task) {
+    if (isShutdown()) {
+      throw new RejectedExecutionException("Executor has been shut down.");
+    }
+
+    scheduledTasks.add(task);
+    task.scheduleNext();
+    return task;
+  }
+
+  /**
+   * Cancel all delayed and periodic tasks.
+   */
+  private void cancelScheduledTasks() {
+    for (ScheduledTask<?> task : scheduledTasks) {
+      task.cancel(false);
+    }
+  }
+
+  /**
+   * Delayed or periodic task, waits on the timer and then runs on a thread of its own.
+   *
+   * @param <V> type of result.
+   */
+  private final class ScheduledTask<V> extends FutureTask<V> implements ScheduledFuture<V> {
+
+    /**
+     * Time between runs (nanoseconds). Positive for a fixed rate, negative for a fixed delay and 0 for a task that only runs once.
+     */
+    private final long period;
+    /**
+     * When the task should run next, as given by System.nanoTime().
+     */
+    private volatile long nextRunTime;
+    /**
+     * Timer task that hands this task over to the task executor.
+     */
+    private volatile ScheduledFuture<?> handOver;
+
+    /**
+     * Default constructor
+     *
+     * @param callable code to run.
+     * @param delay time until first run (nanoseconds).
+     * @param period time between runs (nanoseconds), see field period.
+     */
+    ScheduledTask(Callable<V> callable, long delay, long period) {
+      super(callable);
+      this.period = period;
+      this.nextRunTime = System.nanoTime() + delay;
+    }
+
+    /**
+     * Wait on the timer until it's time for the next run.
+     *
+     * @throws RejectedExecutionException if executor has been shut down, the task is then cancelled.
+     */
+    void scheduleNext() {
+      try {
+        handOver = timer.schedule(this::handOver, nextRunTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException ex) {
+        cancel(false);
+        throw ex;
+      }
+    }
+
+    /**
+     * Run the task on a thread of its own, called from the timer.
+     */
+    private void handOver() {
+      if (isDone()) {
+        return;
+      }
+
+      try {
+        execute(this);
+      } catch (RejectedExecutionException ex) {
+        cancel(false);
+      }
+    }
+
+    @Override
+    public void run() {
+      if (period == 0) {
+        super.run();
+      } else if (runAndReset()) {
+        nextRunTime = period > 0 ? nextRunTime + period : System.nanoTime() - period;
+
+        try {
+          scheduleNext();
+        } catch (RejectedExecutionException ex) {
+          // Executor has been shut down, task has been cancelled.
+        }
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      ScheduledFuture<?> pending = handOver;
+
+      if (pending != null) {
+        pending.cancel(false);
+      }
+
+      return cancelled;
+    }
+
+    @Override
+    protected void done() {
+      scheduledTasks.remove(this);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(nextRunTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+  }
+}
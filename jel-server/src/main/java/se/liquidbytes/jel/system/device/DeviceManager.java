@@ -47,6 +47,16 @@ public final class DeviceManager {
    */
   private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+  /**
+   * Priority of a device update initiated by a user, e.g. from the dashboard.
+   */
+  public final static String COMMAND_PRIORITY_USER = "user";
+
+  /**
+   * Priority of a device update initiated by an automation or rule.
+   */
+  public final static String COMMAND_PRIORITY_AUTOMATION = "automation";
+
   /**
    * Referense to eventbus subscription for result-events, just so that we could unsubscibe when shutting down.
    */
@@ -74,6 +84,18 @@ public final class DeviceManager {
    */
   private final Map<String, Map<String, ? extends Device>> siteDevices;
 
+  /**
+   * Index of the site that each bound device belongs to, so that a device could be looked up without going through every site. Key is device id, value is
+   * site id.
+   */
+  private final Map<String, String> deviceSites;
+
+  /**
+   * Index of the devices of each adapter, so that adapter events and an adapter that stops only touch the devices of that adapter. Key is adapter id, value
+   * is a map with hardware id as key and device id as value.
+   */
+  private final Map<String, Map<String, String>> adapterDevices;
+
   /**
    * Default constructor.
    */
@@ -81,6 +103,8 @@ public final class DeviceManager {
     allDevices = new ConcurrentHashMap<>();
     unboundDevices = new ConcurrentHashMap<>();
     siteDevices = new ConcurrentHashMap<>();
+    deviceSites = new ConcurrentHashMap<>();
+    adapterDevices = new ConcurrentHashMap<>();
 
     // TODO: Remove these when database is in place!
     Map<String, Device> devices = new ConcurrentHashMap<>();
@@ -213,7 +237,7 @@ public final class DeviceManager {
     actuator.setName("Arbetsrum");
     devices.put(actuator.getId(), actuator);
 
-    siteDevices.put("1", devices);
+    addSiteDevices("1", devices);
   }
 
   /**
@@ -242,6 +266,8 @@ public final class DeviceManager {
     }
 
     siteDevices.clear();
+    deviceSites.clear();
+    adapterDevices.clear();
     unboundDevices.clear();
     allDevices.clear();
   }
@@ -480,13 +506,27 @@ public final class DeviceManager {
   }
 
   /**
-   * Update the value of an existing result using specified id and value.
+   * Update the value of an existing result using specified id and value. The update is treated as initiated by a user.
    *
    * @param deviceId id of existing result.
    * @param value value to set.
    * @param resultHandler
    */
   public void updateDeviceValue(String deviceId, String value, Handler<AsyncResult<Void>> resultHandler) {
+    updateDeviceValue(deviceId, value, COMMAND_PRIORITY_USER, resultHandler);
+  }
+
+  /**
+   * Update the value of an existing result using specified id, value and priority. Adapters may execute user initiated updates before automation updates.
+   * The update succeeds when the adapter has accepted the new value, and fails if the adapter rejects it (like when its command queue is full) or doesn't
+   * answer.
+   *
+   * @param deviceId id of existing result.
+   * @param value value to set.
+   * @param priority COMMAND_PRIORITY_USER or COMMAND_PRIORITY_AUTOMATION.
+   * @param resultHandler
+   */
+  public void updateDeviceValue(String deviceId, String value, String priority, Handler<AsyncResult<Void>> resultHandler) {
     JsonObject device = allDevices.get(deviceId);
 
     if (device == null) {
@@ -504,15 +544,21 @@ public final class DeviceManager {
       } else {
         JsonObject data = new JsonObject()
             .put("hwId", device.getString("hwId"))
-            .put("value", value);
+            .put("value", value)
+            .put("priority", priority);
 
         logger.info("Setting new value('{}') on device with id: {} and hwId: {}.", value, device.getString("deviceId"), device.getString("hwId"));
 
         JelService.vertx().eventBus().send(
             String.format("%s.%s@%s:%d", AdapterEvents.EVENTBUS_ADAPTERS, adapter.config().getType(), adapter.config().getAddress(), adapter.config().getPort()),
-            data, options);
-
-        resultHandler.handle(Future.succeededFuture());
+            data, options, res -> {
+              if (res.succeeded()) {
+                resultHandler.handle(Future.succeededFuture());
+              } else {
+                logger.warn("Failed to set new value('{}') on device with id: {} and hwId: {}. {}", value, device.getString("deviceId"), device.getString("hwId"), res.cause().getMessage());
+                resultHandler.handle(Future.failedFuture(res.cause()));
+              }
+            });
       }
     }
   }
@@ -549,6 +595,18 @@ public final class DeviceManager {
 
             handleNewDeviceReading(result);
             break;
+
+          case AdapterEvents.EVENT_DEVICE_NOTPRESENT:
+            result = (JsonObject) r.body();
+
+            setDevicePresent(result, false);
+            break;
+
+          case AdapterEvents.EVENT_DEVICE_PRESENT:
+            result = (JsonObject) r.body();
+
+            setDevicePresent(result, true);
+            break;
         }
 
       }
@@ -566,11 +624,10 @@ public final class DeviceManager {
         switch (action) {
           case InternalEvents.EVENT_ADAPTER_STARTED: {
             JsonObject adapter = (JsonObject) r.body();
-            // For newly added adapter, scan for all its connected devices. But first give it some time to settle down and find all devices.
-            JelService.vertx().setTimer(3500, (Void) -> {
-              this.listAdapterDevices(adapter.getString("id"), (deviceList) -> {
-                // Do nothing here. This execution will trigger the population of devices within listAdapterDevices.
-              });
+            // For newly added adapter, scan for all its connected devices. Adapters don't report that they have started until they know their devices, devices
+            // found later on are announced with events of their own.
+            this.listAdapterDevices(adapter.getString("id"), (deviceList) -> {
+              // Do nothing here. This execution will trigger the population of devices within listAdapterDevices.
             });
             break;
           }
@@ -647,17 +704,9 @@ public final class DeviceManager {
       if (!this.allDevices.containsKey(deviceId)) {
         this.allDevices.put(deviceId, device);
       }
+      this.adapterDevices.computeIfAbsent(device.getString("adapterId"), a -> new ConcurrentHashMap<>()).put(device.getString("hwId"), deviceId);
 
-      Device siteDevice = null;
-
-      for (Map<String, ? extends Device> deviceLists : siteDevices.values()) {
-        for (Device tmpDevice : deviceLists.values()) {
-          if (tmpDevice.getId().equals(deviceId)) {
-            siteDevice = tmpDevice;
-            break;
-          }
-        }
-      }
+      Device siteDevice = findSiteDevice(deviceId);
 
       if (siteDevice == null) {
         if (!this.unboundDevices.containsKey(deviceId)) {
@@ -694,18 +743,157 @@ public final class DeviceManager {
    * @param adapterId Id of adapter that has been removed
    */
   private void removeAdapterDevicesFromCollections(String adapterId) {
+    if (adapterId == null) {
+      return;
+    }
 
-    //TODO: if in sitelist, set result as not present and broadcast that to clients.
+    Map<String, String> devices = this.adapterDevices.remove(adapterId);
+
+    if (devices != null) {
+      logger.debug("Removing {} devices of stopped adapter with id {}.", devices.size(), adapterId);
+
+      for (String deviceId : devices.values()) {
+        removeFromDeviceCollections(deviceId);
+      }
+    }
   }
 
   /**
    * Remove specified result from collections.
    *
-   * @param device JSON-object containing: adapterId, name, type, hwId.
+   * @param device JSON-object containing: adapterId, hwId.
    */
   private void removeDeviceFromCollections(JsonObject device) {
+    String adapterId = device.getString("adapterId");
+    String hwId = device.getString("hwId");
 
-    //TODO: if in sitelist, set result as not present and broadcast that to clients.
+    if (adapterId == null || hwId == null) {
+      logger.debug("Device is missing adapterId or hwId, skipping removing device from collection.");
+      return;
+    }
+
+    Map<String, String> devices = this.adapterDevices.get(adapterId);
+    String deviceId = devices != null ? devices.remove(hwId) : null;
+
+    if (deviceId != null) {
+      removeFromDeviceCollections(deviceId);
+    }
+  }
+
+  /**
+   * Remove a result from all result collections and broadcast events. Devices bound to a site stay in their site, but are set as not present.
+   *
+   * @param deviceId id of result.
+   */
+  private void removeFromDeviceCollections(String deviceId) {
+    JsonObject device = this.allDevices.remove(deviceId);
+
+    if (device == null) {
+      return;
+    }
+
+    JsonObject broadcast = new JsonObject()
+        .put("adapterId", device.getString("adapterId"))
+        .put("name", device.getString("name"))
+        .put("type", device.getString("type"))
+        .put("deviceId", deviceId);
+
+    Device siteDevice = findSiteDevice(deviceId);
+
+    if (siteDevice == null) {
+      if (this.unboundDevices.remove(deviceId) != null) {
+        JelService.vertx().eventBus().publish(InternalEvents.EVENTBUS_INTERNAL, broadcast, new DeliveryOptions().addHeader("action", InternalEvents.EVENT_DEVICES_REMOVED));
+        JelService.vertx().eventBus().publish(PublicEvents.EVENTBUS_PUBLIC, broadcast, new DeliveryOptions().addHeader("action", PublicEvents.EVENT_DEVICES_REMOVED));
+      }
+    } else if (siteDevice.isPresent()) {
+      // If present, set as not present and broadcast change.
+      siteDevice.isPresent(false);
+
+      JelService.vertx().eventBus().publish(InternalEvents.EVENTBUS_INTERNAL, broadcast, new DeliveryOptions().addHeader("action", InternalEvents.EVENT_DEVICE_NOTPRESENT));
+      JelService.vertx().eventBus().publish(PublicEvents.EVENTBUS_PUBLIC, broadcast, new DeliveryOptions().addHeader("action", PublicEvents.EVENT_DEVICE_NOTPRESENT));
+    }
+  }
+
+  /**
+   * Set a device that is still connected to its adapter as present or not present, and broadcast the change. Only devices bound to a site keep track of
+   * whether they are present.
+   *
+   * @param device JSON-object containing: adapterId, hwId.
+   * @param present whether device answers its adapter.
+   */
+  private void setDevicePresent(JsonObject device, boolean present) {
+    String adapterId = device.getString("adapterId");
+    String hwId = device.getString("hwId");
+
+    if (adapterId == null || hwId == null) {
+      logger.debug("Device is missing adapterId or hwId, skipping setting device as {}.", present ? "present" : "not present");
+      return;
+    }
+
+    String deviceId = this.getDeviceId(adapterId, hwId);
+    Device siteDevice = findSiteDevice(deviceId);
+
+    if (siteDevice == null || siteDevice.isPresent() == present) {
+      return;
+    }
+
+    siteDevice.isPresent(present);
+
+    JsonObject knownDevice = this.allDevices.get(deviceId);
+    JsonObject broadcast = new JsonObject()
+        .put("adapterId", adapterId)
+        .put("name", knownDevice != null ? knownDevice.getString("name") : siteDevice.getName())
+        .put("type", knownDevice != null ? knownDevice.getString("type") : null)
+        .put("deviceId", deviceId);
+
+    if (present) {
+      JelService.vertx().eventBus().publish(InternalEvents.EVENTBUS_INTERNAL, broadcast, new DeliveryOptions().addHeader("action", InternalEvents.EVENT_DEVICE_PRESENT));
+      JelService.vertx().eventBus().publish(PublicEvents.EVENTBUS_PUBLIC, broadcast, new DeliveryOptions().addHeader("action", PublicEvents.EVENT_DEVICE_PRESENT));
+    } else {
+      JelService.vertx().eventBus().publish(InternalEvents.EVENTBUS_INTERNAL, broadcast, new DeliveryOptions().addHeader("action", InternalEvents.EVENT_DEVICE_NOTPRESENT));
+      JelService.vertx().eventBus().publish(PublicEvents.EVENTBUS_PUBLIC, broadcast, new DeliveryOptions().addHeader("action", PublicEvents.EVENT_DEVICE_NOTPRESENT));
+    }
+  }
+
+  /**
+   * Add the devices of a site, and index them.
+   *
+   * @param siteId id of site.
+   * @param devices devices of site, device id as key.
+   */
+  private void addSiteDevices(String siteId, Map<String, ? extends Device> devices) {
+    this.siteDevices.put(siteId, devices);
+
+    for (String deviceId : devices.keySet()) {
+      this.deviceSites.put(deviceId, siteId);
+    }
+  }
+
+  /**
+   * Find a result among the devices bound to a site.
+   *
+   * @param deviceId id of result.
+   * @return site device, or null if result is not bound to any site.
+   */
+  private Device findSiteDevice(String deviceId) {
+    String siteId = this.deviceSites.get(deviceId);
+    Map<String, ? extends Device> devices = siteId != null ? this.siteDevices.get(siteId) : null;
+
+    return devices != null ? devices.get(deviceId) : null;
+  }
+
+  /**
+   * Get id of a result from its adapter and hardware id, using the index if the result is known.
+   *
+   * @param adapterId adapter id.
+   * @param hwId hardware id.
+   * @return result id.
+   */
+  private String getDeviceId(String adapterId, String hwId) {
+    Map<String, String> devices = this.adapterDevices.get(adapterId);
+    String deviceId = devices != null ? devices.get(hwId) : null;
+
+    return deviceId != null ? deviceId : this.generateDeviceId(adapterId, hwId);
   }
 
   /**
@@ -726,9 +914,8 @@ public final class DeviceManager {
    */
   private void handleNewDeviceReading(JsonObject deviceReading) {
     JsonObject reading = deviceReading.getJsonObject("reading");
-    String deviceId = this.generateDeviceId(deviceReading.getString("adapterId"), reading.getString("hwId"));
-    Map<String, ? extends Device> devices = siteDevices.get("1"); //TODO: hardcoded.
-    Device siteDevice = devices.get(deviceId);
+    String deviceId = this.getDeviceId(deviceReading.getString("adapterId"), reading.getString("hwId"));
+    Device siteDevice = findSiteDevice(deviceId);
 
     int lowLimit = 22;
     int highLimit = 24;
@@ -740,66 +927,66 @@ public final class DeviceManager {
       switch (reading.getString("hwId")) {
         case "B74C8A010800": {  // Vardagsrummet
           if (temp < lowLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_3"), "1", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_3"), "1", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           if (temp > highLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_3"), "0", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_3"), "0", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           break;
         }
         case "C9E69E010800": {  // Hall(toalett/pannrum)"
           if (temp < lowLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_2"), "1", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_2"), "1", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           if (temp > highLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_2"), "0", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_2"), "0", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           break;
         }
         case "158DB5010800": {  // kök
           if (temp < lowLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_4"), "1", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_4"), "1", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           if (temp > highLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_4"), "0", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "4D4D13000000_4"), "0", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           break;
         }
         case "52A9B5010800": {  // Nya entren
           if (temp < lowLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_1"), "1", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_1"), "1", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           if (temp > highLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_1"), "0", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_1"), "0", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           break;
         }
         case "0C92B5010800": {  // Arbetsrum
           if (temp < lowLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_3"), "1", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_3"), "1", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           if (temp > highLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_3"), "0", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_3"), "0", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           break;
         }
         case "969D98010800": {  // Badrum
           if (temp < lowLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_2"), "1", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_2"), "1", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           if (temp > highLimit) {
-            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_2"), "0", (r) -> {
+            this.updateDeviceValue(this.generateDeviceId(deviceReading.getString("adapterId"), "3E4D13000000_2"), "0", COMMAND_PRIORITY_AUTOMATION, (r) -> {
             });
           }
           break;
@@ -813,6 +1000,10 @@ public final class DeviceManager {
           .put("time", reading.getString("time"))
           .put("value", reading.getString("value"));
 
+      if (reading.containsKey("aggregate")) {
+        newReading.put("aggregate", reading.getJsonObject("aggregate"));
+      }
+
       JelService.vertx().eventBus().publish(InternalEvents.EVENTBUS_INTERNAL, newReading, new DeliveryOptions().addHeader("action", InternalEvents.EVENT_DEVICE_NEWREADING));
       JelService.vertx().eventBus().publish(PublicEvents.EVENTBUS_PUBLIC, newReading, new DeliveryOptions().addHeader("action", PublicEvents.EVENT_DEVICE_NEWREADING));
     }
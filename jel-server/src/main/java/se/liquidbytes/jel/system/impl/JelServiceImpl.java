@@ -184,6 +184,21 @@ public class JelServiceImpl implements JelServiceProxy {
     }
   }
 
+  @Override
+  public void retrieveAdapterTelemetry(String id, Handler<AsyncResult<JsonObject>> resultHandler) {
+    try {
+      JelService.adapterManager().retrieveAdapterTelemetry(id, (onResult) -> {
+        if (onResult.succeeded()) {
+          resultHandler.handle(Future.succeededFuture(onResult.result()));
+        } else {
+          resultHandler.handle(Future.failedFuture(onResult.cause().getMessage()));
+        }
+      });
+    } catch (Exception ex) {
+      resultHandler.handle(Future.failedFuture(ex.getMessage()));
+    }
+  }
+
   @Override
   public void addAdapter(JsonObject adapter, Handler<AsyncResult<Void>> resultHandler) {
     try {
@@ -191,6 +206,9 @@ public class JelServiceImpl implements JelServiceProxy {
       config.setType(adapter.getString("type"));
       config.setAddress(adapter.getString("address"));
       config.setPort(adapter.getInteger("port"));
+      if (adapter.containsKey("settings")) {
+        config.setSettings(adapter.getJsonObject("settings").getMap());
+      }
 
       JelService.adapterManager().addAdapter(config);
       resultHandler.handle(Future.succeededFuture());
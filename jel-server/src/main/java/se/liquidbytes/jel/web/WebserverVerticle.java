@@ -321,6 +321,7 @@ public class WebserverVerticle extends AbstractVerticle {
     router.post("/adapters").handler(adapterApi::add);
     router.get("/adapters").handler(adapterApi::list);
     router.get("/adapters/:adapterId").handler(adapterApi::retrieve);
+    router.get("/adapters/:adapterId/telemetry").handler(adapterApi::retrieveTelemetry);
     router.delete("/adapters/:adapterId").handler(adapterApi::remove);
     // User-api
     router.post("/users").handler(userApi::create);
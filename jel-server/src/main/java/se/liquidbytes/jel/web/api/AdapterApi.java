@@ -78,6 +78,7 @@ public class AdapterApi {
           JsonObject adapter = (JsonObject) a;
           adapter.put("devices", String.format("%s/adapters/%s/devices", API_ENDPOINT, adapter.getString("id")));
           adapter.put("supportedDevices", String.format("%s/adapters/%s/supportedDevices", API_ENDPOINT, adapter.getString("id")));
+          adapter.put("telemetry", String.format("%s/adapters/%s/telemetry", API_ENDPOINT, adapter.getString("id")));
           adapters.add(adapter);
         });
 
@@ -105,6 +106,7 @@ public class AdapterApi {
         JsonObject adapter = r.result();
         adapter.put("devices", String.format("%s/adapters/%s/devices", API_ENDPOINT, adapter.getString("id")));
         adapter.put("supportedDevices", String.format("%s/adapters/%s/supportedDevices", API_ENDPOINT, adapter.getString("id")));
+        adapter.put("telemetry", String.format("%s/adapters/%s/telemetry", API_ENDPOINT, adapter.getString("id")));
 
         context.response().end(adapter.encodePrettily());
       } else {
@@ -113,6 +115,23 @@ public class AdapterApi {
     });
   }
 
+  public void retrieveTelemetry(RoutingContext context) {
+    HttpServerRequest request = context.request();
+    String adapterId = request.getParam("adapterId");
+    if (adapterId == null) {
+      context.fail(400);
+      return;
+    }
+
+    service.retrieveAdapterTelemetry(adapterId, (r) -> {
+      if (r.succeeded()) {
+        context.response().end(r.result().encodePrettily());
+      } else {
+        context.fail(r.cause());
+      }
+    });
+  }
+
   public void remove(RoutingContext context) {
     HttpServerRequest request = context.request();
     String adapterId = request.getParam("adapterId");
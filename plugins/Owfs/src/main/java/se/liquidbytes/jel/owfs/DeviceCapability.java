@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+/**
+ * Capabilities a device type could have. Some are declared in the device type database, others follow from which paths the type has.
+ *
+ * @author Henrik Östman
+ */
+public enum DeviceCapability {
+
+  /**
+   * Measures temperature, needs a conversion before it could be read.
+   */
+  TEMPERATURE,
+  /**
+   * Measures voltage, needs a conversion before it could be read.
+   */
+  VOLTAGE,
+  /**
+   * Switch with one or more input or output ports.
+   */
+  SWITCH,
+  /**
+   * Counts pulses.
+   */
+  COUNTER,
+  /**
+   * Has a value that could be read.
+   */
+  READABLE,
+  /**
+   * Has a value that could be written.
+   */
+  WRITABLE,
+  /**
+   * Could raise an alarm when its inputs change, so it does not have to be polled.
+   */
+  ALARMING
+}
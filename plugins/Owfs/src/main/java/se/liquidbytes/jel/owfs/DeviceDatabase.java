@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 Henrik Östman.
+ * Copyright 2016 Henrik Östman.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,23 +16,36 @@
 package se.liquidbytes.jel.owfs;
 
 import io.vertx.core.json.JsonArray;
-import io.vertx.core.json.JsonObject;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
-import org.owfs.jowfsclient.device.SwitchAlarmingDeviceListener;
+import se.liquidbytes.jel.system.plugin.PluginException;
 
 /**
- * Class that contains a "database" of all supported devices an their features.
+ * Class that contains a "database" of all supported devices an their features. The device types are loaded from the bundled resource "devicetypes.json".
  *
  * @author Henrik Östman
  */
 public final class DeviceDatabase {
 
-  private static final Map<String, JsonObject> devices = createDatabase();
-  private static final List<JsonObject> devicesList = createDeviceList();
+  /**
+   * Name of resource, relative to this class, that holds all supported device types.
+   */
+  private static final String DATABASE_RESOURCE = "devicetypes.json";
+  /**
+   * Read policies of properties that are common to all device types, property path as key. These never change for a hwId, except for "/power" that may
+   * change if a device is rewired. Types may override these in "readPolicies" in the device type database.
+   */
+  private static final Map<String, ReadPolicy> defaultReadPolicies = createDefaultReadPolicies();
+  private static final Map<String, DeviceType> devices = createDatabase();
+  private static final List<DeviceType> devicesList = createDeviceList();
 
   /**
    * Default constructor
@@ -47,17 +60,27 @@ public final class DeviceDatabase {
    * @param typeId id of device type.
    * @return information about device type, or null if not suported.
    */
-  public static JsonObject getDeviceTypeInfo(String typeId) {
+  public static DeviceType getDeviceType(String typeId) {
     return devices.get(typeId);
   }
 
+  /**
+   * Get read policy of a property, for properties that are read before the type of device is known.
+   *
+   * @param property path of property relative to device, e.g. "/type".
+   * @return policy, uncached if property has no default policy.
+   */
+  public static ReadPolicy getDefaultReadPolicy(String property) {
+    return defaultReadPolicies.getOrDefault(property, ReadPolicy.UNCACHED);
+  }
+
   /**
    * Returns a list of supported device types.
    *
    * @return
    */
-  public static List<JsonObject> getSuportedDeviceTypes() {
-    return Collections.unmodifiableList(devicesList);
+  public static List<DeviceType> getSuportedDeviceTypes() {
+    return devicesList;
   }
 
   /**
@@ -65,336 +88,50 @@ public final class DeviceDatabase {
    *
    * @return
    */
-  private static List<JsonObject> createDeviceList() {
-    return devices.values().stream().sorted(
-        (d1, d2) -> d1.getString("typeId").compareTo(d2.getString("typeId"))
-    ).collect(Collectors.toList());
+  private static List<DeviceType> createDeviceList() {
+    return Collections.unmodifiableList(devices.values().stream().sorted(
+        (d1, d2) -> d1.getTypeId().compareTo(d2.getTypeId())
+    ).collect(Collectors.toList()));
   }
 
   /**
-   * Create lookup table of supported device types. Should only be needed to run once.
+   * Create lookup table of read policies common to all device types.
    *
    * @return
    */
-  private static Map<String, JsonObject> createDatabase() {
-    Map<String, JsonObject> db = new ConcurrentHashMap<>();
-
-    //--- TEMPERATURE DEVICES ---------------------------------------------------------------------
-    JsonObject type = new JsonObject()
-        .put("typeId", "DS18S20")
-        .put("familyId", "10")
-        .put("name", "DS18S20")
-        .put("description", "High-Precision 1-Wire Digital Thermometer. It has an operating temperature range of -55°C to +125°C and is accurate to ±0.5°C over the range of -10°C to +85°C.")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS18S20.pdf")
-        )
-        .put("valueType", "number")
-        .put("maxValue", "125")
-        .put("minValue", "-55")
-        .put("minSampleDelay", "1000")
-        .put("temperatureSensor", true)
-        .put("valueReadPath", "/latesttemp");
-    db.put("DS18S20", type);
-
-    type = new JsonObject()
-        .put("typeId", "DS18B20")
-        .put("familyId", "28")
-        .put("name", "DS18B20")
-        .put("description", "High-Precision 1-Wire Digital Thermometer. It has an operating temperature range of -55°C to +125°C and is accurate to ±0.5°C over the range of -10°C to +85°C.")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS18B20.pdf")
-        )
-        .put("valueType", "number")
-        .put("maxValue", "125")
-        .put("minValue", "-55")
-        .put("minSampleDelay", "1000")
-        .put("temperatureSensor", true)
-        .put("valueReadPath", "/latesttemp");
-    db.put(type.getString("typeId"), type);
+  private static Map<String, ReadPolicy> createDefaultReadPolicies() {
+    Map<String, ReadPolicy> policies = new HashMap<>();
+    policies.put("/type", new ReadPolicy(ReadPolicy.Mode.ADAPTER_CACHED, 0));
+    policies.put("/family", new ReadPolicy(ReadPolicy.Mode.ADAPTER_CACHED, 0));
+    policies.put("/power", new ReadPolicy(ReadPolicy.Mode.ADAPTER_CACHED, 3600000));
 
-    type = new JsonObject()
-        .put("typeId", "DS1825")
-        .put("familyId", "3B")
-        .put("name", "DS1825")
-        .put("description", "High-Precision 1-Wire Digital Thermometer. It has an operating temperature range of -55°C to +125°C and is accurate to ±0.5°C over the range of -10°C to +85°C.")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS1825.pdf")
-        )
-        .put("valueType", "number")
-        .put("maxValue", "125")
-        .put("minValue", "-55")
-        .put("minSampleDelay", "1000")
-        .put("temperatureSensor", true)
-        .put("valueReadPath", "/latesttemp");
-    db.put(type.getString("typeId"), type);
-
-    type = new JsonObject()
-        .put("typeId", "DS1920")
-        .put("familyId", "10")
-        .put("name", "DS1920")
-        .put("description", "iButton 1-Wire Digital Thermometer.")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS1920.pdf")
-        )
-        .put("valueType", "number")
-        .put("maxValue", "100")
-        .put("minValue", "-55")
-        .put("minSampleDelay", "300")
-        .put("temperatureSensor", true)
-        .put("valueReadPath", "/latesttemp");
-    db.put(type.getString("typeId"), type);
-
-    type = new JsonObject()
-        .put("typeId", "DS1822")
-        .put("familyId", "22")
-        .put("name", "DS1822")
-        .put("description", "1-Wire Digital Thermometer.")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS1822.pdf")
-        )
-        .put("valueType", "number")
-        .put("maxValue", "100")
-        .put("minValue", "-55")
-        .put("minSampleDelay", "300")
-        .put("temperatureSensor", true)
-        .put("valueReadPath", "/latesttemp");
-    db.put(type.getString("typeId"), type);
-
-    //--- SWITCH DEVICES ---------------------------------------------------------------------
-    type = new JsonObject()
-        .put("typeId", "DS2408")
-        .put("familyId", "29")
-        .put("name", "DS2408")
-        .put("description", "1-Wire 8 channel addressable switch")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS2408.pdf")
-        )
-        .put("valueType", "number")
-        .put("minSampleDelay", "100")
-        .put("valueReadPath", "/sensed.ALL")
-        .put("valueWritePath", "/PIO.ALL")
-        .put("alarmingMask", SwitchAlarmingDeviceListener.ALARMING_MASK_8_SWITCHES)
-        .put("initCommands",
-            new JsonArray().add(
-                new JsonObject()
-                .put("path", "/strobe") //TODO: This should accually only be run when using this device as an output.
-                .put("value", "1")
-            )
-        )
-        .put("childDevices",
-            new JsonArray()
-            .add(
-                new JsonObject()
-                .put("idSuffix", "1")
-                .put("name", "port 1")
-                .put("valueReadPath", "/sensed.0")
-                .put("valueWritePath", "/PIO.0")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "2")
-                .put("name", "port 2")
-                .put("valueReadPath", "/sensed.1")
-                .put("valueWritePath", "/PIO.1")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "3")
-                .put("name", "port 3")
-                .put("valueReadPath", "/sensed.2")
-                .put("valueWritePath", "/PIO.2")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "4")
-                .put("name", "port 4")
-                .put("valueReadPath", "/sensed.3")
-                .put("valueWritePath", "/PIO.3")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "5")
-                .put("name", "port 5")
-                .put("valueReadPath", "/sensed.4")
-                .put("valueWritePath", "/PIO.4")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "6")
-                .put("name", "port 6")
-                .put("valueReadPath", "/sensed.5")
-                .put("valueWritePath", "/PIO.5")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "7")
-                .put("name", "port 7")
-                .put("valueReadPath", "/sensed.6")
-                .put("valueWritePath", "/PIO.6")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "8")
-                .put("name", "port 8")
-                .put("valueReadPath", "/sensed.7")
-                .put("valueWritePath", "/PIO.7")
-            )
-        );
-    db.put(type.getString("typeId"), type);
-
-    type = new JsonObject()
-        .put("typeId", "DS2406")
-        .put("familyId", "12")
-        .put("name", "DS2406")
-        .put("description", "1-Wire dual-channel adressable switch with 1kbit Memory")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS2406.pdf")
-        )
-        .put("valueType", "number")
-        .put("minSampleDelay", "100")
-        .put("valueReadPath", "/sensed.ALL")
-        .put("valueWritePath", "/PIO.ALL")
-        .put("alarmingMask", SwitchAlarmingDeviceListener.ALARMING_MASK_2_SWITCHES)
-        .put("childDevices",
-            new JsonArray()
-            .add(
-                new JsonObject()
-                .put("idSuffix", "1")
-                .put("name", "port A")
-                .put("valueReadPath", "/sensed.A")
-                .put("valueWritePath", "/PIO.A")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "2")
-                .put("name", "port B")
-                .put("valueReadPath", "/sensed.B")
-                .put("valueWritePath", "/PIO.B")
-            )
-        );
-    db.put(type.getString("typeId"), type);
-
-    type = new JsonObject()
-        .put("typeId", "DS2413")
-        .put("familyId", "3A")
-        .put("name", "DS2413")
-        .put("description", "1-Wire dual-channel adressable switch")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS2413.pdf")
-        )
-        .put("valueType", "number")
-        .put("minSampleDelay", "100")
-        .put("valueReadPath", "/sensed.ALL")
-        .put("valueWritePath", "/PIO.ALL")
-        .put("alarmingMask", SwitchAlarmingDeviceListener.ALARMING_MASK_2_SWITCHES)
-        .put("childDevices",
-            new JsonArray()
-            .add(
-                new JsonObject()
-                .put("idSuffix", "1")
-                .put("name", "port A")
-                .put("valueReadPath", "/sensed.A")
-                .put("valueWritePath", "/PIO.A")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "2")
-                .put("name", "port B")
-                .put("valueReadPath", "/sensed.B")
-                .put("valueWritePath", "/PIO.B")
-            )
-        );
-    db.put(type.getString("typeId"), type);
-
-    //--- VOLTAGE DEVICES ---------------------------------------------------------------------
-    type = new JsonObject()
-        .put("typeId", "DS2450")
-        .put("familyId", "20")
-        .put("name", "DS2450")
-        .put("description", "1-Wire Quad A/D Converter")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS2450.pdf")
-        )
-        .put("valueType", "number")
-        .put("minSampleDelay", "100")
-        .put("valueReadPath", "/volt.ALL")
-        .put("childDevices",
-            new JsonArray()
-            .add(
-                new JsonObject()
-                .put("idSuffix", "1")
-                .put("name", "voltage input A")
-                .put("valueReadPath", "/volt.A")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "2")
-                .put("name", "voltage input B")
-                .put("valueReadPath", "/volt.B")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "3")
-                .put("name", "voltage input C")
-                .put("valueReadPath", "/volt.C")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "4")
-                .put("name", "voltage input D")
-                .put("valueReadPath", "/volt.D")
-            )
-        );
-    db.put(type.getString("typeId"), type);
-    //--- COUNTER DEVICES ---------------------------------------------------------------------
-    type = new JsonObject()
-        .put("typeId", "DS2423")
-        .put("familyId", "1D")
-        .put("name", "DS2423")
-        .put("description", "4kbit 1-Wire RAM with Counter")
-        .put("manufacturer", new JsonObject()
-            .put("name", "maxim integrated")
-            .put("homepage", "https://www.maximintegrated.com")
-            .put("datasheets", "https://datasheets.maximintegrated.com/en/ds/DS2423.pdf")
-        )
-        .put("valueType", "number")
-        .put("minSampleDelay", "100")
-        .put("valueReadPath", "/counters.ALL")
-        .put("childDevices",
-            new JsonArray()
-            .add(
-                new JsonObject()
-                .put("idSuffix", "1")
-                .put("name", "counter input A")
-                .put("valueReadPath", "/counters.A")
-            )
-            .add(
-                new JsonObject()
-                .put("idSuffix", "2")
-                .put("name", "counter input B")
-                .put("valueReadPath", "/counters.B")
-            )
-        );
-    db.put(type.getString("typeId"), type);
+    return Collections.unmodifiableMap(policies);
+  }
 
-    return db;
+  /**
+   * Create lookup table of supported device types. Should only be needed to run once.
+   *
+   * @return
+   */
+  private static Map<String, DeviceType> createDatabase() {
+    Map<String, DeviceType> db = new HashMap<>();
+
+    try (InputStream stream = DeviceDatabase.class.getResourceAsStream(DATABASE_RESOURCE)) {
+      if (stream == null) {
+        throw new PluginException(String.format("Device type database '%s' is missing.", DATABASE_RESOURCE));
+      }
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+      JsonArray types = new JsonArray(reader.lines().collect(Collectors.joining("\n")));
+
+      for (int i = 0; i < types.size(); i++) {
+        DeviceType type = new DeviceType(types.getJsonObject(i));
+        db.put(type.getTypeId(), type);
+      }
+    } catch (IOException ex) {
+      throw new PluginException(String.format("Failed to load device type database '%s'.", DATABASE_RESOURCE), ex);
+    }
+
+    return Collections.unmodifiableMap(db);
   }
 }
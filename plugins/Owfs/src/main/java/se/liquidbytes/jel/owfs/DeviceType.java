@@ -0,0 +1,520 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable description of a supported device type, and how to read and write it.
+ *
+ * @author Henrik Östman
+ */
+public final class DeviceType {
+
+  /**
+   * Id of type, e.g. "DS18B20".
+   */
+  private final String typeId;
+  /**
+   * 1-wire family code, e.g. "28".
+   */
+  private final String familyId;
+  /**
+   * Name of type.
+   */
+  private final String name;
+  /**
+   * Description of type.
+   */
+  private final String description;
+  /**
+   * Information about manufacturer.
+   */
+  private final JsonObject manufacturer;
+  /**
+   * Type of value, e.g. "number".
+   */
+  private final String valueType;
+  /**
+   * Shortest time between two samples of a device of this type (milliseconds).
+   */
+  private final long minSampleDelay;
+  /**
+   * Default rules for when a new reading of a device of this type is published.
+   */
+  private final ReportingPolicy reportingPolicy;
+  /**
+   * Read policies of properties that don't use the default policy, property path as key.
+   */
+  private final Map<String, ReadPolicy> readPolicies;
+  /**
+   * Resolution (bits) devices of this type have when they are found, 0 if type has no conversion.
+   */
+  private final int defaultResolution;
+  /**
+   * Path relative to device to read to set resolution, with "%d" where the bits go. Null if resolution could not be changed.
+   */
+  private final String resolutionPath;
+  /**
+   * Path relative to device that does a conversion on this device only and reads the result, used for devices that can't take part in simultaneous
+   * conversions. Null if type has no such path.
+   */
+  private final String convertPath;
+  /**
+   * Longest time a conversion takes (milliseconds), resolution in bits as key. Empty if type has no conversion.
+   */
+  private final Map<Integer, Long> conversionTimes;
+  /**
+   * Capabilities of type.
+   */
+  private final Set<DeviceCapability> capabilities;
+  /**
+   * Path relative to device to read value from, null if not readable.
+   */
+  private final String valueReadPath;
+  /**
+   * Path relative to device to write value to, null if not writable.
+   */
+  private final String valueWritePath;
+  /**
+   * Alarm condition written to "set_alarm", null if type does not support alarms.
+   */
+  private final String alarmingMask;
+  /**
+   * Path relative to device to write to when resetting alarm latches, null if type has no latches.
+   */
+  private final String alarmResetPath;
+  /**
+   * Commands to run when a device of this type is found, each command is a path relative to device and a value.
+   */
+  private final String[][] initCommands;
+  /**
+   * Child devices of type, in the same order as the values of a composite reading.
+   */
+  private final ChildSlot[] childSlots;
+  /**
+   * Child devices of type, idSuffix as key.
+   */
+  private final Map<String, ChildSlot> childSlotsBySuffix;
+
+  /**
+   * Create type from its JSON description in the device type database.
+   *
+   * @param json description of type.
+   */
+  DeviceType(JsonObject json) {
+    this.typeId = json.getString("typeId");
+    this.familyId = json.getString("familyId");
+    this.name = json.getString("name");
+    this.description = json.getString("description");
+    this.manufacturer = json.getJsonObject("manufacturer", new JsonObject()).copy();
+    this.valueType = json.getString("valueType");
+    this.minSampleDelay = json.getLong("minSampleDelay", 0L);
+    this.reportingPolicy = ReportingPolicy.fromJson(json.getJsonObject("reporting"), ReportingPolicy.ALL_CHANGES);
+    this.readPolicies = new HashMap<>();
+    JsonObject policies = json.getJsonObject("readPolicies", new JsonObject());
+    for (String property : policies.fieldNames()) {
+      this.readPolicies.put(property, ReadPolicy.fromJson(policies.getJsonObject(property), DeviceDatabase.getDefaultReadPolicy(property)));
+    }
+    this.valueReadPath = json.getString("valueReadPath");
+    this.valueWritePath = json.getString("valueWritePath");
+    this.alarmingMask = json.getString("alarmingMask");
+    this.alarmResetPath = json.getString("alarmResetPath");
+
+    JsonObject conversion = json.getJsonObject("conversion", new JsonObject());
+    this.defaultResolution = conversion.getInteger("resolution", 0);
+    this.resolutionPath = conversion.getString("resolutionPath");
+    this.convertPath = conversion.getString("convertPath");
+    this.conversionTimes = new HashMap<>();
+    JsonObject times = conversion.getJsonObject("times", new JsonObject());
+    for (String bits : times.fieldNames()) {
+      this.conversionTimes.put(Integer.valueOf(bits), times.getLong(bits));
+    }
+
+    Set<DeviceCapability> caps = EnumSet.noneOf(DeviceCapability.class);
+    for (Object capability : json.getJsonArray("capabilities", new JsonArray())) {
+      caps.add(DeviceCapability.valueOf(capability.toString().toUpperCase(Locale.ENGLISH)));
+    }
+    if (valueReadPath != null) {
+      caps.add(DeviceCapability.READABLE);
+    }
+    if (valueWritePath != null) {
+      caps.add(DeviceCapability.WRITABLE);
+    }
+    if (alarmingMask != null) {
+      caps.add(DeviceCapability.ALARMING);
+    }
+    this.capabilities = Collections.unmodifiableSet(caps);
+
+    JsonArray commands = json.getJsonArray("initCommands", new JsonArray());
+    this.initCommands = new String[commands.size()][];
+    for (int i = 0; i < commands.size(); i++) {
+      JsonObject command = commands.getJsonObject(i);
+      this.initCommands[i] = new String[]{command.getString("path"), command.getString("value")};
+    }
+
+    JsonArray children = json.getJsonArray("childDevices", new JsonArray());
+    this.childSlots = new ChildSlot[children.size()];
+    this.childSlotsBySuffix = new HashMap<>();
+    for (int i = 0; i < children.size(); i++) {
+      JsonObject child = children.getJsonObject(i);
+      this.childSlots[i] = new ChildSlot(i, child.getString("idSuffix"), child.getString("name"), child.getString("valueReadPath"), child.getString("valueWritePath"));
+      this.childSlotsBySuffix.put(child.getString("idSuffix"), this.childSlots[i]);
+    }
+  }
+
+  /**
+   * Get id of type.
+   *
+   * @return id, e.g. "DS18B20".
+   */
+  public String getTypeId() {
+    return typeId;
+  }
+
+  /**
+   * Get 1-wire family code.
+   *
+   * @return family code, e.g. "28".
+   */
+  public String getFamilyId() {
+    return familyId;
+  }
+
+  /**
+   * Get name of type.
+   *
+   * @return name.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Get description of type.
+   *
+   * @return description.
+   */
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * Get information about manufacturer.
+   *
+   * @return copy of manufacturer information.
+   */
+  public JsonObject getManufacturer() {
+    return manufacturer.copy();
+  }
+
+  /**
+   * Get type of value.
+   *
+   * @return type of value, e.g. "number".
+   */
+  public String getValueType() {
+    return valueType;
+  }
+
+  /**
+   * Get shortest time between two samples of a device of this type.
+   *
+   * @return delay in milliseconds.
+   */
+  public long getMinSampleDelay() {
+    return minSampleDelay;
+  }
+
+  /**
+   * Get default rules for when a new reading of a device of this type is published.
+   *
+   * @return policy, publishes every change if type has no reporting settings.
+   */
+  public ReportingPolicy getReportingPolicy() {
+    return reportingPolicy;
+  }
+
+  /**
+   * Get read policy of a property.
+   *
+   * @param property path of property relative to device, e.g. "/latesttemp".
+   * @return policy of type, or the default policy of property if type has none.
+   */
+  public ReadPolicy getReadPolicy(String property) {
+    ReadPolicy policy = readPolicies.get(property);
+    return policy != null ? policy : DeviceDatabase.getDefaultReadPolicy(property);
+  }
+
+  /**
+   * Get resolution devices of this type have when they are found.
+   *
+   * @return bits, 0 if type has no conversion.
+   */
+  public int getDefaultResolution() {
+    return defaultResolution;
+  }
+
+  /**
+   * Whether a resolution is supported.
+   *
+   * @param resolution bits.
+   * @return true if a conversion time is known for resolution, and it is the default or could be set.
+   */
+  public boolean isResolutionSupported(int resolution) {
+    return conversionTimes.containsKey(resolution) && (resolution == defaultResolution || resolutionPath != null);
+  }
+
+  /**
+   * Get path relative to device to read to change its resolution. Reading it makes the device convert once using the new resolution, which it then keeps
+   * until it loses power.
+   *
+   * @param resolution bits.
+   * @return path, or null if resolution could not be changed.
+   */
+  public String getResolutionPath(int resolution) {
+    return resolutionPath != null ? String.format(resolutionPath, resolution) : null;
+  }
+
+  /**
+   * Get path relative to device that does a conversion on this device only and reads the result.
+   *
+   * @param resolution bits.
+   * @return path that also sets the resolution if type supports that, or null if type has no such path.
+   */
+  public String getConvertPath(int resolution) {
+    return resolutionPath != null ? getResolutionPath(resolution) : convertPath;
+  }
+
+  /**
+   * Get longest time a conversion takes.
+   *
+   * @param resolution bits.
+   * @return time in milliseconds, or -1 if not known.
+   */
+  public long getConversionTime(int resolution) {
+    return conversionTimes.getOrDefault(resolution, -1L);
+  }
+
+  /**
+   * Whether type has a capability.
+   *
+   * @param capability capability to check.
+   * @return true if type has capability.
+   */
+  public boolean hasCapability(DeviceCapability capability) {
+    return capabilities.contains(capability);
+  }
+
+  /**
+   * Get all capabilities of type.
+   *
+   * @return unmodifiable set of capabilities.
+   */
+  public Set<DeviceCapability> getCapabilities() {
+    return capabilities;
+  }
+
+  /**
+   * Get path relative to device to read value from.
+   *
+   * @return path, or null if not readable.
+   */
+  public String getValueReadPath() {
+    return valueReadPath;
+  }
+
+  /**
+   * Get path relative to device to write value to.
+   *
+   * @return path, or null if not writable.
+   */
+  public String getValueWritePath() {
+    return valueWritePath;
+  }
+
+  /**
+   * Get alarm condition to write to "set_alarm".
+   *
+   * @return alarm condition, or null if type does not support alarms.
+   */
+  public String getAlarmingMask() {
+    return alarmingMask;
+  }
+
+  /**
+   * Get path relative to device to write to when resetting alarm latches.
+   *
+   * @return path, or null if type has no latches.
+   */
+  public String getAlarmResetPath() {
+    return alarmResetPath;
+  }
+
+  /**
+   * Get number of init commands.
+   *
+   * @return number of commands.
+   */
+  public int getInitCommandCount() {
+    return initCommands.length;
+  }
+
+  /**
+   * Get path of an init command.
+   *
+   * @param index index of command.
+   * @return path relative to device.
+   */
+  public String getInitCommandPath(int index) {
+    return initCommands[index][0];
+  }
+
+  /**
+   * Get value of an init command.
+   *
+   * @param index index of command.
+   * @return value to write.
+   */
+  public String getInitCommandValue(int index) {
+    return initCommands[index][1];
+  }
+
+  /**
+   * Get number of child devices.
+   *
+   * @return number of children, 0 if type has none.
+   */
+  public int getChildCount() {
+    return childSlots.length;
+  }
+
+  /**
+   * Get a child device by its position in a composite reading.
+   *
+   * @param index position, starting at 0.
+   * @return child.
+   */
+  public ChildSlot getChildSlot(int index) {
+    return childSlots[index];
+  }
+
+  /**
+   * Get a child device by its idSuffix.
+   *
+   * @param idSuffix suffix of child hwId.
+   * @return child, or null if not found.
+   */
+  public ChildSlot getChildSlot(String idSuffix) {
+    return childSlotsBySuffix.get(idSuffix);
+  }
+
+  /**
+   * A child device of a type, like a port on a switch or an input on an A/D converter.
+   */
+  public final static class ChildSlot {
+
+    /**
+     * Position in a composite reading of parent, starting at 0.
+     */
+    private final int index;
+    /**
+     * Suffix of child hwId.
+     */
+    private final String idSuffix;
+    /**
+     * Name of child.
+     */
+    private final String name;
+    /**
+     * Path relative to parent device to read value from, null if not readable.
+     */
+    private final String valueReadPath;
+    /**
+     * Path relative to parent device to write value to, null if not writable.
+     */
+    private final String valueWritePath;
+
+    /**
+     * Default constructor
+     *
+     * @param index position in a composite reading of parent.
+     * @param idSuffix suffix of child hwId.
+     * @param name name of child.
+     * @param valueReadPath path to read value from.
+     * @param valueWritePath path to write value to.
+     */
+    ChildSlot(int index, String idSuffix, String name, String valueReadPath, String valueWritePath) {
+      this.index = index;
+      this.idSuffix = idSuffix;
+      this.name = name;
+      this.valueReadPath = valueReadPath;
+      this.valueWritePath = valueWritePath;
+    }
+
+    /**
+     * Get position in a composite reading of parent.
+     *
+     * @return position, starting at 0.
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    /**
+     * Get suffix of child hwId.
+     *
+     * @return suffix.
+     */
+    public String getIdSuffix() {
+      return idSuffix;
+    }
+
+    /**
+     * Get name of child.
+     *
+     * @return name.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Get path relative to parent device to read value from.
+     *
+     * @return path, or null if not readable.
+     */
+    public String getValueReadPath() {
+      return valueReadPath;
+    }
+
+    /**
+     * Get path relative to parent device to write value to.
+     *
+     * @return path, or null if not writable.
+     */
+    public String getValueWritePath() {
+      return valueWritePath;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Sums up every sample of a device during an aggregation window, so that a chatty analog input could publish min, max, mean, last value and number of
+ * samples once per window instead of every single reading, without losing the extremes. Child devices share the aggregator of their parent, with one slot
+ * per child.
+ *
+ * The last raw samples of each slot are kept in a ring buffer, so that they could still be retrieved on demand. Samples that are not numbers are left out.
+ *
+ * @author Henrik Östman
+ */
+final class OwAggregator {
+
+  /**
+   * Number of raw samples kept for each slot.
+   */
+  private final static int RAW_SAMPLES = 1024;
+  /**
+   * Length of aggregation window (nanoseconds).
+   */
+  private final long window;
+  /**
+   * Start of current window (nanoseconds since epoch), 0 if no sample has been added since the last window was closed.
+   */
+  private long windowStart;
+  /**
+   * Smallest value of each slot in current window.
+   */
+  private final double[] min;
+  /**
+   * Largest value of each slot in current window.
+   */
+  private final double[] max;
+  /**
+   * Sum of values of each slot in current window.
+   */
+  private final double[] sum;
+  /**
+   * Last value of each slot in current window.
+   */
+  private final double[] last;
+  /**
+   * Number of samples of each slot in current window.
+   */
+  private final long[] count;
+  /**
+   * Last raw values of each slot, a ring buffer.
+   */
+  private final double[][] rawValues;
+  /**
+   * Times of the last raw values of each slot (nanoseconds since epoch), a ring buffer.
+   */
+  private final long[][] rawTimes;
+  /**
+   * Total number of raw samples added to each slot, next position in the ring buffer is this modulo its size.
+   */
+  private final long[] rawCount;
+
+  /**
+   * Default constructor
+   *
+   * @param slots number of values in a reading, one per child or 1 if device has no children.
+   * @param window length of aggregation window (nanoseconds).
+   */
+  OwAggregator(int slots, long window) {
+    this.window = window;
+    this.min = new double[slots];
+    this.max = new double[slots];
+    this.sum = new double[slots];
+    this.last = new double[slots];
+    this.count = new long[slots];
+    this.rawValues = new double[slots][RAW_SAMPLES];
+    this.rawTimes = new long[slots][RAW_SAMPLES];
+    this.rawCount = new long[slots];
+  }
+
+  /**
+   * Add a sample to the current window, the first sample after a window has been closed starts a new window.
+   *
+   * @param slot position of value in reading.
+   * @param value sampled value, NaN if not a number.
+   * @param epochNanos time of sample (nanoseconds since epoch).
+   */
+  synchronized void add(int slot, double value, long epochNanos) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+
+    if (windowStart == 0) {
+      windowStart = epochNanos;
+    }
+
+    if (count[slot] == 0) {
+      min[slot] = value;
+      max[slot] = value;
+      sum[slot] = 0;
+    } else {
+      min[slot] = Math.min(min[slot], value);
+      max[slot] = Math.max(max[slot], value);
+    }
+    sum[slot] += value;
+    last[slot] = value;
+    count[slot]++;
+
+    int position = (int) (rawCount[slot] % RAW_SAMPLES);
+    rawValues[slot][position] = value;
+    rawTimes[slot][position] = epochNanos;
+    rawCount[slot]++;
+  }
+
+  /**
+   * Close the current window if it has run out, and start over with an empty window. A window is only closed by a sample, so it may run a bit longer than
+   * its length when samples are sparse.
+   *
+   * @param epochNanos time of latest sample (nanoseconds since epoch).
+   * @return summary of each slot of the closed window, null for slots without samples. Null if window has not run out yet.
+   */
+  synchronized JsonObject[] closeIfDone(long epochNanos) {
+    if (windowStart == 0 || epochNanos - windowStart < window) {
+      return null;
+    }
+
+    JsonObject[] summaries = new JsonObject[count.length];
+    for (int i = 0; i < count.length; i++) {
+      summaries[i] = summarize(i, epochNanos);
+      count[i] = 0;
+    }
+
+    windowStart = 0;
+    return summaries;
+  }
+
+  /**
+   * Get summary of the current window so far.
+   *
+   * @param slot position of value in reading.
+   * @return summary, null if slot has no samples in current window.
+   */
+  synchronized JsonObject getOpenWindow(int slot) {
+    return summarize(slot, System.currentTimeMillis() * 1000000L);
+  }
+
+  /**
+   * Get the last raw samples, oldest first.
+   *
+   * @param slot position of value in reading.
+   * @return samples with "time" and "value".
+   */
+  synchronized JsonArray getSamples(int slot) {
+    JsonArray samples = new JsonArray();
+    long first = Math.max(0, rawCount[slot] - RAW_SAMPLES);
+
+    for (long i = first; i < rawCount[slot]; i++) {
+      int position = (int) (i % RAW_SAMPLES);
+      samples.add(new JsonObject()
+          .put("time", OwDeviceState.formatTime(rawTimes[slot][position]))
+          .put("value", rawValues[slot][position]));
+    }
+
+    return samples;
+  }
+
+  /**
+   * Summarize a slot of the current window.
+   *
+   * @param slot position of value in reading.
+   * @param epochNanos end of window (nanoseconds since epoch).
+   * @return summary, null if slot has no samples.
+   */
+  private JsonObject summarize(int slot, long epochNanos) {
+    if (count[slot] == 0) {
+      return null;
+    }
+
+    return new JsonObject()
+        .put("start", OwDeviceState.formatTime(windowStart))
+        .put("end", OwDeviceState.formatTime(epochNanos))
+        .put("count", count[slot])
+        .put("min", min[slot])
+        .put("max", max[slot])
+        .put("mean", sum[slot] / count[slot])
+        .put("last", last[slot]);
+  }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State for one 1-wire bus master (e.g. "/bus.0") on a owserver. Every bus is read by its own reader-thread so that slow conversions on one bus does not
+ * block reading devices on another bus.
+ *
+ * @author Henrik Östman
+ */
+final class OwBus {
+
+  /**
+   * Path to bus master, e.g. "/bus.0". Empty string if owserver only has one bus or does not report its buses.
+   */
+  private final String path;
+  /**
+   * Queue of commands to execute on this bus.
+   */
+  private final OwCommandQueue commandQueue;
+  /**
+   * Timestamp when last scan of this bus for devices was run.
+   */
+  private long lastBusScanRun;
+  /**
+   * Current delay between two scans of this bus (milliseconds), grows while the bus is stable.
+   */
+  private long busScanDelay;
+  /**
+   * Timestamp when last presence probe of this bus was run.
+   */
+  private long lastPresenceProbe;
+  /**
+   * Whether a scan of this bus should be run as soon as possible, e.g. because a device stopped answering.
+   */
+  private volatile boolean busScanRequested;
+  /**
+   * hwId of devices found on this bus that we don't support, so that we don't look them up on every scan.
+   */
+  private final Set<String> ignoredDevices;
+  /**
+   * All parent devices on this bus.
+   */
+  private final Set<OwDevice> devices;
+  /**
+   * All parent devices on this bus, hwId as key.
+   */
+  private final Map<String, OwDevice> devicesById;
+  /**
+   * All writable devices on this bus, both parents and children, path to write to as key.
+   */
+  private final Map<String, OwDevice> devicesByWritePath;
+  /**
+   * State of the outputs of parent devices as last written by the adapter, one value per child in the same order as the composite write path takes them,
+   * hwId as key.
+   */
+  private final Map<String, String[]> outputStates;
+  /**
+   * Parent devices on this bus that are temperature sensors.
+   */
+  private final Set<OwDevice> temperatureDevices;
+  /**
+   * Parent devices on this bus that are temperature sensors running on parasitic power, these are read one at a time with a conversion of their own.
+   */
+  private final Set<OwDevice> parasiticDevices;
+  /**
+   * Parent devices on this bus that are voltage sensors.
+   */
+  private final Set<OwDevice> voltageDevices;
+  /**
+   * Parent devices on this bus that are polled and are fast to read, that is neither temperature nor voltage sensors.
+   */
+  private final Set<OwDevice> fastDevices;
+  /**
+   * Parent devices on this bus that read their values using alarms, these are never polled.
+   */
+  private final Set<OwDevice> alarmDevices;
+  /**
+   * Parent devices on this bus that read their values using alarms, and have not been read yet.
+   */
+  private final Set<OwDevice> unreadAlarmDevices;
+  /**
+   * Counter to sum up the time we spent waiting on executing queued commmands to this bus, during one run of the mainloop.
+   */
+  private Duration commandsWrittenDuration;
+  /**
+   * Deadlines for when devices on this bus should be sampled next.
+   */
+  private final OwSampleScheduler sampleScheduler;
+  /**
+   * Devices on this bus that keep failing to answer reads.
+   */
+  private final OwDeviceQuarantine quarantine;
+  /**
+   * Parent devices that have been restored from the saved inventory, and still have to be setup on the bus by the reader-thread.
+   */
+  private final Queue<OwDevice> pendingSetupDevices;
+  /**
+   * Signaled when there is new work for the reader-thread, like a queued command.
+   */
+  private final Semaphore wakeup;
+
+  /**
+   * Default constructor
+   *
+   * @param path path to bus master.
+   * @param commandQueueSize maximum number of commands waiting to be executed on this bus.
+   * @param busScanDelay initial delay between two scans of this bus (milliseconds).
+   */
+  OwBus(String path, int commandQueueSize, long busScanDelay) {
+    this.path = path;
+    this.busScanDelay = busScanDelay;
+    this.ignoredDevices = new HashSet<>();
+    this.devices = ConcurrentHashMap.newKeySet();
+    this.devicesById = new ConcurrentHashMap<>();
+    this.devicesByWritePath = new ConcurrentHashMap<>();
+    this.outputStates = new ConcurrentHashMap<>();
+    this.temperatureDevices = ConcurrentHashMap.newKeySet();
+    this.parasiticDevices = ConcurrentHashMap.newKeySet();
+    this.voltageDevices = ConcurrentHashMap.newKeySet();
+    this.fastDevices = ConcurrentHashMap.newKeySet();
+    this.alarmDevices = ConcurrentHashMap.newKeySet();
+    this.unreadAlarmDevices = ConcurrentHashMap.newKeySet();
+    this.commandQueue = new OwCommandQueue(commandQueueSize);
+    this.commandsWrittenDuration = Duration.ZERO;
+    this.sampleScheduler = new OwSampleScheduler();
+    this.quarantine = new OwDeviceQuarantine();
+    this.pendingSetupDevices = new ConcurrentLinkedQueue<>();
+    this.wakeup = new Semaphore(0);
+  }
+
+  /**
+   * Get path to bus master.
+   *
+   * @return path, or empty string for the default bus.
+   */
+  String getPath() {
+    return path;
+  }
+
+  /**
+   * Get human readable name of bus, used in logs and thread names.
+   *
+   * @return name of bus.
+   */
+  String getName() {
+    return path.isEmpty() ? "default" : path.substring(1);
+  }
+
+  /**
+   * Get queue of commands waiting to be executed on this bus.
+   *
+   * @return command queue.
+   */
+  OwCommandQueue getCommandQueue() {
+    return commandQueue;
+  }
+
+  /**
+   * Get timestamp when last scan of this bus was run.
+   *
+   * @return timestamp in milliseconds.
+   */
+  long getLastBusScanRun() {
+    return lastBusScanRun;
+  }
+
+  /**
+   * Set timestamp when last scan of this bus was run.
+   *
+   * @param lastBusScanRun timestamp in milliseconds.
+   */
+  void setLastBusScanRun(long lastBusScanRun) {
+    this.lastBusScanRun = lastBusScanRun;
+  }
+
+  /**
+   * Get current delay between two scans of this bus.
+   *
+   * @return delay in milliseconds.
+   */
+  long getBusScanDelay() {
+    return busScanDelay;
+  }
+
+  /**
+   * Set current delay between two scans of this bus.
+   *
+   * @param busScanDelay delay in milliseconds.
+   */
+  void setBusScanDelay(long busScanDelay) {
+    this.busScanDelay = busScanDelay;
+  }
+
+  /**
+   * Get timestamp when last presence probe of this bus was run.
+   *
+   * @return timestamp in milliseconds.
+   */
+  long getLastPresenceProbe() {
+    return lastPresenceProbe;
+  }
+
+  /**
+   * Set timestamp when last presence probe of this bus was run.
+   *
+   * @param lastPresenceProbe timestamp in milliseconds.
+   */
+  void setLastPresenceProbe(long lastPresenceProbe) {
+    this.lastPresenceProbe = lastPresenceProbe;
+  }
+
+  /**
+   * Whether a scan of this bus has been requested.
+   *
+   * @return true if requested.
+   */
+  boolean isBusScanRequested() {
+    return busScanRequested;
+  }
+
+  /**
+   * Request, or clear a request for, a scan of this bus as soon as possible.
+   *
+   * @param busScanRequested true to request a scan.
+   */
+  void setBusScanRequested(boolean busScanRequested) {
+    this.busScanRequested = busScanRequested;
+  }
+
+  /**
+   * Get hwId of unsupported devices found on this bus. Should only be used by the reader-thread of this bus.
+   *
+   * @return set of hwId.
+   */
+  Set<String> getIgnoredDevices() {
+    return ignoredDevices;
+  }
+
+  /**
+   * Add a parent device to this bus, and classify it by how it should be read.
+   *
+   * @param device device to add.
+   */
+  void addDevice(OwDevice device) {
+    devices.add(device);
+    devicesById.put(device.getHwId(), device);
+    if (device.getWritePath() != null) {
+      devicesByWritePath.put(device.getWritePath(), device);
+    }
+    for (int i = 0; i < device.getChildCount(); i++) {
+      if (device.getChild(i).getWritePath() != null) {
+        devicesByWritePath.put(device.getChild(i).getWritePath(), device.getChild(i));
+      }
+    }
+
+    if (device.hasCapability(DeviceCapability.ALARMING)) {
+      alarmDevices.add(device);
+      unreadAlarmDevices.add(device);
+    } else if (device.hasCapability(DeviceCapability.TEMPERATURE) && device.isParasitic()) {
+      parasiticDevices.add(device);
+    } else if (device.hasCapability(DeviceCapability.TEMPERATURE)) {
+      temperatureDevices.add(device);
+    } else if (device.hasCapability(DeviceCapability.VOLTAGE)) {
+      voltageDevices.add(device);
+    } else {
+      fastDevices.add(device);
+    }
+  }
+
+  /**
+   * Remove a parent device from this bus.
+   *
+   * @param device device to remove.
+   */
+  void removeDevice(OwDevice device) {
+    devices.remove(device);
+    devicesById.remove(device.getHwId());
+    devicesByWritePath.values().removeIf(d -> d == device || d.getParent() == device);
+    outputStates.remove(device.getHwId());
+    alarmDevices.remove(device);
+    unreadAlarmDevices.remove(device);
+    temperatureDevices.remove(device);
+    parasiticDevices.remove(device);
+    voltageDevices.remove(device);
+    fastDevices.remove(device);
+    quarantine.remove(device.getHwId());
+  }
+
+  /**
+   * Get all parent devices on this bus.
+   *
+   * @return unmodifiable view of devices.
+   */
+  Set<OwDevice> getDevices() {
+    return Collections.unmodifiableSet(devices);
+  }
+
+  /**
+   * Get a parent device on this bus.
+   *
+   * @param hwId hwId of device.
+   * @return device, or null if not on this bus.
+   */
+  OwDevice getDevice(String hwId) {
+    return devicesById.get(hwId);
+  }
+
+  /**
+   * Get the device, parent or child, that is written to by a path.
+   *
+   * @param writePath path to write to.
+   * @return device, or null if no device on this bus is written to by the path.
+   */
+  OwDevice getDeviceByWritePath(String writePath) {
+    return devicesByWritePath.get(writePath);
+  }
+
+  /**
+   * Get last known state of the outputs of a parent device.
+   *
+   * @param hwId hwId of parent device.
+   * @return one value per child, or null if not known.
+   */
+  String[] getOutputState(String hwId) {
+    return outputStates.get(hwId);
+  }
+
+  /**
+   * Set last known state of the outputs of a parent device.
+   *
+   * @param hwId hwId of parent device.
+   * @param outputs one value per child, or null if state is no longer known.
+   */
+  void setOutputState(String hwId, String[] outputs) {
+    if (outputs == null) {
+      outputStates.remove(hwId);
+    } else {
+      outputStates.put(hwId, outputs);
+    }
+  }
+
+  /**
+   * Get hwId of all parent devices on this bus.
+   *
+   * @return unmodifiable view of hwIds.
+   */
+  Set<String> getDeviceIds() {
+    return Collections.unmodifiableSet(devicesById.keySet());
+  }
+
+  /**
+   * Get parent devices on this bus that are temperature sensors.
+   *
+   * @return unmodifiable view of devices.
+   */
+  Set<OwDevice> getTemperatureDevices() {
+    return Collections.unmodifiableSet(temperatureDevices);
+  }
+
+  /**
+   * Get parent devices on this bus that are temperature sensors running on parasitic power.
+   *
+   * @return unmodifiable view of devices.
+   */
+  Set<OwDevice> getParasiticDevices() {
+    return Collections.unmodifiableSet(parasiticDevices);
+  }
+
+  /**
+   * Get parent devices on this bus that are voltage sensors.
+   *
+   * @return unmodifiable view of devices.
+   */
+  Set<OwDevice> getVoltageDevices() {
+    return Collections.unmodifiableSet(voltageDevices);
+  }
+
+  /**
+   * Get parent devices on this bus that are polled and fast to read.
+   *
+   * @return unmodifiable view of devices.
+   */
+  Set<OwDevice> getFastDevices() {
+    return Collections.unmodifiableSet(fastDevices);
+  }
+
+  /**
+   * Get parent devices on this bus that read their values using alarms.
+   *
+   * @return unmodifiable view of devices.
+   */
+  Set<OwDevice> getAlarmDevices() {
+    return Collections.unmodifiableSet(alarmDevices);
+  }
+
+  /**
+   * Get parent devices on this bus that read their values using alarms, and have not been read yet.
+   *
+   * @return unmodifiable view of devices.
+   */
+  Set<OwDevice> getUnreadAlarmDevices() {
+    return Collections.unmodifiableSet(unreadAlarmDevices);
+  }
+
+  /**
+   * Note that an alarm monitored device has been read, after this it's only read when it raises an alarm.
+   *
+   * @param device device that has been read.
+   */
+  void setAlarmDeviceRead(OwDevice device) {
+    unreadAlarmDevices.remove(device);
+  }
+
+  /**
+   * Get time spent executing queued commands during current run of the mainloop.
+   *
+   * @return duration.
+   */
+  Duration getCommandsWrittenDuration() {
+    return commandsWrittenDuration;
+  }
+
+  /**
+   * Set time spent executing queued commands during current run of the mainloop.
+   *
+   * @param commandsWrittenDuration duration.
+   */
+  void setCommandsWrittenDuration(Duration commandsWrittenDuration) {
+    this.commandsWrittenDuration = commandsWrittenDuration;
+  }
+
+  /**
+   * Get deadlines for when devices on this bus should be sampled next. Should only be used by the reader-thread of this bus.
+   *
+   * @return scheduler.
+   */
+  OwSampleScheduler getSampleScheduler() {
+    return sampleScheduler;
+  }
+
+  /**
+   * Queue a parent device to be setup on the bus (init commands, resolution and alarms) by the reader-thread.
+   *
+   * @param device device to setup.
+   */
+  void addPendingSetupDevice(OwDevice device) {
+    pendingSetupDevices.add(device);
+  }
+
+  /**
+   * Take the next parent device that is waiting to be setup on the bus.
+   *
+   * @return device, or null if no device is waiting.
+   */
+  OwDevice pollPendingSetupDevice() {
+    return pendingSetupDevices.poll();
+  }
+
+  /**
+   * Get devices on this bus that keep failing to answer reads.
+   *
+   * @return quarantine.
+   */
+  OwDeviceQuarantine getQuarantine() {
+    return quarantine;
+  }
+
+  /**
+   * Wake up the reader-thread of this bus if it is waiting for work.
+   */
+  void wakeUp() {
+    wakeup.release();
+  }
+
+  /**
+   * Wait until the specified time, or until someone calls wakeUp(). Returns at once if wakeUp() was called since last wait.
+   *
+   * @param dueTime time to wait until, in System.nanoTime() units.
+   * @throws InterruptedException if thread was interrupted while waiting.
+   */
+  void awaitWork(long dueTime) throws InterruptedException {
+    long timeout = dueTime - System.nanoTime();
+
+    if (timeout > 0) {
+      wakeup.tryAcquire(timeout, TimeUnit.NANOSECONDS);
+    }
+
+    wakeup.drainPermits();
+  }
+}
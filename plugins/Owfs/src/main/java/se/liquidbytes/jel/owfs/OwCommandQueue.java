@@ -0,0 +1,333 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue of commands waiting to be written to a bus. Commands to the same path are collapsed so only the last written value gets executed, and commands
+ * initiated by a user are always executed before commands from automations. The queue holds a limited number of paths, when full a new user command pushes
+ * out the oldest automation command, otherwise the new command is rejected.
+ *
+ * @author Henrik Östman
+ */
+final class OwCommandQueue {
+
+  /**
+   * Priority classes of commands, in the order they are executed.
+   */
+  enum Priority {
+
+    /**
+     * Command initiated by a user, e.g. a toggle in the dashboard.
+     */
+    USER,
+    /**
+     * Command initiated by an automation or rule.
+     */
+    AUTOMATION;
+
+    /**
+     * Parse priority from its name, unknown or missing names give USER priority.
+     *
+     * @param name name of priority, case insensitive.
+     * @return priority.
+     */
+    static Priority fromName(String name) {
+      return AUTOMATION.name().equalsIgnoreCase(name) ? AUTOMATION : USER;
+    }
+  }
+
+  /**
+   * Maximum number of paths waiting in queue.
+   */
+  private final int capacity;
+  /**
+   * Waiting commands per priority, path as key, in the order they were queued.
+   */
+  private final Map<Priority, LinkedHashMap<String, Command>> commands;
+  /**
+   * Time from command was queued until it was written to the bus, per priority.
+   */
+  private final Map<Priority, OwLatencyHistogram> latencies;
+  /**
+   * Number of commands replaced by a later command to the same path.
+   */
+  private long coalescedCount;
+  /**
+   * Number of commands rejected or pushed out because the queue was full.
+   */
+  private long rejectedCount;
+  /**
+   * Sequence number of next queued command.
+   */
+  private long nextSequence;
+
+  /**
+   * Default constructor
+   *
+   * @param capacity maximum number of paths waiting in queue.
+   */
+  OwCommandQueue(int capacity) {
+    this.capacity = capacity;
+    this.commands = new EnumMap<>(Priority.class);
+    this.latencies = new EnumMap<>(Priority.class);
+
+    for (Priority priority : Priority.values()) {
+      commands.put(priority, new LinkedHashMap<>());
+      latencies.put(priority, new OwLatencyHistogram());
+    }
+  }
+
+  /**
+   * Queue a command. If a command to the same path is already waiting it gets replaced, and keeps the higher of the two priorities and the time the first of
+   * them was queued, so that the measured latency is how long a write to the path really had to wait.
+   *
+   * @param path path to write to.
+   * @param value value to write.
+   * @param priority priority of command.
+   * @return false if command was rejected because the queue was full.
+   */
+  synchronized boolean offer(String path, String value, Priority priority) {
+    Priority effectivePriority = priority;
+    long queuedTime = System.nanoTime();
+
+    for (Priority existing : Priority.values()) {
+      Command replaced = commands.get(existing).remove(path);
+
+      if (replaced != null) {
+        coalescedCount++;
+        queuedTime = Math.min(queuedTime, replaced.getQueuedTime());
+
+        if (existing.compareTo(effectivePriority) < 0) {
+          effectivePriority = existing;
+        }
+      }
+    }
+
+    if (size() >= capacity && !makeRoomFor(effectivePriority)) {
+      rejectedCount++;
+      return false;
+    }
+
+    commands.get(effectivePriority).put(path, new Command(path, value, effectivePriority, queuedTime, nextSequence++));
+    return true;
+  }
+
+  /**
+   * Remove and return all waiting commands, highest priority first.
+   *
+   * @return commands to execute.
+   */
+  synchronized List<Command> drain() {
+    List<Command> result = new ArrayList<>();
+
+    for (Priority priority : Priority.values()) {
+      result.addAll(commands.get(priority).values());
+      commands.get(priority).clear();
+    }
+
+    return result;
+  }
+
+  /**
+   * Number of paths waiting in queue.
+   *
+   * @return size of queue.
+   */
+  synchronized int size() {
+    int size = 0;
+
+    for (Map<String, Command> waiting : commands.values()) {
+      size += waiting.size();
+    }
+
+    return size;
+  }
+
+  /**
+   * Record that a command has been written to the bus.
+   *
+   * @param command executed command.
+   */
+  void recordExecuted(Command command) {
+    latencies.get(command.getPriority()).record(System.nanoTime() - command.getQueuedTime());
+  }
+
+  /**
+   * Get histogram of time from command was queued until it was written to the bus.
+   *
+   * @param priority priority of commands.
+   * @return histogram.
+   */
+  OwLatencyHistogram getLatency(Priority priority) {
+    return latencies.get(priority);
+  }
+
+  /**
+   * Get number of commands replaced by a later command to the same path.
+   *
+   * @return count.
+   */
+  synchronized long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /**
+   * Get number of commands rejected or pushed out because the queue was full.
+   *
+   * @return count.
+   */
+  synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+
+  /**
+   * Get summary of queue, durations in milliseconds.
+   *
+   * @return summary with latency per priority, number of waiting, coalesced and rejected commands.
+   */
+  synchronized JsonObject toJson() {
+    JsonObject latency = new JsonObject();
+    for (Priority priority : Priority.values()) {
+      latency.put(priority.name().toLowerCase(), latencies.get(priority).toJson());
+    }
+
+    return new JsonObject()
+        .put("latency", latency)
+        .put("waiting", size())
+        .put("coalesced", coalescedCount)
+        .put("rejected", rejectedCount);
+  }
+
+  /**
+   * Push out the oldest waiting command with lower priority than the given one.
+   *
+   * @param priority priority of command that needs room.
+   * @return true if room was made.
+   */
+  private boolean makeRoomFor(Priority priority) {
+    Priority[] priorities = Priority.values();
+
+    for (int i = priorities.length - 1; i > priority.ordinal(); i--) {
+      Iterator<Command> it = commands.get(priorities[i]).values().iterator();
+
+      if (it.hasNext()) {
+        it.next();
+        it.remove();
+        rejectedCount++;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * A command waiting to be written to the bus.
+   */
+  final static class Command {
+
+    /**
+     * Path to write to.
+     */
+    private final String path;
+    /**
+     * Value to write.
+     */
+    private final String value;
+    /**
+     * Priority of command.
+     */
+    private final Priority priority;
+    /**
+     * When command was queued, in System.nanoTime() units.
+     */
+    private final long queuedTime;
+    /**
+     * Sequence number, tells in which order commands were queued regardless of their priority.
+     */
+    private final long sequence;
+
+    /**
+     * Default constructor
+     *
+     * @param path path to write to.
+     * @param value value to write.
+     * @param priority priority of command.
+     * @param queuedTime when command was queued.
+     * @param sequence sequence number of command.
+     */
+    Command(String path, String value, Priority priority, long queuedTime, long sequence) {
+      this.path = path;
+      this.value = value;
+      this.priority = priority;
+      this.queuedTime = queuedTime;
+      this.sequence = sequence;
+    }
+
+    /**
+     * Get path to write to.
+     *
+     * @return path.
+     */
+    String getPath() {
+      return path;
+    }
+
+    /**
+     * Get value to write.
+     *
+     * @return value.
+     */
+    String getValue() {
+      return value;
+    }
+
+    /**
+     * Get priority of command.
+     *
+     * @return priority.
+     */
+    Priority getPriority() {
+      return priority;
+    }
+
+    /**
+     * Get when command was queued.
+     *
+     * @return time in System.nanoTime() units.
+     */
+    long getQueuedTime() {
+      return queuedTime;
+    }
+
+    /**
+     * Get sequence number of command, a command queued later has a higher number.
+     *
+     * @return sequence number.
+     */
+    long getSequence() {
+      return sequence;
+    }
+  }
+}
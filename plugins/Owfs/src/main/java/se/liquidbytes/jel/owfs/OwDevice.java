@@ -0,0 +1,369 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+/**
+ * A device found on a 1-wire bus, or a child device (like a port on a switch) of such a device. All paths are computed once when the device is found.
+ *
+ * @author Henrik Östman
+ */
+final class OwDevice {
+
+  /**
+   * Hardware id of device, for child devices this is the parent hwId, a separator and the idSuffix of the child.
+   */
+  private final String hwId;
+  /**
+   * Type of device, for child devices this is the type of the parent.
+   */
+  private final DeviceType type;
+  /**
+   * Name of device.
+   */
+  private final String name;
+  /**
+   * 1-wire family code.
+   */
+  private final String family;
+  /**
+   * Path to device on Owserver, for child devices this is the path of the parent.
+   */
+  private final String path;
+  /**
+   * Path to bus master the device is connected to.
+   */
+  private final String bus;
+  /**
+   * Full path to read value from, null if not readable.
+   */
+  private final String readPath;
+  /**
+   * How value is read, straight from device or from a cache.
+   */
+  private final ReadPolicy readPolicy;
+  /**
+   * Full path to write value to, null if not writable.
+   */
+  private final String writePath;
+  /**
+   * Time between two samples of device (milliseconds).
+   */
+  private final long sampleDelay;
+  /**
+   * Resolution of conversions (bits), 0 if device has no conversion.
+   */
+  private final int resolution;
+  /**
+   * Whether device runs on parasitic power.
+   */
+  private final boolean parasitic;
+  /**
+   * Rules for when a new reading is published, child devices use the policy of their parent.
+   */
+  private final ReportingPolicy reportingPolicy;
+  /**
+   * Parent device, null if this is not a child device.
+   */
+  private final OwDevice parent;
+  /**
+   * Slot in parent type, null if this is not a child device.
+   */
+  private final DeviceType.ChildSlot childSlot;
+  /**
+   * Child devices, in the same order as the values of a composite reading. Empty if device has no children.
+   */
+  private final OwDevice[] children;
+  /**
+   * Last recorded reading, child devices share the state of their parent.
+   */
+  private final OwDeviceState state;
+  /**
+   * Sums up samples when readings are aggregated, child devices share the aggregator of their parent. Null if single readings are published.
+   */
+  private final OwAggregator aggregator;
+
+  /**
+   * Create a device found on a bus, including all its child devices.
+   *
+   * @param hwId hardware id of device.
+   * @param type type of device.
+   * @param family 1-wire family code.
+   * @param path path to device on Owserver.
+   * @param bus path to bus master.
+   * @param sampleDelay time between two samples (milliseconds).
+   * @param resolution resolution of conversions (bits), 0 if device has no conversion.
+   * @param parasitic whether device runs on parasitic power.
+   * @param reportingPolicy rules for when a new reading is published.
+   * @param childSeparator separator between parent hwId and child idSuffix.
+   */
+  OwDevice(String hwId, DeviceType type, String family, String path, String bus, long sampleDelay, int resolution, boolean parasitic, ReportingPolicy reportingPolicy, String childSeparator) {
+    this.hwId = hwId;
+    this.type = type;
+    this.name = type.getName();
+    this.family = family;
+    this.path = path;
+    this.bus = bus;
+    if (parasitic && type.hasCapability(DeviceCapability.TEMPERATURE) && type.getConvertPath(resolution) != null) {
+      // A parasitic powered sensor can't take part in simultaneous conversions, so it has to do a conversion of its own each time it's read.
+      this.readPath = path + type.getConvertPath(resolution);
+    } else {
+      this.readPath = type.getValueReadPath() != null ? path + type.getValueReadPath() : null;
+    }
+    this.readPolicy = type.getValueReadPath() != null ? type.getReadPolicy(type.getValueReadPath()) : ReadPolicy.UNCACHED;
+    this.writePath = type.getValueWritePath() != null ? path + type.getValueWritePath() : null;
+    this.sampleDelay = sampleDelay;
+    this.resolution = resolution;
+    this.parasitic = parasitic;
+    this.reportingPolicy = reportingPolicy;
+    this.parent = null;
+    this.childSlot = null;
+    this.children = new OwDevice[type.getChildCount()];
+    this.state = new OwDeviceState(type);
+    this.aggregator = reportingPolicy.isAggregated() ? new OwAggregator(Math.max(1, children.length), reportingPolicy.getAggregationWindow()) : null;
+
+    for (int i = 0; i < children.length; i++) {
+      children[i] = new OwDevice(this, type.getChildSlot(i), childSeparator);
+    }
+  }
+
+  /**
+   * Create a child device.
+   *
+   * @param parent parent device.
+   * @param childSlot slot in parent type.
+   * @param childSeparator separator between parent hwId and child idSuffix.
+   */
+  private OwDevice(OwDevice parent, DeviceType.ChildSlot childSlot, String childSeparator) {
+    this.hwId = parent.hwId + childSeparator + childSlot.getIdSuffix();
+    this.type = parent.type;
+    this.name = String.format("%s-%s", parent.name, childSlot.getName());
+    this.family = parent.family;
+    this.path = parent.path;
+    this.bus = parent.bus;
+    this.readPath = childSlot.getValueReadPath() != null ? parent.path + childSlot.getValueReadPath() : null;
+    this.readPolicy = childSlot.getValueReadPath() != null ? type.getReadPolicy(childSlot.getValueReadPath()) : ReadPolicy.UNCACHED;
+    this.writePath = childSlot.getValueWritePath() != null ? parent.path + childSlot.getValueWritePath() : null;
+    this.sampleDelay = parent.sampleDelay;
+    this.resolution = parent.resolution;
+    this.parasitic = parent.parasitic;
+    this.reportingPolicy = parent.reportingPolicy;
+    this.parent = parent;
+    this.childSlot = childSlot;
+    this.children = new OwDevice[0];
+    this.state = parent.state;
+    this.aggregator = parent.aggregator;
+  }
+
+  /**
+   * Get hardware id of device.
+   *
+   * @return hwId.
+   */
+  String getHwId() {
+    return hwId;
+  }
+
+  /**
+   * Get type of device.
+   *
+   * @return type.
+   */
+  DeviceType getType() {
+    return type;
+  }
+
+  /**
+   * Get name of device.
+   *
+   * @return name.
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Get 1-wire family code.
+   *
+   * @return family code.
+   */
+  String getFamily() {
+    return family;
+  }
+
+  /**
+   * Get path to device on Owserver.
+   *
+   * @return path.
+   */
+  String getPath() {
+    return path;
+  }
+
+  /**
+   * Get path to bus master the device is connected to.
+   *
+   * @return path to bus.
+   */
+  String getBus() {
+    return bus;
+  }
+
+  /**
+   * Get full path to read value from.
+   *
+   * @return path, or null if not readable.
+   */
+  String getReadPath() {
+    return readPath;
+  }
+
+  /**
+   * Get how value is read.
+   *
+   * @return policy, uncached unless type says otherwise.
+   */
+  ReadPolicy getReadPolicy() {
+    return readPolicy;
+  }
+
+  /**
+   * Get full path to write value to.
+   *
+   * @return path, or null if not writable.
+   */
+  String getWritePath() {
+    return writePath;
+  }
+
+  /**
+   * Get time between two samples of device.
+   *
+   * @return delay in milliseconds.
+   */
+  long getSampleDelay() {
+    return sampleDelay;
+  }
+
+  /**
+   * Get resolution of conversions.
+   *
+   * @return bits, 0 if device has no conversion.
+   */
+  int getResolution() {
+    return resolution;
+  }
+
+  /**
+   * Whether device runs on parasitic power.
+   *
+   * @return true if parasitic.
+   */
+  boolean isParasitic() {
+    return parasitic;
+  }
+
+  /**
+   * Get longest time a conversion takes with the resolution of device.
+   *
+   * @return time in milliseconds, or -1 if not known.
+   */
+  long getConversionTime() {
+    return type.getConversionTime(resolution);
+  }
+
+  /**
+   * Get rules for when a new reading is published.
+   *
+   * @return policy.
+   */
+  ReportingPolicy getReportingPolicy() {
+    return reportingPolicy;
+  }
+
+  /**
+   * Whether type of device has a capability.
+   *
+   * @param capability capability to check.
+   * @return true if device has capability.
+   */
+  boolean hasCapability(DeviceCapability capability) {
+    return type.hasCapability(capability);
+  }
+
+  /**
+   * Get parent device.
+   *
+   * @return parent, or null if this is not a child device.
+   */
+  OwDevice getParent() {
+    return parent;
+  }
+
+  /**
+   * Whether this is a child device.
+   *
+   * @return true if child device.
+   */
+  boolean isChild() {
+    return parent != null;
+  }
+
+  /**
+   * Get slot in parent type.
+   *
+   * @return slot, or null if this is not a child device.
+   */
+  DeviceType.ChildSlot getChildSlot() {
+    return childSlot;
+  }
+
+  /**
+   * Get number of child devices.
+   *
+   * @return number of children.
+   */
+  int getChildCount() {
+    return children.length;
+  }
+
+  /**
+   * Get a child device by its position in a composite reading.
+   *
+   * @param index position, starting at 0.
+   * @return child device.
+   */
+  OwDevice getChild(int index) {
+    return children[index];
+  }
+
+  /**
+   * Get last recorded reading, for child devices this is the reading of the parent.
+   *
+   * @return state of device.
+   */
+  OwDeviceState getState() {
+    return state;
+  }
+
+  /**
+   * Get aggregator of readings, for child devices this is the aggregator of the parent.
+   *
+   * @return aggregator, or null if single readings are published.
+   */
+  OwAggregator getAggregator() {
+    return aggregator;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of devices on a bus that keep failing to answer reads. After FAILURE_THRESHOLD consecutive failures a device is put in quarantine and is not
+ * read at all until the quarantine is over, then it gets a single probation read. If the probation read succeeds the device is released, if it fails the
+ * device goes straight back into quarantine for twice as long, up to QUARANTINE_MAX. This way a flaky or half-disconnected sensor costs the bus one read now
+ * and then instead of timeouts and retries on every cycle.
+ *
+ * All times are in System.nanoTime() units. Thread safe, it's used by both the reader-thread and the alarm scanner of a bus.
+ *
+ * @author Henrik Östman
+ */
+final class OwDeviceQuarantine {
+
+  /**
+   * Consecutive failed reads before a device is put in quarantine.
+   */
+  private final static int FAILURE_THRESHOLD = 3;
+  /**
+   * Length of the first quarantine of a device (milliseconds).
+   */
+  private final static long QUARANTINE_MIN = 5000;
+  /**
+   * Longest quarantine of a device (milliseconds).
+   */
+  private final static long QUARANTINE_MAX = 300000;
+
+  /**
+   * Failure history for each device that has failed since it last answered, hwId as key.
+   */
+  private final Map<String, Entry> entries;
+
+  /**
+   * Default constructor
+   */
+  OwDeviceQuarantine() {
+    this.entries = new HashMap<>();
+  }
+
+  /**
+   * Report that a device failed to answer a read.
+   *
+   * @param hwId hwId of device.
+   * @param now current time.
+   * @return length of quarantine (milliseconds) if device was put in quarantine by this failure, otherwise 0.
+   */
+  synchronized long recordFailure(String hwId, long now) {
+    Entry entry = entries.computeIfAbsent(hwId, id -> new Entry());
+    entry.failures++;
+
+    // A device on probation gets no second chance.
+    if (entry.quarantines == 0 && entry.failures < FAILURE_THRESHOLD) {
+      return 0;
+    }
+
+    long duration = Math.min(QUARANTINE_MIN << Math.min(entry.quarantines, 16), QUARANTINE_MAX);
+    entry.quarantines++;
+    entry.releaseTime = now + TimeUnit.MILLISECONDS.toNanos(duration);
+    return duration;
+  }
+
+  /**
+   * Report that a device answered a read, this resets its failure history.
+   *
+   * @param hwId hwId of device.
+   * @return true if device was released from quarantine by this read.
+   */
+  synchronized boolean recordSuccess(String hwId) {
+    if (entries.isEmpty()) {
+      return false;
+    }
+
+    Entry entry = entries.remove(hwId);
+    return entry != null && entry.quarantines > 0;
+  }
+
+  /**
+   * Whether a device is in quarantine and should not be read.
+   *
+   * @param hwId hwId of device.
+   * @param now current time.
+   * @return true if device is in quarantine.
+   */
+  synchronized boolean isQuarantined(String hwId, long now) {
+    Entry entry = entries.get(hwId);
+    return entry != null && entry.quarantines > 0 && entry.releaseTime - now > 0;
+  }
+
+  /**
+   * Get when a device is released from quarantine for a probation read.
+   *
+   * @param hwId hwId of device.
+   * @param now current time.
+   * @return release time, or now if device is not in quarantine.
+   */
+  synchronized long getReleaseTime(String hwId, long now) {
+    Entry entry = entries.get(hwId);
+    return entry != null && entry.quarantines > 0 && entry.releaseTime - now > 0 ? entry.releaseTime : now;
+  }
+
+  /**
+   * Get number of failed reads of a device since it last answered.
+   *
+   * @param hwId hwId of device.
+   * @return number of failures.
+   */
+  synchronized int getFailures(String hwId) {
+    Entry entry = entries.get(hwId);
+    return entry != null ? entry.failures : 0;
+  }
+
+  /**
+   * Get number of devices currently in quarantine.
+   *
+   * @param now current time.
+   * @return number of devices.
+   */
+  synchronized int countQuarantined(long now) {
+    int count = 0;
+
+    for (Entry entry : entries.values()) {
+      if (entry.quarantines > 0 && entry.releaseTime - now > 0) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Forget a device, should be called when it has been removed from the bus.
+   *
+   * @param hwId hwId of device.
+   */
+  synchronized void remove(String hwId) {
+    entries.remove(hwId);
+  }
+
+  /**
+   * Failure history of one device.
+   */
+  private final static class Entry {
+
+    /**
+     * Number of failed reads since device last answered.
+     */
+    private int failures;
+    /**
+     * Number of times device has been put in quarantine since it last answered.
+     */
+    private int quarantines;
+    /**
+     * When current quarantine is over.
+     */
+    private long releaseTime;
+  }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Last recorded reading of a device, kept as primitives so that a reading that has not changed can be handled without allocating anything. Composite
+ * readings (like "1,0,1,1" from a switch) are parsed in place, one value per child device, and changes are reported as a bitmask with one bit per child.
+ * Strings are only created for values that have changed.
+ *
+ * @author Henrik Östman
+ */
+final class OwDeviceState {
+
+  /**
+   * Separator between child values in a composite reading.
+   */
+  private final static char CHILD_VALUE_SEPARATOR = ',';
+  /**
+   * Largest number of children that can be tracked, one bit per child in the change mask.
+   */
+  private final static int MAX_CHILDREN = 64;
+  /**
+   * Number of child values in a composite reading, 0 if device has no children.
+   */
+  private final int childCount;
+  /**
+   * If child values are on/off states, these are then tracked as a bitmask.
+   */
+  private final boolean switchStates;
+  /**
+   * If a reading has been recorded.
+   */
+  private boolean hasValue;
+  /**
+   * Last recorded value, exactly as read from Owserver. Only replaced when the value has changed.
+   */
+  private String rawValue;
+  /**
+   * Last recorded value parsed as a number, NaN if not a number or if device has children.
+   */
+  private double value;
+  /**
+   * Last recorded value of each child, NaN for values that are not numbers.
+   */
+  private final double[] childValues;
+  /**
+   * Last recorded on/off state of each child, one bit per child. Only used for switches.
+   */
+  private long childBits;
+  /**
+   * Time of last change (nanoseconds since epoch).
+   */
+  private long time;
+  /**
+   * Last published value of device (index 0) or of each child, NaN for values that are not numbers.
+   */
+  private final double[] publishedValues;
+  /**
+   * Time of last publish of device (index 0) or of each child (nanoseconds since epoch).
+   */
+  private final long[] publishedTimes;
+  /**
+   * Device (bit 0) or children that have been published at least once, one bit per child.
+   */
+  private long publishedBits;
+  /**
+   * Device (bit 0) or children with changes that have not been published yet, one bit per child.
+   */
+  private long pendingBits;
+
+  /**
+   * Default constructor
+   *
+   * @param type type of device.
+   */
+  OwDeviceState(DeviceType type) {
+    this.childCount = Math.min(type.getChildCount(), MAX_CHILDREN);
+    this.switchStates = type.hasCapability(DeviceCapability.SWITCH);
+    this.childValues = new double[childCount];
+    this.value = Double.NaN;
+    this.publishedValues = new double[Math.max(1, childCount)];
+    this.publishedTimes = new long[Math.max(1, childCount)];
+  }
+
+  /**
+   * Record a value read from the device.
+   *
+   * @param raw value as read from Owserver.
+   * @param epochNanos time of reading (nanoseconds since epoch).
+   * @return bitmask of changed children, for devices without children bit 0 is set if the value has changed. 0 if nothing changed.
+   */
+  synchronized long update(String raw, long epochNanos) {
+    long changed;
+
+    if (childCount == 0) {
+      double parsed = parseNumber(raw, 0, raw.length());
+      changed = (!hasValue || isChanged(value, parsed, raw, 0, raw.length(), rawValue, 0, rawValue.length())) ? 1L : 0L;
+      value = parsed;
+    } else {
+      changed = updateChildren(raw);
+    }
+
+    if (changed != 0) {
+      rawValue = raw;
+      time = epochNanos;
+    }
+
+    hasValue = true;
+    return changed;
+  }
+
+  /**
+   * Decide which values of the last recorded reading that should be published, and remember them as published. Numbers must have moved at least the
+   * dead-band away from the last published value, and anything else must have changed since it was last published. Nothing is published more often than the
+   * minimum publish interval, but after the maximum silence the current value is published even if it has not changed.
+   *
+   * @param changed bitmask of changed children returned by update().
+   * @param epochNanos time of reading (nanoseconds since epoch).
+   * @param policy rules for when a reading is published.
+   * @return bitmask of children to publish, for devices without children bit 0 is set if the value should be published. 0 if nothing should be published.
+   */
+  synchronized long selectPublishable(long changed, long epochNanos, ReportingPolicy policy) {
+    long publish = 0;
+    pendingBits |= changed;
+
+    for (int i = 0; i < publishedValues.length; i++) {
+      long bit = 1L << i;
+      double current = childCount == 0 ? value : childValues[i];
+      long silence = epochNanos - publishedTimes[i];
+      boolean differs;
+
+      if ((publishedBits & bit) == 0) {
+        differs = true;
+      } else if (!Double.isNaN(current) && !Double.isNaN(publishedValues[i])) {
+        differs = current != publishedValues[i] && Math.abs(current - publishedValues[i]) >= policy.getDeadBand();
+      } else {
+        differs = (pendingBits & bit) != 0;
+      }
+
+      if ((differs && silence >= policy.getMinPublishInterval()) || (policy.getMaxSilence() > 0 && silence >= policy.getMaxSilence())) {
+        publish |= bit;
+        publishedValues[i] = current;
+        publishedTimes[i] = epochNanos;
+      }
+    }
+
+    publishedBits |= publish;
+    pendingBits &= ~publish;
+    return publish;
+  }
+
+  /**
+   * Whether a reading has been recorded.
+   *
+   * @return true if device has a value.
+   */
+  synchronized boolean hasValue() {
+    return hasValue;
+  }
+
+  /**
+   * Get last recorded value.
+   *
+   * @return value without surrounding whitespace, null if no reading has been recorded.
+   */
+  synchronized String getValue() {
+    return hasValue ? rawValue.trim() : null;
+  }
+
+  /**
+   * Get last recorded value parsed as a number.
+   *
+   * @return value, NaN if not a number or no reading has been recorded.
+   */
+  synchronized double getNumericValue() {
+    return value;
+  }
+
+  /**
+   * Get last recorded value of a child device.
+   *
+   * @param index position of child in composite reading.
+   * @return value without surrounding whitespace, null if no reading has been recorded.
+   */
+  synchronized String getChildValue(int index) {
+    if (!hasValue) {
+      return null;
+    }
+
+    int start = fieldStart(rawValue, index);
+    return start < 0 ? null : rawValue.substring(start, fieldEnd(rawValue, start)).trim();
+  }
+
+  /**
+   * Get last recorded value of a child device parsed as a number.
+   *
+   * @param index position of child in composite reading.
+   * @return value, NaN if not a number or no reading has been recorded.
+   */
+  synchronized double getChildNumericValue(int index) {
+    return hasValue ? childValues[index] : Double.NaN;
+  }
+
+  /**
+   * Get last recorded on/off states of all children, one bit per child.
+   *
+   * @return bitmask, only meaningful for switches.
+   */
+  synchronized long getChildBits() {
+    return childBits;
+  }
+
+  /**
+   * Get time of last change.
+   *
+   * @return nanoseconds since epoch, 0 if no reading has been recorded.
+   */
+  synchronized long getTime() {
+    return time;
+  }
+
+  /**
+   * Format a time the same way as the rest of the adapter reports times, in local time without zone.
+   *
+   * @param epochNanos nanoseconds since epoch.
+   * @return formatted time.
+   */
+  static String formatTime(long epochNanos) {
+    return LocalDateTime.ofInstant(Instant.ofEpochSecond(0, epochNanos), ZoneId.systemDefault()).toString();
+  }
+
+  /**
+   * Parse a composite reading and compare each child value with the last recorded.
+   *
+   * @param raw composite value as read from Owserver.
+   * @return bitmask of changed children.
+   */
+  private long updateChildren(String raw) {
+    long changed = 0;
+    long bits = 0;
+    int start = 0;
+
+    for (int i = 0; i < childCount && start <= raw.length(); i++) {
+      int end = fieldEnd(raw, start);
+      double parsed = parseNumber(raw, start, end);
+
+      if (switchStates) {
+        if (parsed != 0 && !Double.isNaN(parsed)) {
+          bits |= 1L << i;
+        }
+      } else if (!hasValue || isChildChanged(i, parsed, raw, start, end)) {
+        changed |= 1L << i;
+      }
+
+      childValues[i] = parsed;
+      start = end + 1;
+    }
+
+    if (switchStates) {
+      changed = hasValue ? (bits ^ childBits) : (childCount == MAX_CHILDREN ? -1L : (1L << childCount) - 1);
+      childBits = bits;
+    }
+
+    return changed;
+  }
+
+  /**
+   * Compare a new child value with the last recorded. Numbers are compared by value, anything else is compared as text.
+   *
+   * @param index position of child in composite reading.
+   * @param parsed new value parsed as number.
+   * @param raw string holding new value.
+   * @param start start of new value in string.
+   * @param end end of new value in string.
+   * @return true if value has changed.
+   */
+  private boolean isChildChanged(int index, double parsed, String raw, int start, int end) {
+    if (!Double.isNaN(childValues[index]) && !Double.isNaN(parsed)) {
+      return childValues[index] != parsed;
+    }
+
+    int oldStart = fieldStart(rawValue, index);
+    return oldStart < 0 || isChanged(childValues[index], parsed, raw, start, end, rawValue, oldStart, fieldEnd(rawValue, oldStart));
+  }
+
+  /**
+   * Compare a new value with the old one. Numbers are compared by value, anything else is compared as text ignoring surrounding whitespace.
+   *
+   * @param oldValue old value parsed as number.
+   * @param newValue new value parsed as number.
+   * @param newRaw string holding new value.
+   * @param newStart start of new value in string.
+   * @param newEnd end of new value in string.
+   * @param oldRaw string holding old value.
+   * @param oldStart start of old value in string.
+   * @param oldEnd end of old value in string.
+   * @return true if value has changed.
+   */
+  private static boolean isChanged(double oldValue, double newValue, String newRaw, int newStart, int newEnd, String oldRaw, int oldStart, int oldEnd) {
+    if (!Double.isNaN(oldValue) && !Double.isNaN(newValue)) {
+      return oldValue != newValue;
+    }
+
+    while (newStart < newEnd && Character.isWhitespace(newRaw.charAt(newStart))) {
+      newStart++;
+    }
+    while (newEnd > newStart && Character.isWhitespace(newRaw.charAt(newEnd - 1))) {
+      newEnd--;
+    }
+    while (oldStart < oldEnd && Character.isWhitespace(oldRaw.charAt(oldStart))) {
+      oldStart++;
+    }
+    while (oldEnd > oldStart && Character.isWhitespace(oldRaw.charAt(oldEnd - 1))) {
+      oldEnd--;
+    }
+
+    return (newEnd - newStart) != (oldEnd - oldStart) || !newRaw.regionMatches(newStart, oldRaw, oldStart, newEnd - newStart);
+  }
+
+  /**
+   * Find end of a value in a composite reading.
+   *
+   * @param raw composite reading.
+   * @param start start of value.
+   * @return position of separator after value, or length of string for the last value.
+   */
+  private static int fieldEnd(String raw, int start) {
+    int end = raw.indexOf(CHILD_VALUE_SEPARATOR, start);
+    return end < 0 ? raw.length() : end;
+  }
+
+  /**
+   * Find start of a value in a composite reading.
+   *
+   * @param raw composite reading.
+   * @param index position of value.
+   * @return start of value, or -1 if reading has fewer values.
+   */
+  private static int fieldStart(String raw, int index) {
+    int start = 0;
+
+    for (int i = 0; i < index; i++) {
+      start = raw.indexOf(CHILD_VALUE_SEPARATOR, start);
+      if (start < 0) {
+        return -1;
+      }
+      start++;
+    }
+
+    return start;
+  }
+
+  /**
+   * Parse a decimal number like " -12.5625" without creating any objects. Surrounding whitespace is ignored.
+   *
+   * @param raw string holding number.
+   * @param start start of number in string.
+   * @param end end of number in string.
+   * @return parsed number, or NaN if not a number.
+   */
+  static double parseNumber(String raw, int start, int end) {
+    while (start < end && Character.isWhitespace(raw.charAt(start))) {
+      start++;
+    }
+    while (end > start && Character.isWhitespace(raw.charAt(end - 1))) {
+      end--;
+    }
+    if (start >= end) {
+      return Double.NaN;
+    }
+
+    boolean negative = false;
+    char c = raw.charAt(start);
+    if (c == '-' || c == '+') {
+      negative = c == '-';
+      start++;
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int scale = 0;
+    boolean decimals = false;
+
+    for (int i = start; i < end; i++) {
+      c = raw.charAt(i);
+
+      if (c >= '0' && c <= '9') {
+        // Beyond 15 significant digits the mantissa can't be divided exactly, let the JDK handle these rare cases.
+        if (digits >= 15) {
+          return parseNumberSlow(raw, start, end, negative);
+        }
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if (decimals) {
+          scale++;
+        }
+      } else if (c == '.' && !decimals) {
+        decimals = true;
+      } else if (c == 'e' || c == 'E') {
+        return parseNumberSlow(raw, start, end, negative);
+      } else {
+        return Double.NaN;
+      }
+    }
+
+    if (digits == 0) {
+      return Double.NaN;
+    }
+
+    double result = scale == 0 ? mantissa : mantissa / Math.pow(10, scale);
+    return negative ? -result : result;
+  }
+
+  /**
+   * Parse a number that is too long or has an exponent, using the JDK parser.
+   *
+   * @param raw string holding number.
+   * @param start start of number in string, after any sign.
+   * @param end end of number in string.
+   * @param negative if number had a minus sign.
+   * @return parsed number, or NaN if not a number.
+   */
+  private static double parseNumberSlow(String raw, int start, int end, boolean negative) {
+    try {
+      double result = Double.parseDouble(raw.substring(start, end));
+      return negative ? -result : result;
+    } catch (NumberFormatException ex) {
+      return Double.NaN;
+    }
+  }
+}
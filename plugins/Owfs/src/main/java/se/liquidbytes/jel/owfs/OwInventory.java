@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The devices an adapter has found on Owserver, saved to a file so that the next start of the adapter can publish them at once instead of waiting for a full
+ * scan of every bus. For each device we save what the scan found out the slow way (type, path, power and the layout of children) together with the last
+ * reading. Settings like sample delay and resolution are not saved, they are always taken from the current adapter settings.
+ *
+ * The file is only a hint, devices in it are validated against the bus in the background after start.
+ *
+ * @author Henrik Östman
+ */
+final class OwInventory {
+
+  /**
+   * Logghandler instance
+   */
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /**
+   * Version of file format, files with another version are ignored.
+   */
+  private final static int VERSION = 1;
+  /**
+   * File to save inventory in.
+   */
+  private final Path file;
+  /**
+   * Makes saves wait for each other. A lock instead of synchronized, a virtual thread that writes the file while holding a monitor would pin its carrier
+   * thread.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Default constructor
+   *
+   * @param file file to save inventory in.
+   */
+  OwInventory(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Get file that inventory is saved in.
+   *
+   * @return path to file.
+   */
+  Path getFile() {
+    return file;
+  }
+
+  /**
+   * Load saved devices.
+   *
+   * @param host host of Owserver that the inventory should belong to.
+   * @param port port of Owserver that the inventory should belong to.
+   * @return saved devices as an array of devices per path of bus, empty if nothing has been saved or if the file belongs to another Owserver or could not be
+   * read.
+   */
+  JsonObject load(String host, int port) {
+    if (!Files.exists(file)) {
+      return new JsonObject();
+    }
+
+    try {
+      JsonObject inventory = new JsonObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+      if (inventory.getInteger("version", 0) != VERSION || !host.equals(inventory.getString("host")) || port != inventory.getInteger("port", 0)) {
+        logger.info("Ignoring device inventory '{}', it was saved by another version or for another Owserver than {}:{}.", file, host, port);
+        return new JsonObject();
+      }
+
+      return inventory.getJsonObject("buses", new JsonObject());
+    } catch (IOException | DecodeException | ClassCastException ex) {
+      logger.warn("Failed to load device inventory '{}' for Owserver at {}:{}, all buses will be scanned instead.", file, host, port, ex);
+      return new JsonObject();
+    }
+  }
+
+  /**
+   * Save all devices on a set of buses, replacing what was saved before. The file is replaced in one move, so a crash while saving never leaves a half
+   * written inventory behind.
+   *
+   * @param host host of Owserver.
+   * @param port port of Owserver.
+   * @param buses buses to save devices of.
+   */
+  void save(String host, int port, Collection<OwBus> buses) {
+    lock.lock();
+    try {
+      JsonObject savedBuses = new JsonObject();
+
+      for (OwBus bus : buses) {
+        JsonArray devices = new JsonArray();
+
+        for (OwDevice device : bus.getDevices()) {
+          devices.add(toJson(device));
+        }
+
+        savedBuses.put(bus.getPath(), devices);
+      }
+
+      JsonObject inventory = new JsonObject()
+          .put("version", VERSION)
+          .put("host", host)
+          .put("port", port)
+          .put("saved", System.currentTimeMillis())
+          .put("buses", savedBuses);
+
+      try {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tempFile, inventory.encodePrettily().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException ex) {
+        logger.warn("Failed to save device inventory '{}' for Owserver at {}:{}.", file, host, port, ex);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get a parent device and its last reading in the format that is saved.
+   *
+   * @param device parent device.
+   * @return saved device.
+   */
+  private static JsonObject toJson(OwDevice device) {
+    JsonArray children = new JsonArray();
+    for (int i = 0; i < device.getChildCount(); i++) {
+      children.add(device.getChild(i).getHwId());
+    }
+
+    JsonObject json = new JsonObject()
+        .put("hwId", device.getHwId())
+        .put("type", device.getType().getTypeId())
+        .put("family", device.getFamily())
+        .put("path", device.getPath())
+        .put("parasitic", device.isParasitic())
+        .put("children", children);
+
+    if (device.getState().hasValue()) {
+      json.put("value", device.getState().getValue());
+      json.put("time", TimeUnit.NANOSECONDS.toMillis(device.getState().getTime()));
+    }
+
+    return json;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Histogram of durations with exponential buckets, bucket n holds durations between 2^n and 2^(n+1) microseconds. Percentiles are estimated as the upper
+ * bound of the bucket they fall into, which is accurate enough for telling 1 ms from 10 ms or 100 ms, while recording never allocates.
+ *
+ * @author Henrik Östman
+ */
+final class OwLatencyHistogram {
+
+  /**
+   * Number of buckets, the last bucket covers everything above ~18 minutes.
+   */
+  private final static int BUCKETS = 31;
+  /**
+   * Number of recorded durations per bucket.
+   */
+  private final long[] buckets;
+  /**
+   * Total number of recorded durations.
+   */
+  private long count;
+  /**
+   * Sum of all recorded durations (nanoseconds).
+   */
+  private long sum;
+  /**
+   * Longest recorded duration (nanoseconds).
+   */
+  private long max;
+
+  /**
+   * Default constructor
+   */
+  OwLatencyHistogram() {
+    this.buckets = new long[BUCKETS];
+  }
+
+  /**
+   * Record a duration.
+   *
+   * @param nanos duration in nanoseconds.
+   */
+  synchronized void record(long nanos) {
+    long micros = Math.max(1, nanos / 1000);
+    int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+
+    buckets[bucket]++;
+    count++;
+    sum += nanos;
+    max = Math.max(max, nanos);
+  }
+
+  /**
+   * Get total number of recorded durations.
+   *
+   * @return count.
+   */
+  synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Get sum of all recorded durations.
+   *
+   * @return sum in nanoseconds.
+   */
+  synchronized long getSum() {
+    return sum;
+  }
+
+  /**
+   * Get longest recorded duration.
+   *
+   * @return duration in nanoseconds.
+   */
+  synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * Estimate a percentile of the recorded durations.
+   *
+   * @param percentile percentile between 0 and 100.
+   * @return duration in nanoseconds, 0 if nothing has been recorded.
+   */
+  synchronized long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(count * percentile / 100.0);
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i];
+
+      if (seen >= rank) {
+        // Upper bound of bucket, but never more than what we actually have seen.
+        return Math.min(max, (2L << i) * 1000);
+      }
+    }
+
+    return max;
+  }
+
+  /**
+   * Get summary of histogram, all durations in milliseconds.
+   *
+   * @return summary with count, mean, p50, p99 and max.
+   */
+  synchronized JsonObject toJson() {
+    return new JsonObject()
+        .put("count", count)
+        .put("mean", count == 0 ? 0.0 : sum / (double) count / 1000000.0)
+        .put("p50", getPercentile(50) / 1000000.0)
+        .put("p99", getPercentile(99) / 1000000.0)
+        .put("max", max / 1000000.0);
+  }
+}
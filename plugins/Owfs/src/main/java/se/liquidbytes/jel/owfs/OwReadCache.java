@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads paths from Owserver according to their read policy, shared by all buses of an adapter. Keeps the adapters own cache of values read with
+ * ReadPolicy.Mode.ADAPTER_CACHED, and the time of the last read from the device of paths read with ReadPolicy.Mode.OWSERVER_CACHED. Both are kept per device,
+ * so that everything read from a device can be forgotten at once.
+ *
+ * Paths are always given and returned in their uncached form, e.g. "/uncached/bus.0/28.0000028F1A2B/power", whatever path that is really read.
+ *
+ * @author Henrik Östman
+ */
+final class OwReadCache {
+
+  /**
+   * Pattern of a device address in a path, family code and id in the F.I format, e.g. "10.67C6697351FF".
+   */
+  private final static Pattern DEVICE_ADDRESS = Pattern.compile("^([0-9A-F]{2})\\.([0-9A-F]{12})$");
+  /**
+   * Values read with adapter-cached policy, hwId of device as key and then uncached path as key.
+   */
+  private final Map<String, Map<String, Entry>> values;
+  /**
+   * Time of last read from device (System.nanoTime()) of paths read with owserver-cached policy, hwId of device as key and then uncached path as key.
+   */
+  private final Map<String, Map<String, Long>> lastDeviceReads;
+  /**
+   * Number of values that were taken from the adapter cache.
+   */
+  private final AtomicLong adapterHits;
+  /**
+   * Number of values that were not found in the adapter cache, or had expired, and were read from the devices instead.
+   */
+  private final AtomicLong adapterMisses;
+  /**
+   * Number of values that were read from the cache of Owserver.
+   */
+  private final AtomicLong owserverCachedReads;
+  /**
+   * Number of values that were read from the devices, not counting adapter cache misses.
+   */
+  private final AtomicLong uncachedReads;
+
+  /**
+   * Default constructor
+   */
+  OwReadCache() {
+    this.values = new ConcurrentHashMap<>();
+    this.lastDeviceReads = new ConcurrentHashMap<>();
+    this.adapterHits = new AtomicLong();
+    this.adapterMisses = new AtomicLong();
+    this.owserverCachedReads = new AtomicLong();
+    this.uncachedReads = new AtomicLong();
+  }
+
+  /**
+   * Read many paths in one batch, each one according to its read policy. Only paths that are not found in the adapter cache are sent to Owserver.
+   *
+   * @param connection connection to Owserver to use.
+   * @param paths uncached paths to read, with their read policy.
+   * @return read values with uncached path as key. Paths that failed to be read are left out.
+   */
+  Map<String, String> readMany(OwServerConnection connection, Map<String, ReadPolicy> paths) {
+    long now = System.nanoTime();
+    Map<String, String> result = new LinkedHashMap<>();
+    // Path to read from Owserver as key, uncached path as value.
+    Map<String, String> reads = new LinkedHashMap<>();
+
+    for (Map.Entry<String, ReadPolicy> path : paths.entrySet()) {
+      ReadPolicy policy = path.getValue();
+
+      switch (policy.getMode()) {
+        case ADAPTER_CACHED:
+          Entry entry = get(values, path.getKey());
+          if (entry != null && (policy.getMaxAge() == 0 || now - entry.time < policy.getMaxAge())) {
+            adapterHits.incrementAndGet();
+            result.put(path.getKey(), entry.value);
+          } else {
+            // The cache of Owserver may be older than max age, so a value that has expired must be read from the device to be fresh.
+            adapterMisses.incrementAndGet();
+            reads.put(path.getKey(), path.getKey());
+          }
+          break;
+        case OWSERVER_CACHED:
+          Long lastDeviceRead = get(lastDeviceReads, path.getKey());
+          if (lastDeviceRead != null && (policy.getMaxAge() == 0 || now - lastDeviceRead < policy.getMaxAge())) {
+            owserverCachedReads.incrementAndGet();
+            reads.put(ReadPolicy.cachedPath(path.getKey()), path.getKey());
+          } else {
+            // An uncached read also refreshes the cache of Owserver.
+            uncachedReads.incrementAndGet();
+            reads.put(path.getKey(), path.getKey());
+          }
+          break;
+        default:
+          uncachedReads.incrementAndGet();
+          reads.put(path.getKey(), path.getKey());
+      }
+    }
+
+    if (reads.isEmpty()) {
+      return result;
+    }
+
+    for (Map.Entry<String, String> value : connection.readMany(new ArrayList<>(reads.keySet())).entrySet()) {
+      String path = reads.get(value.getKey());
+
+      switch (paths.get(path).getMode()) {
+        case ADAPTER_CACHED:
+          put(values, path, new Entry(value.getValue(), now));
+          break;
+        case OWSERVER_CACHED:
+          if (path.equals(value.getKey())) {
+            put(lastDeviceReads, path, now);
+          }
+          break;
+        default:
+      }
+
+      result.put(path, value.getValue());
+    }
+
+    return result;
+  }
+
+  /**
+   * Forget everything read from a device and its children, so that a device that is removed or found again is read from scratch, e.g. a sensor that is
+   * plugged back in with another kind of power supply.
+   *
+   * @param hwId hwId of device.
+   */
+  void invalidate(String hwId) {
+    values.remove(hwId);
+    lastDeviceReads.remove(hwId);
+  }
+
+  /**
+   * Get counters as JSON.
+   *
+   * @return {"size", "adapterHits", "adapterMisses", "owserverCachedReads", "uncachedReads"}.
+   */
+  JsonObject toJson() {
+    return new JsonObject()
+        .put("size", values.values().stream().mapToInt(Map::size).sum())
+        .put("adapterHits", adapterHits.get())
+        .put("adapterMisses", adapterMisses.get())
+        .put("owserverCachedReads", owserverCachedReads.get())
+        .put("uncachedReads", uncachedReads.get());
+  }
+
+  /**
+   * Get what has been kept for a path.
+   *
+   * @param <T> type of what is kept.
+   * @param cache cache to look in.
+   * @param path uncached path.
+   * @return kept value, or null if nothing is kept.
+   */
+  private static <T> T get(Map<String, Map<String, T>> cache, String path) {
+    Map<String, T> device = cache.get(getHwId(path));
+    return device != null ? device.get(path) : null;
+  }
+
+  /**
+   * Keep something for a path.
+   *
+   * @param <T> type of what is kept.
+   * @param cache cache to keep it in.
+   * @param path uncached path.
+   * @param value value to keep.
+   */
+  private static <T> void put(Map<String, Map<String, T>> cache, String path, T value) {
+    cache.computeIfAbsent(getHwId(path), hwId -> new ConcurrentHashMap<>()).put(path, value);
+  }
+
+  /**
+   * Get hwId of the device that a path belongs to, which is the last device address in the path. A path through a hub has the address of the hub first, e.g.
+   * "/uncached/1F.0000012A3B4C/main/28.0000028F1A2B/power" belongs to "0000028F1A2B".
+   *
+   * @param path path to a property.
+   * @return hwId, or an empty string if path doesn't belong to a device.
+   */
+  static String getHwId(String path) {
+    String[] parts = path.split("/");
+
+    for (int i = parts.length - 1; i >= 0; i--) {
+      Matcher address = DEVICE_ADDRESS.matcher(parts[i]);
+
+      if (address.matches()) {
+        return address.group(2);
+      }
+    }
+
+    return "";
+  }
+
+  /**
+   * A cached value.
+   */
+  private final static class Entry {
+
+    /**
+     * Value as read.
+     */
+    private final String value;
+    /**
+     * When value was read (System.nanoTime()).
+     */
+    private final long time;
+
+    /**
+     * Constructor
+     *
+     * @param value value as read.
+     * @param time when value was read.
+     */
+    private Entry(String value, long time) {
+      this.value = value;
+      this.time = time;
+    }
+  }
+}
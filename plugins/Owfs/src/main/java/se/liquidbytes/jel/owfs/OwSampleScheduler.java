@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps track of when each device on a bus is due for its next sample, ordered by deadline. All times are in System.nanoTime() units. Not thread safe, it
+ * should only be used by the reader-thread of the bus.
+ *
+ * @author Henrik Östman
+ */
+final class OwSampleScheduler {
+
+  /**
+   * Deadlines ordered with the earliest first. May contain stale entries that have been rescheduled or removed, these are skipped when polled.
+   */
+  private final PriorityQueue<Deadline> deadlines;
+  /**
+   * Current deadline for each device, hwId as key.
+   */
+  private final Map<String, Deadline> current;
+
+  /**
+   * Default constructor
+   */
+  OwSampleScheduler() {
+    this.deadlines = new PriorityQueue<>((d1, d2) -> Long.compare(d1.dueTime, d2.dueTime));
+    this.current = new HashMap<>();
+  }
+
+  /**
+   * Set when a device is due for its next sample, replaces any earlier deadline for the device.
+   *
+   * @param hwId hwId of device.
+   * @param dueTime time when device should be sampled.
+   */
+  void schedule(String hwId, long dueTime) {
+    Deadline deadline = new Deadline(hwId, dueTime);
+    current.put(hwId, deadline);
+    deadlines.offer(deadline);
+  }
+
+  /**
+   * Stop scheduling a device.
+   *
+   * @param hwId hwId of device.
+   */
+  void remove(String hwId) {
+    current.remove(hwId);
+  }
+
+  /**
+   * Whether a device is scheduled.
+   *
+   * @param hwId hwId of device.
+   * @return true if device has a deadline.
+   */
+  boolean contains(String hwId) {
+    return current.containsKey(hwId);
+  }
+
+  /**
+   * Remove and return all devices that are due at the specified time. Returned devices are no longer scheduled, they have to be rescheduled after being
+   * sampled.
+   *
+   * @param time current time.
+   * @return hwId of all due devices, earliest deadline first.
+   */
+  List<String> pollDue(long time) {
+    List<String> due = new ArrayList<>();
+
+    while (!deadlines.isEmpty() && deadlines.peek().dueTime - time <= 0) {
+      Deadline deadline = deadlines.poll();
+
+      if (current.get(deadline.hwId) == deadline) {
+        current.remove(deadline.hwId);
+        due.add(deadline.hwId);
+      }
+    }
+
+    return due;
+  }
+
+  /**
+   * Get time of the earliest deadline.
+   *
+   * @param defaultTime time to return if no device is scheduled.
+   * @return time of earliest deadline.
+   */
+  long nextDueTime(long defaultTime) {
+    while (!deadlines.isEmpty()) {
+      Deadline deadline = deadlines.peek();
+
+      if (current.get(deadline.hwId) == deadline) {
+        return deadline.dueTime;
+      }
+
+      // Stale entry, throw it away.
+      deadlines.poll();
+    }
+
+    return defaultTime;
+  }
+
+  /**
+   * Deadline for a device.
+   */
+  private final static class Deadline {
+
+    /**
+     * hwId of device.
+     */
+    private final String hwId;
+    /**
+     * Time when device is due.
+     */
+    private final long dueTime;
+
+    /**
+     * Default constructor
+     *
+     * @param hwId hwId of device.
+     * @param dueTime time when device is due.
+     */
+    Deadline(String hwId, long dueTime) {
+      this.hwId = hwId;
+      this.dueTime = dueTime;
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for one owserver, shared by all connections to it. When owserver stops answering, the breaker opens and every request fails at once
+ * instead of blocking its thread waiting for timeouts and reconnects. In the background we probe owserver with exponential backoff, when it accepts
+ * connections again the breaker goes half-open and lets a single trial request through, while all other requests keep failing at once. If the trial
+ * request succeeds the breaker closes, if it fails the breaker opens again. This way a barely recovered owserver is not hit by every bus at once.
+ *
+ * Only failures to reach owserver count, an error code in a reply means that owserver is alive and well.
+ *
+ * @author Henrik Östman
+ */
+public class OwServerCircuitBreaker {
+
+  /**
+   * States of circuit breaker.
+   */
+  public enum State {
+    /**
+     * Owserver is available, requests are let through.
+     */
+    CLOSED,
+    /**
+     * Owserver is unavailable, requests fail at once.
+     */
+    OPEN,
+    /**
+     * Owserver accepts connections again, one trial request is let through to find out if it really works.
+     */
+    HALF_OPEN
+  }
+
+  /**
+   * Logghandler instance
+   */
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /**
+   * Consecutive failures before breaker opens.
+   */
+  private final static int FAILURE_THRESHOLD = 3;
+  /**
+   * Shortest delay between two probes of owserver (milliseconds).
+   */
+  private final static long PROBE_DELAY_MIN = 100;
+  /**
+   * Longest delay between two probes of owserver (milliseconds). A probe is only a TCP connect, so we can afford to keep this short and notice a restarted
+   * owserver within a fraction of a second.
+   */
+  private final static long PROBE_DELAY_MAX = 500;
+  /**
+   * Maximum time to wait for owserver to accept a connection when probing (milliseconds).
+   */
+  private final static int PROBE_TIMEOUT = 1000;
+  /**
+   * Time after which a trial request that has not reported its outcome is considered lost, and another trial request is let through (milliseconds).
+   */
+  private final static long TRIAL_TIMEOUT = 30000;
+  /**
+   * Host-setting for Owfs
+   */
+  private final String host;
+  /**
+   * Port-setting for Owfs
+   */
+  private final int port;
+  /**
+   * Thread that probes owserver while breaker is open.
+   */
+  private final ScheduledExecutorService prober;
+  /**
+   * Current state.
+   */
+  private State state;
+  /**
+   * Number of consecutive failures.
+   */
+  private int failures;
+  /**
+   * Delay before next probe (milliseconds).
+   */
+  private long probeDelay;
+  /**
+   * When breaker was last opened (milliseconds since epoch), 0 if never.
+   */
+  private long openedTime;
+  /**
+   * When the trial request in half-open state was let through (milliseconds since epoch), 0 if no trial request is in flight.
+   */
+  private long trialTime;
+  /**
+   * Listener that is notified when state changes, or null.
+   */
+  private volatile Consumer<State> stateListener;
+
+  /**
+   * Default constructor
+   *
+   * @param host Owserver host
+   * @param port Owserver port
+   */
+  public OwServerCircuitBreaker(String host, int port) {
+    this.host = host;
+    this.port = port;
+    this.state = State.CLOSED;
+    this.probeDelay = PROBE_DELAY_MIN;
+
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, String.format("owserver-prober-%s:%d", host, port));
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    this.prober = executor;
+  }
+
+  /**
+   * Set listener that is notified when state changes. The listener is called from the thread that caused the change.
+   *
+   * @param stateListener listener, or null to remove.
+   */
+  public void setStateListener(Consumer<State> stateListener) {
+    this.stateListener = stateListener;
+  }
+
+  /**
+   * Get current state.
+   *
+   * @return state.
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Whether a request would be let through.
+   *
+   * @return false if breaker is open, or half-open with a trial request in flight.
+   */
+  public synchronized boolean isAvailable() {
+    return state == State.CLOSED || (state == State.HALF_OPEN && !isTrialInFlight());
+  }
+
+  /**
+   * Check that a request could be sent to owserver, should be called before every request. In half-open state this lets the caller make the trial request.
+   *
+   * @throws OwServerUnavailableException if breaker is open, or half-open with a trial request in flight.
+   */
+  public synchronized void checkAvailable() {
+    checkNotOpen();
+
+    if (state == State.HALF_OPEN) {
+      if (isTrialInFlight()) {
+        throw new OwServerUnavailableException(String.format("Owserver running at %s:%s is recovering, waiting for the outcome of a trial request.", this.host, this.port));
+      }
+      trialTime = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Check that owserver is not known to be down, without sending a request. Used before queueing work that is done later.
+   *
+   * @throws OwServerUnavailableException if breaker is open.
+   */
+  public synchronized void checkNotOpen() {
+    if (state == State.OPEN) {
+      throw new OwServerUnavailableException(String.format("Owserver running at %s:%s has been unavailable for %d seconds, reconnecting in the background.", this.host, this.port, (System.currentTimeMillis() - openedTime) / 1000));
+    }
+  }
+
+  /**
+   * Report that owserver answered a request.
+   */
+  public void recordSuccess() {
+    State changed = null;
+
+    synchronized (this) {
+      failures = 0;
+      trialTime = 0;
+
+      if (state != State.CLOSED) {
+        logger.info("Owserver running at {}:{} is available again after {}ms.", this.host, this.port, System.currentTimeMillis() - openedTime);
+        state = State.CLOSED;
+        probeDelay = PROBE_DELAY_MIN;
+        changed = state;
+      }
+    }
+
+    notifyListener(changed);
+  }
+
+  /**
+   * Report that owserver could not be reached.
+   *
+   * @param cause cause of failure.
+   */
+  public void recordFailure(Throwable cause) {
+    State changed = null;
+
+    synchronized (this) {
+      failures++;
+      trialTime = 0;
+
+      if ((state == State.CLOSED && failures >= FAILURE_THRESHOLD) || state == State.HALF_OPEN) {
+        if (state == State.CLOSED) {
+          openedTime = System.currentTimeMillis();
+          logger.warn("Owserver running at {}:{} seems to be down after {} consecutive failures, failing all requests until it is back.", this.host, this.port, failures, cause);
+        }
+
+        state = State.OPEN;
+        changed = state;
+        scheduleProbe();
+      }
+    }
+
+    notifyListener(changed);
+  }
+
+  /**
+   * Stop probing owserver.
+   */
+  public void close() {
+    prober.shutdownNow();
+  }
+
+  /**
+   * Whether the trial request of half-open state is in flight. A trial request that has not reported its outcome in a long while is considered lost.
+   *
+   * @return true if a trial request is in flight.
+   */
+  private boolean isTrialInFlight() {
+    return trialTime != 0 && System.currentTimeMillis() - trialTime < TRIAL_TIMEOUT;
+  }
+
+  /**
+   * Schedule next probe of owserver, with a longer delay for every failed probe.
+   */
+  private synchronized void scheduleProbe() {
+    if (prober.isShutdown()) {
+      return;
+    }
+
+    prober.schedule(this::probe, probeDelay, TimeUnit.MILLISECONDS);
+    probeDelay = Math.min(probeDelay * 2, PROBE_DELAY_MAX);
+  }
+
+  /**
+   * Try to open a connection to owserver, if it accepts the connection the breaker goes half-open and lets requests through.
+   */
+  private void probe() {
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(this.host, this.port), PROBE_TIMEOUT);
+    } catch (IOException ex) {
+      logger.debug("Owserver running at {}:{} is still unavailable.", this.host, this.port, ex);
+
+      synchronized (this) {
+        if (state == State.OPEN) {
+          scheduleProbe();
+        }
+      }
+      return;
+    }
+
+    State changed = null;
+
+    synchronized (this) {
+      if (state == State.OPEN) {
+        logger.debug("Owserver running at {}:{} accepts connections again, letting requests through.", this.host, this.port);
+        state = State.HALF_OPEN;
+        changed = state;
+      }
+    }
+
+    notifyListener(changed);
+  }
+
+  /**
+   * Notify listener about a changed state.
+   *
+   * @param changed new state, or null if state has not changed.
+   */
+  private void notifyListener(State changed) {
+    Consumer<State> listener = stateListener;
+
+    if (changed != null && listener != null) {
+      try {
+        listener.accept(changed);
+      } catch (Exception ex) {
+        logger.error("State listener for Owserver running at {}:{} failed.", this.host, this.port, ex);
+      }
+    }
+  }
+}
@@ -15,22 +15,31 @@
  */
 package se.liquidbytes.jel.owfs;
 
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import org.owfs.jowfsclient.Enums;
 import org.owfs.jowfsclient.OwfsConnectionConfig;
 import org.owfs.jowfsclient.OwfsConnectionFactory;
 import org.owfs.jowfsclient.OwfsException;
-import org.owfs.jowfsclient.alarm.AlarmingDevicesScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Class handling the direct communication to/from owserver.
+ * Class handling the direct communication to/from owserver. It uses either our own non-blocking implementation of the owserver protocol
+ * (OwServerProtocolClient) or the jowfsclient-library as backend, the API is the same for both. The adapter uses the native backend unless configured
+ * otherwise.
  *
  * @author Henrik Östman
  */
@@ -40,10 +49,6 @@ public class OwServerConnection {
    * Logghandler instance
    */
   private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-  /**
-   * Consecutive attempts before request fails.
-   */
-  private final static int MAX_ATTEMPTS = 5;
   /**
    * Owfs-factory
    */
@@ -61,9 +66,25 @@ public class OwServerConnection {
    */
   private final int port;
   /**
-   * Attempt counter, used together with MAX_ATTEMPTS.
+   * Vert.x instance, only set when using the native protocol backend.
+   */
+  private final Vertx vertx;
+  /**
+   * Maximum time to wait for a reply when using the native protocol backend (milliseconds).
+   */
+  private final long requestTimeout;
+  /**
+   * Native protocol backend, null if jowfsclient is used.
    */
-  private int attempts;
+  private OwServerProtocolClient client;
+  /**
+   * Number of times the jowfsclient connection has been reestablished.
+   */
+  private volatile long reconnectCount;
+  /**
+   * Circuit breaker shared by all connections to the same owserver, null if this connection is used on its own.
+   */
+  private final OwServerCircuitBreaker circuitBreaker;
 
   /**
    * Default constructor
@@ -72,6 +93,31 @@ public class OwServerConnection {
    * @param port Owserver port
    */
   public OwServerConnection(String host, int port) {
+    this(null, host, port, 0);
+  }
+
+  /**
+   * Constructor for using the native owserver protocol backend, built on the Vert.x NetClient instead of jowfsclient.
+   *
+   * @param vertx Vert.x instance, or null to use jowfsclient.
+   * @param host Owserver host
+   * @param port Owserver port
+   * @param requestTimeout maximum time to wait for a reply to a request (milliseconds).
+   */
+  public OwServerConnection(Vertx vertx, String host, int port, long requestTimeout) {
+    this(vertx, host, port, requestTimeout, null);
+  }
+
+  /**
+   * Constructor for a connection that fails fast when owserver is known to be unavailable.
+   *
+   * @param vertx Vert.x instance, or null to use jowfsclient.
+   * @param host Owserver host
+   * @param port Owserver port
+   * @param requestTimeout maximum time to wait for a reply to a request when using the native protocol backend (milliseconds).
+   * @param circuitBreaker circuit breaker shared by all connections to owserver, or null.
+   */
+  public OwServerConnection(Vertx vertx, String host, int port, long requestTimeout, OwServerCircuitBreaker circuitBreaker) {
     if (host == null || host.isEmpty()) {
       throw new OwServerUnhandledException("Missing host-parameter.");
     }
@@ -82,7 +128,9 @@ public class OwServerConnection {
 
     this.host = host;
     this.port = port;
-    attempts = 1;
+    this.vertx = vertx;
+    this.requestTimeout = requestTimeout;
+    this.circuitBreaker = circuitBreaker;
 
     factory = new OwfsConnectionFactory(this.host, this.port);
     OwfsConnectionConfig config = factory.getConnectionConfig();
@@ -97,8 +145,17 @@ public class OwServerConnection {
    * Setup connection to owfs (owserver)
    */
   public void connect() {
+    if (vertx != null) {
+      // The native backend connects by itself when needed, and reconnects in the background if connection is lost.
+      if (client == null) {
+        client = new OwServerProtocolClient(vertx, this.host, this.port, this.requestTimeout);
+      }
+      return;
+    }
+
     // Close existing connection if any.
     if (this.owfs != null) {
+      reconnectCount++;
       try {
         owfs.disconnect();
       } catch (IOException ex) {
@@ -110,10 +167,24 @@ public class OwServerConnection {
     this.owfs = factory.createNewConnection();
   }
 
+  /**
+   * Get number of times the connection to owserver has been reestablished after it seemed down.
+   *
+   * @return number of reconnects.
+   */
+  public long getReconnectCount() {
+    return client != null ? client.getReconnectCount() : reconnectCount;
+  }
+
   /**
    * Close connection to owfs (owserver)
    */
   public void close() {
+    if (this.client != null) {
+      this.client.close();
+      this.client = null;
+    }
+
     if (this.owfs != null) {
       try {
         this.owfs.disconnect();
@@ -125,61 +196,53 @@ public class OwServerConnection {
   }
 
   /**
-   * Return a device alarming scanner. Used to add event listeners for detecting alarming devices.
+   * List all available devices on 1-wire bus.
    *
-   * @return
+   * @param useCache use Owservers internal cache, much faster but may contain old values.
+   * @throws OwServerConnectionException if execution fails
+   * @return Returns list of path for all found devices.
    */
-  public AlarmingDevicesScanner getAlarmingDevicesScanner() {
-    if (owfs == null) {
-      throw new OwServerUnhandledException(String.format("You forgot to run Connect() on OwServerConnection at %s:%s.", this.host, this.port));
-    }
-
-    return factory.getAlarmingScanner();
+  public List<String> listDirectory(boolean useCache) {
+    return listDirectory("", useCache);
   }
 
   /**
-   * List all available devices on 1-wire bus.
+   * List all available devices on a specific 1-wire bus, e.g. "/bus.0".
    *
+   * @param busPath path to bus master, empty string lists devices on all buses.
    * @param useCache use Owservers internal cache, much faster but may contain old values.
    * @throws OwServerConnectionException if execution fails
    * @return Returns list of path for all found devices.
    */
-  public List<String> listDirectory(boolean useCache) {
-    List<String> owDevices = new ArrayList<>();
-
-    if (owfs == null) {
-      throw new OwServerUnhandledException(String.format("You forgot to run Connect() on OwServerConnection at %s:%s.", this.host, this.port));
-    }
+  public List<String> listDirectory(String busPath, boolean useCache) {
+    return listPath(useCache ? (busPath.isEmpty() ? "/" : busPath) : "/uncached" + busPath);
+  }
 
-    try {
-      owDevices = owfs.listDirectoryAll(useCache ? "/" : "/uncached")
-          .stream().filter(d -> d != null) // Filter out possible null-values.
-          .map(d -> !d.contains("/uncached") ? "/uncached" + d : d) // Make sure we return the uncached path to the devices regardless of whether we list devices using cache or not. This is to be consistent.
-          .collect(Collectors.toList());
-      attempts = 1;
-    } catch (SocketException ex) {
-      if (attempts > MAX_ATTEMPTS) {
-        throw new OwServerConnectionException(String.format("Failed to execute action \"listDirectory\" on Owserver running at %s:%s, connection seems down. Done trying to reconnect after %n attempts.", this.host, this.port, MAX_ATTEMPTS), ex);
-      } else {
-        attempts++;
-        logger.warn("Failed to execute action \"listDirectory\" on Owserver running at {}:{}, connection seems down. Reconnect attempt# {}.", this.host, this.port, attempts, ex);
+  /**
+   * List all devices on a specific 1-wire bus that currently are alarming, i.e. matched their alarm condition since their latch was last reset. This uses the
+   * conditional search of the 1-wire protocol, so only alarming devices respond and the listing is fast even on large buses.
+   *
+   * @param busPath path to bus master, empty string lists alarming devices on all buses.
+   * @throws OwServerConnectionException if execution fails
+   * @return Returns list of path for all alarming devices.
+   */
+  public List<String> listAlarmingDevices(String busPath) {
+    return listPath("/uncached" + busPath + "/alarm");
+  }
 
-        connect();
-        try {
-          // Wait one sec, to not SPAM us to death.
-          Thread.sleep(1000);
-          return listDirectory(useCache);
-        } catch (InterruptedException ex1) {
-          // Do nothing.
-        }
-      }
-    } catch (OwfsException ex) {
-      throw new OwServerConnectionException(String.format("Failed to execute action \"listDirectory\" on Owserver running at %s:%s, got errorcode: %s", this.host, this.port, ex.getErrorCode()), ex);
-    } catch (IOException ex) {
-      throw new OwServerConnectionException(String.format("Failed to execute action \"listDirectory\" on Owserver running at %s:%s.", this.host, this.port), ex);
+  /**
+   * List all devices in a directory on Owserver.
+   *
+   * @param path directory to list.
+   * @throws OwServerConnectionException if execution fails
+   * @return Returns list of path for all found devices.
+   */
+  private List<String> listPath(String path) {
+    if (client != null) {
+      return toUncachedPaths(await("listDirectory", h -> client.listDirectory(path, h)));
     }
 
-    return owDevices;
+    return toUncachedPaths(execute("action \"listDirectory\"", () -> owfs.listDirectoryAll(path)));
   }
 
   /**
@@ -189,79 +252,147 @@ public class OwServerConnection {
    * @return Whether path exists.
    */
   public boolean exists(String path) {
-    boolean exists = false;
+    if (client != null) {
+      return await("exists", h -> client.exists(path, h));
+    }
 
-    if (owfs == null) {
-      throw new OwServerUnhandledException(String.format("You forgot to run Connect() on OwServerConnection at %s:%s.", this.host, this.port));
+    return execute("action \"exists\"", () -> owfs.exists(path));
+  }
+
+  /**
+   * Read value from device using path.
+   *
+   * @param path Path to read.
+   * @return Read value.
+   */
+  public String read(String path) {
+    if (client != null) {
+      return await("read", h -> client.read(path, h));
     }
 
-    try {
-      exists = owfs.exists(path);
-      attempts = 1;
-    } catch (SocketException ex) {
-      if (attempts > MAX_ATTEMPTS) {
-        throw new OwServerConnectionException(String.format("Failed to execute action \"exists\" on Owserver running at %s:%s, connection seems down. Done trying to reconnect after %s attempts.", this.host, this.port, MAX_ATTEMPTS), ex);
-      } else {
-        attempts++;
-        logger.warn("Failed to execute action \"exists\" on Owserver running at {}:{}, connection seems down. Reconnect attempt# {}.", this.host, this.port, attempts, ex);
+    return execute("action \"read\"", () -> owfs.read(path));
+  }
 
-        connect();
+  /**
+   * Read values from many paths in one go. With the native backend all requests are pipelined to owserver, so the cost is close to a single round-trip
+   * instead of one round-trip per path. With jowfsclient the paths are read one by one. A failing path does not stop the other paths from being read.
+   *
+   * @param paths Paths to read.
+   * @return Read values with path as key, in the same order as requested. Paths that failed to be read are left out.
+   */
+  public Map<String, String> readMany(List<String> paths) {
+    Map<String, String> values = new LinkedHashMap<>();
+
+    if (client != null) {
+      checkAvailable();
+
+      boolean answered = false;
+      Throwable connectionFailure = null;
+      Map<String, CompletableFuture<String>> futures = new LinkedHashMap<>();
+      for (String path : paths) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        futures.put(path, future);
+
+        client.read(path, res -> {
+          if (res.succeeded()) {
+            future.complete(res.result());
+          } else {
+            future.completeExceptionally(res.cause());
+          }
+        });
+      }
+
+      for (Map.Entry<String, CompletableFuture<String>> entry : futures.entrySet()) {
         try {
-          // Wait one sec, to not SPAM us to death.
-          Thread.sleep(1000);
-          return exists(path);
-        } catch (InterruptedException ex1) {
-          // Do nothing.
+          values.put(entry.getKey(), entry.getValue().get());
+          answered = true;
+        } catch (ExecutionException ex) {
+          logger.debug("Failed to read path '{}' on Owserver running at {}:{}.", entry.getKey(), this.host, this.port, ex.getCause());
+          if (ex.getCause() instanceof OwServerReplyException) {
+            answered = true;
+          } else {
+            connectionFailure = ex.getCause();
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new OwServerConnectionException(String.format("Interrupted while executing action \"readMany\" on Owserver running at %s:%s.", this.host, this.port), ex);
+        }
+      }
+
+      recordOutcome(answered, connectionFailure);
+    } else {
+      for (String path : paths) {
+        try {
+          values.put(path, read(path));
+        } catch (OwServerConnectionException ex) {
+          logger.debug("Failed to read path '{}' on Owserver running at {}:{}.", path, this.host, this.port, ex);
         }
       }
-    } catch (OwfsException ex) {
-      throw new OwServerConnectionException(String.format("Failed to execute action \"exists\" on Owserver running at %s:%s, got errorcode: %s", this.host, this.port, ex.getErrorCode()), ex);
-    } catch (IOException ex) {
-      throw new OwServerConnectionException(String.format("Failed to execute action \"exists\" on Owserver running at %s:%s.", this.host, this.port), ex);
     }
 
-    return exists;
+    return values;
   }
 
   /**
-   * Read value from device using path.
+   * Write values to many paths in one go. With the native backend all requests are pipelined to owserver, they are still executed by owserver in the order
+   * given. With jowfsclient the paths are written one by one. A failing path does not stop the other paths from being written.
    *
-   * @param path Path to read.
-   * @return Read value.
+   * @param values Values to write with path as key, written in iteration order.
+   * @return Paths that failed to be written, empty if all succeeded.
    */
-  public String read(String path) {
-    String value = null;
+  public List<String> writeMany(Map<String, String> values) {
+    List<String> failedPaths = new ArrayList<>();
 
-    if (owfs == null) {
-      throw new OwServerUnhandledException(String.format("You forgot to run Connect() on OwServerConnection at %s:%s.", this.host, this.port));
-    }
+    if (client != null) {
+      checkAvailable();
 
-    try {
-      value = owfs.read(path);
-      attempts = 1;
-    } catch (SocketException ex) {
-      if (attempts > MAX_ATTEMPTS) {
-        throw new OwServerConnectionException(String.format("Failed to execute action \"read\" on Owserver running at %s:%s, connection seems down. Done trying to reconnect after %s attempts.", this.host, this.port, MAX_ATTEMPTS), ex);
-      } else {
-        attempts++;
-        logger.warn("Failed to execute action \"read\" on Owserver running at {}:{}, connection seems down. Reconnect attempt# {}.", this.host, this.port, attempts, ex);
+      boolean answered = false;
+      Throwable connectionFailure = null;
+      Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+      for (Map.Entry<String, String> entry : values.entrySet()) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        futures.put(entry.getKey(), future);
 
-        connect();
+        client.write(entry.getKey(), entry.getValue(), res -> {
+          if (res.succeeded()) {
+            future.complete(null);
+          } else {
+            future.completeExceptionally(res.cause());
+          }
+        });
+      }
+
+      for (Map.Entry<String, CompletableFuture<Void>> entry : futures.entrySet()) {
         try {
-          // Wait one sec, to not SPAM us to death.
-          Thread.sleep(1000);
-          return read(path);
-        } catch (InterruptedException ex1) {
-          // Do nothing.
+          entry.getValue().get();
+          answered = true;
+        } catch (ExecutionException ex) {
+          failedPaths.add(entry.getKey());
+          logger.warn("Failed to write value '{}' to path '{}' on Owserver running at {}:{}.", values.get(entry.getKey()), entry.getKey(), this.host, this.port, ex.getCause());
+          if (ex.getCause() instanceof OwServerReplyException) {
+            answered = true;
+          } else {
+            connectionFailure = ex.getCause();
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new OwServerConnectionException(String.format("Interrupted while executing action \"writeMany\" on Owserver running at %s:%s.", this.host, this.port), ex);
+        }
+      }
+
+      recordOutcome(answered, connectionFailure);
+    } else {
+      for (Map.Entry<String, String> entry : values.entrySet()) {
+        try {
+          write(entry.getKey(), entry.getValue());
+        } catch (OwServerConnectionException ex) {
+          failedPaths.add(entry.getKey());
+          logger.warn("Failed to write value '{}' to path '{}' on Owserver running at {}:{}.", entry.getValue(), entry.getKey(), this.host, this.port, ex);
         }
       }
-    } catch (OwfsException ex) {
-      throw new OwServerConnectionException(String.format("Failed to execute action \"read\" on Owserver running at %s:%s, got errorcode: %s", this.host, this.port, ex.getErrorCode()), ex);
-    } catch (IOException ex) {
-      throw new OwServerConnectionException(String.format("Failed to execute action \"read\" on Owserver running at %s:%s.", this.host, this.port), ex);
     }
 
-    return value;
+    return failedPaths;
   }
 
   /**
@@ -271,34 +402,174 @@ public class OwServerConnection {
    * @param value Value to write/set.
    */
   public void write(String path, String value) {
+    if (client != null) {
+      this.<Void>await("write", h -> client.write(path, value, h));
+      return;
+    }
 
+    execute(String.format("write to path '%s' with value '%s'", path, value), () -> {
+      owfs.write(path, value);
+      return null;
+    });
+  }
+
+  /**
+   * Run a request using jowfsclient. If the connection seems down we reconnect and try once more at once, if that also fails owserver is probably gone and
+   * it's up to the circuit breaker to decide when to try again.
+   *
+   * @param <T> result type
+   * @param action description of request, for error messages.
+   * @param request request to run.
+   * @return result of request.
+   * @throws OwServerConnectionException if request failed.
+   */
+  private <T> T execute(String action, OwfsRequest<T> request) {
     if (owfs == null) {
       throw new OwServerUnhandledException(String.format("You forgot to run Connect() on OwServerConnection at %s:%s.", this.host, this.port));
     }
 
+    checkAvailable();
+
     try {
-      owfs.write(path, value);
-      attempts = 1;
-    } catch (SocketException ex) {
-      if (attempts > MAX_ATTEMPTS) {
-        throw new OwServerConnectionException(String.format("Failed to execute write to path '%s' with value '%s' on Owserver running at %s:%s, connection seems down. Done trying to reconnect after %s attempts.", path, value, this.host, this.port, MAX_ATTEMPTS), ex);
-      } else {
-        attempts++;
-        logger.warn("Failed to execute write to path '%s' with value '%s' on Owserver running at {}:{}, connection seems down. Reconnect attempt# {}.", path, value, this.host, this.port, attempts, ex);
+      T result;
 
+      try {
+        result = request.execute();
+      } catch (SocketException ex) {
+        logger.warn("Failed to execute {} on Owserver running at {}:{}, connection seems down. Reconnecting.", action, this.host, this.port, ex);
         connect();
-        try {
-          // Wait one sec, to not SPAM us to death.
-          Thread.sleep(1000);
-          write(path, value);
-        } catch (InterruptedException ex1) {
-          // Do nothing.
-        }
+        result = request.execute();
       }
+
+      recordSuccess();
+      return result;
     } catch (OwfsException ex) {
-      throw new OwServerConnectionException(String.format("Failed to execute write to path '%s' with value '%s' on Owserver running at %s:%s, got errorcode: %s", path, value, this.host, this.port, ex.getErrorCode()), ex);
+      // Owserver answered, so it's only this request that failed.
+      recordSuccess();
+      throw new OwServerConnectionException(String.format("Failed to execute %s on Owserver running at %s:%s, got errorcode: %s", action, this.host, this.port, ex.getErrorCode()), ex);
     } catch (IOException ex) {
-      throw new OwServerConnectionException(String.format("Failed to execute write to path '%s' with value '%s' on Owserver running at %s:%s.", path, value, this.host, this.port), ex);
+      recordFailure(ex);
+      throw new OwServerConnectionException(String.format("Failed to execute %s on Owserver running at %s:%s, connection seems down.", action, this.host, this.port), ex);
+    }
+  }
+
+  /**
+   * Make sure we return the uncached path to the devices regardless of whether we list devices using cache or not. This is to be consistent.
+   *
+   * @param paths paths from directory listing.
+   * @return uncached paths.
+   */
+  private List<String> toUncachedPaths(List<String> paths) {
+    return paths.stream().filter(d -> d != null) // Filter out possible null-values.
+        .map(d -> !d.contains("/uncached") ? "/uncached" + d : d)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Run a request using the native backend and wait for the result. The backend takes care of timeouts and reconnects, so no retries are needed here.
+   *
+   * @param <T> result type
+   * @param action name of action, for error messages.
+   * @param request request to run.
+   * @return result of request.
+   * @throws OwServerConnectionException if request failed.
+   */
+  private <T> T await(String action, Consumer<Handler<AsyncResult<T>>> request) {
+    checkAvailable();
+
+    CompletableFuture<T> future = new CompletableFuture<>();
+
+    request.accept(res -> {
+      if (res.succeeded()) {
+        future.complete(res.result());
+      } else {
+        future.completeExceptionally(res.cause());
+      }
+    });
+
+    try {
+      T result = future.get();
+      recordSuccess();
+      return result;
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof OwServerReplyException) {
+        // Owserver answered, so it's only this request that failed.
+        recordSuccess();
+      } else {
+        recordFailure(ex.getCause());
+      }
+
+      if (ex.getCause() instanceof OwServerConnectionException) {
+        throw (OwServerConnectionException) ex.getCause();
+      }
+      throw new OwServerConnectionException(String.format("Failed to execute action \"%s\" on Owserver running at %s:%s.", action, this.host, this.port), ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new OwServerConnectionException(String.format("Interrupted while executing action \"%s\" on Owserver running at %s:%s.", action, this.host, this.port), ex);
     }
   }
+
+  /**
+   * Fail at once if owserver is known to be unavailable.
+   *
+   * @throws OwServerUnavailableException if circuit breaker is open.
+   */
+  private void checkAvailable() {
+    if (circuitBreaker != null) {
+      circuitBreaker.checkAvailable();
+    }
+  }
+
+  /**
+   * Report to circuit breaker that owserver answered a request.
+   */
+  private void recordSuccess() {
+    if (circuitBreaker != null) {
+      circuitBreaker.recordSuccess();
+    }
+  }
+
+  /**
+   * Report to circuit breaker that owserver could not be reached.
+   *
+   * @param cause cause of failure.
+   */
+  private void recordFailure(Throwable cause) {
+    if (circuitBreaker != null) {
+      circuitBreaker.recordFailure(cause);
+    }
+  }
+
+  /**
+   * Report the outcome of a batch of requests to circuit breaker. Owserver is reachable if it answered any request in the batch, also requests that got an
+   * error code in the reply count as answered.
+   *
+   * @param answered whether owserver answered any request.
+   * @param connectionFailure cause of last request that failed to reach owserver, null if none failed that way.
+   */
+  private void recordOutcome(boolean answered, Throwable connectionFailure) {
+    if (answered) {
+      recordSuccess();
+    } else if (connectionFailure != null) {
+      recordFailure(connectionFailure);
+    }
+  }
+
+  /**
+   * A request to owserver using jowfsclient.
+   *
+   * @param <T> result type
+   */
+  @FunctionalInterface
+  private interface OwfsRequest<T> {
+
+    /**
+     * Run request.
+     *
+     * @return result of request.
+     * @throws IOException if owserver could not be reached.
+     * @throws OwfsException if owserver answered with an error code.
+     */
+    T execute() throws IOException, OwfsException;
+  }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.Vertx;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of persistent connections to one owserver. Owserver handles each connection in its own thread, so by using several connections we could communicate
+ * with different 1-wire buses at the same time without one bus waiting for the other.
+ *
+ * @author Henrik Östman
+ */
+public class OwServerConnectionPool {
+
+  /**
+   * Logghandler instance
+   */
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /**
+   * Maximum time to wait for a free connection before giving up (seconds).
+   */
+  private final static int ACQUIRE_TIMEOUT = 30;
+  /**
+   * Host-setting for Owfs
+   */
+  private final String host;
+  /**
+   * Port-setting for Owfs
+   */
+  private final int port;
+  /**
+   * Vert.x instance if connections should use the native protocol backend, null to use jowfsclient.
+   */
+  private final Vertx vertx;
+  /**
+   * Maximum time to wait for a reply when using the native protocol backend (milliseconds).
+   */
+  private final long requestTimeout;
+  /**
+   * All connections handled by this pool.
+   */
+  private final List<OwServerConnection> connections;
+  /**
+   * Connections not currently in use.
+   */
+  private final BlockingQueue<OwServerConnection> idleConnections;
+  /**
+   * Circuit breaker shared by all connections, makes requests fail at once while owserver is unavailable.
+   */
+  private final OwServerCircuitBreaker circuitBreaker;
+  /**
+   * Guards the list of connections. A lock instead of synchronized, connecting and closing block on the network and would pin the carrier thread of a
+   * virtual thread holding a monitor.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Default constructor
+   *
+   * @param host Owserver host
+   * @param port Owserver port
+   */
+  public OwServerConnectionPool(String host, int port) {
+    this(null, host, port, 0);
+  }
+
+  /**
+   * Constructor for a pool of connections using the native owserver protocol backend.
+   *
+   * @param vertx Vert.x instance, or null to use jowfsclient.
+   * @param host Owserver host
+   * @param port Owserver port
+   * @param requestTimeout maximum time to wait for a reply to a request (milliseconds).
+   */
+  public OwServerConnectionPool(Vertx vertx, String host, int port, long requestTimeout) {
+    this.host = host;
+    this.port = port;
+    this.vertx = vertx;
+    this.requestTimeout = requestTimeout;
+    this.connections = new ArrayList<>();
+    this.idleConnections = new LinkedBlockingQueue<>();
+    this.circuitBreaker = new OwServerCircuitBreaker(host, port);
+
+    // Always have at least one connection available.
+    resize(1);
+  }
+
+  /**
+   * Grow the pool to the specified number of connections. The pool never shrinks, connections are only closed when the pool is closed.
+   *
+   * @param size requested number of connections.
+   */
+  public void resize(int size) {
+    lock.lock();
+    try {
+      while (connections.size() < size) {
+        OwServerConnection connection = new OwServerConnection(this.vertx, this.host, this.port, this.requestTimeout, this.circuitBreaker);
+        connection.connect();
+        connections.add(connection);
+        idleConnections.offer(connection);
+      }
+
+      logger.debug("Connection pool to Owserver running at {}:{} now has {} connections.", this.host, this.port, connections.size());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get number of connections in pool.
+   *
+   * @return number of connections.
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return connections.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get circuit breaker shared by all connections in pool.
+   *
+   * @return circuit breaker.
+   */
+  public OwServerCircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Get number of times connections in pool have been reestablished after they seemed down.
+   *
+   * @return number of reconnects.
+   */
+  public long getReconnectCount() {
+    lock.lock();
+    try {
+      long reconnects = 0;
+
+      for (OwServerConnection connection : connections) {
+        reconnects += connection.getReconnectCount();
+      }
+
+      return reconnects;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Borrow a connection from the pool, this call blocks until a connection is available. The connection must be returned using release() when done.
+   *
+   * @return connection for exclusive use by caller.
+   * @throws OwServerConnectionException if no connection could be acquired.
+   */
+  public OwServerConnection acquire() {
+    try {
+      OwServerConnection connection = idleConnections.poll(ACQUIRE_TIMEOUT, TimeUnit.SECONDS);
+
+      if (connection == null) {
+        throw new OwServerConnectionException(String.format("Timed out waiting for a free connection to Owserver running at %s:%s.", this.host, this.port));
+      }
+
+      return connection;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new OwServerConnectionException(String.format("Interrupted while waiting for a free connection to Owserver running at %s:%s.", this.host, this.port), ex);
+    }
+  }
+
+  /**
+   * Return a previously borrowed connection to the pool.
+   *
+   * @param connection connection to return.
+   */
+  public void release(OwServerConnection connection) {
+    if (connection != null) {
+      idleConnections.offer(connection);
+    }
+  }
+
+  /**
+   * Run an action using a connection from the pool, the connection is automatically returned afterwards.
+   *
+   * @param <T> result type
+   * @param action action to run.
+   * @return result of action.
+   */
+  public <T> T execute(Function<OwServerConnection, T> action) {
+    OwServerConnection connection = acquire();
+
+    try {
+      return action.apply(connection);
+    } finally {
+      release(connection);
+    }
+  }
+
+  /**
+   * Close all connections in pool.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      circuitBreaker.close();
+
+      for (OwServerConnection connection : connections) {
+        connection.close();
+      }
+
+      connections.clear();
+      idleConnections.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
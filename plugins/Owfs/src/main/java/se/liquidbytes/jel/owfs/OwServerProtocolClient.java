@@ -0,0 +1,603 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetSocket;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking implementation of the owserver network protocol (http://owfs.org/index.php?page=owserver-protocol) on top of a Vert.x NetClient.
+ *
+ * Requests are pipelined on a persistent connection, so many requests could be in flight at the same time without tying up a thread. Owserver always answer
+ * requests on a connection in the same order as they were sent, so replies are matched to requests in FIFO-order. Each request has its own timeout, and if the
+ * connection is lost we reconnect in the background and resend the requests that never got an answer.
+ *
+ * All state is only touched from a event-loop context owned by this client, never from the callers thread.
+ *
+ * @author Henrik Östman
+ */
+public class OwServerProtocolClient {
+
+  /**
+   * Logghandler instance
+   */
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /**
+   * Size of request and reply header, six 32-bit integers.
+   */
+  private final static int HEADER_SIZE = 24;
+  /**
+   * Message type for reading a value.
+   */
+  private final static int MSG_READ = 2;
+  /**
+   * Message type for writing a value.
+   */
+  private final static int MSG_WRITE = 3;
+  /**
+   * Message type for checking if a path exists.
+   */
+  private final static int MSG_PRESENCE = 6;
+  /**
+   * Message type for listing a directory in one go.
+   */
+  private final static int MSG_DIRALL = 7;
+  /**
+   * Request a persistent connection. Temperature scale (Celsius) and device format ("10.67C6697351FF") are both zero, so they are implicit.
+   */
+  private final static int FLAG_PERSISTENCE = 0x00000004;
+  /**
+   * Largest value we expect to read from owserver.
+   */
+  private final static int MAX_DATA_SIZE = 65536;
+  /**
+   * Number of times a request is resent if the connection is lost before we get a reply.
+   */
+  private final static int MAX_ATTEMPTS = 3;
+  /**
+   * Shortest delay between reconnect attempts (milliseconds).
+   */
+  private final static long RECONNECT_DELAY_MIN = 100;
+  /**
+   * Longest delay between reconnect attempts (milliseconds).
+   */
+  private final static long RECONNECT_DELAY_MAX = 5000;
+  /**
+   * Vert.x instance
+   */
+  private final Vertx vertx;
+  /**
+   * Event-loop context that handles all socket events and state for this client.
+   */
+  private final Context context;
+  /**
+   * Host-setting for Owfs
+   */
+  private final String host;
+  /**
+   * Port-setting for Owfs
+   */
+  private final int port;
+  /**
+   * Maximum time to wait for a reply to a request (milliseconds).
+   */
+  private final long requestTimeout;
+  /**
+   * Client used to create connections.
+   */
+  private NetClient netClient;
+  /**
+   * Current connection, or null if not connected.
+   */
+  private NetSocket socket;
+  /**
+   * Whether owserver has agreed to keep the current connection open between requests, we only pipeline requests when it has.
+   */
+  private boolean persistent;
+  /**
+   * Whether a connection attempt is in progress.
+   */
+  private boolean connecting;
+  /**
+   * Whether client has been closed.
+   */
+  private boolean closed;
+  /**
+   * Delay before next reconnect attempt (milliseconds).
+   */
+  private long reconnectDelay;
+  /**
+   * Number of times a connection has been lost while requests were waiting for a reply, each forcing a reconnect.
+   */
+  private volatile long reconnectCount;
+  /**
+   * Requests sent on the current connection that are waiting for a reply, in the order they were sent.
+   */
+  private final Deque<Request> pendingRequests;
+  /**
+   * Requests waiting to be sent.
+   */
+  private final Deque<Request> queuedRequests;
+  /**
+   * Received data not yet parsed into a complete reply.
+   */
+  private Buffer receiveBuffer;
+
+  /**
+   * Default constructor. Must not be called from a Vert.x worker thread, callers block waiting for replies and the replies would then be handled on the same
+   * worker context.
+   *
+   * @param vertx Vert.x instance
+   * @param host Owserver host
+   * @param port Owserver port
+   * @param requestTimeout maximum time to wait for a reply to a request (milliseconds).
+   */
+  public OwServerProtocolClient(Vertx vertx, String host, int port, long requestTimeout) {
+    this.vertx = vertx;
+    this.host = host;
+    this.port = port;
+    this.requestTimeout = requestTimeout;
+    this.reconnectDelay = RECONNECT_DELAY_MIN;
+    this.pendingRequests = new ArrayDeque<>();
+    this.queuedRequests = new ArrayDeque<>();
+    this.receiveBuffer = Buffer.buffer();
+
+    // Called from a thread outside of Vert.x, e.g. the worker pool of the adapter, this gives a event-loop context of our own.
+    this.context = vertx.getOrCreateContext();
+    if (!this.context.isEventLoopContext()) {
+      throw new OwServerUnhandledException("Owserver protocol client must be created outside of a Vert.x worker context.");
+    }
+    this.context.runOnContext(v -> {
+      netClient = vertx.createNetClient(new NetClientOptions()
+          .setConnectTimeout((int) requestTimeout)
+          .setTcpNoDelay(true)
+          .setTcpKeepAlive(true));
+    });
+  }
+
+  /**
+   * Read value from device using path.
+   *
+   * @param path Path to read.
+   * @param resultHandler handler that gets the read value.
+   */
+  public void read(String path, Handler<AsyncResult<String>> resultHandler) {
+    send(MSG_READ, path, null, MAX_DATA_SIZE, reply -> {
+      if (reply.failed()) {
+        resultHandler.handle(Future.failedFuture(reply.cause()));
+      } else {
+        resultHandler.handle(Future.succeededFuture(reply.result().getData()));
+      }
+    });
+  }
+
+  /**
+   * Set value on device using path.
+   *
+   * @param path Path to write to.
+   * @param value Value to write/set.
+   * @param resultHandler handler that gets notified when value has been written.
+   */
+  public void write(String path, String value, Handler<AsyncResult<Void>> resultHandler) {
+    byte[] data = value.getBytes(StandardCharsets.UTF_8);
+
+    send(MSG_WRITE, path, data, data.length, reply -> {
+      if (reply.failed()) {
+        resultHandler.handle(Future.failedFuture(reply.cause()));
+      } else {
+        resultHandler.handle(Future.succeededFuture());
+      }
+    });
+  }
+
+  /**
+   * Check if the specified path exists.
+   *
+   * @param path Path to check.
+   * @param resultHandler handler that gets whether path exists.
+   */
+  public void exists(String path, Handler<AsyncResult<Boolean>> resultHandler) {
+    send(MSG_PRESENCE, path, null, 0, reply -> {
+      if (reply.failed() && !(reply.cause() instanceof OwServerReplyException)) {
+        resultHandler.handle(Future.failedFuture(reply.cause()));
+      } else {
+        // Owserver replies with an error code if path does not exist.
+        resultHandler.handle(Future.succeededFuture(reply.succeeded()));
+      }
+    });
+  }
+
+  /**
+   * List content of a directory.
+   *
+   * @param path Path of directory.
+   * @param resultHandler handler that gets the full path of all entries in directory.
+   */
+  public void listDirectory(String path, Handler<AsyncResult<List<String>>> resultHandler) {
+    send(MSG_DIRALL, path, null, 0, reply -> {
+      if (reply.failed()) {
+        resultHandler.handle(Future.failedFuture(reply.cause()));
+      } else {
+        String entries = reply.result().getData();
+        resultHandler.handle(Future.succeededFuture(
+            Arrays.stream(entries.split(",")).filter(e -> !e.isEmpty()).collect(Collectors.toList())
+        ));
+      }
+    });
+  }
+
+  /**
+   * Get number of times a connection has been lost while requests were waiting for a reply, a connection that owserver closes after a reply as it should is
+   * not counted.
+   *
+   * @return number of reconnects.
+   */
+  public long getReconnectCount() {
+    return reconnectCount;
+  }
+
+  /**
+   * Close connection to owserver. All requests without a reply will fail.
+   */
+  public void close() {
+    context.runOnContext(v -> {
+      closed = true;
+
+      failAll(queuedRequests, new OwServerConnectionException(String.format("Connection to Owserver running at %s:%s has been closed.", this.host, this.port)));
+      failAll(pendingRequests, new OwServerConnectionException(String.format("Connection to Owserver running at %s:%s has been closed.", this.host, this.port)));
+
+      if (socket != null) {
+        socket.close();
+        socket = null;
+      }
+
+      if (netClient != null) {
+        netClient.close();
+        netClient = null;
+      }
+    });
+  }
+
+  /**
+   * Queue a request to be sent to owserver.
+   *
+   * @param type message type.
+   * @param path path for request.
+   * @param data data to write, or null.
+   * @param size expected size of data.
+   * @param replyHandler handler that gets the reply.
+   */
+  private void send(int type, String path, byte[] data, int size, Handler<AsyncResult<Reply>> replyHandler) {
+    Request request = new Request(type, path, data, size, replyHandler);
+
+    context.runOnContext(v -> {
+      if (closed) {
+        request.fail(new OwServerConnectionException(String.format("Connection to Owserver running at %s:%s has been closed.", this.host, this.port)));
+        return;
+      }
+
+      request.timerId = vertx.setTimer(requestTimeout, t -> timeout(request));
+      queuedRequests.add(request);
+      transmitQueued();
+    });
+  }
+
+  /**
+   * Send as many queued requests as possible on current connection, connect first if we don't have a connection.
+   */
+  private void transmitQueued() {
+    if (socket == null) {
+      if (!queuedRequests.isEmpty()) {
+        connect();
+      }
+      return;
+    }
+
+    // Only pipeline requests if owserver has promised to keep the connection open, otherwise send one at a time.
+    while (!queuedRequests.isEmpty() && (persistent || pendingRequests.isEmpty())) {
+      Request request = queuedRequests.poll();
+
+      if (!request.done) {
+        pendingRequests.add(request);
+        socket.write(request.encode());
+      }
+    }
+  }
+
+  /**
+   * Open a new connection to owserver, if not already in progress.
+   */
+  private void connect() {
+    if (connecting || closed) {
+      return;
+    }
+
+    connecting = true;
+    netClient.connect(this.port, this.host, res -> {
+      connecting = false;
+
+      if (closed) {
+        if (res.succeeded()) {
+          res.result().close();
+        }
+        return;
+      }
+
+      if (res.succeeded()) {
+        logger.debug("Connected to Owserver running at {}:{}.", this.host, this.port);
+
+        socket = res.result();
+        persistent = false;
+        receiveBuffer = Buffer.buffer();
+        reconnectDelay = RECONNECT_DELAY_MIN;
+
+        NetSocket currentSocket = socket;
+        socket.handler(data -> handleData(currentSocket, data));
+        socket.closeHandler(c -> handleClose(currentSocket));
+        socket.exceptionHandler(ex -> logger.debug("Error on connection to Owserver running at {}:{}.", this.host, this.port, ex));
+
+        transmitQueued();
+      } else {
+        logger.warn("Failed to connect to Owserver running at {}:{}, retrying in {}ms.", this.host, this.port, reconnectDelay, res.cause());
+
+        // Requests stay queued until they time out, so keep trying in the background as long as someone is waiting.
+        vertx.setTimer(reconnectDelay, t -> {
+          queuedRequests.removeIf(r -> r.done);
+          transmitQueued();
+        });
+        reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_DELAY_MAX);
+      }
+    });
+  }
+
+  /**
+   * Handle connection closed, by us or owserver. Requests without a reply are resent on a new connection.
+   *
+   * @param closedSocket socket that was closed.
+   */
+  private void handleClose(NetSocket closedSocket) {
+    if (socket != closedSocket) {
+      return;
+    }
+
+    socket = null;
+
+    if (!pendingRequests.isEmpty()) {
+      reconnectCount++;
+    }
+
+    // Put requests without a reply first in queue again, in the same order as they were sent.
+    Iterator<Request> it = pendingRequests.descendingIterator();
+    while (it.hasNext()) {
+      Request request = it.next();
+
+      if (!request.done) {
+        request.attempts++;
+
+        if (request.attempts > MAX_ATTEMPTS) {
+          request.fail(new OwServerConnectionException(String.format("Lost connection to Owserver running at %s:%s. Done trying after %s attempts.", this.host, this.port, MAX_ATTEMPTS)));
+        } else {
+          queuedRequests.addFirst(request);
+        }
+      }
+    }
+    pendingRequests.clear();
+
+    transmitQueued();
+  }
+
+  /**
+   * Parse received data into replies, and hand them over to their requests.
+   *
+   * @param receivingSocket socket that data was received on.
+   * @param data received data.
+   */
+  private void handleData(NetSocket receivingSocket, Buffer data) {
+    if (socket != receivingSocket) {
+      return;
+    }
+
+    receiveBuffer.appendBuffer(data);
+
+    while (receiveBuffer.length() >= HEADER_SIZE) {
+      int payloadLength = receiveBuffer.getInt(4);
+
+      // A negative payload length is a "ping", owserver tells us that it is still working on our request.
+      if (payloadLength < 0) {
+        receiveBuffer = receiveBuffer.getBuffer(HEADER_SIZE, receiveBuffer.length());
+        continue;
+      }
+
+      if (receiveBuffer.length() < HEADER_SIZE + payloadLength) {
+        // Wait for rest of reply.
+        return;
+      }
+
+      Reply reply = new Reply(receiveBuffer.getInt(8), receiveBuffer.getInt(12), receiveBuffer.getBuffer(HEADER_SIZE, HEADER_SIZE + payloadLength));
+      receiveBuffer = receiveBuffer.getBuffer(HEADER_SIZE + payloadLength, receiveBuffer.length());
+
+      Request request = pendingRequests.poll();
+      if (request == null) {
+        logger.warn("Got a reply without a request from Owserver running at {}:{}, ignoring it.", this.host, this.port);
+        continue;
+      }
+
+      persistent = (reply.flags & FLAG_PERSISTENCE) != 0;
+
+      if (reply.ret < 0) {
+        request.fail(new OwServerReplyException(String.format("Failed to execute request on path '%s' on Owserver running at %s:%s, got errorcode: %s", request.path, this.host, this.port, -reply.ret), -reply.ret));
+      } else {
+        request.succeed(reply);
+      }
+
+      if (!persistent) {
+        // Owserver will close the connection after this reply, so we do it first and let handleClose() resend the rest of the requests.
+        receivingSocket.close();
+        handleClose(receivingSocket);
+        return;
+      }
+    }
+
+    transmitQueued();
+  }
+
+  /**
+   * A request did not get a reply in time.
+   *
+   * @param request request that timed out.
+   */
+  private void timeout(Request request) {
+    if (request.done) {
+      return;
+    }
+
+    request.fail(new OwServerConnectionException(String.format("Timeout after %sms waiting for reply on path '%s' from Owserver running at %s:%s.", requestTimeout, request.path, this.host, this.port)));
+
+    if (pendingRequests.contains(request) && socket != null) {
+      // The connection seems stuck, drop it and resend the other requests on a new connection.
+      logger.warn("Connection to Owserver running at {}:{} seems stuck, reconnecting.", this.host, this.port);
+      NetSocket stuckSocket = socket;
+      stuckSocket.close();
+      handleClose(stuckSocket);
+    } else {
+      queuedRequests.remove(request);
+    }
+  }
+
+  /**
+   * Fail and remove all requests in a collection.
+   *
+   * @param requests requests to fail.
+   * @param cause cause of failure.
+   */
+  private void failAll(Deque<Request> requests, Throwable cause) {
+    for (Request request : requests) {
+      request.fail(cause);
+    }
+    requests.clear();
+  }
+
+  /**
+   * A request to owserver.
+   */
+  private final class Request {
+
+    private final int type;
+    private final String path;
+    private final byte[] data;
+    private final int size;
+    private final Handler<AsyncResult<Reply>> replyHandler;
+    private long timerId;
+    private int attempts;
+    private boolean done;
+
+    Request(int type, String path, byte[] data, int size, Handler<AsyncResult<Reply>> replyHandler) {
+      this.type = type;
+      this.path = path;
+      this.data = data;
+      this.size = size;
+      this.replyHandler = replyHandler;
+      this.attempts = 1;
+    }
+
+    /**
+     * Encode request as header and payload (null terminated path, followed by data to write).
+     *
+     * @return request ready to be sent.
+     */
+    Buffer encode() {
+      Buffer payload = Buffer.buffer().appendString(path).appendByte((byte) 0);
+      if (data != null) {
+        payload.appendBytes(data);
+      }
+
+      return Buffer.buffer(HEADER_SIZE + payload.length())
+          .appendInt(0) // Version
+          .appendInt(payload.length())
+          .appendInt(type)
+          .appendInt(FLAG_PERSISTENCE)
+          .appendInt(size)
+          .appendInt(0) // Offset
+          .appendBuffer(payload);
+    }
+
+    void succeed(Reply reply) {
+      if (!done) {
+        done = true;
+        vertx.cancelTimer(timerId);
+        replyHandler.handle(Future.succeededFuture(reply));
+      }
+    }
+
+    void fail(Throwable cause) {
+      if (!done) {
+        done = true;
+        vertx.cancelTimer(timerId);
+        replyHandler.handle(Future.failedFuture(cause));
+      }
+    }
+  }
+
+  /**
+   * A reply from owserver.
+   */
+  private static final class Reply {
+
+    private final int ret;
+    private final int flags;
+    private final Buffer payload;
+
+    Reply(int ret, int flags, Buffer payload) {
+      this.ret = ret;
+      this.flags = flags;
+      this.payload = payload;
+    }
+
+    /**
+     * Get payload as a string. For reads "ret" holds the number of valid bytes, directory listings are null terminated.
+     *
+     * @return payload data.
+     */
+    String getData() {
+      int length = payload.length();
+      if (ret > 0 && ret < length) {
+        length = ret;
+      }
+      while (length > 0 && payload.getByte(length - 1) == 0) {
+        length--;
+      }
+
+      return payload.getString(0, length, StandardCharsets.UTF_8.name());
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonObject;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the counters that owserver keeps about its own work and the health of the 1-wire buses ("/statistics"), and turns them into rates. Each sample is
+ * put side by side with what the mainloops did in the same interval, so that a cycle that suddenly takes longer could be told apart as bus trouble (CRC
+ * errors and retries going up) or as something on the adapter side.
+ *
+ * Owserver counts for all its buses together, and restarting owserver resets the counters. A restart is detected by a changed process id or a counter going
+ * backwards, the sample after a restart has no rates.
+ *
+ * @author Henrik Östman
+ */
+final class OwStatisticsCollector {
+
+  /**
+   * Logghandler instance
+   */
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /**
+   * Counters sampled by default, relative to "/statistics". Which counters there are differ a bit between versions of owserver, those that are missing are
+   * skipped.
+   */
+  final static List<String> DEFAULT_COUNTERS = Collections.unmodifiableList(Arrays.asList(
+      "read/calls", "read/success", "read/tries.1", "read/tries.2",
+      "write/calls", "write/success",
+      "directory/calls",
+      "errors/CRC8_errors", "errors/CRC8_tries", "errors/CRC16_errors", "errors/CRC16_tries",
+      "errors/BUS_detect_errors", "errors/BUS_bit_errors", "errors/read_timeout"));
+  /**
+   * Prefix of counters that count errors.
+   */
+  private final static String ERRORS_PREFIX = "errors/";
+  /**
+   * Suffix of error counters that count checks instead of errors, every CRC check counts as a "try".
+   */
+  private final static String TRIES_SUFFIX = "_tries";
+  /**
+   * Errors per read above which a warning is logged.
+   */
+  private final static double ERRORS_PER_READ_WARNING = 0.01;
+  /**
+   * Host-setting for Owfs
+   */
+  private final String host;
+  /**
+   * Port-setting for Owfs
+   */
+  private final int port;
+  /**
+   * Telemetry of the mainloops, to put the samples side by side with.
+   */
+  private final OwTelemetry telemetry;
+  /**
+   * Counters to sample, relative to "/statistics".
+   */
+  private final List<String> counters;
+  /**
+   * Guards the samples, held only while comparing a new sample with the last one and never while talking to owserver.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+  /**
+   * Counters of last sample, null if nothing has been sampled yet.
+   */
+  private Map<String, Long> lastCounters;
+  /**
+   * Process id of owserver at last sample, null if unknown.
+   */
+  private String lastPid;
+  /**
+   * Time of last sample (System.nanoTime()).
+   */
+  private long lastTime;
+  /**
+   * Number of successful device reads by the mainloops at last sample.
+   */
+  private long lastReads;
+  /**
+   * Number of failed device reads by the mainloops at last sample.
+   */
+  private long lastReadFailures;
+  /**
+   * Number of times each phase had been recorded at last sample.
+   */
+  private final Map<OwTelemetry.Phase, Long> lastPhaseCounts;
+  /**
+   * Total time spent in each phase at last sample (nanoseconds).
+   */
+  private final Map<OwTelemetry.Phase, Long> lastPhaseSums;
+  /**
+   * Number of times owserver has been restarted since the first sample.
+   */
+  private long restarts;
+  /**
+   * Summary of last sample, empty if nothing has been sampled yet.
+   */
+  private JsonObject lastSample;
+
+  /**
+   * Default constructor
+   *
+   * @param host Owserver host
+   * @param port Owserver port
+   * @param telemetry telemetry of the mainloops.
+   * @param counters counters to sample, relative to "/statistics".
+   */
+  OwStatisticsCollector(String host, int port, OwTelemetry telemetry, List<String> counters) {
+    this.host = host;
+    this.port = port;
+    this.telemetry = telemetry;
+    this.counters = new ArrayList<>(counters);
+    this.lastPhaseCounts = new EnumMap<>(OwTelemetry.Phase.class);
+    this.lastPhaseSums = new EnumMap<>(OwTelemetry.Phase.class);
+    this.lastSample = new JsonObject();
+  }
+
+  /**
+   * Sample the counters of owserver and compare them with the last sample.
+   *
+   * @param connection connection to Owserver to use.
+   */
+  void sample(OwServerConnection connection) {
+    List<String> paths = new ArrayList<>();
+    for (String counter : counters) {
+      paths.add("/statistics/" + counter);
+    }
+    paths.add("/system/process/pid");
+
+    Map<String, String> values = connection.readMany(paths);
+    long now = System.nanoTime();
+
+    lock.lock();
+    try {
+      compare(values, now);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Compare read counters with the last sample and make them the last sample, must be called with lock held.
+   *
+   * @param values read counters, by path.
+   * @param now time of sample (System.nanoTime()).
+   */
+  private void compare(Map<String, String> values, long now) {
+    // Owserver pads numbers with spaces.
+    Map<String, Long> sampled = new LinkedHashMap<>();
+    for (String counter : counters) {
+      String value = values.get("/statistics/" + counter);
+
+      if (value != null) {
+        try {
+          sampled.put(counter, Long.parseLong(value.trim()));
+        } catch (NumberFormatException ex) {
+          logger.debug("Skipping counter '{}' with value '{}' from Owserver running at {}:{}.", counter, value, this.host, this.port);
+        }
+      }
+    }
+    String pid = values.get("/system/process/pid") != null ? values.get("/system/process/pid").trim() : null;
+
+    if (sampled.isEmpty()) {
+      logger.debug("Owserver running at {}:{} has none of the statistics counters, nothing to sample.", this.host, this.port);
+      return;
+    }
+
+    JsonObject sample = new JsonObject()
+        .put("time", System.currentTimeMillis())
+        .put("pid", pid)
+        .put("counters", toJson(sampled));
+
+    boolean restarted = lastCounters != null && ((pid != null && lastPid != null && !pid.equals(lastPid)) || isAnyDecreased(sampled));
+    if (restarted) {
+      restarts++;
+      logger.info("Owserver running at {}:{} has been restarted since last sample of its statistics, no rates until next sample.", this.host, this.port);
+    } else if (lastCounters != null) {
+      double seconds = (now - lastTime) / 1000000000.0;
+      JsonObject rates = new JsonObject();
+      long errors = 0;
+      long reads = 0;
+
+      for (Map.Entry<String, Long> counter : sampled.entrySet()) {
+        Long last = lastCounters.get(counter.getKey());
+
+        if (last != null) {
+          long delta = counter.getValue() - last;
+          rates.put(counter.getKey(), seconds > 0 ? delta / seconds : 0.0);
+
+          if (counter.getKey().startsWith(ERRORS_PREFIX) && !counter.getKey().endsWith(TRIES_SUFFIX)) {
+            errors += delta;
+          } else if (counter.getKey().equals("read/calls")) {
+            reads = delta;
+          }
+        }
+      }
+
+      double errorsPerRead = reads > 0 ? errors / (double) reads : 0.0;
+      sample
+          .put("interval", Math.round(seconds * 1000))
+          .put("rates", rates)
+          .put("errors", errors)
+          .put("errorsPerRead", errorsPerRead)
+          .put("mainloops", sampleTelemetry());
+
+      if (errorsPerRead > ERRORS_PER_READ_WARNING) {
+        logger.warn("Owserver running at {}:{} reports {} bus error(s) on {} read(s) in the last {} seconds, check wiring and bus length.", this.host, this.port, errors, reads, Math.round(seconds));
+      }
+    }
+
+    if (lastCounters == null || restarted) {
+      // Nothing to compare with, start over from here.
+      sampleTelemetry();
+    }
+
+    lastCounters = sampled;
+    lastPid = pid;
+    lastTime = now;
+    lastSample = sample.put("restarted", restarted).put("restarts", restarts);
+  }
+
+  /**
+   * Get summary of last sample, with rates per second.
+   *
+   * @return summary, empty if nothing has been sampled yet.
+   */
+  JsonObject toJson() {
+    lock.lock();
+    try {
+      return lastSample.copy();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Check if any counter is lower than at last sample, which only happens when owserver has been restarted.
+   *
+   * @param sampled counters of this sample.
+   * @return true if any counter has decreased.
+   */
+  private boolean isAnyDecreased(Map<String, Long> sampled) {
+    for (Map.Entry<String, Long> counter : sampled.entrySet()) {
+      Long last = lastCounters.get(counter.getKey());
+
+      if (last != null && counter.getValue() < last) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Get what the mainloops have done since last sample, and remember the current state for next sample.
+   *
+   * @return reads and mean time of each phase (milliseconds) since last sample.
+   */
+  private JsonObject sampleTelemetry() {
+    long reads = telemetry.getReads();
+    long readFailures = telemetry.getReadFailures();
+    JsonObject phases = new JsonObject();
+
+    for (OwTelemetry.Phase phase : OwTelemetry.Phase.values()) {
+      long count = telemetry.getCount(phase);
+      long sum = telemetry.getSum(phase);
+      long deltaCount = count - lastPhaseCounts.getOrDefault(phase, 0L);
+      long deltaSum = sum - lastPhaseSums.getOrDefault(phase, 0L);
+
+      phases.put(phase.getName(), new JsonObject()
+          .put("count", deltaCount)
+          .put("mean", deltaCount > 0 ? deltaSum / (double) deltaCount / 1000000.0 : 0.0));
+
+      lastPhaseCounts.put(phase, count);
+      lastPhaseSums.put(phase, sum);
+    }
+
+    JsonObject result = new JsonObject()
+        .put("reads", reads - lastReads)
+        .put("readFailures", readFailures - lastReadFailures)
+        .put("phases", phases);
+
+    lastReads = reads;
+    lastReadFailures = readFailures;
+    return result;
+  }
+
+  /**
+   * Convert counters to JSON.
+   *
+   * @param counters counters with name as key.
+   * @return counters as JSON-object.
+   */
+  private static JsonObject toJson(Map<String, Long> counters) {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, Long> counter : counters.entrySet()) {
+      json.put(counter.getKey(), counter.getValue());
+    }
+    return json;
+  }
+}
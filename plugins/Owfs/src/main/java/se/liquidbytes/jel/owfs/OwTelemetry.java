@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonObject;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Telemetry for one adapter, shared by the mainloops of all its buses. Keeps a histogram of the time spent in each phase of the mainloop, and counters for
+ * reads, writes and failures, so that it's possible to see where the bus time goes without turning on debug logging.
+ *
+ * @author Henrik Östman
+ */
+final class OwTelemetry {
+
+  /**
+   * Phases of the mainloop that are timed.
+   */
+  enum Phase {
+    /**
+     * Executing queued commands, summed over a mainloop run.
+     */
+    COMMANDS("commands"),
+    /**
+     * Starting simultaneous conversions.
+     */
+    SIMULTANEOUS("simultaneous"),
+    /**
+     * Reading fast devices.
+     */
+    FAST_DEVICES("fastDevices"),
+    /**
+     * Reading temperature sensors, after the conversion is done.
+     */
+    TEMPERATURE_DEVICES("temperatureDevices"),
+    /**
+     * Reading A/D converters, after the conversion is done.
+     */
+    VOLTAGE_DEVICES("voltageDevices"),
+    /**
+     * Reading parasitic powered temperature sensors, each doing a conversion of its own.
+     */
+    PARASITIC_DEVICES("parasiticDevices"),
+    /**
+     * Scanning the bus for added or removed devices.
+     */
+    BUS_SCAN("busScan"),
+    /**
+     * A whole run of the mainloop, including waiting for conversions.
+     */
+    CYCLE("cycle");
+
+    /**
+     * Name of phase in JSON.
+     */
+    private final String name;
+
+    /**
+     * Default constructor
+     *
+     * @param name name of phase in JSON.
+     */
+    Phase(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Get name of phase in JSON.
+     *
+     * @return name.
+     */
+    String getName() {
+      return name;
+    }
+  }
+
+  /**
+   * Time spent in each phase.
+   */
+  private final Map<Phase, OwLatencyHistogram> phases;
+  /**
+   * Number of successful device reads.
+   */
+  private final AtomicLong reads;
+  /**
+   * Number of device reads that failed.
+   */
+  private final AtomicLong readFailures;
+  /**
+   * Number of successful writes, both queued commands and conversion triggers.
+   */
+  private final AtomicLong writes;
+  /**
+   * Number of writes that failed.
+   */
+  private final AtomicLong writeFailures;
+  /**
+   * Number of times a device has been put in quarantine for failing to answer reads.
+   */
+  private final AtomicLong quarantines;
+  /**
+   * When collection started (milliseconds since epoch).
+   */
+  private final long since;
+
+  /**
+   * Default constructor
+   */
+  OwTelemetry() {
+    this.phases = new EnumMap<>(Phase.class);
+    this.reads = new AtomicLong();
+    this.readFailures = new AtomicLong();
+    this.writes = new AtomicLong();
+    this.writeFailures = new AtomicLong();
+    this.quarantines = new AtomicLong();
+    this.since = System.currentTimeMillis();
+
+    for (Phase phase : Phase.values()) {
+      phases.put(phase, new OwLatencyHistogram());
+    }
+  }
+
+  /**
+   * Record time spent in a phase.
+   *
+   * @param phase phase of mainloop.
+   * @param nanos duration in nanoseconds.
+   */
+  void record(Phase phase, long nanos) {
+    phases.get(phase).record(nanos);
+  }
+
+  /**
+   * Count device reads.
+   *
+   * @param succeeded number of successful reads.
+   * @param failed number of failed reads.
+   */
+  void countReads(int succeeded, int failed) {
+    reads.addAndGet(succeeded);
+    readFailures.addAndGet(failed);
+  }
+
+  /**
+   * Count writes.
+   *
+   * @param succeeded number of successful writes.
+   * @param failed number of failed writes.
+   */
+  void countWrites(int succeeded, int failed) {
+    writes.addAndGet(succeeded);
+    writeFailures.addAndGet(failed);
+  }
+
+  /**
+   * Count a device that has been put in quarantine.
+   */
+  void countQuarantine() {
+    quarantines.incrementAndGet();
+  }
+
+  /**
+   * Get number of times a phase has been recorded.
+   *
+   * @param phase phase of mainloop.
+   * @return count.
+   */
+  long getCount(Phase phase) {
+    return phases.get(phase).getCount();
+  }
+
+  /**
+   * Get total time spent in a phase.
+   *
+   * @param phase phase of mainloop.
+   * @return time in nanoseconds.
+   */
+  long getSum(Phase phase) {
+    return phases.get(phase).getSum();
+  }
+
+  /**
+   * Get number of successful device reads.
+   *
+   * @return count.
+   */
+  long getReads() {
+    return reads.get();
+  }
+
+  /**
+   * Get number of device reads that failed.
+   *
+   * @return count.
+   */
+  long getReadFailures() {
+    return readFailures.get();
+  }
+
+  /**
+   * Get summary of all phases and counters, durations in milliseconds.
+   *
+   * @param reconnects number of times connections to Owserver have been reestablished.
+   * @return summary.
+   */
+  JsonObject toJson(long reconnects) {
+    JsonObject phaseSummary = new JsonObject();
+    for (Map.Entry<Phase, OwLatencyHistogram> phase : phases.entrySet()) {
+      phaseSummary.put(phase.getKey().name, phase.getValue().toJson());
+    }
+
+    return new JsonObject()
+        .put("since", since)
+        .put("phases", phaseSummary)
+        .put("counters", new JsonObject()
+            .put("reads", reads.get())
+            .put("readFailures", readFailures.get())
+            .put("writes", writes.get())
+            .put("writeFailures", writeFailures.get())
+            .put("quarantines", quarantines.get())
+            .put("reconnects", reconnects)
+        );
+  }
+}
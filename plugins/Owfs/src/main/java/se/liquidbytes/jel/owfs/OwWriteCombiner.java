@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonObject;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Combines queued writes to several children of the same parent into one write of the parent, e.g. six writes to "PIO.n" of a DS2408 become one write to
+ * "PIO.ALL". A scene that switches many relays is then applied in one bus transaction, and all relays switch at the same time.
+ *
+ * The combined value is built from the last known state of the outputs of the parent, with the values of the children written on top. The state is known
+ * after the outputs have been written by the adapter, if it's not known the outputs are read before they are combined. The state is forgotten when a write
+ * fails, when the device is put in quarantine or setup again, since it may have been reset by a power loss, and when the device is removed. The adapter is
+ * assumed to be the only one writing the outputs.
+ *
+ * @author Henrik Östman
+ */
+final class OwWriteCombiner {
+
+  /**
+   * Logghandler instance
+   */
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /**
+   * Number of writes saved by combining writes to children.
+   */
+  private final AtomicLong combinedWrites;
+  /**
+   * Number of times the outputs of a parent had to be read before writes could be combined.
+   */
+  private final AtomicLong stateReads;
+
+  /**
+   * Default constructor
+   */
+  OwWriteCombiner() {
+    this.combinedWrites = new AtomicLong();
+    this.stateReads = new AtomicLong();
+  }
+
+  /**
+   * Combine commands drained from the command queue of a bus. Writes to a parent with less than two of its children written are left as they are, so are
+   * writes that can't be combined because the state of the outputs could not be read.
+   *
+   * @param bus bus that commands are written to.
+   * @param connection connection to Owserver to use, if outputs of a parent have to be read.
+   * @param commands commands in the order they should be executed.
+   * @return values to write by path, a combined write takes the place of the first command it replaces.
+   */
+  Map<String, String> combine(OwBus bus, OwServerConnection connection, List<OwCommandQueue.Command> commands) {
+    Map<OwDevice, Integer> childWrites = new HashMap<>();
+
+    for (OwCommandQueue.Command command : commands) {
+      OwDevice target = bus.getDeviceByWritePath(command.getPath());
+
+      if (target != null && target.isChild() && target.getParent().getWritePath() != null) {
+        childWrites.merge(target.getParent(), 1, Integer::sum);
+      }
+    }
+
+    Map<String, String> values = new LinkedHashMap<>();
+    Set<OwDevice> combinedParents = new HashSet<>();
+    Set<OwDevice> uncombinableParents = new HashSet<>();
+
+    for (OwCommandQueue.Command command : commands) {
+      OwDevice target = bus.getDeviceByWritePath(command.getPath());
+      OwDevice parent = target != null && target.isChild() ? target.getParent() : target;
+
+      if (parent == null || childWrites.getOrDefault(parent, 0) < 2 || uncombinableParents.contains(parent)) {
+        values.put(command.getPath(), command.getValue());
+        continue;
+      }
+
+      if (combinedParents.contains(parent)) {
+        // Already part of a combined write.
+        continue;
+      }
+
+      String[] outputs = combineOutputs(bus, connection, parent, commands);
+      if (outputs == null) {
+        uncombinableParents.add(parent);
+        values.put(command.getPath(), command.getValue());
+        continue;
+      }
+
+      combinedParents.add(parent);
+      combinedWrites.addAndGet(childWrites.get(parent) - 1);
+      values.put(parent.getWritePath(), String.join(",", outputs));
+      logger.debug("Combined {} writes to children of device '{}' into one write.", childWrites.get(parent), parent.getHwId());
+    }
+
+    return values;
+  }
+
+  /**
+   * Remember the state of the outputs after a batch of writes.
+   *
+   * @param bus bus that values were written to.
+   * @param values written values by path.
+   * @param failedPaths paths that failed to be written, the state of their outputs is no longer known.
+   */
+  void recordWritten(OwBus bus, Map<String, String> values, Collection<String> failedPaths) {
+    for (Map.Entry<String, String> value : values.entrySet()) {
+      OwDevice target = bus.getDeviceByWritePath(value.getKey());
+      OwDevice parent = target != null && target.isChild() ? target.getParent() : target;
+
+      if (parent == null || parent.getChildCount() == 0) {
+        continue;
+      }
+
+      if (failedPaths.contains(value.getKey())) {
+        bus.setOutputState(parent.getHwId(), null);
+      } else if (!target.isChild()) {
+        bus.setOutputState(parent.getHwId(), parseOutputs(value.getValue(), parent.getChildCount()));
+      } else if (bus.getOutputState(parent.getHwId()) != null) {
+        String[] outputs = bus.getOutputState(parent.getHwId()).clone();
+        outputs[target.getChildSlot().getIndex()] = value.getValue().trim();
+        bus.setOutputState(parent.getHwId(), outputs);
+      }
+    }
+  }
+
+  /**
+   * Get counters.
+   *
+   * @return counters.
+   */
+  JsonObject toJson() {
+    return new JsonObject()
+        .put("combinedWrites", combinedWrites.get())
+        .put("stateReads", stateReads.get());
+  }
+
+  /**
+   * Build the combined state of the outputs of a parent. Writes to the parent and to its children are applied in the order they were queued, so a later write
+   * to the parent overrides earlier writes to its children and the other way around. Unless there is a write to the parent itself, the writes are applied on
+   * the last known state of the outputs, which is read from the device if it's not known.
+   *
+   * @param bus bus that parent is connected to.
+   * @param connection connection to Owserver to use.
+   * @param parent parent device.
+   * @param commands commands to combine.
+   * @return one value per child, or null if the state of the outputs could not be found out.
+   */
+  private String[] combineOutputs(OwBus bus, OwServerConnection connection, OwDevice parent, List<OwCommandQueue.Command> commands) {
+    List<OwCommandQueue.Command> writes = new ArrayList<>();
+
+    for (OwCommandQueue.Command command : commands) {
+      OwDevice target = bus.getDeviceByWritePath(command.getPath());
+
+      if (target == parent || (target != null && target.getParent() == parent)) {
+        writes.add(command);
+      }
+    }
+
+    // Commands are drained by priority, but the outputs should end up as if they were written in the order they were queued.
+    writes.sort(Comparator.comparingLong(OwCommandQueue.Command::getSequence));
+
+    // A write to the parent replaces everything queued before it, so start from the last one.
+    int first = 0;
+    for (int i = 0; i < writes.size(); i++) {
+      if (writes.get(i).getPath().equals(parent.getWritePath())) {
+        first = i;
+      }
+    }
+
+    String[] outputs;
+
+    if (writes.get(first).getPath().equals(parent.getWritePath())) {
+      outputs = parseOutputs(writes.get(first).getValue(), parent.getChildCount());
+      first++;
+    } else if (bus.getOutputState(parent.getHwId()) != null) {
+      outputs = bus.getOutputState(parent.getHwId()).clone();
+    } else {
+      try {
+        stateReads.incrementAndGet();
+        outputs = parseOutputs(connection.read(parent.getWritePath()), parent.getChildCount());
+      } catch (OwServerConnectionException ex) {
+        logger.debug("Failed to read outputs of device '{}', writing its children one by one.", parent.getHwId(), ex);
+        return null;
+      }
+    }
+
+    if (outputs == null) {
+      return null;
+    }
+
+    for (OwCommandQueue.Command command : writes.subList(first, writes.size())) {
+      outputs[bus.getDeviceByWritePath(command.getPath()).getChildSlot().getIndex()] = command.getValue().trim();
+    }
+
+    return outputs;
+  }
+
+  /**
+   * Split the value of a composite write path into one value per child.
+   *
+   * @param value value, e.g. "1,0,0,1,0,0,0,0".
+   * @param childCount number of children of parent.
+   * @return one value per child, or null if value doesn't have one value per child.
+   */
+  private static String[] parseOutputs(String value, int childCount) {
+    if (value == null) {
+      return null;
+    }
+
+    String[] outputs = value.split(",");
+    if (outputs.length != childCount) {
+      return null;
+    }
+
+    for (int i = 0; i < outputs.length; i++) {
+      outputs[i] = outputs[i].trim();
+    }
+
+    return outputs;
+  }
+}
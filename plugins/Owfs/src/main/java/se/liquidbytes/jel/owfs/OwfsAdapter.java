@@ -21,28 +21,27 @@ import io.vertx.core.eventbus.Message;
 import io.vertx.core.eventbus.MessageConsumer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import static java.util.Comparator.comparing;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import org.owfs.jowfsclient.OwfsException;
-import org.owfs.jowfsclient.alarm.AlarmingDevicesScanner;
-import org.owfs.jowfsclient.device.SwitchAlarmingDeviceEvent;
-import org.owfs.jowfsclient.device.SwitchAlarmingDeviceListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.liquidbytes.jel.system.adapter.AbstractAdapter;
@@ -62,17 +61,70 @@ public class OwfsAdapter extends AbstractAdapter {
   private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
   /**
-   * Delay between polling 1-wire bus for available devices (milliseconds).
+   * Delay between cheap presence probes of a 1-wire bus, these use the cached directory listing of Owserver and don't touch the bus (milliseconds).
    */
-  private final static int POLL_PRESENCE_DELAY = 60000;
+  private final static int POLL_PRESENCE_DELAY = 10000;
+  /**
+   * Shortest delay between two full scans of a 1-wire bus for available devices, used after devices have been added or removed (milliseconds).
+   */
+  private final static int MIN_BUS_SCAN_DELAY = 15000;
+  /**
+   * Longest delay between two full scans of a 1-wire bus for available devices, reached when the bus has been stable for a while (milliseconds).
+   */
+  private final static int MAX_BUS_SCAN_DELAY = 600000;
+  /**
+   * Pattern of a device address in a directory listing, family code and id in the F.I format, e.g. "10.67C6697351FF".
+   */
+  private final static Pattern DEVICE_ADDRESS = Pattern.compile("^([0-9A-F]{2})\\.([0-9A-F]{12})$");
+  /**
+   * Time to wait for a simultaneous conversion to finish, used when the conversion time of a device is not known (milliseconds).
+   */
+  private final static int CONVERSION_DELAY = 800;
+  /**
+   * Extra time to wait for a simultaneous conversion to finish, on top of the longest conversion time of the devices that are read (milliseconds).
+   */
+  private final static int CONVERSION_MARGIN = 50;
+  /**
+   * Maximum number of parasitic powered sensors read in one run of the mainloop. Each of them holds the bus for a whole conversion, so reading them a few at
+   * a time keeps the cycle of the powered devices short.
+   */
+  private final static int PARASITIC_READS_PER_CYCLE = 1;
+  /**
+   * Delay between each scan of a 1-wire bus for alarming devices (milliseconds).
+   */
+  private final static int ALARM_SCAN_DELAY = 25;
+  /**
+   * Default maximum number of commands waiting to be executed on a bus.
+   */
+  private final static int DEFAULT_COMMAND_QUEUE_SIZE = 100;
+  /**
+   * Maximum number of devices read in one batch, queued commands are executed between each batch.
+   */
+  private final static int READ_BATCH_SIZE = 16;
   /**
    * Character that separates a parent hwId from a child hwId. (Must be URL compatible)
    */
   private final static String CHILDSEPARATOR = "_";
   /**
-   * Size of threadpools, should always be 1.
+   * Family code of the DS2409 MicroLAN coupler, a hub that splits a bus into a "main" and a "aux" branch.
+   */
+  private final static String HUB_FAMILY = "1F";
+  /**
+   * Delay between each publish of the adapter telemetry on the eventbus (milliseconds).
+   */
+  private final static int TELEMETRY_PUBLISH_DELAY = 60000;
+  /**
+   * Default delay between each sample of the statistics of Owserver (milliseconds).
+   */
+  private final static long STATISTICS_SAMPLE_DELAY = 60000;
+  /**
+   * Number of threads in the worker pool, besides the two per bus used by mainloops and alarm scanners, that handle requests from the eventbus.
    */
-  private final static int THREAD_POOL_SIZE = 1;
+  private final static int REQUEST_THREADS = 2;
+  /**
+   * Name of file in the storage directory of the adapter where the found devices are saved.
+   */
+  private final static String INVENTORY_FILE = "inventory.json";
   /**
    * Host-setting for Owfs
    */
@@ -81,116 +133,344 @@ public class OwfsAdapter extends AbstractAdapter {
    * Port-setting for Owfs
    */
   private int port;
+  /**
+   * Adapter specific settings, from adapters.json.
+   */
+  private JsonObject settings;
 
   /**
-   * Queue of commands to execute on Owserver.
+   * Pool of connections used for communicating with Owserver.
    */
-  private BlockingQueue<JsonObject> commandQueue;
+  private OwServerConnectionPool connectionPool;
   /**
-   * Connection used for communicating with Owserver.
+   * All 1-wire buses and hub branches found on Owserver. Path to bus as key.
    */
-  private OwServerConnection owserverConnection;
+  private Map<String, OwBus> buses;
   /**
    * Device Id to device lookup table.
    */
-  private Map<String, JsonObject> deviceLookup;
+  private Map<String, OwDevice> deviceLookup;
+  /**
+   * Time spent in each phase of the mainloops, and counters for reads and writes.
+   */
+  private OwTelemetry telemetry;
+  /**
+   * Adapter side cache of properties that don't have to be read from the devices every time.
+   */
+  private OwReadCache readCache;
   /**
-   * Device read values.
+   * Combines queued writes to children of the same parent, shared by all buses.
    */
-  private Map<String, JsonObject> deviceReadings;
+  private OwWriteCombiner writeCombiner;
   /**
-   * Timestamp when last scan of 1-wire bus for devices was run.
+   * Samples the bus statistics of Owserver, null if turned off.
    */
-  private long lastBusScanRun;
+  private OwStatisticsCollector statisticsCollector;
   /**
-   * Thread pool (with one thread) used for running the main loop that detect and polls devices.
+   * Id of timer that periodically publishes the telemetry.
    */
-  private ScheduledThreadPoolExecutor mainloopExecutor;
+  private long telemetryTimerId;
   /**
-   * Counter to sum up the time we spent waiting on executing queued commmands to Owserver.
+   * Saved devices from last run, null if the adapter has no storage or warm start has been turned off.
    */
-  private Duration commandsWrittenDuration;
+  private OwInventory inventory;
 
   /**
-   * Start method for adapter, will be called upon when adapter is expected to start up
+   * Start method for adapter, will be called upon when adapter is expected to start up. All blocking work against Owserver is done on the adapters own worker
+   * pool, the eventloop only takes care of registering the adapter on the eventbus.
+   *
+   * @param startFuture future to complete when adapter has started.
    */
   @Override
-  public void start() {
+  public void start(io.vertx.core.Future<Void> startFuture) {
     deviceLookup = new ConcurrentHashMap<>();
-    deviceReadings = new ConcurrentHashMap<>();
+    buses = new LinkedHashMap<>();
+    telemetry = new OwTelemetry();
+    readCache = new OwReadCache();
+    writeCombiner = new OwWriteCombiner();
     this.setId(context.config().getString("adapterId"));
 
-    commandQueue = new LinkedBlockingQueue<>();
+    this.<Void>executeBlocking(future -> {
+      setupOwfsConnections();
+      detectBuses();
 
-    mainloopExecutor = new ScheduledThreadPoolExecutor(THREAD_POOL_SIZE);
-    mainloopExecutor.setThreadFactory((Runnable r) -> {
-      Thread thread = Executors.defaultThreadFactory().newThread(r);
-      thread.setName("owfsAdapter-mainloop-" + this.getId());
-      return thread;
-    });
-    mainloopExecutor.setMaximumPoolSize(THREAD_POOL_SIZE);
+      // One reader thread and one alarm scanner thread per bus, so that a slow conversion on one bus never blocks reading another bus or handling alarms.
+      // The remaining threads handle requests from the eventbus.
+      ensureWorkerPoolSize(buses.size() * 2 + REQUEST_THREADS);
 
-    setupOwfsConnections();
+      logger.info("Owserver version \"{}\" running at {}:{}.", connectionPool.execute(c -> c.read("/system/configuration/version")), this.host, this.port);
 
-    // Register this adapter to the eventbus so we could take requests and send notifications.
-    // We register this adapter serveral times at different addresses on the eventbus, this is because there could be several instances of the adapter running on different IP-addresses and ports,
-    // and we may want to send a command to a specific instance, to all instances of an adapter-type, and to ALL adapters.
-    EventBus eb = vertx.eventBus();
-    MessageConsumer<String> consumer;
-    consumer = eb.consumer(String.format("%s.%s", AdapterEvents.EVENTBUS_ADAPTERS, "_all"));
-    consumer.handler(message -> {
-      handleRequest(message);
-    });
-    consumer = eb.consumer(String.format("%s.%s", AdapterEvents.EVENTBUS_ADAPTERS, "owfs"));
-    consumer.handler(message -> {
-      handleRequest(message);
-    });
-    consumer = eb.consumer(String.format("%s.%s@%s:%d", AdapterEvents.EVENTBUS_ADAPTERS, "owfs", this.host, this.port));
-    consumer.handler(message -> {
-      handleRequest(message);
+      // Publish the devices we had last time at once and let the mainloops validate them against the buses, only without saved devices we have to scan
+      // every bus before we know what we've got.
+      setupInventory();
+      boolean restored = restoreInventory();
+      if (!restored) {
+        scanAllBuses();
+      }
+      startMainloops(!restored);
+      startStatisticsCollector();
+      future.complete();
+    }, res -> {
+      if (res.failed()) {
+        logger.error("Failed to start Owserver-adapter, connected to owserver running at {}:{}.", this.host, this.port, res.cause());
+        // Vert.x does not call stop() on a verticle that failed to start, so release connections and threads here.
+        stopInBackground(stopped -> startFuture.fail(new PluginException("Failed to start Owserver-adapter.", res.cause())));
+        return;
+      }
+
+      connectionPool.getCircuitBreaker().setStateListener(state -> {
+        if (state != OwServerCircuitBreaker.State.OPEN) {
+          // Don't let the readers sleep when Owserver is back.
+          for (OwBus bus : buses.values()) {
+            bus.wakeUp();
+          }
+        }
+        publishConnectionState(state);
+      });
+
+      // Register this adapter to the eventbus so we could take requests and send notifications.
+      // We register this adapter serveral times at different addresses on the eventbus, this is because there could be several instances of the adapter running on different IP-addresses and ports,
+      // and we may want to send a command to a specific instance, to all instances of an adapter-type, and to ALL adapters.
+      // Requests may block while talking to Owserver, so they are handled on the worker pool.
+      EventBus eb = vertx.eventBus();
+      MessageConsumer<String> consumer;
+      consumer = eb.consumer(String.format("%s.%s", AdapterEvents.EVENTBUS_ADAPTERS, "_all"));
+      consumer.handler(message -> {
+        executeRequest(message);
+      });
+      consumer = eb.consumer(String.format("%s.%s", AdapterEvents.EVENTBUS_ADAPTERS, "owfs"));
+      consumer.handler(message -> {
+        executeRequest(message);
+      });
+      consumer = eb.consumer(String.format("%s.%s@%s:%d", AdapterEvents.EVENTBUS_ADAPTERS, "owfs", this.host, this.port));
+      consumer.handler(message -> {
+        executeRequest(message);
+      });
+
+      telemetryTimerId = vertx.setPeriodic(TELEMETRY_PUBLISH_DELAY, id -> {
+        publishTelemetry();
+      });
+
+      consumer.completionHandler(result -> {
+        if (result.succeeded()) {
+          logger.info("Owfs-adapter initialized to owserver running at {}:{}.", this.host, this.port);
+          startFuture.complete();
+        } else {
+          logger.error("Failed to start Owserver-adapter, connected to owserver running at {}:{}.", this.host, this.port, result.cause());
+          startFuture.fail(new PluginException("Failed to start Owserver-adapter.", result.cause()));
+        }
+      });
     });
+  }
+
+  /**
+   * Get initial list af devices, all buses are scanned in parallel.
+   */
+  private void scanAllBuses() {
+    List<Future<?>> scans = new ArrayList<>();
+    for (OwBus bus : buses.values()) {
+      scans.add(getWorkerExecutor().submit(() -> {
+        connectionPool.execute(c -> {
+          scanAvailableDevices(bus, c);
+          return null;
+        });
+      }));
+    }
+    for (Future<?> scan : scans) {
+      try {
+        scan.get();
+      } catch (InterruptedException | ExecutionException ex) {
+        logger.error("Initial scan for devices failed on Owserver at {}:{} with adapter id \"{}\".", this.host, this.port, this.getId(), ex);
+      }
+    }
+  }
+
+  /**
+   * Start the mainloop and alarm scanner of every bus.
+   *
+   * @param scanned whether all buses have just been scanned, if not every mainloop scans its bus at its first run.
+   */
+  private void startMainloops(boolean scanned) {
+    for (OwBus bus : buses.values()) {
+      bus.setLastBusScanRun(scanned ? System.currentTimeMillis() : 0);
+      bus.setLastPresenceProbe(System.currentTimeMillis());
+      getWorkerExecutor().submit(mainloopTask(bus));
+      getWorkerExecutor().scheduleWithFixedDelay(alarmScanTask(bus), 1000, ALARM_SCAN_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
 
-    logger.info("Owserver version \"{}\" running at {}:{}.", owserverConnection.read("/system/configuration/version"), this.host, this.port);
+  /**
+   * Start sampling the bus statistics of Owserver, at a low rate since it competes with the mainloops for Owserver. The delay is set with the setting
+   * "statisticsSampleDelay" (milliseconds, 0 to turn off), and the counters to sample with "statisticsCounters".
+   */
+  private void startStatisticsCollector() {
+    long delay = settings.getLong("statisticsSampleDelay", STATISTICS_SAMPLE_DELAY);
+    if (delay <= 0) {
+      return;
+    }
+
+    List<String> counters = new ArrayList<>();
+    JsonArray configured = settings.getJsonArray("statisticsCounters");
+    if (configured != null) {
+      for (int i = 0; i < configured.size(); i++) {
+        counters.add(configured.getString(i));
+      }
+    } else {
+      counters.addAll(OwStatisticsCollector.DEFAULT_COUNTERS);
+    }
+
+    statisticsCollector = new OwStatisticsCollector(this.host, this.port, telemetry, counters);
+    // First sample at once, so that there is something to compare with at the next.
+    getWorkerExecutor().scheduleWithFixedDelay(statisticsTask(), 0, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Setup the file where found devices are saved between runs. Warm start could be turned off with the setting "warmStart": false, then every bus is scanned
+   * at start.
+   */
+  private void setupInventory() {
+    Path storagePath = getStoragePath();
+
+    if (storagePath != null && settings.getBoolean("warmStart", true)) {
+      inventory = new OwInventory(storagePath.resolve(INVENTORY_FILE));
+    }
+  }
+
+  /**
+   * Restore the devices saved at last run, add them to their buses and publish them together with their last readings. Devices are queued to be setup by the
+   * mainloop of their bus, and the first run of the mainloop scans the bus to find out which of them are still there.
+   *
+   * @return true if any device was restored.
+   */
+  private boolean restoreInventory() {
+    if (inventory == null) {
+      return false;
+    }
+
+    JsonObject savedBuses = inventory.load(this.host, this.port);
+    int restored = 0;
+
+    for (String busPath : savedBuses.fieldNames()) {
+      OwBus bus = buses.get(busPath);
+
+      if (bus == null) {
+        logger.info("Bus '{}' in device inventory is no longer found on Owserver at {}:{} with adapter id \"{}\", skipping its devices.", busPath, this.host, this.port, this.getId());
+        continue;
+      }
+
+      JsonArray savedDevices = savedBuses.getJsonArray(busPath);
+      for (int i = 0; i < savedDevices.size(); i++) {
+        try {
+          if (restoreDevice(bus, savedDevices.getJsonObject(i))) {
+            restored++;
+          }
+        } catch (ClassCastException | IllegalArgumentException ex) {
+          logger.warn("Skipping invalid device in inventory '{}' for Owserver at {}:{} with adapter id \"{}\".", inventory.getFile(), this.host, this.port, this.getId(), ex);
+        }
+      }
+    }
+
+    if (restored > 0) {
+      logger.info("Restored {} devices from inventory '{}' for Owserver at {}:{} with adapter id \"{}\", validating them against the buses in the background.", restored, inventory.getFile(), this.host, this.port, this.getId());
+    }
+
+    return restored > 0;
+  }
+
+  /**
+   * Restore a saved device. Devices whose type is no longer supported, or whose type now has another layout of children, are skipped and found again at the
+   * next scan.
+   *
+   * @param bus bus that the device was found on.
+   * @param saved saved device.
+   * @return true if device was restored.
+   */
+  private boolean restoreDevice(OwBus bus, JsonObject saved) {
+    String hwId = saved.getString("hwId");
+    DeviceType type = DeviceDatabase.getDeviceType(saved.getString("type"));
+
+    if (hwId == null || type == null || deviceLookup.containsKey(hwId)) {
+      logger.debug("Skipping device '{}' of type '{}' in inventory for Owserver at {}:{} with adapter id \"{}\".", hwId, saved.getString("type"), this.host, this.port, this.getId());
+      return false;
+    }
+
+    OwDevice device = new OwDevice(hwId, type, saved.getString("family"), saved.getString("path"), bus.getPath(), getSampleDelay(hwId, type), getResolution(hwId, type), saved.getBoolean("parasitic", false), getReportingPolicy(hwId, type), CHILDSEPARATOR);
+
+    JsonArray savedChildren = saved.getJsonArray("children", new JsonArray());
+    if (savedChildren.size() != device.getChildCount()) {
+      logger.debug("Skipping device '{}' in inventory for Owserver at {}:{} with adapter id \"{}\", its devicetype has changed.", hwId, this.host, this.port, this.getId());
+      return false;
+    }
+    for (int i = 0; i < device.getChildCount(); i++) {
+      if (!device.getChild(i).getHwId().equals(savedChildren.getString(i))) {
+        logger.debug("Skipping device '{}' in inventory for Owserver at {}:{} with adapter id \"{}\", its devicetype has changed.", hwId, this.host, this.port, this.getId());
+        return false;
+      }
+    }
 
-    // Get initial list af devices.
-    scanAvailableDevices();
+    deviceLookup.put(hwId, device);
+    for (int i = 0; i < device.getChildCount(); i++) {
+      deviceLookup.put(device.getChild(i).getHwId(), device.getChild(i));
+    }
+    bus.addDevice(device);
+    bus.addPendingSetupDevice(device);
 
-    lastBusScanRun = System.currentTimeMillis();
-    mainloopExecutor.scheduleAtFixedRate(mainloopTask(), 1000, 50, TimeUnit.MILLISECONDS);
+    publishDeviceAdded(device);
+    if (saved.getString("value") != null) {
+      long time = TimeUnit.MILLISECONDS.toNanos(saved.getLong("time", 0L));
 
-    consumer.completionHandler(res -> {
-      if (res.succeeded()) {
-        logger.info("Owfs-adapter initialized to owserver running at {}:{}.", this.host, this.port);
+      if (device.getAggregator() != null) {
+        // An old reading is no sample of the current window, publish it as it is so that there is a value until the first window has run out.
+        device.getState().update(saved.getString("value"), time);
+        publishLastReading(device);
       } else {
-        logger.error("Failed to start Owserver-adapter, connected to owserver running at {}:{}.", this.host, this.port, res.cause());
-        throw new PluginException("Failed to start Owserver-adapter.", res.cause());
+        recordReading(device, saved.getString("value"), time);
       }
-    });
+    }
+
+    return true;
+  }
+
+  /**
+   * Save all found devices and their last readings, if adapter has somewhere to save them.
+   */
+  private void saveInventory() {
+    if (inventory != null && buses != null) {
+      inventory.save(this.host, this.port, buses.values());
+    }
   }
 
   /**
-   * Stop method for adapter, will be called upon when adapter should shutdown.
+   * Stop method for adapter, will be called upon when adapter should shutdown. Called on a thread of its own and not on the eventloop, so it may wait for the
+   * mainloops to finish and block on closing connections and saving the inventory.
    */
   @Override
   public void stop() {
 
     logger.info("Owfs-adapter for owserver running at {}:{} is shutting down.", this.host, this.port);
 
-    mainloopExecutor.shutdown();
+    vertx.cancelTimer(telemetryTimerId);
 
-    try {
-      mainloopExecutor.awaitTermination(1, TimeUnit.SECONDS);
-    } catch (InterruptedException e) {
-      // Do nothing.
-    } finally {
-      mainloopExecutor.shutdownNow();
-      logger.debug("mainloopExecutor-threadpool for Owfs-adapter for owserver running at {}:{} is now shutdown.", this.host, this.port);
-      mainloopExecutor = null;
+    if (this.connectionPool != null) {
+      this.connectionPool.getCircuitBreaker().setStateListener(null);
+    }
+
+    // Let the mainloops finish what they are doing before we close the connections they use.
+    shutdownWorkerExecutor(1, TimeUnit.SECONDS);
+
+    // Save the last readings for next start.
+    if (deviceLookup != null && !deviceLookup.isEmpty()) {
+      saveInventory();
+    }
+
+    if (this.connectionPool != null) {
+      this.connectionPool.close();
+      this.connectionPool = null;
     }
 
-    if (this.owserverConnection != null) {
-      this.owserverConnection.close();
-      this.owserverConnection = null;
+    if (buses != null) {
+      buses.clear();
+      buses = null;
     }
 
     if (deviceLookup != null) {
@@ -198,10 +478,6 @@ public class OwfsAdapter extends AbstractAdapter {
       deviceLookup = null;
     }
 
-    if (deviceReadings != null) {
-      deviceReadings.clear();
-      deviceReadings = null;
-    }
   }
 
   /**
@@ -224,6 +500,23 @@ public class OwfsAdapter extends AbstractAdapter {
     return true;
   }
 
+  /**
+   * Handle a request from the eventbus on the worker pool, so that requests waiting for Owserver never block the eventloop.
+   *
+   * @param message eventbus message.
+   */
+  private void executeRequest(Message message) {
+    this.<Void>executeBlocking(future -> {
+      handleRequest(message);
+      future.complete();
+    }, res -> {
+      if (res.failed()) {
+        logger.error("Unexpected failure while executing action \"{}\" on Owserver with adapter id \"{}\" running at {}:{}.", message.headers().get("action"), this.getId(), this.host, this.port, res.cause());
+        message.fail(500, String.valueOf(res.cause().getMessage()));
+      }
+    });
+  }
+
   /**
    * Main method for parsing the different requests that are sent to this adapter.
    *
@@ -247,6 +540,9 @@ public class OwfsAdapter extends AbstractAdapter {
         case "updateDeviceValue":
           this.setDeviceValue(message);
           break;
+        case "retrieveTelemetry":
+          this.getTelemetry(message);
+          break;
         default:
           logger.info("Received a request for a non-implemented action '{}'. Ignoring action.", action);
       }
@@ -255,6 +551,9 @@ public class OwfsAdapter extends AbstractAdapter {
     } catch (DeviceMissingException ex) {
       logger.info("Trying to perform an action on a non existing device ({}) on Owserver with adapter id \"{}\" running at {}:{}.", ex.getHardwareId(), this.getId(), this.host, this.port);
       message.fail(404, ex.getMessage());
+    } catch (OwServerUnavailableException ex) {
+      logger.info("Could not execute action \"{}\", Owserver with adapter id \"{}\" running at {}:{} is unavailable.", action, this.getId(), this.host, this.port);
+      message.fail(503, ex.getMessage());
     } catch (OwServerConnectionException ex) {
       logger.error("Failed to execute action \"{}\" on Owserver with adapter id \"{}\" running at {}:{}.", action, this.getId(), this.host, this.port, ex);
       message.fail(500, ex.getMessage());
@@ -285,8 +584,14 @@ public class OwfsAdapter extends AbstractAdapter {
     try {
       this.host = context.config().getString("address", "127.0.0.1");
       this.port = context.config().getInteger("port", 4304);
-      this.owserverConnection = new OwServerConnection(this.host, this.port);
-      this.owserverConnection.connect();
+      this.settings = context.config().getJsonObject("settings", new JsonObject());
+
+      // Use our own non-blocking implementation of the owserver protocol, which pipelines batched reads and writes, unless configured to use jowfsclient.
+      if ("jowfsclient".equals(settings.getString("protocol", "native"))) {
+        this.connectionPool = new OwServerConnectionPool(this.host, this.port);
+      } else {
+        this.connectionPool = new OwServerConnectionPool(vertx, this.host, this.port, settings.getLong("requestTimeout", 5000L));
+      }
     } catch (Exception ex) {
       logger.error("Error while trying to setup Owserver-connection to {}:{} for adapter with id \"{}\".", this.host, this.port, this.getId(), ex);
       throw ex;
@@ -294,506 +599,1295 @@ public class OwfsAdapter extends AbstractAdapter {
   }
 
   /**
-   * Scan for available devices on 1-wire bus. And updates our internal list of available devices. Note this is a blocking call!
+   * Detect all bus masters ("/bus.0", "/bus.1"...) and hub branches on Owserver, each of them will get its own reader. Grows the connection pool so that
+   * every reader has a connection of its own.
+   */
+  private void detectBuses() {
+    int commandQueueSize = settings.getInteger("commandQueueSize", DEFAULT_COMMAND_QUEUE_SIZE);
+
+    connectionPool.execute(connection -> {
+      List<String> masters = new ArrayList<>();
+
+      try {
+        for (int i = 0; connection.exists(String.format("/bus.%d", i)); i++) {
+          masters.add(String.format("/bus.%d", i));
+        }
+      } catch (OwServerConnectionException ex) {
+        // Older versions of Owserver don't report their buses, use what we got so far.
+        logger.debug("Stopped looking for more buses on Owserver at {}:{} with adapter id \"{}\".", this.host, this.port, this.getId(), ex);
+      }
+
+      if (masters.isEmpty()) {
+        // Use the root of Owserver as the only bus.
+        masters.add("");
+      }
+
+      for (String master : masters) {
+        buses.put(master, new OwBus(master, commandQueueSize, MIN_BUS_SCAN_DELAY));
+
+        // A DS2409 hub splits the bus into branches, devices on these branches are only visible within the branch directories.
+        for (String owDevice : connection.listDirectory(master, true)) {
+          if (owDevice.substring(owDevice.lastIndexOf('/') + 1).startsWith(HUB_FAMILY + ".")) {
+            String hubPath = owDevice.replaceFirst("^/uncached", "");
+            buses.put(hubPath + "/main", new OwBus(hubPath + "/main", commandQueueSize, MIN_BUS_SCAN_DELAY));
+            buses.put(hubPath + "/aux", new OwBus(hubPath + "/aux", commandQueueSize, MIN_BUS_SCAN_DELAY));
+          }
+        }
+      }
+
+      return null;
+    });
+
+    // One connection per bus-reader and alarm scanner, and one extra for requests outside of the readers.
+    connectionPool.resize(buses.size() * 2 + 1);
+
+    logger.info("Found {} bus(es) on Owserver at {}:{} with adapter id \"{}\": {}.", buses.size(), this.host, this.port, this.getId(), buses.keySet());
+  }
+
+  /**
+   * Scan for available devices on a 1-wire bus. And updates our internal list of available devices. Note this is a blocking call!
    *
+   * @param bus bus to scan.
+   * @param connection connection to Owserver to use.
    */
-  private void scanAvailableDevices() {
+  private void scanAvailableDevices(OwBus bus, OwServerConnection connection) {
     try {
       String hwId, deviceType, deviceFamily, isPowered;
-      Set<String> foundDeviceIds = new HashSet<>();
       EventBus eb = vertx.eventBus();
-      JsonObject device, childDevice, broadcastDevice;
+      OwDevice device;
 
       Instant startExecutionTime = Instant.now();
-      logger.debug("Scanning for available devices on Owserver at {}:{} with adapter id \"{}\".", this.host, this.port, this.getId());
-      List<String> owDevices = owserverConnection.listDirectory(true);
-      logger.debug("Found {} devices on Owserver at {}:{} with adapter id \"{}\".", owDevices.size(), this.host, this.port, this.getId());
-
-      for (String owDevice : owDevices) {
-        hwId = owserverConnection.read(owDevice + "/id");
-        deviceType = owserverConnection.read(owDevice + "/type");
-        deviceFamily = owserverConnection.read(owDevice + "/family");
-
-        foundDeviceIds.add(hwId);
-
-        device = deviceLookup.get(hwId);
-        // Device not found in existing list, this must be a newly added device. Add it to the collection and broadcast its existence.
-        if (device == null) {
-          if (DeviceDatabase.getDeviceTypeInfo(deviceType) != null) {
-            JsonObject typeInfo = DeviceDatabase.getDeviceTypeInfo(deviceType);
-
-            // For devices that need to be setup in a special state to be usable, run their init commands when added to list of available devices.
-            if (typeInfo.containsKey("initCommands")) {
-              for (Iterator it = typeInfo.getJsonArray("initCommands").iterator(); it.hasNext();) {
-                JsonObject command = (JsonObject) it.next();
-                String path = owDevice + command.getString("path");
-                logger.debug("Running initcommand (path '{}', value '{}') for device '{}' on Owserver at {}:{} with adapter id \"{}\".", path, command.getString("value"), hwId, this.host, this.port, this.getId());
-
-                owserverConnection.write(path, command.getString("value"));
-              }
-            }
+      logger.debug("Scanning for available devices on bus '{}' on Owserver at {}:{} with adapter id \"{}\".", bus.getName(), this.host, this.port, this.getId());
+      Map<String, String> foundDevices = parseDeviceAddresses(connection.listDirectory(bus.getPath(), false));
+      logger.debug("Found {} devices on bus '{}' on Owserver at {}:{} with adapter id \"{}\".", foundDevices.size(), bus.getName(), this.host, this.port, this.getId());
+
+      // Family and hwId are part of the address, so we only have to look up the type of devices we haven't seen before.
+      List<String> newDeviceIds = foundDevices.keySet().stream()
+          .filter(id -> !deviceLookup.containsKey(id) && !bus.getIgnoredDevices().contains(id))
+          .collect(Collectors.toList());
+      // Whatever was read from a device before it went missing may no longer be true.
+      newDeviceIds.forEach(readCache::invalidate);
+      Map<String, String> deviceTypes = readCache.readMany(connection, newDeviceIds.stream().collect(Collectors.toMap(
+          id -> foundDevices.get(id) + "/type", id -> DeviceDatabase.getDefaultReadPolicy("/type"), (p1, p2) -> p1, LinkedHashMap::new)));
+      int changes = 0;
+
+      for (String newDeviceId : newDeviceIds) {
+        String owDevice = foundDevices.get(newDeviceId);
+
+        hwId = newDeviceId;
+        deviceFamily = owDevice.substring(owDevice.lastIndexOf('/') + 1, owDevice.lastIndexOf('.'));
+        deviceType = deviceTypes.get(owDevice + "/type");
+
+        if (deviceType == null) {
+          // Device may have been disconnected during the scan, we will get it next time.
+          logger.warn("Failed to read type from device '{}' during scan of bus '{}' on Owserver at {}:{} with adapter id \"{}\".", owDevice, bus.getName(), this.host, this.port, this.getId());
+          continue;
+        }
 
-            try {
-              isPowered = owserverConnection.read(owDevice + "/power");
-              if (isPowered != null && isPowered.equals("0")) {
-                logger.warn("Device '{}' of type '{}' on Owserver at {}:{} with adapter id \"{}\" is running on parasitic power, this will slow down the 1-wire network and is less reliable than a powered device.", hwId, deviceType, this.host, this.port, this.getId());
-              }
-            } catch (OwServerConnectionException ex) {
-              // Ignore. Devices that don't support the power-property will throw an error, so we just ignore this.
-            }
+        // This is a newly added device. Add it to the collection and broadcast its existence.
+        DeviceType type = DeviceDatabase.getDeviceType(deviceType);
+        if (type != null) {
+          changes++;
 
-            device = new JsonObject();
-            device.put("hwId", hwId);
-            device.put("type", deviceType);
-            device.put("name", typeInfo.getString("name"));
-            device.put("family", deviceFamily);
-            device.put("path", owDevice);
-            device.put("typeInfo", typeInfo);
-
-            deviceLookup.put(hwId, device);
-            logger.info("New device found during scan of Owserver at {}:{} with adapter id \"{}\". Device hwId: {}, type: {}, family: {}.", this.host, this.port, this.getId(), hwId, deviceType, deviceFamily);
-
-            // For devices that supports it.
-            //setupAlarmHandler(device);
-            broadcastDevice = new JsonObject()
-                .put("adapterId", this.getId())
-                .put("port", this.port)
-                .put("host", this.host)
-                .put("hwId", hwId)
-                .put("type", deviceType)
-                .put("name", typeInfo.getString("name"));
-            eb.publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcastDevice, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICES_ADDED));
-
-            // Check if this device is an container for other "child-devices". In that case, add all the children too, their Id will be <parent_childnumber>.
-            if (typeInfo.containsKey("childDevices")) {
-              for (Iterator it = typeInfo.getJsonArray("childDevices").iterator(); it.hasNext();) {
-                JsonObject childType = (JsonObject) it.next();
-                String childId = String.format("%s%s%s", hwId, CHILDSEPARATOR, childType.getString("idSuffix"));
-
-                childDevice = new JsonObject();
-                childDevice.put("hwId", childId);
-                childDevice.put("type", deviceType);
-                childDevice.put("name", String.format("%s-%s", typeInfo.getString("name"), childType.getString("name")));
-
-                deviceLookup.put(childId, childDevice);
-                logger.info("New childdevice for device {} found during scan of Owserver at {}:{} with adapter id \"{}\". Device hwId: {}, type: {}, family: {}.", hwId, this.host, this.port, this.getId(), childId, deviceType, deviceFamily);
-
-                broadcastDevice = new JsonObject()
-                    .put("adapterId", this.getId())
-                    .put("port", this.port)
-                    .put("host", this.host)
-                    .put("hwId", childId)
-                    .put("type", deviceType)
-                    .put("name", childDevice.getString("name"));
-                eb.publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcastDevice, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICES_ADDED));
-              }
-            }
-          } else {
-            logger.info("Found unsupported devicetype for device with hwId '{}' on Owserver at {}:{} with adapter id \"{}\". Device will be ignored! Please notify developers and provide: type={}, family={}.", hwId, this.host, this.port, this.getId(), deviceType, deviceFamily);
+          // Devices that don't support the power-property will fail to be read, so we just ignore them.
+          isPowered = readCache.readMany(connection, Collections.singletonMap(owDevice + "/power", type.getReadPolicy("/power"))).get(owDevice + "/power");
+          if (isPowered != null && isPowered.equals("0")) {
+            logger.warn("Device '{}' of type '{}' on Owserver at {}:{} with adapter id \"{}\" is running on parasitic power, it will be read on its own after the powered devices. This is slower and less reliable than a powered device.", hwId, deviceType, this.host, this.port, this.getId());
+          }
+
+          device = new OwDevice(hwId, type, deviceFamily, owDevice, bus.getPath(), getSampleDelay(hwId, type), getResolution(hwId, type), "0".equals(isPowered), getReportingPolicy(hwId, type), CHILDSEPARATOR);
+          setupDevice(bus, connection, device);
+
+          deviceLookup.put(hwId, device);
+          bus.addDevice(device);
+          logger.info("New device found during scan of Owserver at {}:{} with adapter id \"{}\". Device hwId: {}, type: {}, family: {}.", this.host, this.port, this.getId(), hwId, deviceType, deviceFamily);
+
+          // Check if this device is an container for other "child-devices". In that case, add all the children too, their Id will be <parent_childnumber>.
+          for (int i = 0; i < device.getChildCount(); i++) {
+            OwDevice childDevice = device.getChild(i);
+
+            deviceLookup.put(childDevice.getHwId(), childDevice);
+            logger.info("New childdevice for device {} found during scan of Owserver at {}:{} with adapter id \"{}\". Device hwId: {}, type: {}, family: {}.", hwId, this.host, this.port, this.getId(), childDevice.getHwId(), deviceType, deviceFamily);
           }
+
+          publishDeviceAdded(device);
+        } else {
+          bus.getIgnoredDevices().add(hwId);
+          logger.info("Found unsupported devicetype for device with hwId '{}' on Owserver at {}:{} with adapter id \"{}\". Device will be ignored! Please notify developers and provide: type={}, family={}.", hwId, this.host, this.port, this.getId(), deviceType, deviceFamily);
         }
       }
 
-      // Remove all devices in device list that was no longer found during this scan. They has been disconnected from the 1-wire bus.
-      Set<String> tempSet = new HashSet(deviceLookup.keySet());
-      tempSet.removeAll(foundDeviceIds);
+      // Remove all devices on this bus that was no longer found during this scan. They has been disconnected from the 1-wire bus.
+      for (OwDevice parentDevice : new ArrayList<>(bus.getDevices())) {
+        if (!foundDevices.containsKey(parentDevice.getHwId())) {
+          changes++;
+          bus.removeDevice(parentDevice);
+          readCache.invalidate(parentDevice.getHwId());
 
-      for (String removeId : tempSet) {
-        // Check that it's not a childdevice, we are not interested in them right now.
-        if (!removeId.contains(CHILDSEPARATOR)) {
           // If device has children, remove these first.
-          List<String> childDevicesId = tempSet.stream().filter(d -> d.startsWith(removeId + CHILDSEPARATOR)).collect(Collectors.toList());
-          for (String childDeviceId : childDevicesId) {
-            removeDeviceFromLookup(childDeviceId, eb);
+          for (int i = 0; i < parentDevice.getChildCount(); i++) {
+            removeDeviceFromLookup(parentDevice.getChild(i).getHwId(), eb);
           }
           // Then remove device.
-          removeDeviceFromLookup(removeId, eb);
+          removeDeviceFromLookup(parentDevice.getHwId(), eb);
         }
       }
 
-      logger.debug("Scanning bus for devices took {}ms on Owserver at {}:{} with adapter id \"{}\".", Duration.between(startExecutionTime, Instant.now()).toMillis(), this.host, this.port, this.getId());
+      // Forget unsupported devices that are gone, in case something else shows up with the same id.
+      bus.getIgnoredDevices().retainAll(foundDevices.keySet());
+
+      // Scan often while devices come and go, and less often the longer the bus stays stable.
+      bus.setBusScanDelay(changes > 0 ? MIN_BUS_SCAN_DELAY : Math.min(MAX_BUS_SCAN_DELAY, bus.getBusScanDelay() * 2));
+
+      if (changes > 0) {
+        saveInventory();
+      }
+
+      logger.debug("Scanning bus '{}' for devices took {}ms on Owserver at {}:{} with adapter id \"{}\", {} changes, next scan in {}ms.", bus.getName(), Duration.between(startExecutionTime, Instant.now()).toMillis(), this.host, this.port, this.getId(), changes, bus.getBusScanDelay());
     } catch (OwServerConnectionException ex) {
-      logger.error("Error while trying to scan Owserver at {}:{} with adapter id \"{}\" for available devices.", this.host, this.port, this.getId(), ex);
+      logger.error("Error while trying to scan bus '{}' on Owserver at {}:{} with adapter id \"{}\" for available devices.", bus.getName(), this.host, this.port, this.getId(), ex);
     }
   }
 
   /**
-   * Add alarm monitoring for device.
+   * Pick out all devices from a directory listing, other entries like "alarm", "simultaneous" or "interface" are skipped.
    *
-   * @param device device to add alarm monitor for. Gets added only if device supports it.
+   * @param owDevices paths from directory listing.
+   * @return path to device with hwId as key.
    */
-  private void setupAlarmHandler(JsonObject device) {
-
-    String alarmingMask = device.getJsonObject("typeInfo").getString("alarmingMask");
+  private Map<String, String> parseDeviceAddresses(List<String> owDevices) {
+    Map<String, String> devices = new LinkedHashMap<>();
 
-    /* We might see these exceptions in the log:
-            "org.owfs.jowfsclient.alarm.AlarmingDevicesReader - Exception occured java.lang.NullPointerException"
-            The problem is that line #11, "if (devicePath.endsWith(SLASH)) {", in file OWFSUtils of the JOwfsClient-library is feed with a null devicePath.
-            Probably Owserver delivers one or more nulls in the collection of alarming devices due to some sort of timeout.
-     */
-    if (alarmingMask != null && !alarmingMask.isEmpty()) {
-      AlarmingDevicesScanner alarmingDevicesScanner = owserverConnection.getAlarmingDevicesScanner();
-
-      SwitchAlarmingDeviceListener alarmingDeviceHandler = new SwitchAlarmingDeviceListener(
-          device.getString("path"),
-          alarmingMask
-      ) {
-        @Override
-        public void handleAlarm(SwitchAlarmingDeviceEvent event) {
-          logger.info("Alarm '" + getDeviceName() + "' : latch:;" + event.latchStatus + "', sensed:'" + event.sensedStatus + "'");
-        }
-      };
+    for (String owDevice : owDevices) {
+      Matcher address = DEVICE_ADDRESS.matcher(owDevice.substring(owDevice.lastIndexOf('/') + 1));
 
-      try {
-        alarmingDevicesScanner.addAlarmingDeviceHandler(alarmingDeviceHandler);
-      } catch (OwfsException ex) {
-        logger.error("Failed to setup alarm handler on device \"{}\" on Owserver running at {}:{}, got errorcode: {}.", device.getString("path"), this.host, this.port, ex.getErrorCode(), ex);
-      } catch (IOException ex) {
-        logger.error("Failed to setup alarm handler on device \"{}\" on Owserver running at {}:{}.", device.getString("path"), this.host, this.port, ex);
+      if (address.matches()) {
+        devices.put(address.group(2), owDevice);
       }
     }
-  }
 
-  /**
-   * Get only parent devices from the deviceLookup-
-   *
-   * @return List of "parent" devices.
-   */
-  private List<JsonObject> getParentDevicesOnly() {
-    return deviceLookup.values().stream().filter(d -> !d.getString("hwId").contains(CHILDSEPARATOR)).collect(Collectors.toList());
+    return devices;
   }
 
   /**
-   * Get child devices for a parent device, empty list if no ones exists.
+   * Cheap check whether devices have been added or removed on a bus since last scan. Uses the cached directory listing of Owserver, which don't need to search
+   * the 1-wire bus.
    *
-   * @return List of child devices.
+   * @param bus bus to check.
+   * @param connection connection to Owserver to use.
+   * @return true if a full scan of the bus is needed.
    */
-  private List<JsonObject> getChildDevicesOnly(String parentId) {
-    return deviceLookup.values().stream().filter(d -> d.getString("hwId").contains(parentId + CHILDSEPARATOR))
-        .sorted((d1, d2) -> d1.getString("hwId").compareTo(d2.getString("hwId")))
-        .collect(Collectors.toList());
+  private boolean hasPresenceChanged(OwBus bus, OwServerConnection connection) {
+    try {
+      Set<String> listedIds = parseDeviceAddresses(connection.listDirectory(bus.getPath(), true)).keySet();
+
+      // A known device is either on the bus or ignored, never both, so equal sizes and no unknown device means that nothing has changed.
+      if (listedIds.size() != bus.getDeviceIds().size() + bus.getIgnoredDevices().size()) {
+        return true;
+      }
+
+      for (String hwId : listedIds) {
+        if (bus.getDevice(hwId) == null && !bus.getIgnoredDevices().contains(hwId)) {
+          return true;
+        }
+      }
+
+      return false;
+    } catch (OwServerConnectionException ex) {
+      logger.debug("Presence probe of bus '{}' failed on Owserver at {}:{} with adapter id \"{}\".", bus.getName(), this.host, this.port, this.getId(), ex);
+      return true;
+    }
   }
 
   /**
-   * Remove a device from deviceLookup. Also signal it's departure on the bus
+   * Get delay between two samples of a device. Could be configured per device in the adapter settings, e.g. "devices": {"&lt;hwId&gt;": {"sampleDelay": 60000}},
+   * but never lower than the minimum delay of the devicetype.
    *
-   * @param removeId remmoved device hwId
-   * @param eb eventbus instance
+   * @param hwId hwId of device.
+   * @param type devicetype.
+   * @return delay in milliseconds.
    */
-  private void removeDeviceFromLookup(String removeId, EventBus eb) {
-    deviceLookup.remove(removeId);
-    logger.info("Device with hwId: {}, not found after last scan of Owserver at {}:{} with adapter id \"{}\". Device has been removed from bus.", removeId, this.host, this.port, this.getId());
+  private long getSampleDelay(String hwId, DeviceType type) {
+    long minSampleDelay = type.getMinSampleDelay();
+    JsonObject deviceSettings = settings.getJsonObject("devices", new JsonObject()).getJsonObject(hwId);
 
-    JsonObject broadcastDevice = new JsonObject()
-        .put("adapterId", this.getId())
-        .put("port", this.port)
-        .put("host", this.host)
-        .put("hwId", removeId);
+    if (deviceSettings == null || !deviceSettings.containsKey("sampleDelay")) {
+      return minSampleDelay;
+    }
 
-    eb.publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcastDevice, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICES_REMOVED));
+    long sampleDelay = deviceSettings.getLong("sampleDelay");
+    if (sampleDelay < minSampleDelay) {
+      logger.warn("Configured sample delay {}ms for device '{}' on Owserver at {}:{} with adapter id \"{}\" is lower than the minimum {}ms for its devicetype, using the minimum instead.", sampleDelay, hwId, this.host, this.port, this.getId(), minSampleDelay);
+      return minSampleDelay;
+    }
+
+    return sampleDelay;
   }
 
   /**
-   * Returns a list of all supported devices by this adapter.
+   * Get resolution of conversions of a device. Defaults to what devices of the type have when they are found, and could be configured per devicetype in the
+   * adapter settings, e.g. "resolution": {"DS18B20": 10}, and per device, e.g. "devices": {"&lt;hwId&gt;": {"resolution": 9}}. A lower resolution gives
+   * faster conversions, a DS18B20 converts in 94ms at 9 bits compared to 750ms at 12 bits.
    *
-   * @param message eventbus message.
+   * @param hwId hwId of device.
+   * @param type devicetype.
+   * @return resolution in bits, 0 if device has no conversion.
    */
-  private void getSupportedDevices(Message message) {
+  private int getResolution(String hwId, DeviceType type) {
+    int resolution = settings.getJsonObject("resolution", new JsonObject()).getInteger(type.getTypeId(), type.getDefaultResolution());
+    JsonObject deviceSettings = settings.getJsonObject("devices", new JsonObject()).getJsonObject(hwId);
 
-    JsonArray result = new JsonArray();
+    if (deviceSettings != null) {
+      resolution = deviceSettings.getInteger("resolution", resolution);
+    }
 
-    for (JsonObject device : DeviceDatabase.getSuportedDeviceTypes()) {
-      result.add(
-          new JsonObject()
-          .put("typeId", device.getString("typeId"))
-          .put("name", device.getString("name"))
-          .put("description", device.getString("description"))
-          .put("manufacturer", device.getJsonObject("manufacturer"))
-      );
+    if (resolution != type.getDefaultResolution() && !type.isResolutionSupported(resolution)) {
+      logger.warn("Configured resolution {} bits for device '{}' of type '{}' on Owserver at {}:{} with adapter id \"{}\" is not supported, using {} bits instead.", resolution, hwId, type.getTypeId(), this.host, this.port, this.getId(), type.getDefaultResolution());
+      return type.getDefaultResolution();
     }
 
-    message.reply(constructReply(result));
+    return resolution;
   }
 
   /**
-   * Returns a list of all available devices on 1-wire bus.
+   * Get rules for when a new reading of a device is published. Defaults come from the devicetype, and could be overridden per devicetype in the adapter
+   * settings, e.g. "reporting": {"DS18B20": {"deadBand": 0.25}}, and per device, e.g. "devices": {"&lt;hwId&gt;": {"reporting": {"maxSilence": 60000}}}.
+   * Settings that are left out are inherited from the level above.
    *
-   * @param message eventbus message.
+   * @param hwId hwId of device.
+   * @param type devicetype.
+   * @return policy.
    */
-  private void getAvailableDevices(Message message) {
-    message.reply(constructReply(getAvailableDevices()));
+  private ReportingPolicy getReportingPolicy(String hwId, DeviceType type) {
+    ReportingPolicy policy = type.getReportingPolicy();
+    JsonObject typeSettings = settings.getJsonObject("reporting", new JsonObject()).getJsonObject(type.getTypeId());
+    JsonObject deviceSettings = settings.getJsonObject("devices", new JsonObject()).getJsonObject(hwId);
+
+    policy = ReportingPolicy.fromJson(typeSettings, policy);
+    if (deviceSettings != null) {
+      policy = ReportingPolicy.fromJson(deviceSettings.getJsonObject("reporting"), policy);
+    }
+
+    return policy;
   }
 
   /**
-   * Read the current value from a device.
+   * Setup a newly found device on the bus, so that it's ready to be read.
    *
-   * @param device Existing device objekt.
-   * @return Current value.
+   * @param bus bus that device is connected to.
+   * @param connection connection to Owserver to use.
+   * @param device device to setup.
    */
-  private String readValue(JsonObject device) {
-    String hwId = device.getString("hwId");
-
-    try {
+  private void setupDevice(OwBus bus, OwServerConnection connection, OwDevice device) {
+    DeviceType type = device.getType();
 
-      JsonObject typeInfo = device.getJsonObject("typeInfo");
-      if (!typeInfo.containsKey("valueReadPath")) {
-        // We can't read this kind of device.
-        return null;
-      }
+    // The device may have lost power since its outputs were last written, which resets them.
+    bus.setOutputState(device.getHwId(), null);
 
-      String path = device.getString("path") + typeInfo.getString("valueReadPath");
-      String value = this.owserverConnection.read(path).trim();
+    // For devices that need to be setup in a special state to be usable, run their init commands when added to list of available devices.
+    for (int i = 0; i < type.getInitCommandCount(); i++) {
+      String path = device.getPath() + type.getInitCommandPath(i);
+      logger.debug("Running initcommand (path '{}', value '{}') for device '{}' on Owserver at {}:{} with adapter id \"{}\".", path, type.getInitCommandValue(i), device.getHwId(), this.host, this.port, this.getId());
 
-      return value;
-    } catch (DeviceMissingException ex) {
-      throw new PluginException(String.format("Failed to read value from device with hwId '%s', device is reported missing.", ex.getHardwareId()), ex);
-    } catch (OwServerConnectionException ex) {
-      throw new PluginException(String.format("Failed to read value from device with hwId '%s'.", hwId), ex);
+      connection.write(path, type.getInitCommandValue(i));
     }
+
+    setupResolution(connection, device);
+
+    // For devices that supports it.
+    setupAlarmHandler(connection, device);
   }
 
   /**
-   * Execute all possible queued commands to be written to Owserver.
+   * Setup all devices on a bus that have been restored from the inventory and not yet been setup. Devices that have been removed from the bus since are
+   * skipped.
+   *
+   * @param bus bus to setup devices on.
+   * @param connection connection to Owserver to use.
    */
-  private void executeQueuedCommands() {
-    JsonObject command;
-    String path, value;
-
-    while (commandQueue.size() > 0) {
-      try {
-        command = commandQueue.poll();
-        path = command.getString("path");
-        value = command.getString("value");
+  private void setupPendingDevices(OwBus bus, OwServerConnection connection) {
+    OwDevice device;
 
-        logger.debug("Write value {} to device '{}'.", value, path);
+    while ((device = bus.pollPendingSetupDevice()) != null) {
+      if (!bus.getDevices().contains(device)) {
+        continue;
+      }
 
-        owserverConnection.write(path, value);
+      try {
+        setupDevice(bus, connection, device);
+      } catch (OwServerUnavailableException ex) {
+        // Try again when Owserver is back.
+        bus.addPendingSetupDevice(device);
+        throw ex;
       } catch (OwServerConnectionException ex) {
-        logger.error("Failed to execute queued command.", ex);
+        logger.warn("Failed to setup restored device '{}' on bus '{}' on Owserver at {}:{} with adapter id \"{}\", it may have been removed.", device.getHwId(), bus.getName(), this.host, this.port, this.getId(), ex);
       }
     }
   }
 
   /**
-   * Collect all readings from a list of devices. (result is saved in deviceReadings)
+   * Set the resolution of a device, if it should not use the resolution it has when it is found. This is done by reading the temperature once with the wanted
+   * resolution, the device then keeps using it for the simultaneous conversions until it loses power, and then it will be found and setup again.
    *
-   * @param devices List of devices to read from.
+   * @param connection connection to Owserver to use.
+   * @param device device to set resolution on.
    */
-  private void collectDevicesReadings(List<JsonObject> devices) {
-    String hwId = null;
-    String time;
-    String value;
-    JsonObject reading;
-    JsonObject readings;
-    Instant commandsWrittenTime;
-
-    for (JsonObject device : devices) {
+  private void setupResolution(OwServerConnection connection, OwDevice device) {
+    DeviceType type = device.getType();
 
-      try {
-        hwId = device.getString("hwId");
+    if (device.getResolution() == type.getDefaultResolution() || type.getResolutionPath(device.getResolution()) == null) {
+      return;
+    }
 
-        // Do a blocking reading.
-        value = readValue(device);
-        time = LocalDateTime.now().toString();
-        logger.trace("Read value '{}' from device with hwId '{}' on Owserver at {}:{} with adapter id \"{}\".", value, hwId, this.host, this.port, this.getId());
+    try {
+      connection.read(device.getPath() + type.getResolutionPath(device.getResolution()));
+      logger.debug("Resolution of device '{}' on Owserver at {}:{} with adapter id \"{}\" set to {} bits, conversions take {}ms.", device.getHwId(), this.host, this.port, this.getId(), device.getResolution(), device.getConversionTime());
+    } catch (OwServerConnectionException ex) {
+      logger.error("Failed to set resolution {} bits on device '{}' on Owserver at {}:{} with adapter id \"{}\".", device.getResolution(), device.getHwId(), this.host, this.port, this.getId(), ex);
+    }
+  }
 
-        reading = new JsonObject()
-            .put("hwId", hwId)
-            .put("value", value)
-            .put("time", time);
-
-        // Get hold of array of recorded readings for this specific device.
-        if (!deviceReadings.containsKey(hwId)) {
-          readings = new JsonObject()
-              .put("lastReading", new JsonObject()
-                  .put("value", (Object) null) // Set property to prevent a possible nullpointer exception later.
-              );
-
-          deviceReadings.put(hwId, readings);
-        } else {
-          readings = deviceReadings.get(hwId);
+  /**
+   * Get time to wait for a simultaneous conversion to finish, decided by the slowest of the devices that are going to be read.
+   *
+   * @param devices devices that are going to be read after the conversion.
+   * @return time in milliseconds.
+   */
+  private long getConversionDelay(Collection<OwDevice> devices) {
+    long delay = 0;
+
+    for (OwDevice device : devices) {
+      long conversionTime = device.getConversionTime();
+      delay = Math.max(delay, conversionTime < 0 ? CONVERSION_DELAY : conversionTime + CONVERSION_MARGIN);
+    }
+
+    return delay;
+  }
+
+  /**
+   * Add alarm monitoring for device. The alarm condition is written to the device, and its latches are reset so that it only shows up in the alarm directory
+   * once something actually changes.
+   *
+   * @param connection connection to Owserver to use.
+   * @param device device to add alarm monitor for. Gets added only if device supports it.
+   */
+  private void setupAlarmHandler(OwServerConnection connection, OwDevice device) {
+    DeviceType type = device.getType();
+
+    if (type.hasCapability(DeviceCapability.ALARMING)) {
+      try {
+        connection.write(device.getPath() + "/set_alarm", type.getAlarmingMask());
+
+        if (type.getAlarmResetPath() != null) {
+          connection.write(device.getPath() + type.getAlarmResetPath(), "0");
         }
+      } catch (OwServerConnectionException ex) {
+        logger.error("Failed to setup alarm handler on device \"{}\" on Owserver running at {}:{}.", device.getPath(), this.host, this.port, ex);
+      }
+    }
+  }
 
-        String lastValue = readings.getJsonObject("lastReading").getString("value");
-        // Only add this reading to list of readings for device if the value of the reading has changed since the last time we did a reading. We save a lot of space and memory by doing this!
-        if (!value.equals(lastValue)) {
-          readings.put("lastReading", reading);
-          logger.debug("Recorded new value '{}' at time '{}' for device with hwId '{}' on Owserver at {}:{} with adapter id \"{}\".", value, time, hwId, this.host, this.port, this.getId());
-
-          List<JsonObject> childs = getChildDevicesOnly(hwId);
-
-          if (childs.isEmpty()) {
-            // This device has no children, so we just notify that this device has a value that has changed.
-            JsonObject broadcast = new JsonObject()
-                .put("adapterId", this.getId())
-                .put("port", this.port)
-                .put("host", this.host)
-                .put("reading", reading);
-
-            vertx.eventBus().publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcast, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICE_NEWREADING));
-          } else {
-            // This is a parent device so we must check which of its children  that has changed and notify each and every one of them on the bus.
-            String[] childValues = value.split(",");
-            String[] lastChildValues;
-
-            if (lastValue == null) {
-              lastChildValues = new String[childValues.length];
-            } else {
-              lastChildValues = lastValue.split(",");
-            }
 
-            for (int i = 0; i < childValues.length; i++) {
-              if (!childValues[i].equals(lastChildValues[i])) {
-                JsonObject broadcast = new JsonObject()
-                    .put("adapterId", this.getId())
-                    .put("port", this.port)
-                    .put("host", this.host)
-                    .put("reading", new JsonObject()
-                        .put("hwId", childs.get(i).getString("hwId"))
-                        .put("time", reading.getString("time"))
-                        .put("value", childValues[i])
-                    );
-
-                vertx.eventBus().publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcast, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICE_NEWREADING));
+  /**
+   * Notify on the eventbus that a parent device, and all its children, have been added.
+   *
+   * @param device parent device.
+   */
+  private void publishDeviceAdded(OwDevice device) {
+    List<OwDevice> addedDevices = new ArrayList<>();
+    addedDevices.add(device);
+    for (int i = 0; i < device.getChildCount(); i++) {
+      addedDevices.add(device.getChild(i));
+    }
+
+    for (OwDevice addedDevice : addedDevices) {
+      JsonObject broadcastDevice = new JsonObject()
+          .put("adapterId", this.getId())
+          .put("port", this.port)
+          .put("host", this.host)
+          .put("hwId", addedDevice.getHwId())
+          .put("type", addedDevice.getType().getTypeId())
+          .put("name", addedDevice.getName());
+
+      vertx.eventBus().publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcastDevice, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICES_ADDED));
+    }
+  }
+
+  /**
+   * Remove a device from deviceLookup. Also signal it's departure on the bus
+   *
+   * @param removeId remmoved device hwId
+   * @param eb eventbus instance
+   */
+  private void removeDeviceFromLookup(String removeId, EventBus eb) {
+    deviceLookup.remove(removeId);
+    logger.info("Device with hwId: {}, not found after last scan of Owserver at {}:{} with adapter id \"{}\". Device has been removed from bus.", removeId, this.host, this.port, this.getId());
+
+    JsonObject broadcastDevice = new JsonObject()
+        .put("adapterId", this.getId())
+        .put("port", this.port)
+        .put("host", this.host)
+        .put("hwId", removeId);
+
+    eb.publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcastDevice, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICES_REMOVED));
+  }
+
+  /**
+   * Returns a list of all supported devices by this adapter.
+   *
+   * @param message eventbus message.
+   */
+  private void getSupportedDevices(Message message) {
+
+    JsonArray result = new JsonArray();
+
+    for (DeviceType type : DeviceDatabase.getSuportedDeviceTypes()) {
+      result.add(
+          new JsonObject()
+          .put("typeId", type.getTypeId())
+          .put("name", type.getName())
+          .put("description", type.getDescription())
+          .put("manufacturer", type.getManufacturer())
+          .put("reporting", type.getReportingPolicy().toJson())
+      );
+    }
+
+    message.reply(constructReply(result));
+  }
+
+  /**
+   * Returns a list of all available devices on 1-wire bus.
+   *
+   * @param message eventbus message.
+   */
+  private void getAvailableDevices(Message message) {
+    message.reply(constructReply(getAvailableDevices()));
+  }
+
+  /**
+   * Returns the telemetry of the mainloops, time spent in each phase and counters for reads and writes.
+   *
+   * @param message eventbus message.
+   */
+  private void getTelemetry(Message message) {
+    message.reply(constructReply(getTelemetry()));
+  }
+
+  /**
+   * Get the telemetry of the mainloops.
+   *
+   * @return telemetry, with durations in milliseconds.
+   */
+  private JsonObject getTelemetry() {
+    long now = System.nanoTime();
+    int quarantinedDevices = 0;
+    JsonObject commandQueues = new JsonObject();
+    for (OwBus bus : buses.values()) {
+      quarantinedDevices += bus.getQuarantine().countQuarantined(now);
+      commandQueues.put(bus.getName(), bus.getCommandQueue().toJson());
+    }
+
+    return telemetry.toJson(connectionPool.getReconnectCount())
+        .put("commandQueues", commandQueues)
+        .put("quarantinedDevices", quarantinedDevices)
+        .put("connectionState", connectionPool.getCircuitBreaker().getState().name())
+        .put("readCache", readCache.toJson())
+        .put("writeCombiner", writeCombiner.toJson())
+        .put("owserverStatistics", statisticsCollector != null ? statisticsCollector.toJson() : new JsonObject())
+        .put("workerPool", getWorkerPoolMetrics());
+  }
+
+  /**
+   * Notify on the eventbus that Owserver has become unavailable, or is available again.
+   *
+   * @param state new state of circuit breaker.
+   */
+  private void publishConnectionState(OwServerCircuitBreaker.State state) {
+    JsonObject broadcast = new JsonObject()
+        .put("adapterId", this.getId())
+        .put("port", this.port)
+        .put("host", this.host)
+        .put("state", state.name())
+        .put("available", state != OwServerCircuitBreaker.State.OPEN);
+
+    vertx.eventBus().publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcast, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_ADAPTER_CONNECTIONSTATE));
+  }
+
+  /**
+   * Notify on the eventbus about the current telemetry of the mainloops.
+   */
+  private void publishTelemetry() {
+    JsonObject broadcast = new JsonObject()
+        .put("adapterId", this.getId())
+        .put("port", this.port)
+        .put("host", this.host)
+        .put("telemetry", getTelemetry());
+
+    vertx.eventBus().publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcast, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_ADAPTER_TELEMETRY));
+  }
+
+  /**
+   * Read the current values from a list of devices, all reads are sent as one batch to the owserver. Each value is read according to the read policy of the
+   * device, so it may come from a cache instead of the device.
+   *
+   * @param connection connection to Owserver to use.
+   * @param devices Existing device objects.
+   * @return Current values, exactly as read, by read path. Devices that could not be read or don't have any value to read are left out.
+   */
+  private Map<String, String> readValues(OwServerConnection connection, Collection<OwDevice> devices) {
+    Map<String, ReadPolicy> paths = new LinkedHashMap<>();
+
+    for (OwDevice device : devices) {
+      if (device.getReadPath() != null) {
+        paths.put(device.getReadPath(), device.getReadPolicy());
+      }
+    }
+
+    if (paths.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    try {
+      return readCache.readMany(connection, paths);
+    } catch (OwServerConnectionException ex) {
+      throw new PluginException(String.format("Failed to read values from %d devices.", paths.size()), ex);
+    }
+  }
+
+  /**
+   * Execute all possible queued commands to be written to a bus.
+   *
+   * @param bus bus which queued commands to execute.
+   * @param connection connection to Owserver to use.
+   */
+  private void executeQueuedCommands(OwBus bus, OwServerConnection connection) {
+    List<OwCommandQueue.Command> commands = bus.getCommandQueue().drain();
+
+    if (commands.isEmpty()) {
+      return;
+    }
+
+    Instant commandsWrittenTime = Instant.now();
+
+    // Commands are already collapsed per path, and writes to several children of the same parent are combined into one write of the parent, then they are
+    // sent in priority order as one batch.
+    Map<String, String> values = writeCombiner.combine(bus, connection, commands);
+    for (Map.Entry<String, String> value : values.entrySet()) {
+      logger.debug("Write value {} to device '{}'.", value.getValue(), value.getKey());
+    }
+
+    try {
+      List<String> failedPaths = connection.writeMany(values);
+      for (String path : failedPaths) {
+        logger.error("Failed to execute queued command, writing value {} to device '{}'.", values.get(path), path);
+      }
+      writeCombiner.recordWritten(bus, values, failedPaths);
+      telemetry.countWrites(values.size() - failedPaths.size(), failedPaths.size());
+    } catch (OwServerConnectionException ex) {
+      logger.error("Failed to execute queued commands.", ex);
+      writeCombiner.recordWritten(bus, values, values.keySet());
+      telemetry.countWrites(0, values.size());
+    }
+
+    for (OwCommandQueue.Command command : commands) {
+      bus.getCommandQueue().recordExecuted(command);
+    }
+
+    bus.setCommandsWrittenDuration(bus.getCommandsWrittenDuration().plus(Duration.between(commandsWrittenTime, Instant.now())));
+  }
+
+  /**
+   * Collect all readings from a list of devices. (result is saved in the state of each device)
+   *
+   * @param bus bus that devices are connected to.
+   * @param connection connection to Owserver to use.
+   * @param devices List of devices to read from.
+   */
+  private void collectDevicesReadings(OwBus bus, OwServerConnection connection, List<OwDevice> devices) {
+    String hwId = null;
+    long time;
+    String value;
+    int succeeded, failed;
+
+    for (int batchStart = 0; batchStart < devices.size(); batchStart += READ_BATCH_SIZE) {
+      List<OwDevice> batch = devices.subList(batchStart, Math.min(batchStart + READ_BATCH_SIZE, devices.size()));
+      Map<String, String> values;
+      boolean blameDevices;
+
+      try {
+        // Do a blocking reading of the whole batch.
+        values = readValues(connection, batch);
+        blameDevices = isDevicesToBlame(batch, values);
+      } catch (Exception ex) {
+        logger.error("Failed to poll {} devices for values on bus '{}' on Owserver at {}:{} with adapter id \"{}\".", batch.size(), bus.getName(), this.host, this.port, this.getId(), ex);
+        values = Collections.emptyMap();
+        blameDevices = false;
+      }
+
+      time = currentEpochNanos();
+      succeeded = 0;
+      failed = 0;
+
+      for (OwDevice device : batch) {
+        try {
+          hwId = device.getHwId();
+          value = device.getReadPath() != null ? values.get(device.getReadPath()) : null;
+
+          if (value == null) {
+            if (device.getReadPath() != null) {
+              logger.error("Failed to poll device '{}' for value on Owserver at {}:{} with adapter id \"{}\".", hwId, this.host, this.port, this.getId());
+              // Device may have been disconnected, find out at next run.
+              bus.setBusScanRequested(true);
+              failed++;
+
+              if (blameDevices) {
+                recordDeviceFailure(bus, device);
               }
             }
+            continue;
           }
+
+          succeeded++;
+          recordDeviceSuccess(bus, device);
+          recordReading(device, value, time);
+        } catch (Exception ex) {
+          logger.error("Failed to poll device '{}' for value on Owserver at {}:{} with adapter id \"{}\".", hwId, this.host, this.port, this.getId());
+        }
+      }
+
+      telemetry.countReads(succeeded, failed);
+
+      // Execute possible queued commands between each batch. This is necessary since a reading from several parasitic devices could take many seconds to complete.
+      executeQueuedCommands(bus, connection);
+    }
+  }
+
+  /**
+   * Whether the devices that did not answer a batch read should be blamed for it. If owserver is unavailable, or none of several devices answered, the bus or
+   * owserver is much more likely to be at fault than each device, so no device should be put in quarantine for it.
+   *
+   * @param batch devices that were read.
+   * @param values values that were read.
+   * @return true if failures should be recorded per device.
+   */
+  private boolean isDevicesToBlame(Collection<OwDevice> batch, Map<String, String> values) {
+    return connectionPool.getCircuitBreaker().isAvailable() && (!values.isEmpty() || batch.size() == 1);
+  }
+
+  /**
+   * Record that a device failed to answer a read. If the device keeps failing it's put in quarantine, it will not be read until the quarantine is over, and we
+   * notify on the eventbus that it's no longer present.
+   *
+   * @param bus bus that device is connected to.
+   * @param device device that failed.
+   */
+  private void recordDeviceFailure(OwBus bus, OwDevice device) {
+    int failures = bus.getQuarantine().getFailures(device.getHwId()) + 1;
+    long quarantine = bus.getQuarantine().recordFailure(device.getHwId(), System.nanoTime());
+
+    if (quarantine == 0) {
+      return;
+    }
+
+    telemetry.countQuarantine();
+    // Outputs of a device that doesn't answer may have been reset, e.g. by a power loss.
+    bus.setOutputState(device.getHwId(), null);
+    logger.warn("Device '{}' on bus '{}' on Owserver at {}:{} with adapter id \"{}\" has failed {} reads in a row, not reading it again for {}ms.", device.getHwId(), bus.getName(), this.host, this.port, this.getId(), failures, quarantine);
+
+    publishDeviceNotPresent(device.getHwId(), failures, quarantine);
+    for (int i = 0; i < device.getChildCount(); i++) {
+      publishDeviceNotPresent(device.getChild(i).getHwId(), failures, quarantine);
+    }
+  }
+
+  /**
+   * Record that a device answered a read, this releases it from quarantine and we notify on the eventbus that it's present again. The reading itself may be
+   * held back by the reporting policy of the device, so it can't be relied on to tell that the device is back.
+   *
+   * @param bus bus that device is connected to.
+   * @param device device that answered.
+   */
+  private void recordDeviceSuccess(OwBus bus, OwDevice device) {
+    if (bus.getQuarantine().recordSuccess(device.getHwId())) {
+      logger.info("Device '{}' on bus '{}' on Owserver at {}:{} with adapter id \"{}\" answers again, released from quarantine.", device.getHwId(), bus.getName(), this.host, this.port, this.getId());
+
+      publishDevicePresent(device.getHwId());
+      for (int i = 0; i < device.getChildCount(); i++) {
+        publishDevicePresent(device.getChild(i).getHwId());
+      }
+    }
+  }
+
+  /**
+   * Notify on the eventbus that a device that had stopped answering answers again.
+   *
+   * @param hwId hwId of device.
+   */
+  private void publishDevicePresent(String hwId) {
+    JsonObject broadcastDevice = new JsonObject()
+        .put("adapterId", this.getId())
+        .put("port", this.port)
+        .put("host", this.host)
+        .put("hwId", hwId);
+
+    vertx.eventBus().publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcastDevice, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICE_PRESENT));
+  }
+
+  /**
+   * Notify on the eventbus that a device has stopped answering and will not be read for a while.
+   *
+   * @param hwId hwId of device.
+   * @param failures number of failed reads in a row.
+   * @param retryIn time until device is read again (milliseconds).
+   */
+  private void publishDeviceNotPresent(String hwId, int failures, long retryIn) {
+    JsonObject broadcastDevice = new JsonObject()
+        .put("adapterId", this.getId())
+        .put("port", this.port)
+        .put("host", this.host)
+        .put("hwId", hwId)
+        .put("failures", failures)
+        .put("retryIn", retryIn);
+
+    vertx.eventBus().publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcastDevice, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICE_NOTPRESENT));
+  }
+
+  /**
+   * Record a value read from a device, and notify on the eventbus if the reporting policy of the device says that the change is worth publishing. Nothing is
+   * allocated unless something is published. Devices with an aggregation window add every reading to the window instead, and publish a summary when the
+   * window has run out.
+   *
+   * @param device device that was read.
+   * @param value value read from device.
+   * @param time time of reading (nanoseconds since epoch).
+   */
+  private void recordReading(OwDevice device, String value, long time) {
+    long changed = device.getState().update(value, time);
+
+    if (device.getAggregator() != null) {
+      recordAggregatedReading(device, time);
+      return;
+    }
+
+    long publish = device.getState().selectPublishable(changed, time, device.getReportingPolicy());
+
+    if (publish == 0) {
+      return;
+    }
+
+    String formattedTime = OwDeviceState.formatTime(time);
+    logger.debug("Recorded new value '{}' at time '{}' for device with hwId '{}' on Owserver at {}:{} with adapter id \"{}\".", value, formattedTime, device.getHwId(), this.host, this.port, this.getId());
+
+    if (device.getChildCount() == 0) {
+      // This device has no children, so we just notify that this device has a value that has changed.
+      publishReading(device.getHwId(), device.getState().getValue(), formattedTime, null);
+    } else {
+      // This is a parent device so we must notify each and every one of its children that has changed on the bus.
+      for (int i = 0; i < device.getChildCount(); i++) {
+        if ((publish & (1L << i)) != 0) {
+          publishReading(device.getChild(i).getHwId(), device.getState().getChildValue(i), formattedTime, null);
         }
-      } catch (Exception ex) {
-        logger.error("Failed to poll device '{}' for value on Owserver at {}:{} with adapter id \"{}\".", hwId, this.host, this.port, this.getId());
       }
+    }
+  }
+
+  /**
+   * Add the last recorded reading of a device to its aggregation window, and notify on the eventbus with a summary of each value if the window has run out.
+   *
+   * @param device device that was read.
+   * @param time time of reading (nanoseconds since epoch).
+   */
+  private void recordAggregatedReading(OwDevice device, long time) {
+    OwDeviceState state = device.getState();
+    OwAggregator aggregator = device.getAggregator();
 
-      // Execute possible queued commands between each iteration. This is necessary since a reading from several parasitic devices could take many seconds to complete.
-      commandsWrittenTime = Instant.now();
-      executeQueuedCommands();
-      commandsWrittenDuration.plus(Duration.between(commandsWrittenTime, Instant.now()));
+    if (device.getChildCount() == 0) {
+      aggregator.add(0, state.getNumericValue(), time);
+    } else {
+      for (int i = 0; i < device.getChildCount(); i++) {
+        aggregator.add(i, state.getChildNumericValue(i), time);
+      }
+    }
+
+    JsonObject[] summaries = aggregator.closeIfDone(time);
+    if (summaries == null) {
+      return;
+    }
+
+    String formattedTime = OwDeviceState.formatTime(time);
+    logger.debug("Aggregation window closed at time '{}' for device with hwId '{}' on Owserver at {}:{} with adapter id \"{}\".", formattedTime, device.getHwId(), this.host, this.port, this.getId());
+
+    if (device.getChildCount() == 0) {
+      if (summaries[0] != null) {
+        publishReading(device.getHwId(), state.getValue(), formattedTime, summaries[0]);
+      }
+    } else {
+      for (int i = 0; i < device.getChildCount(); i++) {
+        if (summaries[i] != null) {
+          publishReading(device.getChild(i).getHwId(), state.getChildValue(i), formattedTime, summaries[i]);
+        }
+      }
     }
   }
 
   /**
-   * Internal running thread for executing commands and polling 1-wire bus.
+   * Notify on the eventbus about the last recorded reading of a device and all its children, whether they have changed or not.
+   *
+   * @param device device to publish.
+   */
+  private void publishLastReading(OwDevice device) {
+    String formattedTime = OwDeviceState.formatTime(device.getState().getTime());
+
+    if (device.getChildCount() == 0) {
+      publishReading(device.getHwId(), device.getState().getValue(), formattedTime, null);
+    } else {
+      for (int i = 0; i < device.getChildCount(); i++) {
+        publishReading(device.getChild(i).getHwId(), device.getState().getChildValue(i), formattedTime, null);
+      }
+    }
+  }
+
+  /**
+   * Notify on the eventbus that a device has a new value.
+   *
+   * @param hwId hwId of device.
+   * @param value new value.
+   * @param time time of reading.
+   * @param aggregate summary of aggregation window, or null for a single reading.
+   */
+  private void publishReading(String hwId, String value, String time, JsonObject aggregate) {
+    JsonObject reading = new JsonObject()
+        .put("hwId", hwId)
+        .put("value", value)
+        .put("time", time);
+
+    if (aggregate != null) {
+      reading.put("aggregate", aggregate);
+    }
+
+    JsonObject broadcast = new JsonObject()
+        .put("adapterId", this.getId())
+        .put("port", this.port)
+        .put("host", this.host)
+        .put("reading", reading);
+
+    vertx.eventBus().publish(AdapterEvents.EVENTBUS_ADAPTERS, broadcast, new DeliveryOptions().addHeader("action", AdapterEvents.EVENT_DEVICE_NEWREADING));
+  }
+
+  /**
+   * Get current time. Millisecond resolution, same as the wall clock, but without allocating anything.
+   *
+   * @return nanoseconds since epoch.
+   */
+  private static long currentEpochNanos() {
+    return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+  }
+
+  /**
+   * Internal running thread for sampling the bus statistics of Owserver.
    *
    * @return Task to run in threadpool.
    */
-  private Runnable mainloopTask() {
+  private Runnable statisticsTask() {
+    return () -> {
+      if (!connectionPool.getCircuitBreaker().isAvailable()) {
+        return;
+      }
 
-    Runnable task = () -> {
+      OwServerConnection connection;
+      try {
+        connection = connectionPool.acquire();
+      } catch (OwServerConnectionException ex) {
+        logger.warn("No connection available for sampling statistics of Owserver at {}:{} with adapter id \"{}\".", this.host, this.port, this.getId(), ex);
+        return;
+      }
+
+      try {
+        statisticsCollector.sample(connection);
+      } catch (OwServerUnavailableException ex) {
+        logger.debug("Skipping sample of statistics, Owserver at {}:{} with adapter id \"{}\" is unavailable.", this.host, this.port, this.getId());
+      } catch (Exception ex) {
+        // Never let an exception escape, that would stop all future samples.
+        logger.error("Sampling statistics of Owserver at {}:{} with adapter id \"{}\" failed.", this.host, this.port, this.getId(), ex);
+      } finally {
+        connectionPool.release(connection);
+      }
+    };
+  }
 
-      /*
-                Ok so what is all this you say?
-                We have just fetched a list of all our 1-wire devices and are just about to iterate thought them all to collect their current values, but there is something we may want to do first...
-                Most 1-wire devices are fairly fast to read from, the exception is temperature sensors and A/D-converters. The common used DS18S20 temperature sensor takes about 700 ms for each reading,
-                normally they are all read by OWFS in a serial fassion which means that we query a sensor for its current readings, the query is blocked for the conversiontime of 700 ms and then we receive the result.
-                For a 1-wire network of nineteen DS18S20 sensors a full reading of all devices will take at least 19x700 ms, which is quite a long time to hog the 1-wire bus if you have other queued operations to execute on the bus.
-                To ease this, the 1-wire protocol support the "Skip ROM" command which enable OWFS to start the conversion of ALL termperature sensors (and A/D-converters a.k.a DS2450) at the same time.
-                We then need to wait about 700 ms to let the conversion take place and after that we can iterate throught all sensors and collect all readings very fast, this makes this a more O(1) operation than a O(n), in best cases at least.
-
-                So what's the catch, well we have to write to "/simultaneous/temperature" and "/simultaneous/voltage" each time we want to start initiate a conversion if there exists any temperature sensors or A/D  converters on the 1-wire bus.
-                For the simultaneous reading to work all temperature sensors NEED to be powered, having the Vcc, Data, and GND-lines connected. OWFS will scan the bus and if ANY temperature sensors are running in "parasitic"-mode then ALL reading will happen in serial (take many seconds).
-                A fairly new version of OWFS is needed to be installed for this to work. See: http://owfs-developers.1086194.n5.nabble.com/Missing-data-td10904i20.html
-
-                This is the mainloop that constantly polls for devicereadings and execute queued commands on the 1-write bus.
-                We first get all our devices that we have collected from busscans during earlier runs, then we separate them into different lists, one for slow temperature-sensors, one for slow voltage-sensors, and a list of other devices that we concider fast.
-                We start by sending any queued commands to the bus, that is commands that change a pin or state on a device, this is a farily fast operation and this is usually a operation where users expect fast feedback/low delay.
-                Then we trigger the start of conversion for thos slow temperature and voltage sensors, if we have any, then we read all fast devices while the slow ones doing their work.
-                By now hopefully the slow devices have finished and are ready to be read, so we read all slow devices.
-                Note that between many of the steps in the main loop we have put in checks for possible queued command that we should execute to get a fast responsetime.
-
-                Even now and then we scan the bus for new/removed devices, a busscan is a slow fragile operation that we don't want to execute too often.
-       */
-      List<JsonObject> allDevices, temperatureDevices, voltageDevices, fastDevices;
-      Instant startExecutionTime, stepTime;
-      Duration simultaneousWrittenDuration, fastDevicesReadDuration, temperatureDevicesDuration, voltageDevicesDuration, busScanDuration;
-
-      startExecutionTime = Instant.now();
-      commandsWrittenDuration = Duration.ZERO;
-      busScanDuration = Duration.ZERO;
+  /**
+   * Internal running thread for reading devices on a 1-wire bus that have raised an alarm.
+   *
+   * @param bus bus to scan for alarms.
+   * @return Task to run in threadpool.
+   */
+  private Runnable alarmScanTask(OwBus bus) {
+    return () -> {
+      Set<OwDevice> alarmDevices = bus.getAlarmDevices();
+      if (alarmDevices.isEmpty() || !connectionPool.getCircuitBreaker().isAvailable()) {
+        return;
+      }
 
+      OwServerConnection connection;
       try {
-        allDevices = getParentDevicesOnly();
-        temperatureDevices = allDevices.stream().filter(d -> d.getJsonObject("typeInfo").containsKey("temperatureSensor") && d.getJsonObject("typeInfo").getBoolean("temperatureSensor")).collect(Collectors.toList());
-        voltageDevices = allDevices.stream().filter(d -> d.getJsonObject("typeInfo").containsKey("voltageSensor") && d.getJsonObject("typeInfo").getBoolean("voltageSensor")).collect(Collectors.toList());
+        connection = connectionPool.acquire();
+      } catch (OwServerConnectionException ex) {
+        logger.warn("No connection available for alarm scan of bus '{}' on Owserver at {}:{} with adapter id \"{}\".", bus.getName(), this.host, this.port, this.getId(), ex);
+        return;
+      }
 
-        fastDevices = allDevices.stream().filter(d -> !d.getJsonObject("typeInfo").containsKey("alarmingMask")).collect(Collectors.toList()); // We exclude devices that read their values using a alarm handler from this list.
-        fastDevices.removeAll(temperatureDevices);
-        fastDevices.removeAll(voltageDevices);
+      try {
+        scanAlarmingDevices(bus, connection, alarmDevices);
+      } catch (OwServerUnavailableException ex) {
+        logger.debug("Skipping alarm scan of bus '{}', Owserver at {}:{} with adapter id \"{}\" is unavailable.", bus.getName(), this.host, this.port, this.getId());
       } catch (Exception ex) {
-        logger.error("Failed to parse list of devices in mainloop. Adapter will not function properly!", ex);
-        throw ex;
+        // Never let an exception escape, that would stop all future scans.
+        logger.error("Alarm scan of bus '{}' failed on Owserver at {}:{} with adapter id \"{}\".", bus.getName(), this.host, this.port, this.getId(), ex);
+      } finally {
+        connectionPool.release(connection);
       }
+    };
+  }
+
+  /**
+   * Read all alarm monitored devices on a bus that have raised an alarm since last scan, and all that have not yet been read at all.
+   *
+   * Instead of polling every switch each cycle we let owserver do a conditional search on the bus (the "alarm" directory), only devices whose latches have
+   * been set since they were last reset answers this search. Latches are reset before the values are read, so a change that happens during the read will
+   * raise a new alarm instead of getting lost.
+   *
+   * @param bus bus to scan for alarms.
+   * @param connection connection to Owserver to use.
+   * @param alarmDevices all alarm monitored devices on bus.
+   */
+  private void scanAlarmingDevices(OwBus bus, OwServerConnection connection, Set<OwDevice> alarmDevices) {
+    // Owserver may return null or empty entries when the conditional search is disturbed, so these are skipped.
+    List<String> alarming = connection.listAlarmingDevices(bus.getPath()).stream()
+        .filter(d -> d != null && !d.isEmpty())
+        .collect(Collectors.toList());
+
+    // Look up each alarming device by its hwId, instead of matching the listing against every device on the bus. Devices in quarantine are left alone.
+    long now = System.nanoTime();
+    Set<OwDevice> devices = new LinkedHashSet<>();
+    for (OwDevice device : bus.getUnreadAlarmDevices()) {
+      if (!bus.getQuarantine().isQuarantined(device.getHwId(), now)) {
+        devices.add(device);
+      }
+    }
+    for (String hwId : parseDeviceAddresses(alarming).keySet()) {
+      OwDevice device = bus.getDevice(hwId);
+
+      if (device != null && alarmDevices.contains(device) && !bus.getQuarantine().isQuarantined(hwId, now)) {
+        devices.add(device);
+      }
+    }
+
+    if (devices.isEmpty()) {
+      return;
+    }
+
+    logger.debug("{} device(s) alarming on bus '{}' on Owserver at {}:{} with adapter id \"{}\".", devices.size(), bus.getName(), this.host, this.port, this.getId());
+
+    Map<String, String> resets = new LinkedHashMap<>();
+    for (OwDevice device : devices) {
+      if (device.getType().getAlarmResetPath() != null) {
+        resets.put(device.getPath() + device.getType().getAlarmResetPath(), "0");
+      }
+    }
+    int failedResets = connection.writeMany(resets).size();
+    telemetry.countWrites(resets.size() - failedResets, failedResets);
+
+    Map<String, String> values = readValues(connection, devices);
+    boolean blameDevices = isDevicesToBlame(devices, values);
+    long time = currentEpochNanos();
+    telemetry.countReads(values.size(), devices.size() - values.size());
+
+    for (OwDevice device : devices) {
+      String value = values.get(device.getReadPath());
+
+      if (value == null) {
+        logger.error("Failed to read alarming device '{}' on Owserver at {}:{} with adapter id \"{}\".", device.getHwId(), this.host, this.port, this.getId());
+
+        if (blameDevices) {
+          recordDeviceFailure(bus, device);
+        }
+      } else {
+        recordDeviceSuccess(bus, device);
+        recordReading(device, value, time);
+        bus.setAlarmDeviceRead(device);
+      }
+    }
+  }
+
+  /**
+   * Internal running thread for executing commands and polling a 1-wire bus. Runs until the thread is interrupted, between each run the thread parks until
+   * the next device is due or a command is queued.
+   *
+   * @param bus bus to poll.
+   * @return Task to run in threadpool.
+   */
+  private Runnable mainloopTask(OwBus bus) {
 
+    Runnable task = () -> {
+      long wakeupTime;
+
+      while (!Thread.currentThread().isInterrupted()) {
+        // If something goes wrong, try again in a while.
+        wakeupTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1000);
+
+        try {
+          // While Owserver is unavailable we just wait, the circuit breaker wakes us up when it's time to try again.
+          if (connectionPool.getCircuitBreaker().isAvailable()) {
+            OwServerConnection connection = connectionPool.acquire();
+
+            try {
+              wakeupTime = mainloop(bus, connection);
+            } finally {
+              connectionPool.release(connection);
+            }
+          }
+        } catch (OwServerUnavailableException ex) {
+          logger.info("Owserver at {}:{} with adapter id \"{}\" became unavailable during run for bus '{}'.", this.host, this.port, this.getId(), bus.getName());
+        } catch (OwServerConnectionException ex) {
+          logger.warn("No connection available for bus '{}' on Owserver at {}:{} with adapter id \"{}\", skipping this run.", bus.getName(), this.host, this.port, this.getId(), ex);
+        } catch (Exception ex) {
+          logger.error("Mainloop failed for bus '{}' on Owserver at {}:{} with adapter id \"{}\".", bus.getName(), this.host, this.port, this.getId(), ex);
+        }
+
+        try {
+          bus.awaitWork(wakeupTime);
+        } catch (InterruptedException ex) {
+          // Adapter is shutting down.
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+
+    return task;
+  }
+
+  /**
+   * One run of the mainloop for a bus, executing commands and polling devices that are due.
+   *
+   * @param bus bus to poll.
+   * @param connection connection to Owserver to use, reserved for this bus during the run.
+   * @return time when next run is due, in System.nanoTime() units.
+   */
+  private long mainloop(OwBus bus, OwServerConnection connection) {
+
+    /*
+              Ok so what is all this you say?
+              We have just fetched a list of all our 1-wire devices and are just about to iterate thought them all to collect their current values, but there is something we may want to do first...
+              Most 1-wire devices are fairly fast to read from, the exception is temperature sensors and A/D-converters. The common used DS18S20 temperature sensor takes about 700 ms for each reading,
+              normally they are all read by OWFS in a serial fassion which means that we query a sensor for its current readings, the query is blocked for the conversiontime of 700 ms and then we receive the result.
+              For a 1-wire network of nineteen DS18S20 sensors a full reading of all devices will take at least 19x700 ms, which is quite a long time to hog the 1-wire bus if you have other queued operations to execute on the bus.
+              To ease this, the 1-wire protocol support the "Skip ROM" command which enable OWFS to start the conversion of ALL termperature sensors (and A/D-converters a.k.a DS2450) at the same time.
+              We then need to wait about 700 ms to let the conversion take place and after that we can iterate throught all sensors and collect all readings very fast, this makes this a more O(1) operation than a O(n), in best cases at least.
+
+              So what's the catch, well we have to write to "/simultaneous/temperature" and "/simultaneous/voltage" each time we want to start initiate a conversion if there exists any temperature sensors or A/D  converters on the 1-wire bus.
+              For the simultaneous reading to work all temperature sensors NEED to be powered, having the Vcc, Data, and GND-lines connected. OWFS will scan the bus and if ANY temperature sensors are running in "parasitic"-mode then ALL reading will happen in serial (take many seconds).
+              A fairly new version of OWFS is needed to be installed for this to work. See: http://owfs-developers.1086194.n5.nabble.com/Missing-data-td10904i20.html
+
+              This is the mainloop that polls for devicereadings and execute queued commands on the 1-write bus.
+              Every device has its own deadline for when it should be sampled next, the sample delay is taken from the devicetype ("minSampleDelay") and could be raised per device in the adapter settings.
+              We start by sending any queued commands to the bus, that is commands that change a pin or state on a device, this is a farily fast operation and this is usually a operation where users expect fast feedback/low delay.
+              Then we pick the devices that are due and separate them into different lists, one for slow temperature-sensors, one for slow voltage-sensors, and a list of other devices that we concider fast.
+              Parasitic powered temperature sensors get a lane of their own. They are left out of the simultaneous conversion and read one at a time with a conversion of their own, at most
+              PARASITIC_READS_PER_CYCLE per run, so a badly wired sensor only delays itself instead of every powered sensor on the bus.
+              Then we trigger the start of conversion for thos slow temperature and voltage sensors, if we have any due, then we read all fast devices while the slow ones doing their work.
+              While waiting for the conversion to finish we execute queued commands as soon as they arrive, then we read all slow devices.
+              A device that fails several reads in a row is put in quarantine and is not due again until the quarantine is over, then it gets a single probation read.
+              When done, the thread parks until the next device is due or until a command is queued, so a slow-changing sensor never eats bus time it doesn't need.
+
+              Even now and then we scan the bus for new/removed devices, a busscan is a slow fragile operation that we don't want to execute too often.
+     */
+    OwSampleScheduler scheduler = bus.getSampleScheduler();
+    List<OwDevice> dueDevices, temperatureDevices, voltageDevices, fastDevices, parasiticDevices;
+    Instant startExecutionTime, stepTime;
+    Duration simultaneousWrittenDuration, fastDevicesReadDuration, temperatureDevicesDuration, voltageDevicesDuration, parasiticDevicesDuration, busScanDuration;
+    long now, conversionDoneTime, busScanTime, nextDueTime;
+
+    startExecutionTime = Instant.now();
+    bus.setCommandsWrittenDuration(Duration.ZERO);
+    simultaneousWrittenDuration = Duration.ZERO;
+    busScanDuration = Duration.ZERO;
+
+    // Execute possible queued commands.
+    executeQueuedCommands(bus, connection);
+
+    // Devices restored from the inventory are setup before they are read the first time.
+    setupPendingDevices(bus, connection);
+
+    now = System.nanoTime();
+    try {
+      // Devices found since last run are due at once.
+      dueDevices = new ArrayList<>();
+      for (Set<OwDevice> polledDevices : Arrays.asList(bus.getFastDevices(), bus.getTemperatureDevices(), bus.getVoltageDevices(), bus.getParasiticDevices())) {
+        for (OwDevice device : polledDevices) {
+          if (!scheduler.contains(device.getHwId())) {
+            scheduler.schedule(device.getHwId(), now);
+          }
+        }
+      }
+
+      temperatureDevices = new ArrayList<>();
+      voltageDevices = new ArrayList<>();
+      fastDevices = new ArrayList<>();
+      parasiticDevices = new ArrayList<>();
+
+      for (String hwId : scheduler.pollDue(now)) {
+        OwDevice device = deviceLookup.get(hwId);
+
+        // Device may have been removed since it was scheduled.
+        if (device != null && bus.getDevices().contains(device)) {
+          if (bus.getParasiticDevices().contains(device)) {
+            if (parasiticDevices.size() < PARASITIC_READS_PER_CYCLE) {
+              parasiticDevices.add(device);
+              dueDevices.add(device);
+            } else {
+              // Stays due, it will be read in one of the following runs.
+              scheduler.schedule(hwId, now);
+            }
+            continue;
+          }
+
+          dueDevices.add(device);
+
+          if (bus.getTemperatureDevices().contains(device)) {
+            temperatureDevices.add(device);
+          } else if (bus.getVoltageDevices().contains(device)) {
+            voltageDevices.add(device);
+          } else if (bus.getFastDevices().contains(device)) {
+            fastDevices.add(device);
+          }
+        }
+      }
+    } catch (Exception ex) {
+      logger.error("Failed to parse list of devices in mainloop. Adapter will not function properly!", ex);
+      throw ex;
+    }
+
+    if (temperatureDevices.size() > 0 || voltageDevices.size() > 0) {
       stepTime = Instant.now();
       try {
         if (temperatureDevices.size() > 0) {
-          // If temperature sensors exists, start a simultaneous conversion on all of them.
-          owserverConnection.write("/simultaneous/temperature", "1");
+          // If temperature sensors are due, start a simultaneous conversion on all of them.
+          connection.write(bus.getPath() + "/simultaneous/temperature", "1");
+          telemetry.countWrites(1, 0);
         }
 
         if (voltageDevices.size() > 0) {
-          // If voltage sensors exists, start a simultaneous conversion on all of them.
-          owserverConnection.write("/simultaneous/voltage", "1");
+          // If voltage sensors are due, start a simultaneous conversion on all of them.
+          connection.write(bus.getPath() + "/simultaneous/voltage", "1");
+          telemetry.countWrites(1, 0);
         }
       } catch (OwServerConnectionException ex) {
-        logger.warn("Failed to initiate simultaneous readings of devices on Owserver at {}:{} with adapter id \"{}\". This may slow down adapter readings alot!", this.host, this.port, this.getId(), ex);
+        telemetry.countWrites(0, 1);
+        logger.warn("Failed to initiate simultaneous readings of devices on bus '{}' on Owserver at {}:{} with adapter id \"{}\". This may slow down adapter readings alot!", bus.getName(), this.host, this.port, this.getId(), ex);
       }
       simultaneousWrittenDuration = Duration.between(stepTime, Instant.now());
+      telemetry.record(OwTelemetry.Phase.SIMULTANEOUS, simultaneousWrittenDuration.toNanos());
+    }
+    conversionDoneTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(getConversionDelay(temperatureDevices), getConversionDelay(voltageDevices)));
 
-      // Execute possible queued commands.
-      Instant commandsWrittenTime = Instant.now();
-      executeQueuedCommands();
-      commandsWrittenDuration.plus(Duration.between(commandsWrittenTime, Instant.now()));
+    // Collect readings on all due 1-wire devices that are quite fast
+    stepTime = Instant.now();
+    collectDevicesReadings(bus, connection, fastDevices);
+    fastDevicesReadDuration = Duration.between(stepTime, Instant.now());
 
-      // Collect readings on all 1-wire devices that are quite fast
-      stepTime = Instant.now();
-      collectDevicesReadings(fastDevices);
-      fastDevicesReadDuration = Duration.between(stepTime, Instant.now());
+    if (temperatureDevices.size() > 0 || voltageDevices.size() > 0) {
+      // Make sure we wait since we started conversion to be sure that sensors have sampled a new value, but don't let queued commands wait for it.
+      if (conversionDoneTime - System.nanoTime() > 0) {
+        logger.debug("Waiting additional {} miliseconds for conversion to finish on bus '{}' on Owserver at {}:{} with adapter id \"{}\".", TimeUnit.NANOSECONDS.toMillis(conversionDoneTime - System.nanoTime()), bus.getName(), this.host, this.port, this.getId());
+      }
 
-      // Make sure we wait 800 ms since we started conversion to be sure that sensors have sampled a new temperature.
-      long timeLeftToConvert = 800 - Duration.between(startExecutionTime.plus(simultaneousWrittenDuration), Instant.now()).toMillis();
-      if (timeLeftToConvert > 0) {
-        logger.debug("Waiting additional {} miliseconds for conversion to finish on Owserver at {}:{} with adapter id \"{}\".", timeLeftToConvert, this.host, this.port, this.getId());
+      while (conversionDoneTime - System.nanoTime() > 0) {
         try {
-          Thread.sleep(timeLeftToConvert);
+          bus.awaitWork(conversionDoneTime);
         } catch (InterruptedException ex) {
-          // Ignore.
+          Thread.currentThread().interrupt();
+          break;
         }
+
+        executeQueuedCommands(bus, connection);
       }
+    }
 
-      // Collect readings on all temperature devices. Hopefully they are all done after the simultaneous conversion.
-      stepTime = Instant.now();
-      collectDevicesReadings(temperatureDevices);
-      temperatureDevicesDuration = Duration.between(stepTime, Instant.now());
+    // Collect readings on all due temperature devices. Hopefully they are all done after the simultaneous conversion.
+    stepTime = Instant.now();
+    collectDevicesReadings(bus, connection, temperatureDevices);
+    temperatureDevicesDuration = Duration.between(stepTime, Instant.now());
+
+    // Collect readings on all due voltage devices. Hopefully they are all done after the simultaneous conversion.
+    stepTime = Instant.now();
+    collectDevicesReadings(bus, connection, voltageDevices);
+    voltageDevicesDuration = Duration.between(stepTime, Instant.now());
+
+    // Collect readings on parasitic powered temperature sensors, each one does a conversion of its own while holding the bus.
+    stepTime = Instant.now();
+    collectDevicesReadings(bus, connection, parasiticDevices);
+    parasiticDevicesDuration = Duration.between(stepTime, Instant.now());
+
+    // Schedule next sample for all devices we just read, devices put in quarantine are not due until their quarantine is over.
+    for (OwDevice device : dueDevices) {
+      long dueTime = now + TimeUnit.MILLISECONDS.toNanos(device.getSampleDelay());
+      scheduler.schedule(device.getHwId(), bus.getQuarantine().getReleaseTime(device.getHwId(), dueTime));
+    }
+
+    // Scan the bus when it's time to, when someone asks for it (but not too often), or when a cheap probe indicates that devices have been added or removed.
+    long currentTime = System.currentTimeMillis();
+    boolean busScanDue = currentTime - bus.getLastBusScanRun() > bus.getBusScanDelay()
+        || (bus.isBusScanRequested() && currentTime - bus.getLastBusScanRun() > MIN_BUS_SCAN_DELAY);
+
+    if (!busScanDue && currentTime - bus.getLastPresenceProbe() > POLL_PRESENCE_DELAY) {
+      bus.setLastPresenceProbe(currentTime);
+      busScanDue = hasPresenceChanged(bus, connection);
+    }
 
-      // Collect readings on all voltage devices. Hopefully they are all done after the simultaneous conversion.
+    if (busScanDue) {
+      bus.setLastBusScanRun(currentTime);
+      bus.setLastPresenceProbe(currentTime);
+      bus.setBusScanRequested(false);
       stepTime = Instant.now();
-      collectDevicesReadings(voltageDevices);
-      voltageDevicesDuration = Duration.between(stepTime, Instant.now());
+      scanAvailableDevices(bus, connection);
+      busScanDuration = Duration.between(stepTime, Instant.now());
 
-      if (System.currentTimeMillis() - lastBusScanRun > POLL_PRESENCE_DELAY) {
-        lastBusScanRun = System.currentTimeMillis();
-        stepTime = Instant.now();
-        scanAvailableDevices();
-        busScanDuration = Duration.between(stepTime, Instant.now());
+      telemetry.record(OwTelemetry.Phase.BUS_SCAN, busScanDuration.toNanos());
 
-        // Execute possible queued commands after a long bus scan.
-        commandsWrittenTime = Instant.now();
-        executeQueuedCommands();
-        commandsWrittenDuration.plus(Duration.between(commandsWrittenTime, Instant.now()));
-      }
+      // Execute possible queued commands after a long bus scan.
+      executeQueuedCommands(bus, connection);
+    }
 
-      logger.debug("Mainloop execution statistics: total {}ms, command {}ms, simultaneous {}ms, fastdevices {}ms, temperaturedevices {}ms, voltagedevices {}ms, busscan {}ms.", Duration.between(startExecutionTime, Instant.now()), commandsWrittenDuration, simultaneousWrittenDuration, fastDevicesReadDuration, temperatureDevicesDuration, voltageDevicesDuration, busScanDuration);
+    if (!fastDevices.isEmpty()) {
+      telemetry.record(OwTelemetry.Phase.FAST_DEVICES, fastDevicesReadDuration.toNanos());
+    }
+    if (!temperatureDevices.isEmpty()) {
+      telemetry.record(OwTelemetry.Phase.TEMPERATURE_DEVICES, temperatureDevicesDuration.toNanos());
+    }
+    if (!voltageDevices.isEmpty()) {
+      telemetry.record(OwTelemetry.Phase.VOLTAGE_DEVICES, voltageDevicesDuration.toNanos());
+    }
+    if (!parasiticDevices.isEmpty()) {
+      telemetry.record(OwTelemetry.Phase.PARASITIC_DEVICES, parasiticDevicesDuration.toNanos());
+    }
+    if (!bus.getCommandsWrittenDuration().isZero()) {
+      telemetry.record(OwTelemetry.Phase.COMMANDS, bus.getCommandsWrittenDuration().toNanos());
+    }
 
-      // If mainloop has run too fast, like when we have no devices connected, insert a artificial delay to not hog the CPU.
-      if (Duration.between(startExecutionTime, Instant.now()).toMillis() < 100) {
-        try {
-          Thread.sleep(300);
-        } catch (InterruptedException ex) {
-          // Do nothing.
-        }
-      }
-    };
+    // Runs that only woke up to find nothing to do are left out, they would only hide the real cycle times.
+    if (!dueDevices.isEmpty() || busScanDue || !bus.getCommandsWrittenDuration().isZero()) {
+      Duration totalDuration = Duration.between(startExecutionTime, Instant.now());
+      telemetry.record(OwTelemetry.Phase.CYCLE, totalDuration.toNanos());
 
-    return task;
+      logger.debug("Mainloop execution statistics for bus '{}': total {}ms, due devices {}, command {}ms, simultaneous {}ms, fastdevices {}ms, temperaturedevices {}ms, voltagedevices {}ms, parasiticdevices {}ms, busscan {}ms.", bus.getName(), totalDuration.toMillis(), dueDevices.size(), bus.getCommandsWrittenDuration().toMillis(), simultaneousWrittenDuration.toMillis(), fastDevicesReadDuration.toMillis(), temperatureDevicesDuration.toMillis(), voltageDevicesDuration.toMillis(), parasiticDevicesDuration.toMillis(), busScanDuration.toMillis());
+    }
+
+    // Next run is when the next device is due, or the next bus scan or presence probe should be run, whatever comes first.
+    busScanTime = Math.min(bus.getLastBusScanRun() + bus.getBusScanDelay(), bus.getLastPresenceProbe() + POLL_PRESENCE_DELAY);
+    busScanTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, busScanTime - System.currentTimeMillis()));
+    nextDueTime = scheduler.nextDueTime(busScanTime);
+
+    return nextDueTime - busScanTime < 0 ? nextDueTime : busScanTime;
   }
 
   /**
@@ -804,15 +1898,17 @@ public class OwfsAdapter extends AbstractAdapter {
   private JsonArray getAvailableDevices() {
     JsonArray result = new JsonArray();
 
-    List<JsonObject> deviceList = deviceLookup.values().stream().sorted(comparing((JsonObject d) -> d.getString("type"))
-        .thenComparing((JsonObject d) -> d.getString("name")))
+    List<OwDevice> deviceList = deviceLookup.values().stream().sorted(comparing((OwDevice d) -> d.getType().getTypeId())
+        .thenComparing((OwDevice d) -> d.getName()))
         .collect(Collectors.toList());
-    for (JsonObject device : deviceList) {
+    for (OwDevice device : deviceList) {
       result.add(
           new JsonObject()
-          .put("hwId", device.getString("hwId"))
-          .put("type", device.getString("type"))
-          .put("name", device.getString("name"))
+          .put("hwId", device.getHwId())
+          .put("type", device.getType().getTypeId())
+          .put("name", device.getName())
+          .put("resolution", device.getResolution())
+          .put("parasitic", device.isParasitic())
       );
     }
 
@@ -840,59 +1936,55 @@ public class OwfsAdapter extends AbstractAdapter {
       return;
     }
 
-    message.reply(this.constructReply(this.getDeviceValue(hwId)));
+    message.reply(this.constructReply(this.getDeviceValue(hwId, params.getBoolean("samples", false))));
   }
 
   /**
-   * Read value from device with specified hwId.
+   * Read value from device with specified hwId. For devices with an aggregation window the summary of the current window is included, and on request the
+   * last raw samples.
    *
    * @param hwId Id on device
+   * @param includeSamples whether to include the last raw samples of devices with an aggregation window.
    * @return device last recorded value.
    * @throws DeviceMissingException throws exception if specified device does not exist.
    */
-  private JsonObject getDeviceValue(String hwId) throws DeviceMissingException {
+  private JsonObject getDeviceValue(String hwId, boolean includeSamples) throws DeviceMissingException {
 
     if (hwId == null || !deviceLookup.containsKey(hwId)) {
       throw new DeviceMissingException("Trying to perform a action on a non existing device.", hwId);
     }
 
-    // Check if child device.
-    if (!hwId.contains(CHILDSEPARATOR)) {
-      JsonObject reading = this.deviceReadings.get(hwId);
-
-      JsonObject response = new JsonObject()
-          .put("reading", reading);
-
-      return response;
-    } else {
-
-      JsonObject response;
-      JsonObject reading = this.deviceReadings.get(hwId.split(CHILDSEPARATOR)[0]); // Get value from parent.
-
-      if (reading == null) {
+    OwDevice device = deviceLookup.get(hwId);
+    OwDeviceState state = device.getState();
+    JsonObject reading = null;
 
-        response = new JsonObject().put("reading", (JsonObject) null);
-
-      } else {
-
-        int index = Integer.parseInt(hwId.split(CHILDSEPARATOR)[1]) - 1;         // Get child idsuffix.
-
-        String value = reading.getJsonObject("lastReading").getString("value").split(",")[index];  // Get child reading from parent reading.
-
-        response = new JsonObject()
-            .put("reading", new JsonObject()
+    synchronized (state) {
+      if (state.hasValue()) {
+        // Child devices get their value from the reading of the parent.
+        reading = new JsonObject()
+            .put("lastReading", new JsonObject()
                 .put("hwId", hwId)
-                .put("time", reading.getJsonObject("lastReading").getString("time"))
-                .put("value", value)
+                .put("time", OwDeviceState.formatTime(state.getTime()))
+                .put("value", device.isChild() ? state.getChildValue(device.getChildSlot().getIndex()) : state.getValue())
             );
       }
+    }
 
-      return response;
+    OwAggregator aggregator = device.getAggregator();
+    if (reading != null && aggregator != null) {
+      int slot = device.isChild() ? device.getChildSlot().getIndex() : 0;
+      reading.put("aggregate", aggregator.getOpenWindow(slot));
+
+      if (includeSamples) {
+        reading.put("samples", aggregator.getSamples(slot));
+      }
     }
+
+    return new JsonObject().put("reading", reading);
   }
 
   /**
-   * Set value on device with specified hwId.
+   * Set value on device with specified hwId. Replies when the command has been queued, and fails with code 503 if the command queue of the bus is full.
    *
    * @param message eventbus message.
    * @throws DeviceMissingException throws exception if specified device does not exist.
@@ -908,6 +2000,7 @@ public class OwfsAdapter extends AbstractAdapter {
     JsonObject params = (JsonObject) message.body();
     String hwId = params.getString("hwId");
     String value = params.getString("value");
+    OwCommandQueue.Priority priority = OwCommandQueue.Priority.fromName(params.getString("priority"));
 
     if (hwId == null || hwId.isEmpty()) {
       message.fail(400, "Missing parameter 'hwId'.");
@@ -918,7 +2011,13 @@ public class OwfsAdapter extends AbstractAdapter {
       return;
     }
 
-    this.setDeviceValue(hwId, value);
+    if (!this.setDeviceValue(hwId, value, priority)) {
+      message.fail(503, "Command queue is full.");
+      return;
+    }
+
+    // The value is written by the mainloop of the bus, so we only know that the command has been queued.
+    message.reply(this.constructReply(new JsonObject().put("hwId", hwId).put("value", value)));
   }
 
   /**
@@ -926,50 +2025,33 @@ public class OwfsAdapter extends AbstractAdapter {
    *
    * @param hwId Id on device
    * @param value value to set on device.
+   * @param priority priority of command.
+   * @return false if command was rejected because the command queue of the bus is full.
    * @throws DeviceMissingException throws exception if specified device does not exist.
    * @throws OwServerConnectionException throws exception if command fails for any reason.
    */
-  private void setDeviceValue(String hwId, String value) throws DeviceMissingException, OwServerConnectionException {
+  private boolean setDeviceValue(String hwId, String value, OwCommandQueue.Priority priority) throws DeviceMissingException, OwServerConnectionException {
 
     if (hwId == null || !deviceLookup.containsKey(hwId)) {
       throw new DeviceMissingException("Trying to perform a action on a non existing device.", hwId);
     }
 
-    if (hwId.contains(CHILDSEPARATOR)) {
-
-      String parentId = hwId.split(CHILDSEPARATOR)[0];
-      String childSuffix = hwId.split(CHILDSEPARATOR)[1];
-      JsonObject parentDevice = deviceLookup.get(parentId);
-      JsonObject typeInfo = parentDevice.getJsonObject("typeInfo");
-
-      if (typeInfo == null) {
-        throw new OwServerConnectionException(String.format("typeInfo missing for device with type '%s'", parentDevice.getString("type")));
-      }
+    OwDevice device = deviceLookup.get(hwId);
 
-      JsonArray childDevices = typeInfo.getJsonArray("childDevices");
-      if (childDevices != null && childDevices.size() > 0) {
-        String writePath = childDevices.stream().filter(t -> t instanceof JsonObject).map(t -> (JsonObject) t).filter((d) -> d.getString("idSuffix").equals(childSuffix)).map((cd) -> cd.getString("valueWritePath")).findFirst().get();
-        writePath = parentDevice.getString("path") + writePath;
+    // Fail at once instead of queueing a command that can't be executed until Owserver is back.
+    connectionPool.getCircuitBreaker().checkNotOpen();
 
-        // Queue command. Record time so we could measure how long command has been queued before executed, if we want to.
-        this.commandQueue.offer(new JsonObject().put("path", writePath).put("value", value).put("nanoTime", System.nanoTime()));
-      }
-
-    } else {
-
-      JsonObject device = deviceLookup.get(hwId);
-      JsonObject typeInfo = device.getJsonObject("typeInfo");
-
-      if (typeInfo == null) {
-        throw new OwServerConnectionException(String.format("typeInfo missing for device with type '%s'", device.getString("type")));
-      }
-      // Check if this type of device is writable.
-      if (typeInfo.containsKey("valueWritePath")) {
-        String writePath = device.getString("path") + typeInfo.getString("valueWritePath");
-
-        // Queue command. Record time so we could measure how long command has been queued before executed, if we want to.
-        this.commandQueue.offer(new JsonObject().put("path", writePath).put("value", value).put("nanoTime", System.nanoTime()));
+    // Check if this type of device is writable, paths to child devices are relative to their parent.
+    if (device.getWritePath() != null) {
+      // Queue command on the bus the device is connected to, a waiting command to the same path gets replaced.
+      OwBus bus = buses.get(device.getBus());
+      if (!bus.getCommandQueue().offer(device.getWritePath(), value, priority)) {
+        logger.warn("Command queue for bus '{}' is full, rejected writing value {} to device '{}' on Owserver at {}:{} with adapter id \"{}\".", bus.getName(), value, device.getWritePath(), this.host, this.port, this.getId());
+        return false;
       }
+      bus.wakeUp();
     }
+
+    return true;
   }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonObject;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable rules for how a property of a device is read, straight from the 1-wire bus, from the cache of Owserver, or from the adapters own cache.
+ *
+ * Reading a "/uncached" path always talks to the device, and occupies the bus for the whole transaction. Most properties are read this way since we want
+ * fresh values, but static properties like "/type" and "/family" never change, and "/power" only changes if someone rewires the device, so reading them
+ * from a cache leaves more bus time to the sensors that matter.
+ *
+ * @author Henrik Östman
+ */
+public final class ReadPolicy {
+
+  /**
+   * Where a value is read from.
+   */
+  public enum Mode {
+    /**
+     * Always read from the device, using the "/uncached" path.
+     */
+    UNCACHED("uncached"),
+    /**
+     * Read from the cache of Owserver, but read from the device at least once every max age.
+     */
+    OWSERVER_CACHED("owserverCached"),
+    /**
+     * Read from the cache of the adapter, the value is only read from the device when it is missing or older than max age.
+     */
+    ADAPTER_CACHED("adapterCached");
+
+    /**
+     * Name used in settings.
+     */
+    private final String jsonName;
+
+    /**
+     * Constructor
+     *
+     * @param jsonName name used in settings.
+     */
+    Mode(String jsonName) {
+      this.jsonName = jsonName;
+    }
+
+    /**
+     * Get mode by its name in settings.
+     *
+     * @param jsonName name used in settings, case is ignored.
+     * @return mode.
+     * @throws IllegalArgumentException if name is unknown.
+     */
+    static Mode fromJsonName(String jsonName) {
+      for (Mode mode : values()) {
+        if (mode.jsonName.toLowerCase(Locale.ENGLISH).equals(jsonName.toLowerCase(Locale.ENGLISH))) {
+          return mode;
+        }
+      }
+
+      throw new IllegalArgumentException(String.format("Unknown read mode '%s'.", jsonName));
+    }
+  }
+
+  /**
+   * Always read from the device, same as if there was no policy at all.
+   */
+  public final static ReadPolicy UNCACHED = new ReadPolicy(Mode.UNCACHED, 0);
+
+  /**
+   * Where value is read from.
+   */
+  private final Mode mode;
+  /**
+   * Longest time a cached value is used (nanoseconds), 0 for no limit.
+   */
+  private final long maxAge;
+
+  /**
+   * Default constructor
+   *
+   * @param mode where value is read from.
+   * @param maxAge longest time a cached value is used (milliseconds), 0 for no limit. Ignored for uncached reads.
+   */
+  public ReadPolicy(Mode mode, long maxAge) {
+    this.mode = mode;
+    this.maxAge = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxAge));
+  }
+
+  /**
+   * Create a policy from settings, settings that are left out are taken from a default policy.
+   *
+   * @param json settings with the optional keys "mode" ("uncached", "owserverCached" or "adapterCached") and "maxAge" (milliseconds).
+   * @param defaults policy to take missing settings from.
+   * @return new policy, or defaults if json is null.
+   */
+  public static ReadPolicy fromJson(JsonObject json, ReadPolicy defaults) {
+    if (json == null) {
+      return defaults;
+    }
+
+    return new ReadPolicy(
+        json.containsKey("mode") ? Mode.fromJsonName(json.getString("mode")) : defaults.getMode(),
+        json.getLong("maxAge", TimeUnit.NANOSECONDS.toMillis(defaults.maxAge)));
+  }
+
+  /**
+   * Get where value is read from.
+   *
+   * @return mode.
+   */
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Get longest time a cached value is used.
+   *
+   * @return age in nanoseconds, 0 for no limit.
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Get policy as settings, the same format as fromJson() takes.
+   *
+   * @return settings.
+   */
+  public JsonObject toJson() {
+    return new JsonObject()
+        .put("mode", mode.jsonName)
+        .put("maxAge", TimeUnit.NANOSECONDS.toMillis(maxAge));
+  }
+
+  /**
+   * Get the path that reads from the cache of Owserver instead of from the device.
+   *
+   * @param path path to read, with or without "/uncached".
+   * @return path without "/uncached".
+   */
+  static String cachedPath(String path) {
+    if (path.startsWith("/uncached")) {
+      String cached = path.substring("/uncached".length());
+      return cached.isEmpty() ? "/" : cached;
+    }
+
+    return path;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable rules for when a new reading of a device is worth publishing on the eventbus, so that the number of events follows meaningful changes instead of
+ * sensor noise.
+ *
+ * The dead-band is measured from the last published value, not from the last reading, so it also works as hysteresis: a DS18B20 flickering between 21.4375
+ * and 21.5 stays quiet until it has moved a whole dead-band away from what was last published. Values that are not numbers are published whenever the text
+ * changes.
+ *
+ * For chatty analog inputs an aggregation window could be set instead, then every sample is summed up in the adapter and only min, max, mean, last value and
+ * number of samples are published, once per window. The other rules are not used for such devices.
+ *
+ * @author Henrik Östman
+ */
+public final class ReportingPolicy {
+
+  /**
+   * Publish every change, same as if there was no policy at all.
+   */
+  public final static ReportingPolicy ALL_CHANGES = new ReportingPolicy(0, 0, 0, 0);
+
+  /**
+   * Smallest change of a numeric value, from the last published value, that is published. 0 to publish every change.
+   */
+  private final double deadBand;
+  /**
+   * Shortest time between two published readings (nanoseconds), changes in between are held back until the interval has passed. 0 for no limit.
+   */
+  private final long minPublishInterval;
+  /**
+   * Longest time without a published reading (nanoseconds), after this the current value is published even if it has not changed. 0 to never publish
+   * unchanged values.
+   */
+  private final long maxSilence;
+  /**
+   * Length of aggregation window (nanoseconds), 0 to publish single readings.
+   */
+  private final long aggregationWindow;
+
+  /**
+   * Default constructor
+   *
+   * @param deadBand smallest change of a numeric value that is published, 0 to publish every change.
+   * @param minPublishInterval shortest time between two published readings (milliseconds), 0 for no limit.
+   * @param maxSilence longest time without a published reading (milliseconds), 0 to never publish unchanged values.
+   * @param aggregationWindow length of aggregation window (milliseconds), 0 to publish single readings.
+   */
+  public ReportingPolicy(double deadBand, long minPublishInterval, long maxSilence, long aggregationWindow) {
+    this.deadBand = Math.max(0, deadBand);
+    this.minPublishInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minPublishInterval));
+    this.maxSilence = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxSilence));
+    this.aggregationWindow = TimeUnit.MILLISECONDS.toNanos(Math.max(0, aggregationWindow));
+  }
+
+  /**
+   * Create a policy from settings, settings that are left out are taken from a default policy.
+   *
+   * @param json settings with the optional keys "deadBand", "minPublishInterval" (milliseconds), "maxSilence" (milliseconds) and "aggregationWindow"
+   * (milliseconds).
+   * @param defaults policy to take missing settings from.
+   * @return new policy, or defaults if json is null.
+   */
+  public static ReportingPolicy fromJson(JsonObject json, ReportingPolicy defaults) {
+    if (json == null) {
+      return defaults;
+    }
+
+    return new ReportingPolicy(
+        json.getDouble("deadBand", defaults.getDeadBand()),
+        json.getLong("minPublishInterval", TimeUnit.NANOSECONDS.toMillis(defaults.minPublishInterval)),
+        json.getLong("maxSilence", TimeUnit.NANOSECONDS.toMillis(defaults.maxSilence)),
+        json.getLong("aggregationWindow", TimeUnit.NANOSECONDS.toMillis(defaults.aggregationWindow)));
+  }
+
+  /**
+   * Get smallest change of a numeric value that is published.
+   *
+   * @return dead-band, 0 if every change is published.
+   */
+  public double getDeadBand() {
+    return deadBand;
+  }
+
+  /**
+   * Get shortest time between two published readings.
+   *
+   * @return interval in nanoseconds, 0 for no limit.
+   */
+  public long getMinPublishInterval() {
+    return minPublishInterval;
+  }
+
+  /**
+   * Get longest time without a published reading.
+   *
+   * @return time in nanoseconds, 0 if unchanged values are never published.
+   */
+  public long getMaxSilence() {
+    return maxSilence;
+  }
+
+  /**
+   * Get length of aggregation window.
+   *
+   * @return length in nanoseconds, 0 if single readings are published.
+   */
+  public long getAggregationWindow() {
+    return aggregationWindow;
+  }
+
+  /**
+   * Whether readings are aggregated instead of published one by one.
+   *
+   * @return true if an aggregation window is set.
+   */
+  public boolean isAggregated() {
+    return aggregationWindow > 0;
+  }
+
+  /**
+   * Get policy as settings, the same format as fromJson() takes.
+   *
+   * @return settings.
+   */
+  public JsonObject toJson() {
+    return new JsonObject()
+        .put("deadBand", deadBand)
+        .put("minPublishInterval", TimeUnit.NANOSECONDS.toMillis(minPublishInterval))
+        .put("maxSilence", TimeUnit.NANOSECONDS.toMillis(maxSilence))
+        .put("aggregationWindow", TimeUnit.NANOSECONDS.toMillis(aggregationWindow));
+  }
+}
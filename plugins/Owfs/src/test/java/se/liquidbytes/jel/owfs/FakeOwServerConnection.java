@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connection that answers reads from a map of values instead of from Owserver, and remembers which paths were read.
+ *
+ * @author Henrik Östman
+ */
+class FakeOwServerConnection extends OwServerConnection {
+
+  /**
+   * Values to answer with, path as key. Paths not in here fail to be read.
+   */
+  private final Map<String, String> values;
+  /**
+   * Paths that have been read, in order.
+   */
+  private final List<String> readPaths;
+
+  /**
+   * Default constructor
+   */
+  FakeOwServerConnection() {
+    super("127.0.0.1", 4304);
+    this.values = new HashMap<>();
+    this.readPaths = new ArrayList<>();
+  }
+
+  /**
+   * Set value of a path.
+   *
+   * @param path path.
+   * @param value value.
+   * @return this connection, for chaining.
+   */
+  FakeOwServerConnection setValue(String path, String value) {
+    values.put(path, value);
+    return this;
+  }
+
+  /**
+   * Get paths that have been read, in order.
+   *
+   * @return paths.
+   */
+  List<String> getReadPaths() {
+    return readPaths;
+  }
+
+  @Override
+  public String read(String path) {
+    readPaths.add(path);
+
+    if (!values.containsKey(path)) {
+      throw new OwServerReplyException(String.format("No value for path '%s'.", path), 1);
+    }
+    return values.get(path);
+  }
+
+  @Override
+  public Map<String, String> readMany(List<String> paths) {
+    Map<String, String> result = new LinkedHashMap<>();
+
+    for (String path : paths) {
+      readPaths.add(path);
+
+      if (values.containsKey(path)) {
+        result.put(path, values.get(path));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Tests of the aggregation of readings into windows.
+ *
+ * @author Henrik Östman
+ */
+public class OwAggregatorTest {
+
+  /**
+   * Start of time in these tests (nanoseconds since epoch).
+   */
+  private final static long START = TimeUnit.SECONDS.toNanos(1500000000);
+  /**
+   * Length of aggregation window in these tests (nanoseconds).
+   */
+  private final static long WINDOW = TimeUnit.SECONDS.toNanos(60);
+
+  /**
+   * A window is summarized when it has run out, and the next sample starts a new window.
+   */
+  @Test
+  public void summarizesWindow() {
+    OwAggregator aggregator = new OwAggregator(2, WINDOW);
+
+    aggregator.add(0, 20.0, START);
+    aggregator.add(0, 22.0, START + TimeUnit.SECONDS.toNanos(20));
+    aggregator.add(0, Double.NaN, START + TimeUnit.SECONDS.toNanos(30));
+    aggregator.add(0, 21.0, START + TimeUnit.SECONDS.toNanos(40));
+    assertNull(aggregator.closeIfDone(START + TimeUnit.SECONDS.toNanos(40)));
+
+    JsonObject[] summaries = aggregator.closeIfDone(START + WINDOW);
+
+    assertNotNull(summaries);
+    assertEquals(3L, (long) summaries[0].getLong("count"));
+    assertEquals(20.0, summaries[0].getDouble("min"), 0);
+    assertEquals(22.0, summaries[0].getDouble("max"), 0);
+    assertEquals(21.0, summaries[0].getDouble("mean"), 0.000001);
+    assertEquals(21.0, summaries[0].getDouble("last"), 0);
+    assertEquals(OwDeviceState.formatTime(START), summaries[0].getString("start"));
+    // Slot without samples.
+    assertNull(summaries[1]);
+
+    assertNull(aggregator.closeIfDone(START + 2 * WINDOW));
+    aggregator.add(0, 10.0, START + 2 * WINDOW);
+    assertEquals(1L, (long) aggregator.getOpenWindow(0).getLong("count"));
+    assertEquals(10.0, aggregator.getOpenWindow(0).getDouble("min"), 0);
+  }
+
+  /**
+   * Raw samples are kept in a ring buffer, oldest first.
+   */
+  @Test
+  public void keepsLastRawSamples() {
+    OwAggregator aggregator = new OwAggregator(1, WINDOW);
+
+    for (int i = 0; i < 1030; i++) {
+      aggregator.add(0, i, START + i);
+    }
+
+    JsonArray samples = aggregator.getSamples(0);
+
+    assertEquals(1024, samples.size());
+    assertEquals(6.0, samples.getJsonObject(0).getDouble("value"), 0);
+    assertEquals(1029.0, samples.getJsonObject(1023).getDouble("value"), 0);
+  }
+}
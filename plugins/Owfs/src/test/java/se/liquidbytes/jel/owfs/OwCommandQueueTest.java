@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import se.liquidbytes.jel.owfs.OwCommandQueue.Command;
+import se.liquidbytes.jel.owfs.OwCommandQueue.Priority;
+
+/**
+ * Tests of the command queue of a bus.
+ *
+ * @author Henrik Östman
+ */
+public class OwCommandQueueTest {
+
+  /**
+   * User commands are executed before automation commands, and commands of the same priority in the order they were queued.
+   */
+  @Test
+  public void drainsUserCommandsFirst() {
+    OwCommandQueue queue = new OwCommandQueue(10);
+
+    assertTrue(queue.offer("/a", "1", Priority.AUTOMATION));
+    assertTrue(queue.offer("/b", "1", Priority.USER));
+    assertTrue(queue.offer("/c", "1", Priority.AUTOMATION));
+    assertTrue(queue.offer("/d", "1", Priority.USER));
+
+    List<Command> commands = queue.drain();
+
+    assertEquals(4, commands.size());
+    assertEquals("/b", commands.get(0).getPath());
+    assertEquals("/d", commands.get(1).getPath());
+    assertEquals("/a", commands.get(2).getPath());
+    assertEquals("/c", commands.get(3).getPath());
+    assertEquals(0, queue.size());
+  }
+
+  /**
+   * A later command to the same path replaces the waiting one, keeping the higher priority and the time the first command was queued.
+   */
+  @Test
+  public void coalescesCommandsToSamePath() throws InterruptedException {
+    OwCommandQueue queue = new OwCommandQueue(10);
+
+    queue.offer("/a", "1", Priority.USER);
+    long betweenOffers = System.nanoTime();
+    Thread.sleep(1);
+    queue.offer("/a", "0", Priority.AUTOMATION);
+
+    List<Command> commands = queue.drain();
+
+    assertEquals(1, commands.size());
+    assertEquals("0", commands.get(0).getValue());
+    assertEquals(Priority.USER, commands.get(0).getPriority());
+    assertTrue(commands.get(0).getQueuedTime() < betweenOffers);
+    assertEquals(1, queue.getCoalescedCount());
+  }
+
+  /**
+   * A full queue lets a user command push out the oldest automation command, but rejects commands that have nothing of lower priority to push out.
+   */
+  @Test
+  public void makesRoomForUserCommands() {
+    OwCommandQueue queue = new OwCommandQueue(2);
+
+    assertTrue(queue.offer("/a", "1", Priority.AUTOMATION));
+    assertTrue(queue.offer("/b", "1", Priority.AUTOMATION));
+    assertFalse(queue.offer("/c", "1", Priority.AUTOMATION));
+    assertTrue(queue.offer("/d", "1", Priority.USER));
+    assertTrue(queue.offer("/e", "1", Priority.USER));
+    assertFalse(queue.offer("/f", "1", Priority.USER));
+
+    List<Command> commands = queue.drain();
+
+    assertEquals(2, commands.size());
+    assertEquals("/d", commands.get(0).getPath());
+    assertEquals("/e", commands.get(1).getPath());
+    assertEquals(4, queue.getRejectedCount());
+  }
+
+  /**
+   * Sequence numbers tell the order commands were queued in, regardless of the order they are drained in.
+   */
+  @Test
+  public void numbersCommandsInQueueOrder() {
+    OwCommandQueue queue = new OwCommandQueue(10);
+
+    queue.offer("/a", "1", Priority.AUTOMATION);
+    queue.offer("/b", "1", Priority.USER);
+    queue.offer("/a", "0", Priority.AUTOMATION);
+
+    List<Command> commands = queue.drain();
+
+    assertEquals("/b", commands.get(0).getPath());
+    assertEquals("/a", commands.get(1).getPath());
+    assertTrue(commands.get(0).getSequence() < commands.get(1).getSequence());
+  }
+
+  /**
+   * Executed commands are measured per priority, and show up in the summary of the queue.
+   */
+  @Test
+  public void measuresLatency() {
+    OwCommandQueue queue = new OwCommandQueue(10);
+
+    queue.offer("/a", "1", Priority.USER);
+    queue.offer("/b", "1", Priority.AUTOMATION);
+    queue.drain().forEach(queue::recordExecuted);
+
+    assertEquals(1, queue.getLatency(Priority.USER).getCount());
+    assertEquals(1, queue.getLatency(Priority.AUTOMATION).getCount());
+    assertEquals(1L, (long) queue.toJson().getJsonObject("latency").getJsonObject("user").getLong("count"));
+    assertEquals(0, (int) queue.toJson().getInteger("waiting"));
+  }
+}
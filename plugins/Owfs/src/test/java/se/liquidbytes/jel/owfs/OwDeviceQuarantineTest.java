@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the quarantine of devices that stop answering.
+ *
+ * @author Henrik Östman
+ */
+public class OwDeviceQuarantineTest {
+
+  /**
+   * Hardware id used in tests.
+   */
+  private final static String HWID = "0000028F1A2B";
+
+  /**
+   * A device is put in quarantine after a few failures in a row, and released when it answers again.
+   */
+  @Test
+  public void quarantinesAfterRepeatedFailures() {
+    OwDeviceQuarantine quarantine = new OwDeviceQuarantine();
+    long now = 0;
+
+    assertEquals(0, quarantine.recordFailure(HWID, now));
+    assertEquals(0, quarantine.recordFailure(HWID, now));
+    assertFalse(quarantine.isQuarantined(HWID, now));
+    assertEquals(5000, quarantine.recordFailure(HWID, now));
+    assertTrue(quarantine.isQuarantined(HWID, now));
+    assertEquals(3, quarantine.getFailures(HWID));
+    assertEquals(1, quarantine.countQuarantined(now));
+
+    assertTrue(quarantine.recordSuccess(HWID));
+    assertFalse(quarantine.isQuarantined(HWID, now));
+    assertEquals(0, quarantine.getFailures(HWID));
+    assertFalse(quarantine.recordSuccess(HWID));
+  }
+
+  /**
+   * A device that fails its probation read after a quarantine goes back at once, for twice as long, up to a limit.
+   */
+  @Test
+  public void doublesQuarantineOnFailedProbation() {
+    OwDeviceQuarantine quarantine = new OwDeviceQuarantine();
+    long now = 0;
+
+    for (int i = 0; i < 3; i++) {
+      quarantine.recordFailure(HWID, now);
+    }
+    now = quarantine.getReleaseTime(HWID, now);
+    assertFalse(quarantine.isQuarantined(HWID, now));
+
+    assertEquals(10000, quarantine.recordFailure(HWID, now));
+    assertEquals(now + TimeUnit.MILLISECONDS.toNanos(10000), quarantine.getReleaseTime(HWID, now));
+
+    long duration = 0;
+    for (int i = 0; i < 20; i++) {
+      now = quarantine.getReleaseTime(HWID, now);
+      duration = quarantine.recordFailure(HWID, now);
+    }
+    assertEquals(300000, duration);
+  }
+
+  /**
+   * A removed device is forgotten.
+   */
+  @Test
+  public void forgetsRemovedDevice() {
+    OwDeviceQuarantine quarantine = new OwDeviceQuarantine();
+
+    for (int i = 0; i < 3; i++) {
+      quarantine.recordFailure(HWID, 0);
+    }
+    quarantine.remove(HWID);
+
+    assertFalse(quarantine.isQuarantined(HWID, 0));
+    assertEquals(0, quarantine.countQuarantined(0));
+    assertEquals(0, quarantine.getReleaseTime(HWID, 0));
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import org.junit.Test;
+
+/**
+ * Tests of how the state of a device decides which readings are published.
+ *
+ * @author Henrik Östman
+ */
+public class OwDeviceStateTest {
+
+  /**
+   * Start of time in these tests (nanoseconds since epoch).
+   */
+  private final static long START = TimeUnit.SECONDS.toNanos(1500000000);
+
+  /**
+   * The first reading is always published, after that only changes that move at least the dead-band away from the last published value.
+   */
+  @Test
+  public void publishesChangesOutsideDeadBand() {
+    OwDeviceState state = new OwDeviceState(DeviceDatabase.getDeviceType("DS18B20"));
+    ReportingPolicy policy = new ReportingPolicy(0.5, 0, 0, 0);
+
+    assertEquals(1L, publish(state, "20.0", START, policy));
+    assertEquals(0L, publish(state, "20.3", START + 1, policy));
+    assertEquals(0L, publish(state, "19.6", START + 2, policy));
+    // Dead-band is measured from last published value, not from last reading.
+    assertEquals(1L, publish(state, "20.6", START + 3, policy));
+    assertEquals(0L, publish(state, "20.6", START + 4, policy));
+  }
+
+  /**
+   * A change is not published sooner than the minimum publish interval, but is still published when the interval has passed.
+   */
+  @Test
+  public void holdsBackChangesWithinMinPublishInterval() {
+    OwDeviceState state = new OwDeviceState(DeviceDatabase.getDeviceType("DS18B20"));
+    ReportingPolicy policy = new ReportingPolicy(0, 1000, 0, 0);
+
+    assertEquals(1L, publish(state, "20.0", START, policy));
+    assertEquals(0L, publish(state, "21.0", START + TimeUnit.MILLISECONDS.toNanos(500), policy));
+    assertEquals(1L, publish(state, "21.0", START + TimeUnit.MILLISECONDS.toNanos(1000), policy));
+  }
+
+  /**
+   * An unchanged value is published again when the maximum silence has passed.
+   */
+  @Test
+  public void publishesAfterMaxSilence() {
+    OwDeviceState state = new OwDeviceState(DeviceDatabase.getDeviceType("DS18B20"));
+    ReportingPolicy policy = new ReportingPolicy(0.5, 0, 60000, 0);
+
+    assertEquals(1L, publish(state, "20.0", START, policy));
+    assertEquals(0L, publish(state, "20.0", START + TimeUnit.SECONDS.toNanos(59), policy));
+    assertEquals(1L, publish(state, "20.0", START + TimeUnit.SECONDS.toNanos(60), policy));
+  }
+
+  /**
+   * Children of a composite reading are published one by one, only those that have changed.
+   */
+  @Test
+  public void publishesChangedChildren() {
+    OwDeviceState state = new OwDeviceState(DeviceDatabase.getDeviceType("DS2408"));
+    ReportingPolicy policy = ReportingPolicy.ALL_CHANGES;
+
+    assertEquals(0xFFL, publish(state, "0,0,0,0,0,0,0,0", START, policy));
+    assertEquals(0L, publish(state, "0,0,0,0,0,0,0,0", START + 1, policy));
+    assertEquals(0x81L, publish(state, "1,0,0,0,0,0,0,1", START + 2, policy));
+    assertEquals("1", state.getChildValue(0));
+    assertNotEquals(0L, state.getChildBits() & 0x80L);
+  }
+
+  /**
+   * Record a reading and select what to publish, like the adapter does.
+   *
+   * @param state state of device.
+   * @param raw value as read.
+   * @param time time of reading (nanoseconds since epoch).
+   * @param policy reporting policy.
+   * @return bitmask of what to publish.
+   */
+  private static long publish(OwDeviceState state, String raw, long time, ReportingPolicy policy) {
+    return state.selectPublishable(state.update(raw, time), time, policy);
+  }
+}
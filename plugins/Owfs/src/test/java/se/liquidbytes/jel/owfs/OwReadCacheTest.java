@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of reading paths according to their read policy.
+ *
+ * @author Henrik Östman
+ */
+public class OwReadCacheTest {
+
+  /**
+   * Uncached path of a property of a device.
+   */
+  private final static String POWER = "/uncached/bus.0/28.0000028F1A2B/power";
+  /**
+   * Same path read from the cache of Owserver.
+   */
+  private final static String CACHED_POWER = "/bus.0/28.0000028F1A2B/power";
+  /**
+   * Uncached path of a property of another device.
+   */
+  private final static String OTHER_POWER = "/uncached/bus.0/28.000003A1B2C3/power";
+  /**
+   * Uncached path of a property of a hub.
+   */
+  private final static String HUB_POWER = "/uncached/bus.0/EF.0000012A3B4C/power";
+  /**
+   * Uncached path of a property of a device connected through the hub.
+   */
+  private final static String HUB_DEVICE_POWER = "/uncached/bus.0/EF.0000012A3B4C/main/28.0000045D6E7F/power";
+  /**
+   * Connection to read from.
+   */
+  private FakeOwServerConnection connection;
+  /**
+   * Cache under test.
+   */
+  private OwReadCache cache;
+
+  /**
+   * Setup connection and cache.
+   */
+  @Before
+  public void setUp() {
+    connection = new FakeOwServerConnection()
+        .setValue(POWER, "1")
+        .setValue(CACHED_POWER, "1")
+        .setValue(OTHER_POWER, "0")
+        .setValue(ReadPolicy.cachedPath(OTHER_POWER), "0")
+        .setValue(HUB_POWER, "1")
+        .setValue(HUB_DEVICE_POWER, "0");
+    cache = new OwReadCache();
+  }
+
+  /**
+   * Adapter-cached values are read from the device the first time, and then taken from the adapter cache.
+   */
+  @Test
+  public void keepsAdapterCachedValues() {
+    Map<String, ReadPolicy> paths = Collections.singletonMap(POWER, new ReadPolicy(ReadPolicy.Mode.ADAPTER_CACHED, 0));
+
+    assertEquals("1", cache.readMany(connection, paths).get(POWER));
+    assertEquals("1", cache.readMany(connection, paths).get(POWER));
+
+    assertEquals(Collections.singletonList(POWER), connection.getReadPaths());
+    assertEquals(1L, (long) cache.toJson().getLong("adapterMisses"));
+    assertEquals(1L, (long) cache.toJson().getLong("adapterHits"));
+    assertEquals(0L, (long) cache.toJson().getLong("owserverCachedReads"));
+  }
+
+  /**
+   * Adapter-cached values that are older than max age are read from the device again, and not from the cache of Owserver that may be just as old.
+   *
+   * @throws InterruptedException if interrupted.
+   */
+  @Test
+  public void readsExpiredAdapterCachedValuesFromDevice() throws InterruptedException {
+    Map<String, ReadPolicy> paths = Collections.singletonMap(POWER, new ReadPolicy(ReadPolicy.Mode.ADAPTER_CACHED, 1));
+
+    cache.readMany(connection, paths);
+    Thread.sleep(5);
+    cache.readMany(connection, paths);
+
+    assertEquals(Arrays.asList(POWER, POWER), connection.getReadPaths());
+    assertEquals(2L, (long) cache.toJson().getLong("adapterMisses"));
+  }
+
+  /**
+   * Owserver-cached values are read from the device the first time, and then from the cache of Owserver until they are too old.
+   */
+  @Test
+  public void readsFromOwserverCacheWhenDeviceWasReadRecently() {
+    Map<String, ReadPolicy> paths = Collections.singletonMap(POWER, new ReadPolicy(ReadPolicy.Mode.OWSERVER_CACHED, 60000));
+
+    cache.readMany(connection, paths);
+    cache.readMany(connection, paths);
+
+    assertEquals(Arrays.asList(POWER, CACHED_POWER), connection.getReadPaths());
+    assertEquals(1L, (long) cache.toJson().getLong("uncachedReads"));
+    assertEquals(1L, (long) cache.toJson().getLong("owserverCachedReads"));
+  }
+
+  /**
+   * Uncached values are always read from the device.
+   */
+  @Test
+  public void alwaysReadsUncachedValues() {
+    Map<String, ReadPolicy> paths = Collections.singletonMap(POWER, ReadPolicy.UNCACHED);
+
+    cache.readMany(connection, paths);
+    cache.readMany(connection, paths);
+
+    assertEquals(Arrays.asList(POWER, POWER), connection.getReadPaths());
+  }
+
+  /**
+   * Invalidating a device forgets everything read from it, but nothing read from other devices.
+   */
+  @Test
+  public void forgetsInvalidatedDevice() {
+    ReadPolicy policy = new ReadPolicy(ReadPolicy.Mode.ADAPTER_CACHED, 0);
+    cache.readMany(connection, Collections.singletonMap(POWER, policy));
+    cache.readMany(connection, Collections.singletonMap(OTHER_POWER, policy));
+
+    cache.invalidate("0000028F1A2B");
+    connection.getReadPaths().clear();
+    cache.readMany(connection, Collections.singletonMap(POWER, policy));
+    cache.readMany(connection, Collections.singletonMap(OTHER_POWER, policy));
+
+    assertEquals(Collections.singletonList(POWER), connection.getReadPaths());
+    assertEquals(2, (int) cache.toJson().getInteger("size"));
+  }
+
+  /**
+   * Invalidating a hub forgets what was read from the hub, but not what was read from devices connected through it.
+   */
+  @Test
+  public void forgetsOnlyInvalidatedHub() {
+    ReadPolicy policy = new ReadPolicy(ReadPolicy.Mode.ADAPTER_CACHED, 0);
+    cache.readMany(connection, Collections.singletonMap(HUB_POWER, policy));
+    cache.readMany(connection, Collections.singletonMap(HUB_DEVICE_POWER, policy));
+
+    cache.invalidate("0000012A3B4C");
+    connection.getReadPaths().clear();
+    cache.readMany(connection, Collections.singletonMap(HUB_POWER, policy));
+    cache.readMany(connection, Collections.singletonMap(HUB_DEVICE_POWER, policy));
+
+    assertEquals(Collections.singletonList(HUB_POWER), connection.getReadPaths());
+  }
+
+  /**
+   * Paths that fail to be read are left out, and are not cached.
+   */
+  @Test
+  public void leavesOutFailedReads() {
+    String missing = "/uncached/bus.0/28.0000028F1A2B/temperature";
+    Map<String, ReadPolicy> paths = Collections.singletonMap(missing, new ReadPolicy(ReadPolicy.Mode.ADAPTER_CACHED, 0));
+
+    assertTrue(cache.readMany(connection, paths).isEmpty());
+    assertTrue(cache.readMany(connection, paths).isEmpty());
+    assertEquals(2, connection.getReadPaths().size());
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.liquidbytes.jel.owfs.OwServerCircuitBreaker.State;
+
+/**
+ * Tests of the circuit breaker that makes requests fail fast while owserver is down.
+ *
+ * @author Henrik Östman
+ */
+public class OwServerCircuitBreakerTest {
+
+  /**
+   * Socket that the breaker probes, stands in for owserver.
+   */
+  private ServerSocket owserver;
+  /**
+   * Breaker under test.
+   */
+  private OwServerCircuitBreaker breaker;
+  /**
+   * State changes reported by breaker.
+   */
+  private BlockingQueue<State> changes;
+
+  /**
+   * Setup breaker towards a listening socket.
+   *
+   * @throws IOException if socket could not be opened.
+   */
+  @Before
+  public void setUp() throws IOException {
+    owserver = new ServerSocket(0);
+    breaker = new OwServerCircuitBreaker("127.0.0.1", owserver.getLocalPort());
+    changes = new LinkedBlockingQueue<>();
+    breaker.setStateListener(changes::add);
+  }
+
+  /**
+   * Close breaker and socket.
+   *
+   * @throws IOException if socket could not be closed.
+   */
+  @After
+  public void tearDown() throws IOException {
+    breaker.close();
+    owserver.close();
+  }
+
+  /**
+   * The breaker opens after a few failures in a row, and then fails requests at once.
+   */
+  @Test
+  public void opensAfterRepeatedFailures() {
+    breaker.recordFailure(new IOException("1"));
+    breaker.recordFailure(new IOException("2"));
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.checkAvailable();
+
+    breaker.recordFailure(new IOException("3"));
+
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.isAvailable());
+    assertUnavailable(breaker::checkAvailable);
+    assertUnavailable(breaker::checkNotOpen);
+  }
+
+  /**
+   * A success in between resets the failure count.
+   */
+  @Test
+  public void staysClosedWhenFailuresAreInterrupted() {
+    breaker.recordFailure(new IOException("1"));
+    breaker.recordFailure(new IOException("2"));
+    breaker.recordSuccess();
+    breaker.recordFailure(new IOException("3"));
+
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  /**
+   * When owserver accepts connections again the breaker goes half-open and lets exactly one trial request through, which closes it when it succeeds.
+   *
+   * @throws InterruptedException if interrupted while waiting for the probe.
+   */
+  @Test
+  public void letsOneTrialRequestThroughWhenHalfOpen() throws InterruptedException {
+    openBreaker();
+    assertEquals(State.HALF_OPEN, changes.poll(5, TimeUnit.SECONDS));
+
+    assertTrue(breaker.isAvailable());
+    breaker.checkAvailable();
+    assertFalse(breaker.isAvailable());
+    assertUnavailable(breaker::checkAvailable);
+    // Work may still be queued while the trial request is in flight.
+    breaker.checkNotOpen();
+
+    breaker.recordSuccess();
+
+    assertEquals(State.CLOSED, changes.poll(5, TimeUnit.SECONDS));
+    assertTrue(breaker.isAvailable());
+  }
+
+  /**
+   * A failed trial request opens the breaker again.
+   *
+   * @throws InterruptedException if interrupted while waiting for the probe.
+   */
+  @Test
+  public void opensAgainWhenTrialRequestFails() throws InterruptedException {
+    openBreaker();
+    assertEquals(State.HALF_OPEN, changes.poll(5, TimeUnit.SECONDS));
+
+    breaker.checkAvailable();
+    breaker.recordFailure(new IOException("trial"));
+
+    assertEquals(State.OPEN, changes.poll(5, TimeUnit.SECONDS));
+    assertUnavailable(breaker::checkAvailable);
+  }
+
+  /**
+   * The breaker stays open while owserver refuses connections.
+   *
+   * @throws IOException if socket could not be closed.
+   * @throws InterruptedException if interrupted while waiting for the probe.
+   */
+  @Test
+  public void staysOpenWhileOwserverIsDown() throws IOException, InterruptedException {
+    owserver.close();
+    openBreaker();
+
+    assertNull(changes.poll(1, TimeUnit.SECONDS));
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  /**
+   * Open breaker by failing requests, and consume the reported change.
+   *
+   * @throws InterruptedException if interrupted while waiting for the change.
+   */
+  private void openBreaker() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      breaker.recordFailure(new IOException("down"));
+    }
+    assertEquals(State.OPEN, changes.poll(5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Assert that a check fails because owserver is unavailable.
+   *
+   * @param check check to run.
+   */
+  private static void assertUnavailable(Runnable check) {
+    try {
+      check.run();
+      fail("Expected owserver to be unavailable.");
+    } catch (OwServerUnavailableException ex) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.liquidbytes.jel.owfs.simulator.OwServerSimulator;
+import se.liquidbytes.jel.owfs.simulator.SimulatedDevice;
+
+/**
+ * Tests of the native owserver protocol client against the owserver simulator.
+ *
+ * @author Henrik Östman
+ */
+public class OwServerProtocolClientTest {
+
+  /**
+   * Maximum time to wait for a reply in these tests (milliseconds).
+   */
+  private final static long REQUEST_TIMEOUT = 2000;
+  /**
+   * Vert.x instance that client runs on.
+   */
+  private Vertx vertx;
+  /**
+   * Simulated owserver.
+   */
+  private OwServerSimulator simulator;
+  /**
+   * Client under test.
+   */
+  private OwServerProtocolClient client;
+  /**
+   * Path of a simulated temperature sensor.
+   */
+  private String sensorPath;
+  /**
+   * Path of a simulated switch.
+   */
+  private String switchPath;
+
+  /**
+   * Start simulator with one temperature sensor and one switch, and connect a client to it.
+   *
+   * @throws IOException if simulator could not be started.
+   */
+  @Before
+  public void setUp() throws IOException {
+    simulator = new OwServerSimulator(0, 1);
+    simulator.addBus(0, 10, 10);
+    simulator.populate(1, 1, 0, 0);
+    simulator.start();
+
+    for (SimulatedDevice device : simulator.getBuses().get(0).getDevices()) {
+      if ("DS2408".equals(device.getType())) {
+        switchPath = "/bus.0/" + device.getAddress();
+      } else {
+        sensorPath = "/bus.0/" + device.getAddress();
+      }
+    }
+
+    vertx = Vertx.vertx();
+    client = new OwServerProtocolClient(vertx, "127.0.0.1", simulator.getPort(), REQUEST_TIMEOUT);
+  }
+
+  /**
+   * Close client, Vert.x and simulator.
+   */
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.close();
+    simulator.stop();
+  }
+
+  /**
+   * Directories are listed and values are read.
+   *
+   * @throws Exception if a request fails.
+   */
+  @Test
+  public void listsAndReads() throws Exception {
+    List<String> buses = this.<List<String>>await(h -> client.listDirectory("/", h));
+    List<String> devices = this.<List<String>>await(h -> client.listDirectory("/bus.0", h));
+
+    assertTrue(buses.toString(), buses.stream().anyMatch(path -> path.endsWith("bus.0")));
+    assertTrue(devices.toString(), devices.contains(sensorPath) && devices.contains(switchPath));
+    assertEquals("DS18B20", this.<String>await(h -> client.read(sensorPath + "/type", h)));
+    assertTrue(this.<Boolean>await(h -> client.exists(switchPath, h)));
+  }
+
+  /**
+   * A written value can be read back.
+   *
+   * @throws Exception if a request fails.
+   */
+  @Test
+  public void writesAndReadsBack() throws Exception {
+    this.<Void>await(h -> client.write(switchPath + "/PIO.ALL", "1,0,1,0,0,0,0,1", h));
+
+    assertEquals("1,0,1,0,0,0,0,1", this.<String>await(h -> client.read(switchPath + "/PIO.ALL", h)));
+    assertEquals("1", this.<String>await(h -> client.read(switchPath + "/PIO.2", h)));
+  }
+
+  /**
+   * Many requests can be in flight at once on the same connection, and each one gets its own reply.
+   *
+   * @throws Exception if a request fails.
+   */
+  @Test
+  public void pipelinesRequests() throws Exception {
+    List<CompletableFuture<String>> replies = new ArrayList<>();
+
+    for (int i = 0; i < 50; i++) {
+      String path = i % 2 == 0 ? sensorPath + "/type" : switchPath + "/type";
+      CompletableFuture<String> reply = new CompletableFuture<>();
+      client.read(path, complete(reply));
+      replies.add(reply);
+    }
+
+    for (int i = 0; i < replies.size(); i++) {
+      assertEquals(i % 2 == 0 ? "DS18B20" : "DS2408", replies.get(i).get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    assertEquals(0, client.getReconnectCount());
+  }
+
+  /**
+   * A path that does not exist fails with the error code from owserver.
+   *
+   * @throws Exception if interrupted.
+   */
+  @Test
+  public void failsOnMissingPath() throws Exception {
+    try {
+      this.<String>await(h -> client.read(sensorPath + "/nosuchproperty", h));
+      fail("Expected read to fail.");
+    } catch (ExecutionException ex) {
+      assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof OwServerReplyException);
+    }
+
+    // The connection is still usable.
+    assertEquals("DS2408", this.<String>await(h -> client.read(switchPath + "/type", h)));
+  }
+
+  /**
+   * A request that gets no reply in time fails.
+   *
+   * @throws Exception if interrupted.
+   */
+  @Test
+  public void timesOutSlowReplies() throws Exception {
+    simulator.setLatency(REQUEST_TIMEOUT * 2);
+
+    try {
+      this.<String>await(h -> client.read(sensorPath + "/type", h));
+      fail("Expected read to time out.");
+    } catch (ExecutionException ex) {
+      assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof OwServerConnectionException);
+    }
+  }
+
+  /**
+   * Run a request and wait for its result.
+   *
+   * @param <T> type of result.
+   * @param request request to run, given a handler for the result.
+   * @return result.
+   * @throws Exception if request failed or timed out.
+   */
+  private <T> T await(Consumer<Handler<AsyncResult<T>>> request) throws Exception {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    request.accept(complete(result));
+    return result.get(REQUEST_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Create a handler that completes a future.
+   *
+   * @param <T> type of result.
+   * @param future future to complete.
+   * @return handler.
+   */
+  private static <T> Handler<AsyncResult<T>> complete(CompletableFuture<T> future) {
+    return res -> {
+      if (res.succeeded()) {
+        future.complete(res.result());
+      } else {
+        future.completeExceptionally(res.cause());
+      }
+    };
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import java.util.Collections;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import se.liquidbytes.jel.owfs.OwCommandQueue.Priority;
+
+/**
+ * Tests of combining writes to the children of a switch into one write.
+ *
+ * @author Henrik Östman
+ */
+public class OwWriteCombinerTest {
+
+  /**
+   * Path of the switch on Owserver.
+   */
+  private final static String SWITCH = "/bus.0/29.0000000000A1";
+  /**
+   * Composite write path of the switch.
+   */
+  private final static String PIO_ALL = SWITCH + "/PIO.ALL";
+  /**
+   * Bus that switch is connected to.
+   */
+  private OwBus bus;
+  /**
+   * Switch with eight children.
+   */
+  private OwDevice device;
+  /**
+   * Connection used to read the outputs of the switch.
+   */
+  private FakeOwServerConnection connection;
+  /**
+   * Combiner under test.
+   */
+  private OwWriteCombiner combiner;
+
+  /**
+   * Setup bus with one switch.
+   */
+  @Before
+  public void setUp() {
+    bus = new OwBus("/bus.0", 100, 0);
+    device = new OwDevice("0000000000A1", DeviceDatabase.getDeviceType("DS2408"), "29", SWITCH, "/bus.0", 100, 0, false, ReportingPolicy.ALL_CHANGES, "_");
+    bus.addDevice(device);
+    connection = new FakeOwServerConnection().setValue(PIO_ALL, "0,0,0,0,0,0,0,0");
+    combiner = new OwWriteCombiner();
+  }
+
+  /**
+   * Writes to several children become one write of the parent, built on the last written state of the outputs.
+   */
+  @Test
+  public void combinesChildWrites() {
+    bus.setOutputState(device.getHwId(), "1,1,1,1,1,1,1,1".split(","));
+    bus.getCommandQueue().offer(SWITCH + "/PIO.0", "0", Priority.USER);
+    bus.getCommandQueue().offer(SWITCH + "/PIO.2", "0", Priority.USER);
+
+    Map<String, String> values = combiner.combine(bus, connection, bus.getCommandQueue().drain());
+
+    assertEquals(Collections.singletonMap(PIO_ALL, "0,1,0,1,1,1,1,1"), values);
+    assertTrue(connection.getReadPaths().isEmpty());
+    assertEquals(1L, (long) combiner.toJson().getLong("combinedWrites"));
+  }
+
+  /**
+   * The outputs are read before combining if their state is not known.
+   */
+  @Test
+  public void readsUnknownOutputs() {
+    bus.getCommandQueue().offer(SWITCH + "/PIO.0", "1", Priority.USER);
+    bus.getCommandQueue().offer(SWITCH + "/PIO.7", "1", Priority.USER);
+
+    Map<String, String> values = combiner.combine(bus, connection, bus.getCommandQueue().drain());
+
+    assertEquals(Collections.singletonMap(PIO_ALL, "1,0,0,0,0,0,0,1"), values);
+    assertEquals(Collections.singletonList(PIO_ALL), connection.getReadPaths());
+    assertEquals(1L, (long) combiner.toJson().getLong("stateReads"));
+  }
+
+  /**
+   * Writes to a parent and its children are applied in the order they were queued, even when priority drains them in another order.
+   */
+  @Test
+  public void appliesWritesInQueueOrder() {
+    bus.getCommandQueue().offer(SWITCH + "/PIO.0", "1", Priority.AUTOMATION);
+    bus.getCommandQueue().offer(SWITCH + "/PIO.1", "1", Priority.AUTOMATION);
+    bus.getCommandQueue().offer(PIO_ALL, "0,0,0,0,1,1,1,1", Priority.USER);
+    bus.getCommandQueue().offer(SWITCH + "/PIO.2", "1", Priority.AUTOMATION);
+
+    Map<String, String> values = combiner.combine(bus, connection, bus.getCommandQueue().drain());
+
+    // The write to the parent overrides the child writes queued before it, but not the one queued after it.
+    assertEquals(Collections.singletonMap(PIO_ALL, "0,0,1,0,1,1,1,1"), values);
+    assertTrue(connection.getReadPaths().isEmpty());
+  }
+
+  /**
+   * A single write to a child is left as it is.
+   */
+  @Test
+  public void leavesSingleWriteAlone() {
+    bus.getCommandQueue().offer(SWITCH + "/PIO.3", "1", Priority.USER);
+
+    Map<String, String> values = combiner.combine(bus, connection, bus.getCommandQueue().drain());
+
+    assertEquals(Collections.singletonMap(SWITCH + "/PIO.3", "1"), values);
+  }
+
+  /**
+   * Child writes are written one by one if the outputs can't be read.
+   */
+  @Test
+  public void writesChildrenOneByOneIfOutputsUnknown() {
+    connection = new FakeOwServerConnection();
+    bus.getCommandQueue().offer(SWITCH + "/PIO.0", "1", Priority.USER);
+    bus.getCommandQueue().offer(SWITCH + "/PIO.1", "1", Priority.USER);
+
+    Map<String, String> values = combiner.combine(bus, connection, bus.getCommandQueue().drain());
+
+    assertEquals(2, values.size());
+    assertEquals("1", values.get(SWITCH + "/PIO.0"));
+    assertEquals("1", values.get(SWITCH + "/PIO.1"));
+  }
+
+  /**
+   * The state of the outputs follows successful writes, and is forgotten when a write fails.
+   */
+  @Test
+  public void remembersWrittenOutputs() {
+    combiner.recordWritten(bus, Collections.singletonMap(PIO_ALL, "1,0,0,0,0,0,0,0"), Collections.emptyList());
+    combiner.recordWritten(bus, Collections.singletonMap(SWITCH + "/PIO.1", "1"), Collections.emptyList());
+
+    assertArrayEquals("1,1,0,0,0,0,0,0".split(","), bus.getOutputState(device.getHwId()));
+
+    combiner.recordWritten(bus, Collections.singletonMap(SWITCH + "/PIO.2", "1"), Collections.singletonList(SWITCH + "/PIO.2"));
+
+    assertNull(bus.getOutputState(device.getHwId()));
+  }
+}
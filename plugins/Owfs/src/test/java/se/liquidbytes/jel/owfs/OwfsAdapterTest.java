@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.liquidbytes.jel.owfs.simulator.OwServerSimulator;
+import se.liquidbytes.jel.owfs.simulator.SimulatedBus;
+import se.liquidbytes.jel.owfs.simulator.SimulatedDevice;
+import se.liquidbytes.jel.system.adapter.AdapterEvents;
+
+/**
+ * Smoke test of the whole adapter deployed on Vert.x against the owserver simulator, with the mainloops, command queue, write combiner and quarantine
+ * running together.
+ *
+ * @author Henrik Östman
+ */
+public class OwfsAdapterTest {
+
+  /**
+   * Maximum time to wait for the adapter in these tests (milliseconds).
+   */
+  private final static long TIMEOUT = 20000;
+  /**
+   * Vert.x instance that adapter is deployed on.
+   */
+  private Vertx vertx;
+  /**
+   * Simulated owserver.
+   */
+  private OwServerSimulator simulator;
+  /**
+   * Deployment id of adapter.
+   */
+  private String deploymentId;
+  /**
+   * Eventbus address of adapter.
+   */
+  private String address;
+  /**
+   * HwIds of devices that adapter has published as added.
+   */
+  private Set<String> addedDevices;
+
+  /**
+   * Start simulator with two temperature sensors and one switch, and deploy an adapter connected to it.
+   *
+   * @throws Exception if simulator could not be started or adapter failed to deploy.
+   */
+  @Before
+  public void setUp() throws Exception {
+    simulator = new OwServerSimulator(0, 1);
+    simulator.addBus(0, 10, 10);
+    simulator.populate(2, 1, 0, 0);
+    simulator.start();
+
+    vertx = Vertx.vertx();
+    addedDevices = ConcurrentHashMap.newKeySet();
+    vertx.eventBus().consumer(AdapterEvents.EVENTBUS_ADAPTERS, (Message<Object> message) -> {
+      if (AdapterEvents.EVENT_DEVICES_ADDED.equals(message.headers().get("action"))) {
+        addedDevices.add(((JsonObject) message.body()).getString("hwId"));
+      }
+    });
+
+    JsonObject config = new JsonObject()
+        .put("type", "owfs")
+        .put("adapterId", "test")
+        .put("address", "127.0.0.1")
+        .put("port", simulator.getPort());
+    address = String.format("%s.owfs@127.0.0.1:%d", AdapterEvents.EVENTBUS_ADAPTERS, simulator.getPort());
+    deploymentId = this.<String>await(h -> vertx.deployVerticle(new OwfsAdapter(), new DeploymentOptions().setConfig(config), h));
+  }
+
+  /**
+   * Undeploy adapter, and close Vert.x and simulator.
+   *
+   * @throws Exception if adapter failed to stop.
+   */
+  @After
+  public void tearDown() throws Exception {
+    try {
+      if (deploymentId != null) {
+        this.<Void>await(h -> vertx.undeploy(deploymentId, h));
+      }
+    } finally {
+      vertx.close();
+      simulator.stop();
+    }
+  }
+
+  /**
+   * Every simulated device is published as added and listed by the adapter.
+   *
+   * @throws Exception if a request fails.
+   */
+  @Test
+  public void addsSimulatedDevices() throws Exception {
+    Set<String> simulatedDevices = new HashSet<>();
+    for (SimulatedDevice device : simulator.getBuses().get(0).getDevices()) {
+      simulatedDevices.add(device.getHwId());
+    }
+
+    waitFor(() -> addedDevices.containsAll(simulatedDevices));
+
+    Set<String> listedDevices = new HashSet<>();
+    for (Object device : request("listDevices", null).getJsonArray("result")) {
+      listedDevices.add(((JsonObject) device).getString("hwId"));
+    }
+
+    assertTrue(listedDevices.toString(), listedDevices.containsAll(simulatedDevices));
+  }
+
+  /**
+   * A value set on a child of a switch is written to the device by the mainloop, and the command and read cycle show up in the telemetry.
+   *
+   * @throws Exception if a request fails.
+   */
+  @Test
+  public void writesValueToSwitch() throws Exception {
+    SimulatedBus bus = simulator.getBuses().get(0);
+    SimulatedDevice switchDevice = null;
+    for (SimulatedDevice device : bus.getDevices()) {
+      if ("DS2408".equals(device.getType())) {
+        switchDevice = device;
+      }
+    }
+    SimulatedDevice written = switchDevice;
+    String hwId = written.getHwId() + "_1";
+    waitFor(() -> addedDevices.contains(hwId));
+
+    String value = "1".equals(written.read(bus, "PIO.0")) ? "0" : "1";
+    JsonObject reply = request("updateDeviceValue", new JsonObject().put("hwId", hwId).put("value", value));
+
+    assertEquals(hwId, reply.getJsonObject("result").getString("hwId"));
+    waitFor(() -> {
+      try {
+        return value.equals(written.read(bus, "PIO.0"));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    });
+
+    JsonObject telemetry = request("retrieveTelemetry", null).getJsonObject("result");
+    assertEquals(telemetry.encode(), 1L, (long) telemetry.getJsonObject("commandQueues").getJsonObject("bus.0").getJsonObject("latency").getJsonObject("user").getLong("count"));
+
+    // Cycle time is recorded when the first read cycle after the write has ended.
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (telemetry.getJsonObject("phases").getJsonObject("cycle").getLong("count") == 0) {
+      assertTrue(telemetry.encode(), System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+      telemetry = request("retrieveTelemetry", null).getJsonObject("result");
+    }
+  }
+
+  /**
+   * Send a request to the adapter and wait for its reply.
+   *
+   * @param action action of request.
+   * @param body body of request, may be null.
+   * @return reply.
+   * @throws Exception if request failed or timed out.
+   */
+  private JsonObject request(String action, JsonObject body) throws Exception {
+    Message<Object> reply = this.<Message<Object>>await(h -> vertx.eventBus().send(address, body, new DeliveryOptions().addHeader("action", action), h));
+    return (JsonObject) reply.body();
+  }
+
+  /**
+   * Wait until a condition is true.
+   *
+   * @param condition condition to wait for.
+   * @throws InterruptedException if interrupted.
+   */
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+
+    while (!condition.getAsBoolean()) {
+      assertTrue("Timed out waiting for adapter.", System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+
+  /**
+   * Run an asynchronous call and wait for its result.
+   *
+   * @param <T> type of result.
+   * @param call call to run, given a handler for the result.
+   * @return result.
+   * @throws Exception if call failed or timed out.
+   */
+  private <T> T await(Consumer<Handler<AsyncResult<T>>> call) throws Exception {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    call.accept(res -> {
+      if (res.succeeded()) {
+        result.complete(res.result());
+      } else {
+        result.completeExceptionally(res.cause());
+      }
+    });
+    return result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,997 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs.simulator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fake owserver speaking the owserver network protocol (http://owfs.org/index.php?page=owserver-protocol), with simulated devices instead of a real 1-wire
+ * bus. Used for testing and benchmarking the adapter without any hardware.
+ *
+ * Conversion delays and bus access times are simulated per bus, and faults could be injected: latency on every reply, connections that are dropped without a
+ * reply, devices that are unplugged and plugged in again while running, and reads that fail their CRC check and have to be retried. All simulated values come from seeded random generators, so a run with the same
+ * settings behaves the same, apart from thread timing.
+ *
+ * It lives among the tests and is not shipped with the adapter. Run it standalone from the test classpath with e.g. "--ds18b20 50 --ds2408 10 --ds2450 5
+ * --parasitic 2 --port 4304", see usage() for all options.
+ *
+ * @author Henrik Östman
+ */
+public final class OwServerSimulator {
+
+  /**
+   * Logghandler instance
+   */
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /**
+   * Message type for doing nothing.
+   */
+  private final static int MSG_NOP = 1;
+  /**
+   * Message type for reading a value.
+   */
+  private final static int MSG_READ = 2;
+  /**
+   * Message type for writing a value.
+   */
+  private final static int MSG_WRITE = 3;
+  /**
+   * Message type for listing a directory, one reply per entry.
+   */
+  private final static int MSG_DIR = 4;
+  /**
+   * Message type for checking if a path exists.
+   */
+  private final static int MSG_PRESENCE = 6;
+  /**
+   * Message type for listing a directory in one go.
+   */
+  private final static int MSG_DIRALL = 7;
+  /**
+   * Message type for reading a value or listing a directory, depending on path.
+   */
+  private final static int MSG_GET = 8;
+  /**
+   * Keep connection open after reply.
+   */
+  private final static int FLAG_PERSISTENCE = 0x00000004;
+  /**
+   * Largest request payload we accept.
+   */
+  private final static int MAX_PAYLOAD_SIZE = 65536;
+  /**
+   * Version reported in "/system/configuration/version".
+   */
+  private final static String VERSION = "3.1p5 (simulator)";
+  /**
+   * Counters reported in "/statistics", a subset of those of a real owserver.
+   */
+  private final static List<String> STATISTICS = Arrays.asList(
+      "read/calls", "read/success", "read/tries.1",
+      "write/calls", "write/success",
+      "directory/calls",
+      "errors/CRC8_errors", "errors/CRC8_tries");
+  /**
+   * Port to listen on, 0 for any free port.
+   */
+  private final int port;
+  /**
+   * Seeded random generator for hardware ids and injected faults.
+   */
+  private final Random random;
+  /**
+   * Simulated bus masters, in the order they were added.
+   */
+  private final List<SimulatedBus> buses;
+  /**
+   * Fixed delay before each reply (milliseconds).
+   */
+  private long latency;
+  /**
+   * Random additional delay before each reply, up to this (milliseconds).
+   */
+  private long jitter;
+  /**
+   * Probability (0-1) that a connection is dropped instead of answering a request.
+   */
+  private double dropRate;
+  /**
+   * Probability (0-1) that a device read fails its CRC check and has to be retried.
+   */
+  private double crcErrorRate;
+  /**
+   * Time between devices being unplugged or plugged in again (milliseconds), 0 for no hot-plugging.
+   */
+  private long hotplugInterval;
+  /**
+   * Probability (0-1) that an input of a device changes every environment tick.
+   */
+  private double activity;
+  /**
+   * Whether we agree to keep connections open between requests.
+   */
+  private boolean persistence;
+  /**
+   * Number of requests served.
+   */
+  private final AtomicLong requestCount;
+  /**
+   * Number of connections dropped on purpose.
+   */
+  private final AtomicLong droppedCount;
+  /**
+   * Counters reported in "/statistics", name relative to "/statistics" as key.
+   */
+  private final Map<String, AtomicLong> statistics;
+  /**
+   * Process id reported in "/system/process/pid".
+   */
+  private final int pid;
+  /**
+   * Listening socket, null when not running.
+   */
+  private ServerSocket serverSocket;
+  /**
+   * Threads serving connections.
+   */
+  private ExecutorService connectionExecutor;
+  /**
+   * Thread that simulates changes in the environment and hot-plugging.
+   */
+  private ScheduledExecutorService environmentExecutor;
+
+  /**
+   * Default constructor
+   *
+   * @param port port to listen on, 0 for any free port.
+   * @param seed seed for hardware ids, simulated values and injected faults.
+   */
+  public OwServerSimulator(int port, long seed) {
+    this.port = port;
+    this.random = new Random(seed);
+    this.buses = new ArrayList<>();
+    this.persistence = true;
+    this.requestCount = new AtomicLong();
+    this.droppedCount = new AtomicLong();
+    this.statistics = new ConcurrentHashMap<>();
+    this.pid = System.identityHashCode(this) & 0x7fff;
+
+    for (String name : STATISTICS) {
+      statistics.put(name, new AtomicLong());
+    }
+  }
+
+  /**
+   * Run simulator standalone.
+   *
+   * @param args command line options, see usage().
+   * @throws IOException if simulator could not be started.
+   */
+  public static void main(String[] args) throws IOException {
+    int port = 4304;
+    int busCount = 1;
+    int ds18b20 = 10, ds2408 = 2, ds2450 = 1, parasitic = 0;
+    long accessTime = 1000, conversionDelay = 750, voltageConversionDelay = 10, seed = 1;
+    OwServerSimulator simulator;
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--port":
+            port = Integer.parseInt(args[++i]);
+            break;
+          case "--buses":
+            busCount = Integer.parseInt(args[++i]);
+            break;
+          case "--ds18b20":
+            ds18b20 = Integer.parseInt(args[++i]);
+            break;
+          case "--ds2408":
+            ds2408 = Integer.parseInt(args[++i]);
+            break;
+          case "--ds2450":
+            ds2450 = Integer.parseInt(args[++i]);
+            break;
+          case "--parasitic":
+            parasitic = Integer.parseInt(args[++i]);
+            break;
+          case "--bus-access-time":
+            accessTime = Long.parseLong(args[++i]);
+            break;
+          case "--conversion-delay":
+            conversionDelay = Long.parseLong(args[++i]);
+            break;
+          case "--voltage-conversion-delay":
+            voltageConversionDelay = Long.parseLong(args[++i]);
+            break;
+          case "--seed":
+            seed = Long.parseLong(args[++i]);
+            break;
+          default:
+            // Fault injection options are parsed below, once we have a simulator.
+        }
+      }
+
+      simulator = new OwServerSimulator(port, seed);
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--latency":
+            simulator.setLatency(Long.parseLong(args[++i]));
+            break;
+          case "--jitter":
+            simulator.setJitter(Long.parseLong(args[++i]));
+            break;
+          case "--drop-rate":
+            simulator.setDropRate(Double.parseDouble(args[++i]));
+            break;
+          case "--crc-error-rate":
+            simulator.setCrcErrorRate(Double.parseDouble(args[++i]));
+            break;
+          case "--hotplug-interval":
+            simulator.setHotplugInterval(Long.parseLong(args[++i]));
+            break;
+          case "--activity":
+            simulator.setActivity(Double.parseDouble(args[++i]));
+            break;
+          case "--no-persistence":
+            simulator.setPersistence(false);
+            break;
+          case "--port": case "--buses": case "--ds18b20": case "--ds2408": case "--ds2450": case "--parasitic": case "--bus-access-time":
+          case "--conversion-delay": case "--voltage-conversion-delay": case "--seed":
+            i++;
+            break;
+          default:
+            throw new IllegalArgumentException(String.format("Unknown option '%s'.", args[i]));
+        }
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+      System.err.println(ex.getMessage() != null ? ex.getMessage() : "Missing value for last option.");
+      System.err.println(usage());
+      System.exit(1);
+      return;
+    }
+
+    for (int i = 0; i < busCount; i++) {
+      simulator.addBus(accessTime, conversionDelay, voltageConversionDelay);
+    }
+    simulator.populate(ds18b20, ds2408, ds2450, parasitic);
+    simulator.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread(simulator::stop));
+    logger.info("Owserver simulator listening on port {} with {} device(s) on {} bus(es). Press Ctrl+C to stop.", simulator.getPort(), ds18b20 + ds2408 + ds2450 + parasitic, busCount);
+  }
+
+  /**
+   * Get description of command line options.
+   *
+   * @return usage text.
+   */
+  public static String usage() {
+    return "Usage: OwServerSimulator [options]\n"
+        + "  --port <n>                      port to listen on, 0 for any free port (4304)\n"
+        + "  --buses <n>                     number of bus masters (1)\n"
+        + "  --ds18b20 <n>                   powered temperature sensors (10)\n"
+        + "  --ds2408 <n>                    8-channel switches (2)\n"
+        + "  --ds2450 <n>                    quad A/D converters (1)\n"
+        + "  --parasitic <n>                 parasitic powered temperature sensors (0)\n"
+        + "  --bus-access-time <us>          time a single transaction holds the bus (1000)\n"
+        + "  --conversion-delay <ms>         time for a 12-bit temperature conversion (750)\n"
+        + "  --voltage-conversion-delay <ms> time for a voltage conversion (10)\n"
+        + "  --latency <ms>                  delay before each reply (0)\n"
+        + "  --jitter <ms>                   random additional delay before each reply (0)\n"
+        + "  --drop-rate <0-1>               probability that a connection is dropped instead of replying (0)\n"
+        + "  --crc-error-rate <0-1>          probability that a device read fails its CRC check and is retried (0)\n"
+        + "  --hotplug-interval <ms>         time between a device being unplugged or plugged in again, 0 to disable (0)\n"
+        + "  --activity <0-1>                probability that a switch input or voltage changes every 100 ms (0)\n"
+        + "  --no-persistence                close connection after every reply\n"
+        + "  --seed <n>                      seed for hardware ids, values and faults (1)";
+  }
+
+  /**
+   * Add a bus master.
+   *
+   * @param accessTime time a single transaction holds the bus (microseconds).
+   * @param temperatureConversionDelay time for a 12-bit temperature conversion (milliseconds).
+   * @param voltageConversionDelay time for a voltage conversion (milliseconds).
+   * @return the new bus, named "bus.n".
+   */
+  public synchronized SimulatedBus addBus(long accessTime, long temperatureConversionDelay, long voltageConversionDelay) {
+    SimulatedBus bus = new SimulatedBus("bus." + buses.size(), accessTime, temperatureConversionDelay, voltageConversionDelay);
+    buses.add(bus);
+    return bus;
+  }
+
+  /**
+   * Get all bus masters.
+   *
+   * @return buses in the order they were added.
+   */
+  public synchronized List<SimulatedBus> getBuses() {
+    return new ArrayList<>(buses);
+  }
+
+  /**
+   * Spread a population of devices evenly over all buses, adds a bus with default timings if there is none.
+   *
+   * @param ds18b20 number of powered temperature sensors.
+   * @param ds2408 number of 8-channel switches.
+   * @param ds2450 number of quad A/D converters.
+   * @param parasitic number of parasitic powered temperature sensors.
+   * @return this simulator, for chaining.
+   */
+  public synchronized OwServerSimulator populate(int ds18b20, int ds2408, int ds2450, int parasitic) {
+    if (buses.isEmpty()) {
+      addBus(1000, 750, 10);
+    }
+
+    AtomicInteger next = new AtomicInteger();
+    for (int i = 0; i < ds18b20; i++) {
+      buses.get(next.getAndIncrement() % buses.size()).addDevice(new SimulatedDS18B20(nextHwId(), false, random.nextLong()));
+    }
+    for (int i = 0; i < ds2408; i++) {
+      buses.get(next.getAndIncrement() % buses.size()).addDevice(new SimulatedDS2408(nextHwId(), random.nextLong()));
+    }
+    for (int i = 0; i < ds2450; i++) {
+      buses.get(next.getAndIncrement() % buses.size()).addDevice(new SimulatedDS2450(nextHwId(), false, random.nextLong()));
+    }
+    for (int i = 0; i < parasitic; i++) {
+      buses.get(next.getAndIncrement() % buses.size()).addDevice(new SimulatedDS18B20(nextHwId(), true, random.nextLong()));
+    }
+
+    return this;
+  }
+
+  /**
+   * Set fixed delay before each reply.
+   *
+   * @param latency delay in milliseconds.
+   * @return this simulator, for chaining.
+   */
+  public OwServerSimulator setLatency(long latency) {
+    this.latency = latency;
+    return this;
+  }
+
+  /**
+   * Set random additional delay before each reply.
+   *
+   * @param jitter maximum additional delay in milliseconds.
+   * @return this simulator, for chaining.
+   */
+  public OwServerSimulator setJitter(long jitter) {
+    this.jitter = jitter;
+    return this;
+  }
+
+  /**
+   * Set probability that a connection is dropped instead of answering a request.
+   *
+   * @param dropRate probability between 0 and 1.
+   * @return this simulator, for chaining.
+   */
+  public OwServerSimulator setDropRate(double dropRate) {
+    this.dropRate = dropRate;
+    return this;
+  }
+
+  /**
+   * Set probability that a device read fails its CRC check. Like a real owserver we retry the read, so it only costs bus time and shows up in "/statistics".
+   *
+   * @param crcErrorRate probability between 0 and 1.
+   * @return this simulator, for chaining.
+   */
+  public OwServerSimulator setCrcErrorRate(double crcErrorRate) {
+    this.crcErrorRate = crcErrorRate;
+    return this;
+  }
+
+  /**
+   * Set time between devices being unplugged or plugged in again.
+   *
+   * @param hotplugInterval interval in milliseconds, 0 for no hot-plugging.
+   * @return this simulator, for chaining.
+   */
+  public OwServerSimulator setHotplugInterval(long hotplugInterval) {
+    this.hotplugInterval = hotplugInterval;
+    return this;
+  }
+
+  /**
+   * Set probability that an input of a device changes every 100 ms.
+   *
+   * @param activity probability between 0 and 1.
+   * @return this simulator, for chaining.
+   */
+  public OwServerSimulator setActivity(double activity) {
+    this.activity = activity;
+    return this;
+  }
+
+  /**
+   * Set whether we agree to keep connections open between requests.
+   *
+   * @param persistence false to close connection after every reply.
+   * @return this simulator, for chaining.
+   */
+  public OwServerSimulator setPersistence(boolean persistence) {
+    this.persistence = persistence;
+    return this;
+  }
+
+  /**
+   * Get port simulator is listening on.
+   *
+   * @return port, only valid when running.
+   */
+  public int getPort() {
+    return serverSocket != null ? serverSocket.getLocalPort() : port;
+  }
+
+  /**
+   * Get number of requests served.
+   *
+   * @return count.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Get number of connections dropped on purpose.
+   *
+   * @return count.
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * Start listening for connections.
+   *
+   * @throws IOException if port could not be opened.
+   */
+  public synchronized void start() throws IOException {
+    if (serverSocket != null) {
+      return;
+    }
+
+    serverSocket = new ServerSocket(port);
+    AtomicInteger threadCounter = new AtomicInteger();
+    connectionExecutor = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "owserverSimulator-connection-" + threadCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    environmentExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "owserverSimulator-environment");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    ServerSocket listeningSocket = serverSocket;
+    connectionExecutor.submit(() -> acceptConnections(listeningSocket));
+
+    environmentExecutor.scheduleWithFixedDelay(this::simulateEnvironment, 100, 100, TimeUnit.MILLISECONDS);
+    if (hotplugInterval > 0) {
+      environmentExecutor.scheduleWithFixedDelay(this::simulateHotplug, hotplugInterval, hotplugInterval, TimeUnit.MILLISECONDS);
+    }
+
+    logger.debug("Owserver simulator started on port {}.", serverSocket.getLocalPort());
+  }
+
+  /**
+   * Stop listening and close all connections.
+   */
+  public synchronized void stop() {
+    if (serverSocket == null) {
+      return;
+    }
+
+    try {
+      serverSocket.close();
+    } catch (IOException ex) {
+      // Ignore, we are closing anyway.
+    }
+    serverSocket = null;
+
+    environmentExecutor.shutdownNow();
+    connectionExecutor.shutdownNow();
+    logger.info("Owserver simulator stopped after {} request(s), {} connection(s) dropped on purpose.", requestCount.get(), droppedCount.get());
+  }
+
+  /**
+   * Accept connections until the listening socket is closed, each connection is served by a thread of its own.
+   *
+   * @param listeningSocket socket to accept connections on.
+   */
+  private void acceptConnections(ServerSocket listeningSocket) {
+    while (!listeningSocket.isClosed()) {
+      try {
+        Socket socket = listeningSocket.accept();
+        socket.setTcpNoDelay(true);
+        connectionExecutor.submit(() -> serveConnection(socket));
+      } catch (SocketException ex) {
+        // Socket closed, simulator is stopping.
+      } catch (Exception ex) {
+        logger.warn("Owserver simulator failed to accept connection.", ex);
+      }
+    }
+  }
+
+  /**
+   * Serve requests on a connection until the client closes it, or we do.
+   *
+   * @param socket connection to serve.
+   */
+  private void serveConnection(Socket socket) {
+    try (Socket s = socket) {
+      DataInputStream in = new DataInputStream(s.getInputStream());
+      DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+      while (!Thread.currentThread().isInterrupted()) {
+        in.readInt(); // Version
+        int payloadLength = in.readInt();
+        int type = in.readInt();
+        int flags = in.readInt();
+        int size = in.readInt();
+        in.readInt(); // Offset
+
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+          logger.warn("Owserver simulator got a request with invalid payload length {}, closing connection.", payloadLength);
+          return;
+        }
+
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        requestCount.incrementAndGet();
+
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+          droppedCount.incrementAndGet();
+          logger.debug("Owserver simulator drops connection on purpose.");
+          return;
+        }
+
+        long delay = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+        if (delay > 0) {
+          Thread.sleep(delay);
+        }
+
+        boolean keepOpen = persistence && (flags & FLAG_PERSISTENCE) != 0;
+        handleRequest(out, type, payload, size, keepOpen ? FLAG_PERSISTENCE : 0);
+        out.flush();
+
+        if (!keepOpen) {
+          return;
+        }
+      }
+    } catch (EOFException | SocketException ex) {
+      // Client closed connection.
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (IOException ex) {
+      logger.debug("Owserver simulator lost a connection.", ex);
+    }
+  }
+
+  /**
+   * Execute a request and send reply.
+   *
+   * @param out stream to send reply on.
+   * @param type message type.
+   * @param payload request payload, null terminated path followed by data to write.
+   * @param size size of data to write, or size of expected reply.
+   * @param flags flags to send in reply.
+   * @throws IOException if reply could not be sent.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  private void handleRequest(DataOutputStream out, int type, byte[] payload, int size, int flags) throws IOException, InterruptedException {
+    int pathLength = 0;
+    while (pathLength < payload.length && payload[pathLength] != 0) {
+      pathLength++;
+    }
+    String path = new String(payload, 0, pathLength, StandardCharsets.UTF_8);
+
+    try {
+      switch (type) {
+        case MSG_NOP:
+          sendReply(out, 0, flags, null);
+          break;
+        case MSG_READ:
+          sendData(out, flags, read(path));
+          break;
+        case MSG_WRITE:
+          int dataStart = Math.min(pathLength + 1, payload.length);
+          int dataLength = Math.min(size, payload.length - dataStart);
+          write(path, new String(payload, dataStart, dataLength, StandardCharsets.UTF_8));
+          sendReply(out, 0, flags, null);
+          break;
+        case MSG_PRESENCE:
+          sendReply(out, exists(path) ? 0 : -SimulatorException.ENOENT, flags, null);
+          break;
+        case MSG_DIR:
+          for (String entry : listDirectory(path)) {
+            byte[] data = (entry + "\0").getBytes(StandardCharsets.UTF_8);
+            sendReply(out, 0, flags, data);
+          }
+          sendReply(out, 0, flags, null);
+          break;
+        case MSG_DIRALL:
+          sendData(out, flags, String.join(",", listDirectory(path)));
+          break;
+        case MSG_GET:
+          if (isDirectory(path)) {
+            sendData(out, flags, String.join(",", listDirectory(path)));
+          } else {
+            sendData(out, flags, read(path));
+          }
+          break;
+        default:
+          sendReply(out, -SimulatorException.EINVAL, flags, null);
+      }
+    } catch (SimulatorException ex) {
+      sendReply(out, -ex.getErrorCode(), flags, null);
+    }
+  }
+
+  /**
+   * Send a reply with a value.
+   *
+   * @param out stream to send reply on.
+   * @param flags flags to send in reply.
+   * @param value value to send.
+   * @throws IOException if reply could not be sent.
+   */
+  private void sendData(DataOutputStream out, int flags, String value) throws IOException {
+    byte[] data = value.getBytes(StandardCharsets.UTF_8);
+    sendReply(out, data.length, flags, data);
+  }
+
+  /**
+   * Send a reply.
+   *
+   * @param out stream to send reply on.
+   * @param ret return value, number of valid bytes or a negative error code.
+   * @param flags flags to send in reply.
+   * @param data payload, or null.
+   * @throws IOException if reply could not be sent.
+   */
+  private void sendReply(DataOutputStream out, int ret, int flags, byte[] data) throws IOException {
+    int length = data != null ? data.length : 0;
+
+    out.writeInt(0); // Version
+    out.writeInt(length);
+    out.writeInt(ret);
+    out.writeInt(flags);
+    out.writeInt(length);
+    out.writeInt(0); // Offset
+    if (data != null) {
+      out.write(data);
+    }
+  }
+
+  /**
+   * Read a value.
+   *
+   * @param path path to read.
+   * @return value.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  private String read(String path) throws InterruptedException {
+    Target target = resolve(path);
+
+    if (target.device != null && target.property != null) {
+      count("read/calls");
+      count("errors/CRC8_tries");
+      if (crcErrorRate > 0 && random.nextDouble() < crcErrorRate) {
+        // The first try is lost, retry on the bus.
+        count("errors/CRC8_errors");
+        count("read/tries.1");
+        target.bus.access();
+      }
+
+      String value = target.device.read(target.bus, target.property);
+      count("read/success");
+      return value;
+    }
+    if ("system/configuration/version".equals(target.property) && target.bus == null) {
+      return VERSION;
+    }
+    if ("system/process/pid".equals(target.property) && target.bus == null) {
+      return String.valueOf(pid);
+    }
+    if (target.property != null && target.property.startsWith("statistics/") && target.bus == null && target.device == null) {
+      AtomicLong counter = statistics.get(target.property.substring("statistics/".length()));
+      if (counter != null) {
+        return String.valueOf(counter.get());
+      }
+    }
+
+    throw new SimulatorException(SimulatorException.ENOENT);
+  }
+
+  /**
+   * Write a value.
+   *
+   * @param path path to write to.
+   * @param value value to write.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  private void write(String path, String value) throws InterruptedException {
+    Target target = resolve(path);
+
+    if (target.device != null && target.property != null) {
+      count("write/calls");
+      target.device.write(target.bus, target.property, value);
+      count("write/success");
+      return;
+    }
+
+    if (target.device == null && target.property != null && target.property.startsWith("simultaneous/")) {
+      // A write to the root applies to all buses.
+      for (SimulatedBus bus : target.bus != null ? Collections.singletonList(target.bus) : getBuses()) {
+        if ("simultaneous/temperature".equals(target.property)) {
+          bus.startSimultaneousTemperatureConversion();
+        } else if ("simultaneous/voltage".equals(target.property)) {
+          bus.startSimultaneousVoltageConversion();
+        } else {
+          throw new SimulatorException(SimulatorException.ENOENT);
+        }
+      }
+      return;
+    }
+
+    throw new SimulatorException(SimulatorException.ENOENT);
+  }
+
+  /**
+   * Check if a path exists.
+   *
+   * @param path path to check.
+   * @return true if path exists.
+   */
+  private boolean exists(String path) {
+    try {
+      Target target = resolve(path);
+      return target.device != null || isDirectory(path) || (target.bus == null && target.property != null
+          && ("system/configuration/version".equals(target.property) || "system/process/pid".equals(target.property)
+          || (target.property.startsWith("statistics/") && statistics.containsKey(target.property.substring("statistics/".length())))));
+    } catch (SimulatorException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Check if a path is a directory.
+   *
+   * @param path path to check.
+   * @return true if path is a directory.
+   */
+  private boolean isDirectory(String path) {
+    try {
+      Target target = resolve(path);
+      return target.property == null || "alarm".equals(target.property) || "simultaneous".equals(target.property);
+    } catch (SimulatorException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * List content of a directory, entries are prefixed with the path as it was requested.
+   *
+   * @param path path of directory.
+   * @return full path of all entries.
+   */
+  private List<String> listDirectory(String path) throws InterruptedException {
+    Target target = resolve(path);
+    String prefix = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    List<String> entries = new ArrayList<>();
+    count("directory/calls");
+
+    if (target.device != null) {
+      // We don't keep a list of properties per device, and nobody needs it.
+      return entries;
+    }
+
+    // Only uncached listings search the bus, Owserver answers the others from its cache.
+    boolean uncached = path.startsWith("/uncached");
+
+    if (target.property == null) {
+      if (uncached) {
+        for (SimulatedBus bus : target.bus != null ? Collections.singletonList(target.bus) : getBuses()) {
+          bus.search(false);
+        }
+      }
+      if (target.bus == null) {
+        for (SimulatedBus bus : getBuses()) {
+          entries.add(prefix + "/" + bus.getName());
+        }
+      }
+      for (SimulatedBus bus : target.bus != null ? Collections.singletonList(target.bus) : getBuses()) {
+        for (SimulatedDevice device : bus.getDevices()) {
+          entries.add(prefix + "/" + device.getAddress());
+        }
+      }
+      entries.add(prefix + "/alarm");
+      entries.add(prefix + "/simultaneous");
+      if (target.bus == null) {
+        entries.add(prefix + "/system");
+      } else {
+        entries.add(prefix + "/interface");
+      }
+    } else if ("alarm".equals(target.property)) {
+      for (SimulatedBus bus : target.bus != null ? Collections.singletonList(target.bus) : getBuses()) {
+        bus.search(true);
+        for (SimulatedDevice device : bus.getAlarmingDevices()) {
+          entries.add(prefix + "/" + device.getAddress());
+        }
+      }
+    } else if ("simultaneous".equals(target.property)) {
+      entries.add(prefix + "/temperature");
+      entries.add(prefix + "/voltage");
+    } else {
+      throw new SimulatorException(SimulatorException.ENOENT);
+    }
+
+    return entries;
+  }
+
+  /**
+   * Count an event in "/statistics".
+   *
+   * @param name name of counter relative to "/statistics".
+   */
+  private void count(String name) {
+    statistics.get(name).incrementAndGet();
+  }
+
+  /**
+   * Split a path into bus, device and property. Handles "/uncached" and paths both with and without a bus, e.g. "/uncached/bus.0/28.0000028F1A2B/latesttemp"
+   * and "/28.0000028F1A2B/latesttemp".
+   *
+   * @param path path to resolve.
+   * @return resolved path.
+   * @throws SimulatorException if path points to a bus or device that does not exist.
+   */
+  private Target resolve(String path) {
+    String rest = path.startsWith("/uncached") ? path.substring("/uncached".length()) : path;
+    String[] parts = rest.split("/");
+    SimulatedBus bus = null;
+    SimulatedDevice device = null;
+    int i = 0;
+
+    // Skip empty parts from leading and double slashes.
+    while (i < parts.length && parts[i].isEmpty()) {
+      i++;
+    }
+
+    if (i < parts.length && parts[i].startsWith("bus.")) {
+      for (SimulatedBus candidate : getBuses()) {
+        if (candidate.getName().equals(parts[i])) {
+          bus = candidate;
+        }
+      }
+      if (bus == null) {
+        throw new SimulatorException(SimulatorException.ENOENT);
+      }
+      i++;
+    }
+
+    if (i < parts.length && parts[i].matches("[0-9A-F]{2}\\.[0-9A-F]{12}")) {
+      for (SimulatedBus candidate : bus != null ? Collections.singletonList(bus) : getBuses()) {
+        if (device == null) {
+          device = candidate.getDevice(parts[i]);
+          if (device != null) {
+            bus = candidate;
+          }
+        }
+      }
+      if (device == null) {
+        throw new SimulatorException(SimulatorException.ENOENT);
+      }
+      i++;
+    }
+
+    String property = i < parts.length ? String.join("/", Arrays.copyOfRange(parts, i, parts.length)) : null;
+    return new Target(bus, device, property != null && property.isEmpty() ? null : property);
+  }
+
+  /**
+   * Change inputs of devices, runs every 100 ms.
+   */
+  private void simulateEnvironment() {
+    if (activity <= 0) {
+      return;
+    }
+
+    for (SimulatedBus bus : getBuses()) {
+      for (SimulatedDevice device : bus.getDevices()) {
+        device.simulateEnvironment(activity);
+      }
+    }
+  }
+
+  /**
+   * Unplug a random device, or plug in a previously unplugged one.
+   */
+  private void simulateHotplug() {
+    List<SimulatedBus> current = getBuses();
+    if (current.isEmpty()) {
+      return;
+    }
+
+    SimulatedBus bus = current.get(random.nextInt(current.size()));
+    List<SimulatedDevice> devices = bus.getDevices();
+
+    if (random.nextBoolean() && !devices.isEmpty()) {
+      SimulatedDevice device = devices.get(random.nextInt(devices.size()));
+      bus.unplugDevice(device);
+      logger.info("Owserver simulator unplugged device {} from {}.", device.getAddress(), bus.getName());
+    } else {
+      SimulatedDevice device = bus.plugDevice(random.nextInt(Integer.MAX_VALUE));
+      if (device != null) {
+        logger.info("Owserver simulator plugged in device {} on {}.", device.getAddress(), bus.getName());
+      }
+    }
+  }
+
+  /**
+   * Generate a unique hardware id.
+   *
+   * @return 12 hexadecimal characters.
+   */
+  private String nextHwId() {
+    return String.format("%012X", random.nextLong() & 0xFFFFFFFFFFFFL);
+  }
+
+  /**
+   * A resolved path.
+   */
+  private final static class Target {
+
+    private final SimulatedBus bus;
+    private final SimulatedDevice device;
+    private final String property;
+
+    Target(SimulatedBus bus, SimulatedDevice device, String property) {
+      this.bus = bus;
+      this.device = device;
+      this.property = property;
+    }
+  }
+}
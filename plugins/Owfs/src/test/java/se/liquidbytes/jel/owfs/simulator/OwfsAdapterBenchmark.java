@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs.simulator;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import se.liquidbytes.jel.owfs.OwfsAdapter;
+import se.liquidbytes.jel.system.adapter.AdapterEvents;
+
+/**
+ * Benchmark of the whole adapter against the simulator, for a growing number of devices. The adapter is deployed on Vert.x just like in JEL, with its
+ * mainloops, command queue, write combiner and quarantine running together, and is left to run for a while with commands sent to it over the eventbus.
+ * Mainloop cycle time, command latency and bus scan time are then taken from the telemetry of the adapter, together with the time from deploy until every
+ * device has been found.
+ *
+ * Every device count gets a fresh simulator with the same seed, so results are comparable between runs on the same machine. Run with "--help" for options.
+ *
+ * @author Henrik Östman
+ */
+public final class OwfsAdapterBenchmark {
+
+  /**
+   * Maximum time to wait for the adapter to deploy and find all devices (milliseconds).
+   */
+  private final static long STARTUP_TIMEOUT = 600000;
+  /**
+   * Maximum time to wait for a reply from the adapter (milliseconds).
+   */
+  private final static long REQUEST_TIMEOUT = 30000;
+
+  /**
+   * Default constructor
+   */
+  private OwfsAdapterBenchmark() {
+    // Prevent instanses.
+  }
+
+  /**
+   * Run benchmark.
+   *
+   * @param args command line options.
+   * @throws Exception if simulator could not be started or adapter failed.
+   */
+  public static void main(String[] args) throws Exception {
+    int[] deviceCounts = {10, 50, 100, 500};
+    int duration = 30, commands = 100;
+    long accessTime = 1000, conversionDelay = 750, latency = 0, seed = 1;
+    String protocol = "native";
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--devices":
+            deviceCounts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+            break;
+          case "--duration":
+            duration = Integer.parseInt(args[++i]);
+            break;
+          case "--commands":
+            commands = Integer.parseInt(args[++i]);
+            break;
+          case "--bus-access-time":
+            accessTime = Long.parseLong(args[++i]);
+            break;
+          case "--conversion-delay":
+            conversionDelay = Long.parseLong(args[++i]);
+            break;
+          case "--latency":
+            latency = Long.parseLong(args[++i]);
+            break;
+          case "--protocol":
+            protocol = args[++i];
+            break;
+          case "--seed":
+            seed = Long.parseLong(args[++i]);
+            break;
+          default:
+            throw new IllegalArgumentException(String.format("Unknown option '%s'.", args[i]));
+        }
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+      System.err.println(ex.getMessage() != null ? ex.getMessage() : "Missing value for last option.");
+      System.err.println("Usage: OwfsAdapterBenchmark [--devices 10,50,100,500] [--duration 30 (s)] [--commands 100] [--bus-access-time 1000 (us)]"
+          + " [--conversion-delay 750 (ms)] [--latency 0 (ms)] [--protocol native|jowfsclient] [--seed 1]");
+      System.exit(1);
+      return;
+    }
+
+    System.out.println(String.format("%8s %-8s %8s %10s %10s %10s %10s", "devices", "step", "count", "mean(ms)", "p50(ms)", "p99(ms)", "max(ms)"));
+    for (int deviceCount : deviceCounts) {
+      runBenchmark(deviceCount, duration, commands, accessTime, conversionDelay, latency, protocol, seed);
+    }
+  }
+
+  /**
+   * Deploy the adapter against a simulator with a number of devices, let it run and print the results.
+   *
+   * @param deviceCount number of simulated devices.
+   * @param duration time to let the adapter run after all devices have been found (seconds).
+   * @param commands number of commands to send during that time.
+   * @param accessTime time a single transaction holds the bus (microseconds).
+   * @param conversionDelay time for a temperature conversion (milliseconds).
+   * @param latency delay before each reply (milliseconds).
+   * @param protocol protocol backend of adapter, "native" or "jowfsclient".
+   * @param seed seed for simulator.
+   * @throws Exception if simulator could not be started or adapter failed.
+   */
+  private static void runBenchmark(int deviceCount, int duration, int commands, long accessTime, long conversionDelay, long latency, String protocol, long seed)
+      throws Exception {
+    // A typical home installation, mostly temperature sensors, some switches and a few A/D converters and parasitic sensors.
+    int ds2408 = deviceCount / 4;
+    int ds2450 = deviceCount / 10;
+    int parasitic = deviceCount / 20;
+    int ds18b20 = deviceCount - ds2408 - ds2450 - parasitic;
+
+    OwServerSimulator simulator = new OwServerSimulator(0, seed).setLatency(latency);
+    SimulatedBus bus = simulator.addBus(accessTime, conversionDelay, 10);
+    simulator.populate(ds18b20, ds2408, ds2450, parasitic);
+    simulator.start();
+
+    Vertx vertx = Vertx.vertx();
+    String address = String.format("%s.owfs@127.0.0.1:%d", AdapterEvents.EVENTBUS_ADAPTERS, simulator.getPort());
+    JsonObject config = new JsonObject()
+        .put("type", "owfs")
+        .put("adapterId", "benchmark")
+        .put("address", "127.0.0.1")
+        .put("port", simulator.getPort())
+        .put("settings", new JsonObject().put("protocol", protocol));
+
+    try {
+      long start = System.nanoTime();
+      String deploymentId = OwfsAdapterBenchmark.<String>await(h -> vertx.deployVerticle(new OwfsAdapter(), new DeploymentOptions().setConfig(config), h),
+          STARTUP_TIMEOUT);
+
+      // Children of switches are listed as devices of their own.
+      List<String> switchChannels = new ArrayList<>();
+      for (SimulatedDevice device : bus.getDevices()) {
+        if ("DS2408".equals(device.getType())) {
+          for (int channel = 1; channel <= 8; channel++) {
+            switchChannels.add(device.getHwId() + "_" + channel);
+          }
+        }
+      }
+      int expectedDevices = bus.getDevices().size() + switchChannels.size();
+      while (request(vertx, address, "listDevices", null).getJsonArray("result").size() < expectedDevices) {
+        if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(STARTUP_TIMEOUT)) {
+          throw new IllegalStateException(String.format("Adapter did not find all %d devices in time.", expectedDevices));
+        }
+        Thread.sleep(10);
+      }
+      printResult(deviceCount, "startup", 1, (System.nanoTime() - start) / 1000000.0);
+
+      // Spread the commands evenly over the run, every command toggles one channel of a switch.
+      long runEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+      long commandInterval = commands > 0 ? TimeUnit.SECONDS.toNanos(duration) / commands : 0;
+      for (int i = 0; i < commands && !switchChannels.isEmpty(); i++) {
+        JsonObject command = new JsonObject()
+            .put("hwId", switchChannels.get(i % switchChannels.size()))
+            .put("value", (i / switchChannels.size()) % 2 == 0 ? "1" : "0");
+        vertx.eventBus().send(address, command, new DeliveryOptions().addHeader("action", "updateDeviceValue"), res -> {
+          if (res.failed()) {
+            System.err.println(String.format("Command was rejected: %s", res.cause().getMessage()));
+          }
+        });
+        TimeUnit.NANOSECONDS.sleep(commandInterval);
+      }
+      long remaining = runEnd - System.nanoTime();
+      if (remaining > 0) {
+        TimeUnit.NANOSECONDS.sleep(remaining);
+      }
+
+      JsonObject telemetry = request(vertx, address, "retrieveTelemetry", null).getJsonObject("result");
+      JsonObject phases = telemetry.getJsonObject("phases");
+      printResult(deviceCount, "cycle", phases.getJsonObject("cycle"));
+      printResult(deviceCount, "busScan", phases.getJsonObject("busScan"));
+      printResult(deviceCount, "commands", phases.getJsonObject("commands"));
+      for (String busName : telemetry.getJsonObject("commandQueues").fieldNames()) {
+        printResult(deviceCount, "latency", telemetry.getJsonObject("commandQueues").getJsonObject(busName).getJsonObject("latency").getJsonObject("user"));
+      }
+
+      OwfsAdapterBenchmark.<Void>await(h -> vertx.undeploy(deploymentId, h), REQUEST_TIMEOUT);
+    } finally {
+      vertx.close();
+      simulator.stop();
+    }
+  }
+
+  /**
+   * Send a request to the adapter and wait for its reply.
+   *
+   * @param vertx Vert.x instance adapter is deployed on.
+   * @param address eventbus address of adapter.
+   * @param action action of request.
+   * @param body body of request, may be null.
+   * @return reply.
+   * @throws Exception if request failed or timed out.
+   */
+  private static JsonObject request(Vertx vertx, String address, String action, JsonObject body) throws Exception {
+    Message<Object> reply = OwfsAdapterBenchmark.<Message<Object>>await(h -> vertx.eventBus().send(address, body, new DeliveryOptions().addHeader("action", action), h),
+        REQUEST_TIMEOUT);
+    return (JsonObject) reply.body();
+  }
+
+  /**
+   * Run an asynchronous call and wait for its result.
+   *
+   * @param <T> type of result.
+   * @param call call to run, given a handler for the result.
+   * @param timeout maximum time to wait (milliseconds).
+   * @return result.
+   * @throws Exception if call failed or timed out.
+   */
+  private static <T> T await(Consumer<Handler<AsyncResult<T>>> call, long timeout) throws Exception {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    call.accept(res -> {
+      if (res.succeeded()) {
+        result.complete(res.result());
+      } else {
+        result.completeExceptionally(res.cause());
+      }
+    });
+    return result.get(timeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Print statistics for one step, as summarized by the telemetry of the adapter.
+   *
+   * @param deviceCount number of simulated devices.
+   * @param step name of step.
+   * @param summary {"count", "mean", "p50", "p99", "max"} (milliseconds).
+   */
+  private static void printResult(int deviceCount, String step, JsonObject summary) {
+    System.out.println(String.format("%8d %-8s %8d %10.1f %10.1f %10.1f %10.1f", deviceCount, step, summary.getLong("count"),
+        summary.getDouble("mean"), summary.getDouble("p50"), summary.getDouble("p99"), summary.getDouble("max")));
+  }
+
+  /**
+   * Print a step that was measured only once.
+   *
+   * @param deviceCount number of simulated devices.
+   * @param step name of step.
+   * @param count number of samples.
+   * @param time measured time (milliseconds).
+   */
+  private static void printResult(int deviceCount, String step, int count, double time) {
+    System.out.println(String.format("%8d %-8s %8d %10.1f %10.1f %10.1f %10.1f", deviceCount, step, count, time, time, time, time));
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs.simulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * A simulated 1-wire bus master. Like a real bus only one transaction can be in progress at a time, so every access to a device holds the bus for a short
+ * while, and a device that does its own conversion holds the bus for the whole conversion time.
+ *
+ * @author Henrik Östman
+ */
+public final class SimulatedBus {
+
+  /**
+   * Name of bus, e.g. "bus.0".
+   */
+  private final String name;
+  /**
+   * Devices connected to bus, address as key.
+   */
+  private final Map<String, SimulatedDevice> devices;
+  /**
+   * Devices that have been unplugged by the simulator, and may be plugged in again later.
+   */
+  private final List<SimulatedDevice> unpluggedDevices;
+  /**
+   * Only one transaction at a time on the bus, fair so that no client starves.
+   */
+  private final ReentrantLock busLock;
+  /**
+   * Time a single transaction holds the bus (nanoseconds).
+   */
+  private final long accessTime;
+  /**
+   * Time for a 12-bit temperature conversion (milliseconds).
+   */
+  private final long temperatureConversionDelay;
+  /**
+   * Time for a voltage conversion (milliseconds).
+   */
+  private final long voltageConversionDelay;
+
+  /**
+   * Default constructor
+   *
+   * @param name name of bus, e.g. "bus.0".
+   * @param accessTime time a single transaction holds the bus (microseconds).
+   * @param temperatureConversionDelay time for a 12-bit temperature conversion (milliseconds).
+   * @param voltageConversionDelay time for a voltage conversion (milliseconds).
+   */
+  public SimulatedBus(String name, long accessTime, long temperatureConversionDelay, long voltageConversionDelay) {
+    this.name = name;
+    this.devices = new ConcurrentSkipListMap<>();
+    this.unpluggedDevices = new ArrayList<>();
+    this.busLock = new ReentrantLock(true);
+    this.accessTime = TimeUnit.MICROSECONDS.toNanos(accessTime);
+    this.temperatureConversionDelay = temperatureConversionDelay;
+    this.voltageConversionDelay = voltageConversionDelay;
+  }
+
+  /**
+   * Get name of bus.
+   *
+   * @return name, e.g. "bus.0".
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Connect a device to bus.
+   *
+   * @param device device to add.
+   * @return this bus, for chaining.
+   */
+  public SimulatedBus addDevice(SimulatedDevice device) {
+    devices.put(device.getAddress(), device);
+    return this;
+  }
+
+  /**
+   * Get a connected device.
+   *
+   * @param address address of device, e.g. "28.0000028F1A2B".
+   * @return device, or null if not connected.
+   */
+  public SimulatedDevice getDevice(String address) {
+    return devices.get(address);
+  }
+
+  /**
+   * Get all connected devices, ordered by address.
+   *
+   * @return unmodifiable list of devices.
+   */
+  public List<SimulatedDevice> getDevices() {
+    return Collections.unmodifiableList(new ArrayList<>(devices.values()));
+  }
+
+  /**
+   * Get all devices that answer a conditional search.
+   *
+   * @return alarming devices.
+   */
+  public List<SimulatedDevice> getAlarmingDevices() {
+    return devices.values().stream().filter(d -> d.isAlarming()).collect(Collectors.toList());
+  }
+
+  /**
+   * Unplug a connected device, it may be plugged in again with plugDevice().
+   *
+   * @param device device to unplug.
+   */
+  public synchronized void unplugDevice(SimulatedDevice device) {
+    if (devices.remove(device.getAddress()) != null) {
+      unpluggedDevices.add(device);
+    }
+  }
+
+  /**
+   * Plug in a previously unplugged device.
+   *
+   * @param index index among unplugged devices, wrapped around if out of range.
+   * @return plugged in device, or null if there were no unplugged devices.
+   */
+  public synchronized SimulatedDevice plugDevice(int index) {
+    if (unpluggedDevices.isEmpty()) {
+      return null;
+    }
+
+    SimulatedDevice device = unpluggedDevices.remove(Math.floorMod(index, unpluggedDevices.size()));
+    devices.put(device.getAddress(), device);
+    return device;
+  }
+
+  /**
+   * Get time for a 12-bit temperature conversion.
+   *
+   * @return delay in milliseconds.
+   */
+  public long getTemperatureConversionDelay() {
+    return temperatureConversionDelay;
+  }
+
+  /**
+   * Get time for a voltage conversion.
+   *
+   * @return delay in milliseconds.
+   */
+  public long getVoltageConversionDelay() {
+    return voltageConversionDelay;
+  }
+
+  /**
+   * Do a single transaction on the bus, waits until the bus is free.
+   *
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  public void access() throws InterruptedException {
+    access(0);
+  }
+
+  /**
+   * Do a transaction on the bus that holds the bus longer than usual, like a conversion on a single device. Waits until the bus is free.
+   *
+   * @param holdTime additional time to hold the bus (nanoseconds).
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  public void access(long holdTime) throws InterruptedException {
+    busLock.lockInterruptibly();
+    try {
+      SimulatedDevice.sleepUntil(System.nanoTime() + accessTime + holdTime);
+    } finally {
+      busLock.unlock();
+    }
+  }
+
+  /**
+   * Do a search for devices on the bus ("Search ROM"), which takes about one transaction per device found.
+   *
+   * @param conditional true for a conditional search ("Alarm Search"), where only alarming devices answer.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  public void search(boolean conditional) throws InterruptedException {
+    int found = conditional ? getAlarmingDevices().size() : devices.size();
+    access(accessTime * Math.max(0, found - 1));
+  }
+
+  /**
+   * Start a conversion on all temperature sensors at once ("Skip ROM"), like a write to "simultaneous/temperature".
+   *
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  public void startSimultaneousTemperatureConversion() throws InterruptedException {
+    access();
+
+    long doneTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(temperatureConversionDelay);
+    for (SimulatedDevice device : devices.values()) {
+      device.startTemperatureConversion(doneTime);
+    }
+  }
+
+  /**
+   * Start a conversion on all A/D converters at once, like a write to "simultaneous/voltage".
+   *
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  public void startSimultaneousVoltageConversion() throws InterruptedException {
+    access();
+
+    long doneTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(voltageConversionDelay);
+    for (SimulatedDevice device : devices.values()) {
+      device.startVoltageConversion(doneTime);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs.simulator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated DS18B20 temperature sensor. The temperature drifts slowly in steps of the sensor resolution.
+ *
+ * A powered sensor takes part in simultaneous conversions, and "latesttemp" then returns the result without touching the bus for longer than a normal read.
+ * A parasitic powered sensor needs the strong pull-up during its conversion, so it ignores simultaneous conversions and converts on its own each time it is
+ * read, holding the whole bus while doing so.
+ *
+ * Reading "temperature9" to "temperature12" changes the resolution of the sensor, like the configuration register of the real sensor, and the following
+ * conversions use that resolution.
+ *
+ * @author Henrik Östman
+ */
+public final class SimulatedDS18B20 extends SimulatedDevice {
+
+  /**
+   * Resolution of sensor at power up (bits).
+   */
+  private final static int DEFAULT_RESOLUTION = 12;
+  /**
+   * Current temperature in the surroundings of the sensor.
+   */
+  private double temperature;
+  /**
+   * When an ongoing simultaneous conversion is done, in System.nanoTime() units. 0 if there is no ongoing or unread conversion.
+   */
+  private long conversionDoneTime;
+  /**
+   * Resolution used for "temperature", "latesttemp" and simultaneous conversions (bits).
+   */
+  private int resolution;
+
+  /**
+   * Default constructor
+   *
+   * @param hwId hardware id.
+   * @param parasitic whether sensor is running on parasitic power.
+   * @param seed seed for simulated values.
+   */
+  public SimulatedDS18B20(String hwId, boolean parasitic, long seed) {
+    super("28", hwId, "DS18B20", parasitic, seed);
+    this.temperature = 15 + random.nextInt(100) * 0.0625;
+    this.resolution = DEFAULT_RESOLUTION;
+  }
+
+  /**
+   * Read a device specific property.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property.
+   * @return value, or null if property does not exist.
+   * @throws InterruptedException if interrupted while waiting for the bus or a conversion.
+   */
+  @Override
+  protected String readProperty(SimulatedBus bus, String property) throws InterruptedException {
+    switch (property) {
+      case "power":
+        bus.access();
+        return isParasitic() ? "0" : "1";
+      case "latesttemp":
+        return formatNumber(readLatest(bus));
+      case "temperature":
+        return formatNumber(convert(bus, getResolution()));
+      case "temperature9":
+        return formatNumber(convert(bus, setResolution(9)));
+      case "temperature10":
+        return formatNumber(convert(bus, setResolution(10)));
+      case "temperature11":
+        return formatNumber(convert(bus, setResolution(11)));
+      case "temperature12":
+        return formatNumber(convert(bus, setResolution(12)));
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Write a device specific property.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property.
+   * @param value value to write.
+   * @return false if property does not exist.
+   */
+  @Override
+  protected boolean writeProperty(SimulatedBus bus, String property, String value) {
+    return false;
+  }
+
+  /**
+   * Start a conversion triggered by a write to "simultaneous/temperature" on the bus.
+   *
+   * @param doneTime when a 12-bit conversion is done, in System.nanoTime() units.
+   */
+  @Override
+  public synchronized void startTemperatureConversion(long doneTime) {
+    if (!isParasitic()) {
+      // Every bit less halves the conversion time.
+      long startTime = System.nanoTime();
+      conversionDoneTime = startTime + ((doneTime - startTime) >> (12 - resolution));
+    }
+  }
+
+  /**
+   * Get current resolution.
+   *
+   * @return bits.
+   */
+  private synchronized int getResolution() {
+    return resolution;
+  }
+
+  /**
+   * Change resolution.
+   *
+   * @param resolution bits.
+   * @return the new resolution.
+   */
+  private synchronized int setResolution(int resolution) {
+    this.resolution = resolution;
+    return resolution;
+  }
+
+  /**
+   * Read result of the last simultaneous conversion, waits for it if it is still in progress. If there is no unread result a conversion of its own is done.
+   *
+   * @param bus bus device is connected to.
+   * @return temperature.
+   * @throws InterruptedException if interrupted while waiting for the bus or the conversion.
+   */
+  private double readLatest(SimulatedBus bus) throws InterruptedException {
+    long doneTime;
+
+    synchronized (this) {
+      doneTime = conversionDoneTime;
+      conversionDoneTime = 0;
+    }
+
+    if (doneTime == 0) {
+      return convert(bus, getResolution());
+    }
+
+    sleepUntil(doneTime);
+    bus.access();
+
+    synchronized (this) {
+      return sample(resolution);
+    }
+  }
+
+  /**
+   * Do a conversion on this sensor only, holds the bus during the whole conversion.
+   *
+   * @param bus bus device is connected to.
+   * @param resolution resolution of conversion (bits).
+   * @return temperature.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  private double convert(SimulatedBus bus, int resolution) throws InterruptedException {
+    // A 12-bit conversion takes the full time, every bit less halves it.
+    bus.access(TimeUnit.MILLISECONDS.toNanos(bus.getTemperatureConversionDelay()) >> (12 - resolution));
+
+    synchronized (this) {
+      return sample(resolution);
+    }
+  }
+
+  /**
+   * Let the temperature drift one step, and return it rounded to the resolution of the conversion.
+   *
+   * @param resolution resolution of conversion (bits).
+   * @return temperature.
+   */
+  private double sample(int resolution) {
+    if (random.nextInt(3) == 0) {
+      temperature += random.nextBoolean() ? 0.0625 : -0.0625;
+    }
+
+    double step = 0.0625 * (1 << (12 - resolution));
+    return Math.floor(temperature / step) * step;
+  }
+}
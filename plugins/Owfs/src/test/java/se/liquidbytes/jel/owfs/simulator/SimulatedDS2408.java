@@ -0,0 +1,261 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs.simulator;
+
+/**
+ * Simulated DS2408 8-channel switch. Like the real chip, setting "PIO.n" to 1 turns on the output transistor which pulls the line low, so "sensed.n" reads 0.
+ * An external input can also pull a line low. Every change of a sensed line sets its activity latch, and a device with latches set answers conditional
+ * searches once its alarm has been enabled through "set_alarm". Writing to any latch resets all of them.
+ *
+ * @author Henrik Östman
+ */
+public final class SimulatedDS2408 extends SimulatedDevice {
+
+  /**
+   * Number of channels.
+   */
+  private final static int CHANNELS = 8;
+  /**
+   * Mask with one bit per channel.
+   */
+  private final static int ALL_CHANNELS = (1 << CHANNELS) - 1;
+  /**
+   * Output transistors that are turned on, one bit per channel.
+   */
+  private int pio;
+  /**
+   * External inputs that are released (high), one bit per channel.
+   */
+  private int input;
+  /**
+   * Activity latches, one bit per channel.
+   */
+  private int latch;
+
+  /**
+   * Default constructor
+   *
+   * @param hwId hardware id.
+   * @param seed seed for simulated values.
+   */
+  public SimulatedDS2408(String hwId, long seed) {
+    super("29", hwId, "DS2408", false, seed);
+    this.input = ALL_CHANNELS;
+  }
+
+  /**
+   * Read a device specific property.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property.
+   * @return value, or null if property does not exist.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  @Override
+  protected String readProperty(SimulatedBus bus, String property) throws InterruptedException {
+    int bits;
+
+    if (property.startsWith("sensed.")) {
+      bus.access();
+      bits = getSensed();
+    } else if (property.startsWith("PIO.")) {
+      bus.access();
+      bits = getPio();
+    } else if (property.startsWith("latch.")) {
+      bus.access();
+      bits = getLatch();
+    } else if ("power".equals(property)) {
+      bus.access();
+      return "1";
+    } else {
+      return null;
+    }
+
+    return formatChannels(property.substring(property.indexOf('.') + 1), bits);
+  }
+
+  /**
+   * Write a device specific property.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property.
+   * @param value value to write.
+   * @return false if property does not exist.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  @Override
+  protected boolean writeProperty(SimulatedBus bus, String property, String value) throws InterruptedException {
+    if (property.startsWith("PIO.")) {
+      bus.access();
+      setPio(property.substring(property.indexOf('.') + 1), value);
+      return true;
+    } else if (property.startsWith("latch.")) {
+      bus.access();
+      synchronized (this) {
+        latch = 0;
+      }
+      return true;
+    } else if ("strobe".equals(property) || "out_of_testmode".equals(property) || "por".equals(property)) {
+      bus.access();
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Whether device supports "set_alarm".
+   *
+   * @return true.
+   */
+  @Override
+  protected boolean supportsAlarm() {
+    return true;
+  }
+
+  /**
+   * Whether device should answer a conditional search.
+   *
+   * @return true if alarm is enabled and any latch is set.
+   */
+  @Override
+  public synchronized boolean isAlarming() {
+    return isAlarmEnabled() && latch != 0;
+  }
+
+  /**
+   * Toggle a random external input.
+   *
+   * @param activity probability (0-1) that an input changes.
+   */
+  @Override
+  public void simulateEnvironment(double activity) {
+    if (random.nextDouble() < activity) {
+      int channel = random.nextInt(CHANNELS);
+
+      synchronized (this) {
+        int before = getSensed();
+        input ^= 1 << channel;
+        latch |= before ^ getSensed();
+      }
+    }
+  }
+
+  /**
+   * Get level of each line, one bit per channel.
+   *
+   * @return 1 for lines that are high.
+   */
+  private synchronized int getSensed() {
+    return input & ~pio & ALL_CHANNELS;
+  }
+
+  /**
+   * Get state of output transistors.
+   *
+   * @return 1 for outputs that are on.
+   */
+  private synchronized int getPio() {
+    return pio;
+  }
+
+  /**
+   * Get activity latches.
+   *
+   * @return 1 for lines that have changed since latches were reset.
+   */
+  private synchronized int getLatch() {
+    return latch;
+  }
+
+  /**
+   * Set output transistors.
+   *
+   * @param channel channel, "ALL" or "BYTE".
+   * @param value value to write.
+   */
+  private synchronized void setPio(String channel, String value) {
+    int before = getSensed();
+
+    try {
+      if ("ALL".equals(channel)) {
+        String[] values = value.split(",");
+        if (values.length != CHANNELS) {
+          throw new SimulatorException(SimulatorException.EINVAL);
+        }
+        int bits = 0;
+        for (int i = 0; i < CHANNELS; i++) {
+          if (Integer.parseInt(values[i].trim()) != 0) {
+            bits |= 1 << i;
+          }
+        }
+        pio = bits;
+      } else if ("BYTE".equals(channel)) {
+        pio = Integer.parseInt(value) & ALL_CHANNELS;
+      } else {
+        int bit = 1 << parseChannel(channel);
+        pio = Integer.parseInt(value) != 0 ? pio | bit : pio & ~bit;
+      }
+    } catch (NumberFormatException ex) {
+      throw new SimulatorException(SimulatorException.EINVAL);
+    }
+
+    latch |= before ^ getSensed();
+  }
+
+  /**
+   * Format channel bits the way Owserver does, "ALL" as comma separated values and "BYTE" as a number.
+   *
+   * @param channel channel, "ALL" or "BYTE".
+   * @param bits one bit per channel.
+   * @return formatted value.
+   */
+  private static String formatChannels(String channel, int bits) {
+    if ("ALL".equals(channel)) {
+      StringBuilder result = new StringBuilder();
+      for (int i = 0; i < CHANNELS; i++) {
+        if (i > 0) {
+          result.append(',');
+        }
+        result.append((bits >> i) & 1);
+      }
+      return result.toString();
+    } else if ("BYTE".equals(channel)) {
+      return String.format("%12d", bits);
+    }
+
+    return Integer.toString((bits >> parseChannel(channel)) & 1);
+  }
+
+  /**
+   * Parse a channel number.
+   *
+   * @param channel channel, "0" to "7".
+   * @return channel number.
+   */
+  private static int parseChannel(String channel) {
+    try {
+      int number = Integer.parseInt(channel);
+      if (number >= 0 && number < CHANNELS) {
+        return number;
+      }
+    } catch (NumberFormatException ex) {
+      // Handled below.
+    }
+
+    throw new SimulatorException(SimulatorException.ENOENT);
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs.simulator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated DS2450 quad A/D converter. Takes part in simultaneous voltage conversions, without one it converts on its own when read.
+ *
+ * @author Henrik Östman
+ */
+public final class SimulatedDS2450 extends SimulatedDevice {
+
+  /**
+   * Names of channels.
+   */
+  private final static String[] CHANNELS = {"A", "B", "C", "D"};
+  /**
+   * Current voltage on each input.
+   */
+  private final double[] voltages;
+  /**
+   * When an ongoing simultaneous conversion is done, in System.nanoTime() units. 0 if there is no ongoing or unread conversion.
+   */
+  private long conversionDoneTime;
+
+  /**
+   * Default constructor
+   *
+   * @param hwId hardware id.
+   * @param parasitic whether converter is running on parasitic power.
+   * @param seed seed for simulated values.
+   */
+  public SimulatedDS2450(String hwId, boolean parasitic, long seed) {
+    super("20", hwId, "DS2450", parasitic, seed);
+    this.voltages = new double[CHANNELS.length];
+
+    for (int i = 0; i < voltages.length; i++) {
+      voltages[i] = random.nextInt(5100) / 1000.0;
+    }
+  }
+
+  /**
+   * Read a device specific property.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property.
+   * @return value, or null if property does not exist.
+   * @throws InterruptedException if interrupted while waiting for the bus or a conversion.
+   */
+  @Override
+  protected String readProperty(SimulatedBus bus, String property) throws InterruptedException {
+    if ("power".equals(property)) {
+      bus.access();
+      return isParasitic() ? "0" : "1";
+    }
+
+    if (!property.startsWith("volt.")) {
+      return null;
+    }
+
+    String channel = property.substring("volt.".length());
+    int index = -1;
+    for (int i = 0; i < CHANNELS.length; i++) {
+      if (CHANNELS[i].equals(channel)) {
+        index = i;
+      }
+    }
+    if (index < 0 && !"ALL".equals(channel)) {
+      return null;
+    }
+
+    double[] converted = convert(bus);
+
+    if (index >= 0) {
+      return formatNumber(converted[index]);
+    }
+
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < converted.length; i++) {
+      if (i > 0) {
+        result.append(',');
+      }
+      result.append(formatNumber(converted[i]));
+    }
+    return result.toString();
+  }
+
+  /**
+   * Write a device specific property.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property.
+   * @param value value to write.
+   * @return false if property does not exist.
+   */
+  @Override
+  protected boolean writeProperty(SimulatedBus bus, String property, String value) {
+    return false;
+  }
+
+  /**
+   * Start a conversion triggered by a write to "simultaneous/voltage" on the bus.
+   *
+   * @param doneTime when conversion is done, in System.nanoTime() units.
+   */
+  @Override
+  public synchronized void startVoltageConversion(long doneTime) {
+    conversionDoneTime = doneTime;
+  }
+
+  /**
+   * Let the input voltages drift a little.
+   *
+   * @param activity probability (0-1) that an input changes.
+   */
+  @Override
+  public synchronized void simulateEnvironment(double activity) {
+    for (int i = 0; i < voltages.length; i++) {
+      if (random.nextDouble() < activity) {
+        voltages[i] = Math.max(0, Math.min(5.1, voltages[i] + (random.nextInt(21) - 10) / 1000.0));
+      }
+    }
+  }
+
+  /**
+   * Get result of the last simultaneous conversion, or do a conversion of its own if there is no unread result.
+   *
+   * @param bus bus device is connected to.
+   * @return voltage on each input.
+   * @throws InterruptedException if interrupted while waiting for the bus or the conversion.
+   */
+  private double[] convert(SimulatedBus bus) throws InterruptedException {
+    long doneTime;
+
+    synchronized (this) {
+      doneTime = conversionDoneTime;
+      conversionDoneTime = 0;
+    }
+
+    if (doneTime == 0) {
+      bus.access(TimeUnit.MILLISECONDS.toNanos(bus.getVoltageConversionDelay()));
+    } else {
+      sleepUntil(doneTime);
+      bus.access();
+    }
+
+    synchronized (this) {
+      return voltages.clone();
+    }
+  }
+}
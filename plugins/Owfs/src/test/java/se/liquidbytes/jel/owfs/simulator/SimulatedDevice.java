@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs.simulator;
+
+import java.util.Random;
+
+/**
+ * A simulated 1-wire device. Handles the properties all devices have in common, like "type" and "family", device specific properties are handled by
+ * subclasses.
+ *
+ * @author Henrik Östman
+ */
+public abstract class SimulatedDevice {
+
+  /**
+   * 1-wire family code, e.g. "28".
+   */
+  private final String family;
+  /**
+   * Hardware id, 12 hexadecimal characters.
+   */
+  private final String hwId;
+  /**
+   * Device type as reported by Owserver, e.g. "DS18B20".
+   */
+  private final String type;
+  /**
+   * Whether device is running on parasitic power.
+   */
+  private final boolean parasitic;
+  /**
+   * Random generator for simulated values, seeded for reproducible runs.
+   */
+  protected final Random random;
+  /**
+   * Alarm condition written to "set_alarm", null if alarms are disabled.
+   */
+  private volatile String alarmCondition;
+
+  /**
+   * Default constructor
+   *
+   * @param family 1-wire family code.
+   * @param hwId hardware id.
+   * @param type device type.
+   * @param parasitic whether device is running on parasitic power.
+   * @param seed seed for simulated values.
+   */
+  protected SimulatedDevice(String family, String hwId, String type, boolean parasitic, long seed) {
+    this.family = family;
+    this.hwId = hwId;
+    this.type = type;
+    this.parasitic = parasitic;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Get name of device as listed in a directory, e.g. "28.0000028F1A2B".
+   *
+   * @return address of device.
+   */
+  public String getAddress() {
+    return family + "." + hwId;
+  }
+
+  /**
+   * Get 1-wire family code.
+   *
+   * @return family code.
+   */
+  public String getFamily() {
+    return family;
+  }
+
+  /**
+   * Get hardware id.
+   *
+   * @return hwId.
+   */
+  public String getHwId() {
+    return hwId;
+  }
+
+  /**
+   * Get device type.
+   *
+   * @return type.
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * Whether device is running on parasitic power.
+   *
+   * @return true if parasitic powered.
+   */
+  public boolean isParasitic() {
+    return parasitic;
+  }
+
+  /**
+   * Read a property of device.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property, e.g. "latesttemp".
+   * @return value of property.
+   * @throws SimulatorException if property does not exist or could not be read.
+   * @throws InterruptedException if interrupted while waiting for the bus or a conversion.
+   */
+  public String read(SimulatedBus bus, String property) throws InterruptedException {
+    switch (property) {
+      case "type":
+        return type;
+      case "family":
+        return family;
+      case "id":
+        return hwId;
+      case "address":
+        return family + hwId + "00";
+      case "set_alarm":
+        if (alarmCondition == null) {
+          throw new SimulatorException(SimulatorException.ENOENT);
+        }
+        return alarmCondition;
+      default:
+        String value = readProperty(bus, property);
+        if (value == null) {
+          throw new SimulatorException(SimulatorException.ENOENT);
+        }
+        return value;
+    }
+  }
+
+  /**
+   * Write a property of device.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property, e.g. "PIO.ALL".
+   * @param value value to write.
+   * @throws SimulatorException if property does not exist or value is invalid.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  public void write(SimulatedBus bus, String property, String value) throws InterruptedException {
+    if ("set_alarm".equals(property) && supportsAlarm()) {
+      bus.access();
+      alarmCondition = value.trim();
+      return;
+    }
+
+    if (!writeProperty(bus, property, value.trim())) {
+      throw new SimulatorException(SimulatorException.ENOENT);
+    }
+  }
+
+  /**
+   * Whether device has an alarm enabled.
+   *
+   * @return true if "set_alarm" has been written with a non zero condition.
+   */
+  protected boolean isAlarmEnabled() {
+    return alarmCondition != null && !alarmCondition.matches("0*");
+  }
+
+  /**
+   * Whether device should answer a conditional search, i.e. be listed in the "alarm" directory.
+   *
+   * @return true if device is alarming.
+   */
+  public boolean isAlarming() {
+    return false;
+  }
+
+  /**
+   * Whether device supports "set_alarm".
+   *
+   * @return true if alarms are supported.
+   */
+  protected boolean supportsAlarm() {
+    return false;
+  }
+
+  /**
+   * Start a conversion triggered by a write to "simultaneous/temperature" on the bus.
+   *
+   * @param doneTime when conversion is done, in System.nanoTime() units.
+   */
+  public void startTemperatureConversion(long doneTime) {
+    // Only temperature sensors convert temperatures.
+  }
+
+  /**
+   * Start a conversion triggered by a write to "simultaneous/voltage" on the bus.
+   *
+   * @param doneTime when conversion is done, in System.nanoTime() units.
+   */
+  public void startVoltageConversion(long doneTime) {
+    // Only A/D converters convert voltages.
+  }
+
+  /**
+   * Let the environment change the inputs of the device, called periodically by the simulator.
+   *
+   * @param activity probability (0-1) that an input changes.
+   */
+  public void simulateEnvironment(double activity) {
+    // Most devices have no inputs of their own.
+  }
+
+  /**
+   * Read a device specific property.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property.
+   * @return value, or null if property does not exist.
+   * @throws InterruptedException if interrupted while waiting for the bus or a conversion.
+   */
+  protected abstract String readProperty(SimulatedBus bus, String property) throws InterruptedException;
+
+  /**
+   * Write a device specific property.
+   *
+   * @param bus bus device is connected to.
+   * @param property name of property.
+   * @param value value to write, without surrounding whitespace.
+   * @return false if property does not exist.
+   * @throws InterruptedException if interrupted while waiting for the bus.
+   */
+  protected abstract boolean writeProperty(SimulatedBus bus, String property, String value) throws InterruptedException;
+
+  /**
+   * Format a number the way Owserver does, right aligned in 12 characters.
+   *
+   * @param value value to format.
+   * @return formatted value.
+   */
+  protected static String formatNumber(double value) {
+    return String.format("%12s", Double.toString(value));
+  }
+
+  /**
+   * Sleep until a point in time.
+   *
+   * @param doneTime time to wake up, in System.nanoTime() units.
+   * @throws InterruptedException if interrupted while sleeping.
+   */
+  protected static void sleepUntil(long doneTime) throws InterruptedException {
+    long remaining = doneTime - System.nanoTime();
+
+    if (remaining > 0) {
+      Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+    }
+  }
+}
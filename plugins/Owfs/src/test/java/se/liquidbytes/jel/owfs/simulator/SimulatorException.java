@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Henrik Östman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.liquidbytes.jel.owfs.simulator;
+
+/**
+ * Exception that is thrown when a simulated request fails, the error code is sent back to the client just like Owserver does.
+ */
+public class SimulatorException extends RuntimeException {
+
+  /**
+   * Path does not exist.
+   */
+  public final static int ENOENT = 2;
+  /**
+   * Device did not answer on the bus.
+   */
+  public final static int EIO = 5;
+  /**
+   * Invalid value written.
+   */
+  public final static int EINVAL = 22;
+  /**
+   * Error code to send back to client.
+   */
+  private final int errorCode;
+
+  /**
+   * Constructor for exception class
+   *
+   * @param errorCode error code to send back to client.
+   */
+  public SimulatorException(int errorCode) {
+    super(String.format("Simulated request failed with errorcode %s.", errorCode));
+    this.errorCode = errorCode;
+  }
+
+  /**
+   * Get error code to send back to client.
+   *
+   * @return error code
+   */
+  public int getErrorCode() {
+    return this.errorCode;
+  }
+}